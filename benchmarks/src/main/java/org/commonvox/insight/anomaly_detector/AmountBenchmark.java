@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the conversion of purchase amounts: the String-based
+ * {@link PurchaseManager#amountStringToInteger(java.lang.String)}, and the byte-level
+ * {@link AmountCodec#parse(ByteBuffer, int, int)} and
+ * {@link AmountCodec#format(long, ByteBuffer)} used in stream processing.
+ *
+ * @author Daniel Vimont
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AmountBenchmark {
+
+  private static final int AMOUNT_COUNT = 1024;
+
+  private final String[] amountStrings = new String[AMOUNT_COUNT];
+  private final long[] amounts = new long[AMOUNT_COUNT];
+  private final int[] starts = new int[AMOUNT_COUNT + 1];
+  private ByteBuffer amountBytes;
+  private final ByteBuffer output = ByteBuffer.allocateDirect(AmountCodec.MAX_FORMATTED_LENGTH);
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(23);
+    StringBuilder allAmounts = new StringBuilder();
+    for (int i = 0; i < AMOUNT_COUNT; i++) {
+      amounts[i] = Math.max(1, (long)Math.exp(8 + random.nextGaussian() * 0.8));
+      amountStrings[i] = AmountCodec.toString(amounts[i]);
+      allAmounts.append(amountStrings[i]);
+      starts[i + 1] = allAmounts.length();
+    }
+    byte[] bytes = allAmounts.toString().getBytes(StandardCharsets.US_ASCII);
+    amountBytes = ByteBuffer.allocateDirect(bytes.length);
+    amountBytes.put(bytes).clear();
+  }
+
+  private int next() {
+    next = (next + 1) & (AMOUNT_COUNT - 1);
+    return next;
+  }
+
+  @Benchmark
+  public Integer amountStringToInteger() {
+    return PurchaseManager.amountStringToInteger(amountStrings[next()]);
+  }
+
+  @Benchmark
+  public long parse() {
+    int i = next();
+    return AmountCodec.parse(amountBytes, starts[i], starts[i + 1]);
+  }
+
+  @Benchmark
+  public ByteBuffer format() {
+    output.clear();
+    AmountCodec.format(amounts[next()], output);
+    return output;
+  }
+}
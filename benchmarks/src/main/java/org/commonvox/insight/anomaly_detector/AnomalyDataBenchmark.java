@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link User#getAnomalyData(long)}: the merging of the most recent purchases of a
+ * user's network (with every user holding a full complement of purchases), and the assessment
+ * of a purchase against them. The network cache is enabled, as in production, so that (once
+ * warmed) the cost is dominated by the merging of purchases.
+ *
+ * @author Daniel Vimont
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnomalyDataBenchmark {
+
+  private static final int MEAN_DEGREE = 8;
+  private static final long SEED = 21;
+
+  @Param({"10000", "100000"})
+  public int userCount;
+
+  @Param({"UNIFORM", "POWER_LAW"})
+  public String distribution;
+
+  @Param({"1", "2", "3"})
+  public int degrees;
+
+  @Param({"50"})
+  public int threshold;
+
+  private AnomalyEngine engine;
+  private final long[] amounts = new long[1024];
+  private int nextUser = 0;
+  private int nextAmount = 0;
+
+  @Setup
+  public void setUp() {
+    BenchmarkWorkload workload = new BenchmarkWorkload(userCount,
+            BenchmarkWorkload.DegreeDistribution.valueOf(distribution), MEAN_DEGREE, SEED);
+    engine = workload.newEngine(degrees, threshold, threshold);
+    for (int i = 0; i < amounts.length; i++) {
+      amounts[i] = workload.nextAmount() * (i % 8 == 0 ? 10 : 1); // about 1 in 8 anomalous
+    }
+  }
+
+  @Benchmark
+  public long[] getAnomalyData() {
+    nextUser = (nextUser + 7919) % userCount;
+    nextAmount = (nextAmount + 1) & (amounts.length - 1);
+    return engine.getUser(nextUser).getAnomalyData(amounts[nextAmount]);
+  }
+}
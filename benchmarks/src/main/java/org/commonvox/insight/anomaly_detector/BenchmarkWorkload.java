@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An instance of the BenchmarkWorkload class generates (deterministically, from a seed) the
+ * friend graph, purchase histories, and stream events upon which the benchmarks operate: a
+ * graph of a given count of users and mean friend degree, whose degrees follow either a
+ * {@link DegreeDistribution#UNIFORM uniform} or a {@link DegreeDistribution#POWER_LAW power-law}
+ * distribution, and purchase amounts following a log-normal distribution (median about $30).
+ *
+ * @author Daniel Vimont
+ */
+final class BenchmarkWorkload {
+
+  /** Distribution of the friend degrees of a generated graph. */
+  enum DegreeDistribution {
+    /** Each user befriends others chosen uniformly at random. */
+    UNIFORM,
+    /** Users befriend others chosen by preferential attachment, yielding a few large hubs. */
+    POWER_LAW
+  }
+
+  static final long FIRST_EPOCH_SECOND = 1497353581L; // 2017-06-13 11:33:01
+  private static final DateTimeFormatter TIMESTAMP_FORMAT
+          = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final int EVENTS_PER_SECOND = 16;
+
+  private final int userCount;
+  private final int[][] friendships;
+  private final Random random;
+  private long eventCount = 0;
+
+  /**
+   * Initializes a new workload, generating its friend graph.
+   *
+   * @param userCount count of users
+   * @param distribution distribution of friend degrees
+   * @param meanDegree mean count of friends per user
+   * @param seed seed of all random choices
+   */
+  BenchmarkWorkload(int userCount, DegreeDistribution distribution, int meanDegree, long seed) {
+    this.userCount = userCount;
+    random = new Random(seed);
+    int edgesPerUser = Math.max(1, meanDegree / 2);
+    List<int[]> edges = new ArrayList<>(userCount * edgesPerUser);
+    int[] endpoints = new int[userCount * edgesPerUser * 2]; // for preferential attachment
+    int endpointCount = 0;
+    for (int user = 1; user < userCount; user++) {
+      for (int edge = 0; edge < Math.min(edgesPerUser, user); edge++) {
+        int friend = distribution == DegreeDistribution.UNIFORM || endpointCount == 0
+                ? random.nextInt(user) : endpoints[random.nextInt(endpointCount)];
+        edges.add(new int[]{user, friend});
+        endpoints[endpointCount++] = user;
+        endpoints[endpointCount++] = friend;
+      }
+    }
+    friendships = edges.toArray(new int[edges.size()][]);
+  }
+
+  int getUserCount() {
+    return userCount;
+  }
+
+  /** Returns the user-id of the user with the submitted ordinal. */
+  static String userId(int user) {
+    return Integer.toString(user);
+  }
+
+  /**
+   * Returns a new engine holding the workload's friend graph (compacted, as following batch
+   * ingestion), and the submitted count of purchases for each user.
+   *
+   * @param degreesOfSeparation degrees of separation of the engine
+   * @param threshold purchase threshold of the engine
+   * @param purchasesPerUser count of purchases to be added for each user
+   * @return populated engine
+   */
+  AnomalyEngine newEngine(int degreesOfSeparation, int threshold, int purchasesPerUser) {
+    AnomalyEngine engine = new AnomalyEngine();
+    engine.setDegreesOfSeparation(degreesOfSeparation);
+    engine.setThreshold(threshold);
+    User[] users = new User[userCount];
+    for (int user = 0; user < userCount; user++) {
+      users[user] = engine.getOrCreateUser(userId(user));
+    }
+    for (int[] friendship : friendships) {
+      long eventTime = nextEventTime(engine);
+      users[friendship[0]].befriend(eventTime, users[friendship[1]]);
+      users[friendship[1]].befriend(eventTime, users[friendship[0]]);
+    }
+    engine.compactFriendGraph();
+    for (int purchase = 0; purchase < purchasesPerUser; purchase++) {
+      for (User user : users) {
+        user.addPurchase(nextEventTime(engine), nextAmount());
+      }
+    }
+    return engine;
+  }
+
+  private long nextEventTime(AnomalyEngine engine) {
+    return engine.getEventTime().nextEventTime(nextEpochSecond());
+  }
+
+  private long nextEpochSecond() {
+    return FIRST_EPOCH_SECOND + eventCount++ / EVENTS_PER_SECOND;
+  }
+
+  /**
+   * Returns a purchase amount (in pennies) drawn from a log-normal distribution.
+   *
+   * @return purchase amount in pennies
+   */
+  long nextAmount() {
+    return Math.max(1, (long)Math.exp(8 + random.nextGaussian() * 0.8));
+  }
+
+  /**
+   * Returns the JSON line of the startup parameters.
+   *
+   * @param degreesOfSeparation degrees of separation
+   * @param threshold purchase threshold
+   * @return JSON line of the parameters
+   */
+  static String parametersLine(int degreesOfSeparation, int threshold) {
+    return "{\"D\":\"" + degreesOfSeparation + "\", \"T\":\"" + threshold + "\"}";
+  }
+
+  /**
+   * Returns the submitted count of JSON lines of stream events, in the layout of the original
+   * specifications: about 90% purchases, and otherwise befriend and unfriend events (between
+   * users who are friends in the generated graph), in timestamp order.
+   *
+   * @param count count of events
+   * @return JSON lines of events
+   */
+  List<String> streamLines(int count) {
+    List<String> lines = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String timestamp = LocalDateTime.ofEpochSecond(nextEpochSecond(), 0, ZoneOffset.UTC)
+              .format(TIMESTAMP_FORMAT);
+      int choice = random.nextInt(100);
+      if (choice < 90) {
+        lines.add("{\"event_type\":\"purchase\", \"timestamp\":\"" + timestamp + "\", \"id\": \""
+                + userId(random.nextInt(userCount)) + "\", \"amount\": \""
+                + AmountCodec.toString(nextAmount()) + "\"}");
+      } else {
+        int[] friendship = friendships[random.nextInt(friendships.length)];
+        lines.add("{\"event_type\":\"" + (choice < 97 ? "befriend" : "unfriend")
+                + "\", \"timestamp\":\"" + timestamp + "\", \"id1\": \""
+                + userId(friendship[0]) + "\", \"id2\": \"" + userId(friendship[1]) + "\"}");
+      }
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of User operations applied concurrently to one shared engine: a mix
+ * of purchase additions, anomaly assessments, user lookups, and befriend/unfriend transactions
+ * (in the proportions 60/20/10/10), and befriend/unfriend transactions alone (which contend
+ * on the lock stripes of the friend graph). Runs with four threads by default; the count is
+ * scaled via the JMH {@code -t} option, e.g.
+ * {@code java -jar benchmarks/target/benchmarks.jar ContentionBenchmark -t 16}.
+ *
+ * @author Daniel Vimont
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class ContentionBenchmark {
+
+  private static final int MEAN_DEGREE = 4;
+  private static final long SEED = 25;
+
+  @Param({"100000"})
+  public int userCount;
+
+  private AnomalyEngine engine;
+  private User[] users;
+  private final AtomicLong sequence = new AtomicLong();
+
+  @Setup
+  public void setUp() {
+    engine = new BenchmarkWorkload(userCount, BenchmarkWorkload.DegreeDistribution.UNIFORM,
+            MEAN_DEGREE, SEED).newEngine(2, 50, 0);
+    users = new User[userCount];
+    for (int user = 0; user < userCount; user++) {
+      users[user] = engine.getUser(user);
+    }
+  }
+
+  @Benchmark
+  public Object mixed() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    User user = users[random.nextInt(userCount)];
+    int operation = random.nextInt(100);
+    if (operation < 60) {
+      user.addPurchase(nextEventTime(), 100 + random.nextInt(10000));
+      return user;
+    } else if (operation < 80) {
+      return user.getAnomalyData(100 + random.nextInt(10000));
+    } else if (operation < 90) {
+      return engine.getOrCreateUser(user.getId());
+    }
+    return befriendOrUnfriend(random, user);
+  }
+
+  @Benchmark
+  public Object befriendUnfriend() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return befriendOrUnfriend(random, users[random.nextInt(userCount)]);
+  }
+
+  private User befriendOrUnfriend(ThreadLocalRandom random, User user) {
+    User otherUser = users[random.nextInt(userCount)];
+    if (user != otherUser) {
+      long eventTime = nextEventTime();
+      if (random.nextBoolean()) {
+        user.befriend(eventTime, otherUser);
+        otherUser.befriend(eventTime, user);
+      } else {
+        user.unfriend(eventTime, otherUser);
+        otherUser.unfriend(eventTime, user);
+      }
+    }
+    return otherUser;
+  }
+
+  /** Returns event times in ascending order across all threads (1000 per second). */
+  private long nextEventTime() {
+    long next = sequence.getAndIncrement();
+    return EventTime.pack(BenchmarkWorkload.FIRST_EPOCH_SECOND + next / 1000, next % 1000);
+  }
+}
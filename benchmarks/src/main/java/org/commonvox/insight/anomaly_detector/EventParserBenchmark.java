@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the parsing of JSON stream events (about 90% purchases) directly from the bytes of a
+ * direct buffer, as in the processing of a memory-mapped file: both
+ * {@link EventParser#tokenize tokenization} alone, and full {@link EventParser#parse parsing}
+ * (including the resolution of user-ids to indexes and of timestamps to event times).
+ *
+ * @author Daniel Vimont
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventParserBenchmark {
+
+  private static final int LINE_COUNT = 1 << 16;
+  private static final int MEAN_DEGREE = 8;
+  private static final long SEED = 24;
+
+  @Param({"10000", "100000"})
+  public int userCount;
+
+  private AnomalyEngine engine;
+  private ByteBuffer lines;
+  private final int[] starts = new int[LINE_COUNT + 1];
+  private EventParser eventParser;
+  private final EventRecord eventRecord = new EventRecord();
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    BenchmarkWorkload workload = new BenchmarkWorkload(
+            userCount, BenchmarkWorkload.DegreeDistribution.UNIFORM, MEAN_DEGREE, SEED);
+    engine = workload.newEngine(1, 50, 0); // interns all user-ids
+    List<String> streamLines = workload.streamLines(LINE_COUNT);
+    byte[][] encodedLines = new byte[LINE_COUNT][];
+    for (int i = 0; i < LINE_COUNT; i++) {
+      encodedLines[i] = streamLines.get(i).getBytes(StandardCharsets.UTF_8);
+      starts[i + 1] = starts[i] + encodedLines[i].length;
+    }
+    lines = ByteBuffer.allocateDirect(starts[LINE_COUNT]);
+    for (byte[] encodedLine : encodedLines) {
+      lines.put(encodedLine);
+    }
+    lines.clear();
+  }
+
+  /** Renews the source of ingest sequence numbers, which would otherwise be exhausted. */
+  @Setup(Level.Iteration)
+  public void setUpIteration() {
+    eventParser = new EventParser(engine.getIdDictionary(), new EventTime());
+  }
+
+  private int next() {
+    next = (next + 1) & (LINE_COUNT - 1);
+    return next;
+  }
+
+  @Benchmark
+  public EventRecord tokenize() throws ParseException {
+    int i = next();
+    eventParser.tokenize(lines, starts[i], starts[i + 1], eventRecord);
+    return eventRecord;
+  }
+
+  @Benchmark
+  public EventRecord parse() throws ParseException {
+    int i = next();
+    eventParser.parse(lines, starts[i], starts[i + 1], eventRecord);
+    return eventRecord;
+  }
+}
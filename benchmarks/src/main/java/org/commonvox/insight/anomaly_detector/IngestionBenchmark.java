@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ingestion under load via an {@link IngestionServer}: each invocation sends a stream
+ * of {@value #EVENT_COUNT} events (about 90% purchases) over a loopback connection, as fast as
+ * the server's flow control admits, to a server whose detector is freshly
+ * {@link AnomalyEngine#restoreSnapshot restored} to the state following batch ingestion, and
+ * waits until all events have been applied (as counted by the {@link DetectorMetrics metrics}
+ * attached). Scores are reported per event.
+ *
+ * @author Daniel Vimont
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IngestionBenchmark {
+
+  static final int EVENT_COUNT = 100000;
+  private static final int MEAN_DEGREE = 8;
+  private static final long SEED = 25;
+  // interval of polling for completion: short relative to an invocation, yet long enough that
+  // merging the metrics does not compete with the server for processor time
+  private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  @Param({"10000", "100000"})
+  public int userCount;
+
+  @Param({"UNIFORM", "POWER_LAW"})
+  public String distribution;
+
+  @Param({"2"})
+  public int degrees;
+
+  @Param({"50"})
+  public int threshold;
+
+  private Path snapshotPath;
+  private byte[] streamBytes;
+  private DetectorMetrics metrics;
+  private IngestionServer server;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    BenchmarkWorkload workload = new BenchmarkWorkload(userCount,
+            BenchmarkWorkload.DegreeDistribution.valueOf(distribution), MEAN_DEGREE, SEED);
+    snapshotPath = Files.createTempFile("benchmark", ".snapshot");
+    workload.newEngine(degrees, threshold, threshold).writeSnapshot(snapshotPath);
+    StringBuilder stream = new StringBuilder();
+    for (String line : workload.streamLines(EVENT_COUNT)) {
+      stream.append(line).append('\n');
+    }
+    streamBytes = stream.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpInvocation() throws IOException {
+    AnomalyEngine engine = new AnomalyEngine();
+    engine.restoreSnapshot(snapshotPath);
+    metrics = new DetectorMetrics();
+    engine.setMetrics(metrics);
+    server = new IngestionServer(new TransactionProcessor(engine),
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).start();
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDownInvocation() throws IOException {
+    server.close();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(snapshotPath);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EVENT_COUNT)
+  public long serve() throws IOException {
+    try (Socket producer = new Socket(InetAddress.getLoopbackAddress(),
+            server.getLocalAddress().getPort())) {
+      OutputStream output = producer.getOutputStream();
+      output.write(streamBytes);
+      output.flush();
+    }
+    long eventCount;
+    while ((eventCount = metrics.getEventCount()) < EVENT_COUNT) {
+      LockSupport.parkNanos(POLL_NANOS);
+    }
+    return eventCount;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.NavigableSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the assembly of users' networks at one to six degrees of separation, with the
+ * network cache disabled (so that every request traverses the friend graph): both
+ * {@link User#getNetwork()} (assembly, and conversion into a set of Users) and the assembly of
+ * the network's user indexes alone (as done in anomaly assessment).
+ *
+ * @author Daniel Vimont
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NetworkBenchmark {
+
+  private static final int MEAN_DEGREE = 8;
+  private static final long SEED = 20;
+
+  @Param({"10000", "100000"})
+  public int userCount;
+
+  @Param({"UNIFORM", "POWER_LAW"})
+  public String distribution;
+
+  @Param({"1", "2", "3", "4", "5", "6"})
+  public int degrees;
+
+  private AnomalyEngine engine;
+  private int nextUser = 0;
+
+  @Setup
+  public void setUp() {
+    engine = new BenchmarkWorkload(userCount,
+            BenchmarkWorkload.DegreeDistribution.valueOf(distribution), MEAN_DEGREE, SEED)
+            .newEngine(degrees, 50, 0);
+    engine.setNetworkCacheCapacity(0);
+  }
+
+  private int nextUser() {
+    nextUser = (nextUser + 7919) % userCount; // visits all users, in scattered order
+    return nextUser;
+  }
+
+  @Benchmark
+  public NavigableSet<User> getNetwork() {
+    return engine.getUser(nextUser()).getNetwork();
+  }
+
+  @Benchmark
+  public int[] assembleNetwork() {
+    return engine.getCachedNetwork(nextUser());
+  }
+}
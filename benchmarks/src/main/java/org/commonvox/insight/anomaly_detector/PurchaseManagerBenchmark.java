@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the maintenance of recent purchases by the PurchaseManager:
+ * {@link PurchaseManager#addPurchase(long, long)} of a new purchase to a filled-to-threshold
+ * manager (displacing its oldest purchase), the same for a late-arriving purchase (inserted
+ * amid the held purchases), and {@link PurchaseManager#addPurchases(PurchaseManager)} of two
+ * filled managers into an empty one.
+ *
+ * @author Daniel Vimont
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PurchaseManagerBenchmark {
+
+  @Param({"10", "50", "500"})
+  public int threshold;
+
+  private AnomalyEngine engine;
+  private PurchaseManager purchaseManager;
+  private PurchaseManager source1;
+  private PurchaseManager source2;
+  private final long[] amounts = new long[1024];
+  private final int[] lateness = new int[1024];
+  private int nextAmount = 0;
+  private long nextEventTime = 0;
+
+  @Setup
+  public void setUp() {
+    engine = new AnomalyEngine();
+    engine.setThreshold(threshold);
+    Random random = new Random(22);
+    for (int i = 0; i < amounts.length; i++) {
+      amounts[i] = Math.max(1, (long)Math.exp(8 + random.nextGaussian() * 0.8));
+      lateness[i] = 1 + random.nextInt(threshold - 1);
+    }
+    purchaseManager = new PurchaseManager(engine);
+    source1 = new PurchaseManager(engine);
+    source2 = new PurchaseManager(engine);
+    for (int i = 0; i < threshold; i++) {
+      purchaseManager.addPurchase(nextEventTime(), nextAmount());
+      source1.addPurchase(nextEventTime(), nextAmount());
+      source2.addPurchase(nextEventTime(), nextAmount());
+    }
+  }
+
+  private long nextEventTime() {
+    nextEventTime += 2; // odd event times are left for late-arriving purchases
+    return nextEventTime;
+  }
+
+  private long nextAmount() {
+    nextAmount = (nextAmount + 1) & (amounts.length - 1);
+    return amounts[nextAmount];
+  }
+
+  @Benchmark
+  public PurchaseManager addPurchase() {
+    purchaseManager.addPurchase(nextEventTime(), nextAmount());
+    return purchaseManager;
+  }
+
+  @Benchmark
+  public PurchaseManager addLatePurchase() {
+    long amount = nextAmount();
+    // precedes the newest held purchase, but follows the oldest
+    purchaseManager.addPurchase(nextEventTime() - 2 * lateness[nextAmount] - 1, amount);
+    return purchaseManager;
+  }
+
+  @Benchmark
+  public PurchaseManager addPurchases() {
+    PurchaseManager combined = new PurchaseManager(engine);
+    combined.addPurchases(source1);
+    combined.addPurchases(source2);
+    return combined;
+  }
+}
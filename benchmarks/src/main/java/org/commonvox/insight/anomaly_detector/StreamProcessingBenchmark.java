@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures end-to-end stream processing via
+ * {@link TransactionProcessor#processStreamInput(java.util.stream.Stream, BufferedWriter)}:
+ * each invocation processes a stream of {@value #EVENT_COUNT} events (about 90% purchases)
+ * against a detector freshly {@link AnomalyEngine#restoreSnapshot restored} to the state
+ * following batch ingestion, with flagged purchases written to a discarding Writer, and with
+ * or without {@link DetectorMetrics metrics} attached (so that their overhead may be gauged).
+ * Scores are reported per event.
+ *
+ * @author Daniel Vimont
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StreamProcessingBenchmark {
+
+  static final int EVENT_COUNT = 100000;
+  private static final int MEAN_DEGREE = 8;
+  private static final long SEED = 25;
+
+  @Param({"10000", "100000"})
+  public int userCount;
+
+  @Param({"UNIFORM", "POWER_LAW"})
+  public String distribution;
+
+  @Param({"2"})
+  public int degrees;
+
+  @Param({"50"})
+  public int threshold;
+
+  @Param({"0", "2"})
+  public int pipelineParserCount;
+
+  @Param({"0"})
+  public int scoringThreadCount;
+
+  @Param({"false", "true"})
+  public boolean metrics;
+
+  private Path snapshotPath;
+  private List<String> streamLines;
+  private AnomalyEngine engine;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    BenchmarkWorkload workload = new BenchmarkWorkload(userCount,
+            BenchmarkWorkload.DegreeDistribution.valueOf(distribution), MEAN_DEGREE, SEED);
+    snapshotPath = Files.createTempFile("benchmark", ".snapshot");
+    workload.newEngine(degrees, threshold, threshold).writeSnapshot(snapshotPath);
+    streamLines = workload.streamLines(EVENT_COUNT);
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpInvocation() throws IOException {
+    engine = new AnomalyEngine();
+    engine.restoreSnapshot(snapshotPath);
+    if (metrics) {
+      engine.setMetrics(new DetectorMetrics());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(snapshotPath);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EVENT_COUNT)
+  public AnomalyEngine processStreamInput() throws IOException, ParseException {
+    TransactionProcessor transactionProcessor = new TransactionProcessor(engine);
+    transactionProcessor.setPipelineParserCount(pipelineParserCount);
+    transactionProcessor.setScoringThreadCount(scoringThreadCount);
+    try (BufferedWriter anomalyWriter = new BufferedWriter(new DiscardingWriter())) {
+      transactionProcessor.processStreamInput(streamLines.stream(), anomalyWriter);
+    }
+    return engine;
+  }
+
+  private static final class DiscardingWriter extends Writer {
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
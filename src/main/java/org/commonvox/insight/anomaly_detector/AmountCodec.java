@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The AmountCodec class converts purchase amounts between their "dollars and cents" decimal
+ * representation (as ASCII bytes) and long values in pennies, without constructing any object.
+ * <br><br>
+ * Parsing accepts an optional minus sign, one or more digits of dollars, and an optional
+ * decimal point followed by one or two digits of cents (so that "7", "7.5", and "7.50" are all
+ * parsed as 750 pennies), and rejects amounts whose magnitude exceeds {@link #MAX_AMOUNT}
+ * pennies. (The limit keeps the {@link RunningStatistics running statistics} of any count of
+ * amounts exact in 128-bit arithmetic.) Formatting yields at least one digit of dollars and
+ * exactly two digits of cents (e.g., "0.07", "1601.83", "-2.50").
+ * <br><br>
+ * The methods of this class may be invoked concurrently by multiple threads.
+ *
+ * @author Daniel Vimont
+ */
+final class AmountCodec {
+
+  static final long MAX_AMOUNT = 99_999_999_999_999L; // $999,999,999,999.99
+  static final int MAX_FORMATTED_LENGTH = 21; // minus sign, 19 digits, and decimal point
+
+  private AmountCodec() {
+  }
+
+  /**
+   * Parses the amount (in dollars and cents) held as ASCII bytes in the submitted range of the
+   * submitted buffer into pennies.
+   *
+   * @param buffer buffer holding the amount
+   * @param start position of the first byte of the amount
+   * @param end position following the last byte of the amount
+   * @return amount in pennies
+   * @throws IllegalArgumentException if the amount is not validly formatted, or out of range
+   */
+  static long parse(ByteBuffer buffer, int start, int end) {
+    int i = start;
+    boolean negative = i < end && buffer.get(i) == '-';
+    if (negative) {
+      i++;
+    }
+    long pennies = 0;
+    int dollarDigits = 0;
+    for (; i < end && isDigit(buffer.get(i)); i++, dollarDigits++) {
+      pennies = pennies * 10 + (buffer.get(i) - '0');
+      if (pennies > MAX_AMOUNT / 100) {
+        throw outOfRange(buffer, start, end);
+      }
+    }
+    pennies *= 100;
+    if (i < end && buffer.get(i) == '.') {
+      int centDigits = 0;
+      for (i++; i < end && isDigit(buffer.get(i)) && centDigits < 2; i++) {
+        pennies += (buffer.get(i) - '0') * (centDigits++ == 0 ? 10 : 1);
+      }
+      if (centDigits == 0) {
+        dollarDigits = 0; // trailing decimal point is invalid
+      }
+    }
+    if (dollarDigits == 0 || i != end) {
+      throw new IllegalArgumentException("Amount not in dollars-and-cents format: \""
+              + new ByteRange().set(buffer, start, end) + "\"");
+    }
+    return negative ? -pennies : pennies;
+  }
+
+  /**
+   * Parses the submitted amount (in dollars and cents) into pennies.
+   *
+   * @param amount amount in dollars and cents
+   * @return amount in pennies
+   * @throws IllegalArgumentException if the amount is not validly formatted, or out of range
+   */
+  static long parse(CharSequence amount) {
+    ByteBuffer buffer = ByteBuffer.allocate(amount.length());
+    for (int i = 0; i < amount.length(); i++) {
+      char c = amount.charAt(i);
+      buffer.put(i, c < 0x80 ? (byte)c : (byte)'?');
+    }
+    return parse(buffer, 0, buffer.limit());
+  }
+
+  /**
+   * Formats the submitted amount of pennies as dollars and cents into the submitted buffer,
+   * starting at its position, and advances its position past the formatted bytes.
+   *
+   * @param amount amount in pennies
+   * @param buffer buffer to receive the formatted amount
+   * @throws BufferOverflowException if fewer than {@link #MAX_FORMATTED_LENGTH} bytes
+   * remain in the buffer and the formatted amount does not fit
+   */
+  static void format(long amount, ByteBuffer buffer) {
+    // digits are extracted from the non-positive magnitude, so that Long.MIN_VALUE is formatted
+    long remaining = amount < 0 ? amount : -amount;
+    int digitCount = 1;
+    for (long scaled = remaining / 10; scaled != 0; scaled /= 10) {
+      digitCount++;
+    }
+    digitCount = Math.max(digitCount, 3);
+    int length = digitCount + 1 + (amount < 0 ? 1 : 0);
+    int position = buffer.position();
+    if (buffer.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    int index = position + length;
+    for (int digit = 0; digit < digitCount; digit++) {
+      if (digit == 2) {
+        buffer.put(--index, (byte)'.');
+      }
+      buffer.put(--index, (byte)('0' - remaining % 10));
+      remaining /= 10;
+    }
+    if (amount < 0) {
+      buffer.put(--index, (byte)'-');
+    }
+    buffer.position(position + length);
+  }
+
+  /**
+   * Formats the submitted amount of pennies as dollars and cents.
+   *
+   * @param amount amount in pennies
+   * @return amount in dollars and cents
+   */
+  static String toString(long amount) {
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_FORMATTED_LENGTH);
+    format(amount, buffer);
+    return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private static IllegalArgumentException outOfRange(ByteBuffer buffer, int start, int end) {
+    return new IllegalArgumentException(
+            "Amount out of range: \"" + new ByteRange().set(buffer, start, end) + "\"");
+  }
+}
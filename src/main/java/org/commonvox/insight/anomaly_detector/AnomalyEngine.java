@@ -0,0 +1,618 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An instance of the AnomalyEngine class holds all the state of one anomaly detector: its
+ * configuration ("degrees of separation" and purchase threshold), its Users (with their friend
+ * graph, network cache, and recent purchases), the source of its ingest sequence numbers, and
+ * the reusable buffers of its threads. Since no state is held in static variables, any number
+ * of engines may run side by side in one JVM (e.g., one per marketplace region), each fed by
+ * its own {@link TransactionProcessor}, and all sharing one thread pool if so constructed.
+ * <br><br>
+ * An instance may be concurrently accessed by multiple threads:
+ * <ul>
+ * <li>the registry of Users is read without locking, and only the creation of a new User is
+ * serialized;</li>
+ * <li>the befriend/unfriend event times and the recent purchases of a User are guarded by one
+ * of {@value #LOCK_STRIPE_COUNT} lock stripes (chosen by user index), so that only transactions
+ * of users sharing a stripe contend with each other; and</li>
+ * <li>networks are assembled, and recent purchases are selected, under optimistic reads which
+ * are repeated under read locks only if a concurrent modification intervened.</li>
+ * </ul>
+ * The event times submitted to User methods are expected to be assigned by the caller (e.g.,
+ * via {@link #timestampToEventTime(java.lang.String)}).
+ *
+ * @author Daniel Vimont
+ */
+public class AnomalyEngine {
+
+  static final int LOCK_STRIPE_COUNT = 256; // must be a power of two
+  private static final int INITIAL_USER_CAPACITY = 1024;
+
+  private volatile int degreesOfSeparation;
+  private volatile int threshold;
+  private final IdDictionary idDictionary = new IdDictionary();
+  private volatile User[] users = new User[INITIAL_USER_CAPACITY]; // indexed by user index
+  private final Object userCreationLock = new Object();
+  private final StampedLock[] lockStripes = newLockStripes();
+  private final FriendGraph friendGraph = new FriendGraph();
+  private final NetworkCache networkCache = new NetworkCache(NetworkCache.DEFAULT_CAPACITY);
+  private final ThreadLocal<NetworkTraversal> networkTraversal
+          = ThreadLocal.withInitial(NetworkTraversal::new);
+  private final ThreadLocal<RecentPurchaseMerger> recentPurchaseMerger
+          = ThreadLocal.withInitial(RecentPurchaseMerger::new);
+  private final EventTime eventTime = new EventTime();
+  private final ForkJoinPool threadPool;
+  private volatile EventLog eventLog;
+  private volatile DetectorMetrics metrics;
+  private volatile long rejectedEventCount = 0; // incremented only by the applying thread
+
+  /**
+   * Initializes a new AnomalyEngine, whose parallel work (batch loading and speculative
+   * scoring) is done in the common ForkJoinPool.
+   */
+  public AnomalyEngine() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Initializes a new AnomalyEngine, whose parallel work (batch loading and speculative
+   * scoring) is done in the submitted pool, which may be shared with other engines.
+   *
+   * @param threadPool pool in which parallel work is to be done
+   */
+  public AnomalyEngine(ForkJoinPool threadPool) {
+    if (threadPool == null) {
+      throw new IllegalArgumentException("Thread pool may not be null.");
+    }
+    this.threadPool = threadPool;
+  }
+
+  /**
+   * Returns the pool in which the parallel work of this engine is done.
+   *
+   * @return thread pool
+   */
+  public ForkJoinPool getThreadPool() {
+    return threadPool;
+  }
+
+  /**
+   * Set "degrees of separation", establishing how User networks will be derived.
+   *
+   * @param degreesOfSeparation degrees of separation
+   */
+  protected void setDegreesOfSeparation(int degreesOfSeparation) {
+    // throw exception if degreesOfSeparation < 1
+    this.degreesOfSeparation = degreesOfSeparation;
+    networkCache.clear(); // networks cached under previous setting are no longer valid
+  }
+
+  /**
+   * Get the setting for "degrees of separation", which establishes how User networks are derived.
+   *
+   * @return degrees of separation setting
+   */
+  protected int getDegreesOfSeparation() {
+    return degreesOfSeparation;
+  }
+
+  /**
+   * Set the threshold (max count) of purchases to be utilized in anomaly assessment.
+   *
+   * @param threshold purchase threshold
+   */
+  protected void setThreshold(int threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Get the threshold (max count) of purchases to be utilized in anomaly assessment.
+   *
+   * @return purchase threshold
+   */
+  protected int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Set the capacity of the network cache, expressed as the maximum total count of connections
+   * to be held across all cached networks. Least-recently-used networks are evicted as needed to
+   * stay within capacity; a capacity of zero disables caching.
+   *
+   * @param maxCachedConnections capacity of the network cache
+   */
+  protected void setNetworkCacheCapacity(long maxCachedConnections) {
+    networkCache.setCapacity(maxCachedConnections);
+  }
+
+  /**
+   * Get the capacity of the network cache, expressed as the maximum total count of connections
+   * to be held across all cached networks.
+   *
+   * @return capacity of the network cache
+   */
+  protected long getNetworkCacheCapacity() {
+    return networkCache.getCapacity();
+  }
+
+  /**
+   * Get the count of network requests that have been satisfied by the network cache.
+   *
+   * @return count of network-cache hits
+   */
+  protected long getNetworkCacheHitCount() {
+    return networkCache.getHitCount();
+  }
+
+  /**
+   * Get the count of network requests that have required the assembly of a network.
+   *
+   * @return count of network-cache misses
+   */
+  protected long getNetworkCacheMissCount() {
+    return networkCache.getMissCount();
+  }
+
+  /**
+   * Get the count of events rejected (and otherwise ignored) because of an unrecognized
+   * "event_type" value.
+   *
+   * @return count of rejected events
+   */
+  protected long getRejectedEventCount() {
+    return rejectedEventCount;
+  }
+
+  /** Counts an event rejected because of an unrecognized "event_type" value. */
+  void rejectEvent() {
+    rejectedEventCount++;
+  }
+
+  /**
+   * Standardizes conversion of String timestamps (from JSON streams, in "yyyy-MM-dd HH:mm:ss"
+   * format) into {@link EventTime event times}, each of which is assigned the next ingest
+   * sequence number of its second, so that transactions with identical timestamps are ordered
+   * by arrival.
+   *
+   * @param timestamp timestamp in "yyyy-MM-dd HH:mm:ss" format
+   * @return packed event time (epoch second and ingest sequence number)
+   */
+  protected long timestampToEventTime(String timestamp) {
+    synchronized (eventTime) {
+      return eventTime.encode(timestamp);
+    }
+  }
+
+  /**
+   * Returns the EventTime which assigns ingest sequence numbers to all transactions of this
+   * engine. A caller invoking the returned EventTime directly must either be the only thread
+   * doing so, or synchronize on it.
+   *
+   * @return source of event times
+   */
+  EventTime getEventTime() {
+    return eventTime;
+  }
+
+  /**
+   * Either gets existing User identified by the submitted id, or if no such User exists, creates
+   * and returns a new User instantiated with the submitted id.
+   *
+   * @param id user-id of the new or existing User
+   * @return either existing User identified by the submitted id, or a new User instantiated with
+   * the submitted id.
+   */
+  protected User getOrCreateUser(String id) {
+    return getOrCreateUser(idDictionary.getOrAdd(id));
+  }
+
+  /**
+   * Either gets existing User to which the submitted (dense) user index was assigned, or if no
+   * such User exists, creates and returns a new User with that index. The index must have been
+   * assigned by {@link #getIdDictionary() the user-id dictionary}.
+   *
+   * @param index user index
+   * @return either existing User with the submitted index, or a new User with that index
+   */
+  protected User getOrCreateUser(int index) {
+    User[] currentUsers = users;
+    if (index < currentUsers.length) {
+      User existingUser = currentUsers[index];
+      if (existingUser != null) {
+        return existingUser; // User fields are final, so a User is safely published via array
+      }
+    }
+    synchronized (userCreationLock) {
+      currentUsers = users;
+      if (index >= currentUsers.length) {
+        currentUsers = Arrays.copyOf(currentUsers, Math.max(currentUsers.length * 2, index + 1));
+        users = currentUsers;
+      }
+      User returnedUser = currentUsers[index];
+      if (returnedUser == null) {
+        returnedUser = new User(this, index, idDictionary.getId(index));
+        currentUsers[index] = returnedUser;
+      }
+      return returnedUser;
+    }
+  }
+
+  /**
+   * Returns the dictionary which interns user-ids into dense user indexes.
+   *
+   * @return user-id dictionary
+   */
+  IdDictionary getIdDictionary() {
+    return idDictionary;
+  }
+
+  /**
+   * Returns the User to which the submitted (dense) user index was assigned.
+   *
+   * @param index user index
+   * @return User with the submitted index
+   */
+  protected User getUser(int index) {
+    return users[index];
+  }
+
+  /**
+   * Returns the User to which the submitted (dense) user index was assigned, or null if no User
+   * has (yet) been created for the index.
+   *
+   * @param index user index
+   * @return User with the submitted index, or null
+   */
+  User peekUser(int index) {
+    User[] currentUsers = users;
+    return index < currentUsers.length ? currentUsers[index] : null;
+  }
+
+  /**
+   * Merges all recent befriend/unfriend changes into the compact (frozen) representation of the
+   * friend graph; intended to be invoked following batch ingestion. (Such merges are also done
+   * automatically as the volume of changes grows.)
+   */
+  protected void compactFriendGraph() {
+    friendGraph.compact();
+  }
+
+  /**
+   * Returns a Collection of all instantiated User objects in user-id order.
+   *
+   * @return Collection of all Users
+   */
+  protected Collection<User> getAllUsers() {
+    User[] allUsers;
+    synchronized (userCreationLock) {
+      allUsers = Arrays.copyOf(users, idDictionary.size());
+    }
+    int count = 0;
+    for (User user : allUsers) {
+      if (user != null) { // an id may have been interned by a thread yet to create its User
+        allUsers[count++] = user;
+      }
+    }
+    allUsers = Arrays.copyOf(allUsers, count);
+    Arrays.sort(allUsers);
+    return Arrays.asList(allUsers);
+  }
+
+  /**
+   * Writes the full state of this engine (its configuration, user-ids, friend graph,
+   * befriend/unfriend event times, recent purchases, and next ingest sequence number) to a
+   * binary {@link EngineSnapshot snapshot} file at the submitted path, replacing any existing
+   * file only once the snapshot is complete. The snapshot is to be taken while no transactions
+   * are being applied to this engine (e.g., following batch ingestion).
+   *
+   * @param path path of snapshot file
+   * @throws IOException if file access problems encountered
+   */
+  public void writeSnapshot(Path path) throws IOException {
+    EngineSnapshot.write(this, path);
+  }
+
+  /**
+   * Restores the full state of an engine from the binary {@link EngineSnapshot snapshot} file at
+   * the submitted path into this engine, which must be newly constructed (holding no Users).
+   * Transactions subsequently applied to this engine are treated exactly as they would have been
+   * by the engine from which the snapshot was taken.
+   *
+   * @param path path of snapshot file
+   * @throws IOException if file access problems encountered, or if the file is not a valid
+   * snapshot (in which case this engine is left unmodified)
+   * @throws IllegalStateException if this engine already holds Users
+   */
+  public void restoreSnapshot(Path path) throws IOException {
+    EngineSnapshot.restore(this, path);
+  }
+
+  /**
+   * Opens a write-ahead {@link EventLog event log} in the submitted directory, with the default
+   * group commit size. See {@link #openEventLog(java.nio.file.Path, int)}.
+   *
+   * @param directory directory of the event log
+   * @throws IOException if file access problems encountered, or if the log is corrupt
+   * @throws IllegalStateException if an existing log is to be recovered into an engine holding
+   * Users
+   */
+  public void openEventLog(Path directory) throws IOException {
+    openEventLog(directory, EventLog.DEFAULT_GROUP_COMMIT_SIZE);
+  }
+
+  /**
+   * Opens a write-ahead {@link EventLog event log} in the submitted directory, to which every
+   * event subsequently applied to this engine through the stream processing of a
+   * {@link TransactionProcessor} is appended before it is applied. If the directory holds no
+   * log, a new log is begun, based upon a snapshot of this engine's current state (so the log is
+   * to be opened following batch ingestion). Otherwise, this engine (which must be newly constructed) recovers the
+   * state of the log: the log's latest snapshot is restored, and the events logged since are
+   * replayed.
+   *
+   * @param directory directory of the event log
+   * @param groupCommitSize count of events between forced writes of the log to the storage
+   * device (1 assuring the durability of each event before it is applied, and thus before any
+   * output derived from it is written)
+   * @throws IOException if file access problems encountered, or if the log is corrupt
+   * @throws IllegalStateException if an existing log is to be recovered into an engine holding
+   * Users
+   */
+  public void openEventLog(Path directory, int groupCommitSize) throws IOException {
+    openEventLog(directory, groupCommitSize, EventLog.DEFAULT_SEGMENT_SIZE);
+  }
+
+  void openEventLog(Path directory, int groupCommitSize, long segmentSize) throws IOException {
+    if (eventLog != null) {
+      throw new IllegalStateException("An event log is already open.");
+    }
+    eventLog = EventLog.open(this, directory, groupCommitSize, segmentSize);
+  }
+
+  /**
+   * Commits and closes the event log of this engine, if one is open.
+   *
+   * @throws IOException if file access problems encountered
+   */
+  public void closeEventLog() throws IOException {
+    EventLog closedEventLog = eventLog;
+    if (closedEventLog != null) {
+      eventLog = null;
+      closedEventLog.close();
+    }
+  }
+
+  /**
+   * Attaches the submitted metrics to this engine, upon which the latencies of event
+   * application, network retrieval, and anomaly assessment (among other measures) are recorded
+   * into them; if null, recording ceases.
+   *
+   * @param metrics metrics to be recorded into, or null
+   */
+  public void setMetrics(DetectorMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns the metrics attached to this engine, or null if none are attached.
+   *
+   * @return attached metrics, or null
+   */
+  public DetectorMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns the event log to which applied events are appended, or null if none is open.
+   *
+   * @return event log, or null
+   */
+  EventLog getEventLog() {
+    return eventLog;
+  }
+
+  FriendGraph getFriendGraph() {
+    return friendGraph;
+  }
+
+  private static StampedLock[] newLockStripes() {
+    StampedLock[] lockStripes = new StampedLock[LOCK_STRIPE_COUNT];
+    for (int i = 0; i < LOCK_STRIPE_COUNT; i++) {
+      lockStripes[i] = new StampedLock();
+    }
+    return lockStripes;
+  }
+
+  /**
+   * Returns the lock stripe which guards the befriend/unfriend event times and the recent
+   * purchases of the user with the submitted index.
+   *
+   * @param index user index
+   * @return lock stripe of the user
+   */
+  StampedLock getLockStripe(int index) {
+    return lockStripes[index & (LOCK_STRIPE_COUNT - 1)];
+  }
+
+  /**
+   * Returns the cached network of the user with the submitted index, first assembling and
+   * caching it if no valid network is currently cached. A newly assembled network is cached only
+   * if the friend graph has not been modified since its assembly began: since every modification
+   * of the graph is followed by invalidation of the affected networks, this assures that a
+   * network assembled from a superseded graph is never left in the cache.
+   *
+   * @param index index of user
+   * @return indexes of all users in the user's network
+   */
+  int[] getCachedNetwork(int index) {
+    DetectorMetrics currentMetrics = metrics;
+    long startNanos = currentMetrics == null ? 0 : System.nanoTime();
+    FlightRecorderEvents.NetworkAssembly event = FlightRecorderEvents.beginNetworkAssembly();
+    int[] network = networkCache.get(index);
+    boolean cached = network != null;
+    if (!cached) {
+      long graphVersion = friendGraph.getVersion();
+      NetworkTraversal traversal = networkTraversal.get();
+      int size = traversal.assemble(friendGraph, index, degreesOfSeparation);
+      network = Arrays.copyOf(traversal.getNetwork(), size); // buffer may have grown
+      synchronized (networkCache) {
+        if (friendGraph.getVersion() == graphVersion) {
+          networkCache.put(index, network);
+        }
+      }
+    }
+    if (currentMetrics != null) {
+      currentMetrics.recordNetwork(System.nanoTime() - startNanos, network.length);
+    }
+    if (event != null) {
+      event.complete(idDictionary.getId(index), network.length, cached);
+    }
+    return network;
+  }
+
+  /**
+   * Returns the network of the user with the submitted index: the cached network if there is
+   * one (consulted without disturbing the cache), and otherwise a network newly assembled via
+   * the submitted traversal (and not cached). Since no shared state is modified, this method may
+   * be invoked concurrently by multiple threads (each with its own traversal), as in
+   * {@link SpeculativeScorer speculative scoring}, provided that no thread is modifying the
+   * state of Users in the meantime.
+   *
+   * @param index index of user
+   * @param traversal traversal to be used for assembly of an uncached network
+   * @return indexes of all users in the user's network
+   */
+  int[] peekNetwork(int index, NetworkTraversal traversal) {
+    DetectorMetrics currentMetrics = metrics;
+    long startNanos = currentMetrics == null ? 0 : System.nanoTime();
+    FlightRecorderEvents.NetworkAssembly event = FlightRecorderEvents.beginNetworkAssembly();
+    int[] network = networkCache.peek(index);
+    boolean cached = network != null;
+    if (!cached) {
+      int size = traversal.assemble(friendGraph, index, degreesOfSeparation);
+      network = Arrays.copyOf(traversal.getNetwork(), size);
+    }
+    if (currentMetrics != null) {
+      currentMetrics.recordNetwork(System.nanoTime() - startNanos, network.length);
+    }
+    if (event != null) {
+      event.complete(idDictionary.getId(index), network.length, cached);
+    }
+    return network;
+  }
+
+  /**
+   * Caches the submitted network of the user with the submitted index, unless a network is
+   * already cached for the user. The network must be current.
+   *
+   * @param index index of user
+   * @param network indexes of all users in the user's network
+   */
+  void cacheNetwork(int index, int[] network) {
+    synchronized (networkCache) {
+      if (networkCache.peek(index) == null) {
+        networkCache.put(index, network);
+      }
+    }
+  }
+
+  /**
+   * Invalidates the cached networks which may be affected by the addition or removal of a
+   * connection between the submitted users: only the networks of users within
+   * (degrees of separation - 1) of either user can include a path through that connection.
+   * Invalidation follows the modification of the graph (so that no network assembled before the
+   * modification can be cached after the invalidation). Following a removal, the users within
+   * (degrees of separation - 1) of either user are the same as before the removal: a user whose
+   * shortest path to one of them ran through the removed connection is within
+   * (degrees of separation - 2) of the other.
+   *
+   * @param index index of user befriending or unfriending
+   * @param otherIndex index of user being befriended or unfriended
+   */
+  void invalidateAffectedNetworks(int index, int otherIndex) {
+    if (networkCache.isEmpty()) {
+      return;
+    }
+    invalidateNetworksWithin(index, degreesOfSeparation - 1);
+    invalidateNetworksWithin(otherIndex, degreesOfSeparation - 1);
+  }
+
+  private void invalidateNetworksWithin(int index, int level) {
+    networkCache.invalidate(index);
+    if (level > 0) {
+      NetworkTraversal traversal = networkTraversal.get();
+      int size = traversal.assemble(friendGraph, index, level);
+      networkCache.invalidate(traversal.getNetwork(), size);
+    }
+  }
+
+  /**
+   * Determines whether the submitted purchase amount is an anomaly with respect to the recent
+   * purchases of the submitted network, using the calling thread's merger.
+   *
+   * @param network indexes of all users in a network
+   * @param amount purchase amount in pennies
+   * @return null if amount is not an anomaly; otherwise, returns a two-element long array
+   * consisting of (a) mean and (b) standard deviation that formed basis of anomaly computation
+   */
+  long[] getAnomalyData(int[] network, long amount) {
+    return getAnomalyData(network, amount, recentPurchaseMerger.get());
+  }
+
+  /**
+   * Returns the calling thread's merger, which holds the purchases selected by the calling
+   * thread's most recent invocation of {@link #getAnomalyData(int[], long)}.
+   *
+   * @return merger of the calling thread
+   */
+  RecentPurchaseMerger getRecentPurchaseMerger() {
+    return recentPurchaseMerger.get();
+  }
+
+  /**
+   * Performs the computation of {@link #getAnomalyData(int[], long)} using the submitted merger.
+   * Since no shared state is modified, this method may be invoked concurrently by multiple
+   * threads (each with its own merger).
+   *
+   * @param network indexes of all users in a network
+   * @param amount purchase amount in pennies
+   * @param merger merger to be used in selecting the network's recent purchases
+   * @return null if amount is not an anomaly; otherwise, returns a two-element long array
+   * consisting of (a) mean and (b) standard deviation that formed basis of anomaly computation
+   */
+  long[] getAnomalyData(int[] network, long amount, RecentPurchaseMerger merger) {
+    DetectorMetrics currentMetrics = metrics;
+    long startNanos = currentMetrics == null ? 0 : System.nanoTime();
+    merger.reset(threshold);
+    User[] currentUsers = users;
+    for (int connection : network) {
+      merger.merge(currentUsers[connection].getPurchaseManager(), getLockStripe(connection));
+    }
+    long[] anomalyData = merger.getAnomalyData(amount);
+    if (currentMetrics != null) {
+      currentMetrics.recordScoring(System.nanoTime() - startNanos, merger.size());
+    }
+    return anomalyData;
+  }
+}
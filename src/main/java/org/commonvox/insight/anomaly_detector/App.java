@@ -15,31 +15,230 @@
  */
 package org.commonvox.insight.anomaly_detector;
 
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.time.Duration;
+
 /**
  * Used for command-line invocation of batch runs.
  *
  */
 public class App
 {
+  static final String SAVE_SNAPSHOT_OPTION = "--save-snapshot";
+  static final String FROM_SNAPSHOT_OPTION = "--from-snapshot";
+  static final String METRICS_PORT_OPTION = "--metrics-port";
+  static final String FLIGHT_RECORDING_OPTION = "--flight-recording";
+  static final String FLIGHT_THRESHOLD_OPTION = "--flight-threshold";
+  static final String FOLLOW_OPTION = "--follow";
+  static final String LISTEN_OPTION = "--listen";
+  static final String EVENT_LOG_OPTION = "--event-log";
+
   /**
    * To be invoked with three mandatory arguments: batch-file-path, stream-file-path, and
-   * flagged-purchases-path.
+   * flagged-purchases-path. The arguments may be preceded by either or both of two options:
+   * "--save-snapshot snapshot-path", upon which a snapshot of the detector's state is written
+   * following initialization (before stream processing); and "--from-snapshot snapshot-path",
+   * upon which the detector's state is restored from a previously written snapshot, in which
+   * case the batch-file-path argument is omitted. The option "--metrics-port port" enables
+   * {@link DetectorMetrics metrics} of stream processing, registered as an MBean and served in
+   * Prometheus text format at http://localhost:<i>port</i>/metrics while the run is in progress.
+   * The option "--flight-recording recording-path" writes a Java Flight Recording of the run, in
+   * which the detector's {@link FlightRecorderEvents events} are recorded if they take at least
+   * 10 milliseconds (or the count of milliseconds given by the option "--flight-threshold").
+   * The option "--follow max-wait-millis" {@link TransactionProcessor#followPathInput follows}
+   * the stream file as it grows (waiting for at most max-wait-millis milliseconds at a time for
+   * it to be appended to), writing out each flagged purchase as soon as it is found, until the
+   * JVM is shut down (e.g., by an interrupt from the terminal). The option "--listen port" runs
+   * the detector as an {@link IngestionServer}, which accepts events over TCP at the given port
+   * (and writes flagged purchases back to subscribed connections) until the JVM is shut down, in
+   * which case the stream-file-path and flagged-purchases-path arguments are omitted. The option
+   * "--event-log directory" appends every event applied in stream processing to a write-ahead
+   * {@link EventLog event log} in the given directory, so that a crashed run may be resumed: if
+   * the directory already holds a log, the detector's state is first recovered from it (its
+   * latest snapshot is restored, and the events logged since are replayed), in which case the
+   * batch-file-path argument may be omitted (and is ignored if given); otherwise, a new log is
+   * begun upon the state established by the batch file (or snapshot). Since stream input is
+   * applied in full, a resumed run is to be given only the events not yet applied (as when
+   * listening).
    *
-   * @param args three mandatory arguments: batch-file-path, stream-file-path, and
-   * flagged-purchases-path
+   * @param args options, followed by three mandatory arguments: batch-file-path (omitted if
+   * initialized from a snapshot or recovered from an event log), stream-file-path, and
+   * flagged-purchases-path (both omitted if listening)
    * @throws Exception miscellaneous
    */
   public static void main( String[] args ) throws Exception
   {
-    if (args == null || args.length < 3) {
-      throw new  IllegalArgumentException(
-              "Three arguments required: batch-file-path, stream-file-path, and flagged-purchases-path.");
+    String saveSnapshotPathString = null;
+    String fromSnapshotPathString = null;
+    int metricsPort = -1;
+    String flightRecordingPathString = null;
+    Duration flightThreshold = Duration.ofMillis(10);
+    long followMaxWaitMillis = -1;
+    int listenPort = -1;
+    String eventLogPathString = null;
+    int argIndex = 0;
+    while (args != null && argIndex + 1 < args.length && args[argIndex].startsWith("--")) {
+      switch (args[argIndex]) {
+        case SAVE_SNAPSHOT_OPTION:
+          saveSnapshotPathString = args[argIndex + 1];
+          break;
+        case FROM_SNAPSHOT_OPTION:
+          fromSnapshotPathString = args[argIndex + 1];
+          break;
+        case METRICS_PORT_OPTION:
+          metricsPort = Integer.parseInt(args[argIndex + 1]);
+          break;
+        case FLIGHT_RECORDING_OPTION:
+          flightRecordingPathString = args[argIndex + 1];
+          break;
+        case FLIGHT_THRESHOLD_OPTION:
+          flightThreshold = Duration.ofMillis(Long.parseLong(args[argIndex + 1]));
+          break;
+        case FOLLOW_OPTION:
+          followMaxWaitMillis = Long.parseLong(args[argIndex + 1]);
+          break;
+        case LISTEN_OPTION:
+          listenPort = Integer.parseInt(args[argIndex + 1]);
+          break;
+        case EVENT_LOG_OPTION:
+          eventLogPathString = args[argIndex + 1];
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[argIndex]);
+      }
+      argIndex += 2;
     }
-    String batchFilePathString = args[0];    // "log_input/batch_log.json";
-    String streamFilePathString = args[1];   // "log_input/stream_log.json";
-    String anomalyFilePathString = args[2];  // "log_output/flagged_purchases.json";
 
-    TransactionProcessor transactionProcessor = new TransactionProcessor(batchFilePathString);
-    transactionProcessor.processPathStringInput(streamFilePathString, anomalyFilePathString);
+    Closeable flightRecording = flightRecordingPathString == null ? null
+            : FlightRecorderEvents.startRecording(Paths.get(flightRecordingPathString),
+                    flightThreshold);
+    try {
+      TransactionProcessor transactionProcessor;
+      int streamArgumentCount = listenPort < 0 ? 2 : 0;
+      boolean recovering = eventLogPathString != null
+              && EventLog.exists(Paths.get(eventLogPathString));
+      if (recovering) {
+        if (fromSnapshotPathString != null) {
+          throw new IllegalArgumentException("The " + FROM_SNAPSHOT_OPTION
+                  + " option may not be used with an existing event log: " + eventLogPathString);
+        }
+        if (args.length - argIndex < streamArgumentCount) {
+          throw new IllegalArgumentException("Two arguments required with existing event log: "
+                  + "stream-file-path and flagged-purchases-path.");
+        }
+        if (args.length - argIndex > streamArgumentCount) {
+          argIndex++; // batch-file-path, superseded by the state of the log
+        }
+        AnomalyEngine engine = new AnomalyEngine();
+        engine.openEventLog(Paths.get(eventLogPathString));
+        transactionProcessor = new TransactionProcessor(engine);
+      } else if (fromSnapshotPathString == null) {
+        if (args == null || args.length - argIndex < 1 + streamArgumentCount) {
+          throw new  IllegalArgumentException(listenPort < 0
+                  ? "Three arguments required: batch-file-path, stream-file-path, and flagged-purchases-path."
+                  : "One argument required with " + LISTEN_OPTION + " option: batch-file-path.");
+        }
+        String batchFilePathString = args[argIndex++];    // "log_input/batch_log.json";
+        transactionProcessor = new TransactionProcessor(batchFilePathString);
+      } else {
+        if (args.length - argIndex < streamArgumentCount) {
+          throw new  IllegalArgumentException("Two arguments required following "
+                  + FROM_SNAPSHOT_OPTION + " option: stream-file-path and flagged-purchases-path.");
+        }
+        AnomalyEngine engine = new AnomalyEngine();
+        engine.restoreSnapshot(Paths.get(fromSnapshotPathString));
+        transactionProcessor = new TransactionProcessor(engine);
+      }
+      String streamFilePathString = streamArgumentCount == 0 ? null
+              : args[argIndex];      // "log_input/stream_log.json";
+      String anomalyFilePathString = streamArgumentCount == 0 ? null
+              : args[argIndex + 1]; // "log_output/flagged_purchases.json";
+
+      if (eventLogPathString != null && !recovering) {
+        transactionProcessor.getEngine().openEventLog(Paths.get(eventLogPathString));
+      }
+      if (saveSnapshotPathString != null) {
+        transactionProcessor.getEngine().writeSnapshot(Paths.get(saveSnapshotPathString));
+      }
+      HttpServer metricsServer = null;
+      if (metricsPort >= 0) {
+        DetectorMetrics metrics = new DetectorMetrics();
+        transactionProcessor.getEngine().setMetrics(metrics);
+        metrics.registerMBean(App.class.getSimpleName());
+        metricsServer = metrics.startHttpServer(new InetSocketAddress(metricsPort));
+      }
+      try {
+        if (listenPort >= 0) {
+          serve(transactionProcessor, listenPort);
+        } else if (followMaxWaitMillis < 0) {
+          transactionProcessor.processPathStringInput(streamFilePathString, anomalyFilePathString);
+        } else {
+          follow(transactionProcessor, streamFilePathString, anomalyFilePathString,
+                  followMaxWaitMillis);
+        }
+      } finally {
+        if (metricsServer != null) {
+          metricsServer.stop(0);
+        }
+        transactionProcessor.getEngine().closeEventLog();
+      }
+    } finally {
+      if (flightRecording != null) {
+        flightRecording.close();
+      }
+    }
+  }
+
+  /**
+   * Follows the stream file until the JVM is shut down, whereupon following is stopped, and
+   * the shutdown awaits the orderly completion of processing (so that the output, event log,
+   * and flight recording are completely written).
+   */
+  private static void follow(TransactionProcessor transactionProcessor,
+          String streamFilePathString, String anomalyFilePathString, long maxWaitMillis)
+          throws Exception {
+    addShutdownHook(transactionProcessor::stopFollowing);
+    transactionProcessor.followPathInput(Paths.get(streamFilePathString), anomalyFilePathString,
+            maxWaitMillis);
+  }
+
+  /**
+   * Serves events received at the submitted port until the JVM is shut down, whereupon the
+   * server is closed once the events already received have been applied.
+   */
+  private static void serve(TransactionProcessor transactionProcessor, int port)
+          throws Exception {
+    try (IngestionServer server
+            = new IngestionServer(transactionProcessor, new InetSocketAddress(port))) {
+      addShutdownHook(() -> {
+        try {
+          server.close();
+        } catch (IOException e) {
+          // reported upon the serving thread's own closing of the server
+        }
+      });
+      server.start();
+      server.awaitTermination();
+    }
+  }
+
+  /**
+   * Adds a shutdown hook which runs the submitted action (which is to bring the processing on
+   * the invoking thread to an end), and then awaits the end of the invoking thread.
+   */
+  private static void addShutdownHook(Runnable stopAction) {
+    Thread processingThread = Thread.currentThread();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      stopAction.run();
+      try {
+        processingThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }));
   }
 }
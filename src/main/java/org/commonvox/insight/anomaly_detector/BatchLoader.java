@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * An instance of the BatchLoader class loads the initializing transactions of a batch file
+ * (e.g., "batch_log.json") using the threads of a ForkJoinPool, yielding the same state as
+ * would serial processing of the file. Since batch purchases are never assessed for anomalies,
+ * and since the purchases of different users are independent of one another, loading proceeds
+ * as follows, for successive groups of chunks of the file:
+ * <ol>
+ * <li>the chunks (each a line-aligned region of the file) are
+ * {@link EventParser#tokenize tokenized} in parallel, each into a compact columnar form;</li>
+ * <li>the tokenized events are then resolved serially, in file order: ingest sequence numbers
+ * are assigned, user-ids are interned, startup parameters are applied, and befriend/unfriend
+ * transactions are applied to the friend graph -- exactly as in serial processing;</li>
+ * <li>finally, purchases are applied in parallel, partitioned by user index, so that each
+ * user's purchases are added (in file order) by a single thread.</li>
+ * </ol>
+ * Only one group of chunks is held in memory at a time.
+ *
+ * @author Daniel Vimont
+ */
+final class BatchLoader {
+
+  static final int DEFAULT_CHUNK_SIZE = 1 << 24; // 16 MiB
+  private static final int CHUNKS_PER_THREAD = 2;  // per group
+
+  private final AnomalyEngine engine;
+  private final ForkJoinPool pool;
+  private final int chunkSize;
+
+  /**
+   * Initializes a new BatchLoader, which utilizes the {@link AnomalyEngine#getThreadPool()
+   * thread pool} of the submitted engine.
+   *
+   * @param engine engine into which batch files are to be loaded
+   */
+  BatchLoader(AnomalyEngine engine) {
+    this(engine, engine.getThreadPool(), DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Initializes a new BatchLoader.
+   *
+   * @param engine engine into which batch files are to be loaded
+   * @param pool pool whose threads are to parse chunks and apply purchases
+   * @param chunkSize nominal size of the chunks into which a batch file is divided
+   */
+  BatchLoader(AnomalyEngine engine, ForkJoinPool pool, int chunkSize) {
+    this.engine = engine;
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Loads the transactions of the batch file at the submitted path.
+   *
+   * @param path path of batch file
+   * @throws IOException if file access problems encountered
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
+   */
+  void load(Path path) throws IOException, ParseException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long[] boundaries = getChunkBoundaries(channel);
+      int chunkCount = boundaries.length - 1;
+      int groupSize = pool.getParallelism() * CHUNKS_PER_THREAD;
+      for (int first = 0; first < chunkCount; first += groupSize) {
+        List<Callable<ParsedChunk>> parseTasks = new ArrayList<>();
+        for (int chunk = first; chunk < Math.min(first + groupSize, chunkCount); chunk++) {
+          long chunkStart = boundaries[chunk];
+          long chunkEnd = boundaries[chunk + 1];
+          parseTasks.add(() -> parse(channel, chunkStart, chunkEnd));
+        }
+        List<ParsedChunk> chunks = invokeAll(parseTasks);
+        for (ParsedChunk chunk : chunks) {
+          resolve(chunk);
+        }
+        int partitionCount = pool.getParallelism();
+        List<Callable<ParsedChunk>> applyTasks = new ArrayList<>();
+        for (int partition = 0; partition < partitionCount; partition++) {
+          int applyPartition = partition;
+          applyTasks.add(() -> {
+            applyPurchases(chunks, applyPartition, partitionCount);
+            return null;
+          });
+        }
+        invokeAll(applyTasks);
+      }
+    }
+  }
+
+  /**
+   * Divides the file into line-aligned chunks of approximately the nominal chunk size, returning
+   * the offsets at which chunks begin, followed by the size of the file.
+   */
+  private long[] getChunkBoundaries(FileChannel channel) throws IOException {
+    long fileSize = channel.size();
+    long[] boundaries = new long[16];
+    int count = 1; // boundaries[0] == 0
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    long boundary = 0;
+    while (boundary < fileSize) {
+      long next = boundary + chunkSize;
+      // advance to the byte following the next line feed
+      while (next < fileSize) {
+        probe.clear();
+        int read = channel.read(probe, next);
+        int lineFeed = -1;
+        for (int i = 0; i < read && lineFeed < 0; i++) {
+          if (probe.get(i) == '\n') {
+            lineFeed = i;
+          }
+        }
+        if (lineFeed >= 0) {
+          next += lineFeed + 1;
+          break;
+        }
+        next += read;
+      }
+      boundary = Math.min(next, fileSize);
+      if (boundary - boundaries[count - 1] > Integer.MAX_VALUE) {
+        throw new IOException("Batch file contains a line too long to be mapped.");
+      }
+      if (count == boundaries.length) {
+        boundaries = Arrays.copyOf(boundaries, count * 2);
+      }
+      boundaries[count++] = boundary;
+    }
+    return Arrays.copyOf(boundaries, Math.max(count, 1));
+  }
+
+  private static ParsedChunk parse(FileChannel channel, long chunkStart, long chunkEnd)
+          throws IOException, ParseException {
+    EventParser parser = new EventParser(null, new EventTime()); // used only for tokenization
+    EventRecord record = new EventRecord();
+    ParsedChunk chunk = new ParsedChunk();
+    try (MappedLineReader reader = new MappedLineReader(
+            channel, chunkStart, chunkEnd, (int)(chunkEnd - chunkStart))) {
+      while (reader.nextLine()) {
+        if (parser.tokenize(
+                reader.getBuffer(), reader.getLineStart(), reader.getLineEnd(), record)) {
+          chunk.add(record);
+        }
+      }
+      chunk.buffer = reader.getBuffer(); // a chunk is held in a single mapped window
+    }
+    return chunk;
+  }
+
+  /**
+   * Resolves the events of a parsed chunk and applies all but its purchases, exactly as
+   * {@link TransactionProcessor} would in serial processing.
+   */
+  private void resolve(ParsedChunk chunk) {
+    ByteRange id = new ByteRange();
+    for (int i = 0; i < chunk.count; i++) {
+      if (chunk.resolve(engine, i, id) != null && engine.getThreshold() == 0) {
+        chunk.setType(i, EventType.UNKNOWN); // purchase would not be retained
+      }
+    }
+    chunk.buffer = null;
+    chunk.releaseTokens();
+  }
+
+  /**
+   * Applies, in file order, the purchases of the users in the submitted partition.
+   */
+  private void applyPurchases(List<ParsedChunk> chunks, int partition,
+          int partitionCount) {
+    byte purchase = (byte)EventType.PURCHASE.ordinal();
+    for (ParsedChunk chunk : chunks) {
+      for (int i = 0; i < chunk.count; i++) {
+        int userIndex = (int)chunk.userIndexes[i];
+        if (chunk.types[i] == purchase && userIndex % partitionCount == partition) {
+          engine.getUser(userIndex).addPurchase(chunk.eventTimes[i], chunk.amounts[i]);
+        }
+      }
+    }
+  }
+
+  private <T> List<T> invokeAll(List<Callable<T>> callables)
+          throws IOException, ParseException {
+    List<ForkJoinTask<T>> tasks = new ArrayList<>();
+    for (Callable<T> callable : callables) {
+      tasks.add(ForkJoinTask.adapt(callable));
+    }
+    for (ForkJoinTask<T> task : tasks) {
+      pool.execute(task);
+    }
+    List<T> results = new ArrayList<>();
+    for (ForkJoinTask<T> task : tasks) {
+      try {
+        results.add(task.join());
+      } catch (RuntimeException e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+          if (cause instanceof IOException) {
+            throw (IOException)cause;
+          } else if (cause instanceof ParseException) {
+            throw (ParseException)cause;
+          }
+        }
+        throw e;
+      }
+    }
+    return results;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An instance of the ByteRange class presents a range of bytes within a ByteBuffer as a
+ * CharSequence of (one-byte) ASCII characters, without copying the bytes, so that tokens of
+ * the input may be submitted to CharSequence-based processing (timestamp parsing, user-id
+ * lookup) without the allocation of a String per token. An instance is reusable: it may be
+ * {@link #set(java.nio.ByteBuffer, int, int) set} to a new range at any time.
+ *
+ * @author Daniel Vimont
+ */
+final class ByteRange implements CharSequence {
+
+  private ByteBuffer buffer;
+  private int start;
+  private int end;
+
+  ByteRange set(ByteBuffer buffer, int start, int end) {
+    this.buffer = buffer;
+    this.start = start;
+    this.end = end;
+    return this;
+  }
+
+  int getStart() {
+    return start;
+  }
+
+  int getEnd() {
+    return end;
+  }
+
+  @Override
+  public int length() {
+    return end - start;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char)(buffer.get(start + index) & 0xFF);
+  }
+
+  @Override
+  public CharSequence subSequence(int subStart, int subEnd) {
+    return new ByteRange().set(buffer, start + subStart, start + subEnd);
+  }
+
+  @Override
+  public String toString() {
+    char[] chars = new char[end - start];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = charAt(i);
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * An instance of the DetectorMetrics class, once {@link AnomalyEngine#setMetrics attached} to an
+ * engine, records the latency of each applied event (by event type), the latency and size of
+ * each network retrieval, the latency and count of purchases merged of each anomaly assessment,
+ * and the count of purchases assessed and flagged. When a stream is
+ * {@link TransactionProcessor#followPathInput followed}, the lag of each event's processing
+ * behind its timestamp is recorded as well. Latencies, sizes, and lags are recorded in
+ * {@link LatencyHistogram log-bucketed histograms}.
+ * <br><br>
+ * Each recording thread records into a thread-local recorder of its own, so that recording
+ * involves no contention; the recorders of all threads are merged when the metrics are read,
+ * either via JMX (once {@link #registerMBean registered}) or in Prometheus text exposition
+ * format, as served by an {@link #startHttpServer HTTP endpoint}. The recorder of a thread that
+ * has ended is folded into an aggregate of retired recorders (and released) whenever a new
+ * recorder is created or the metrics are read, so that a succession of short-lived recording
+ * threads does not accumulate recorders.
+ *
+ * @author Daniel Vimont
+ */
+public class DetectorMetrics implements DetectorMetricsMBean {
+
+  static final String METRIC_PREFIX = "anomaly_detector_";
+  static final String HTTP_CONTEXT = "/metrics";
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final EventType[] EVENT_TYPES = EventType.values();
+  private static final long SAMPLING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(this::newRecorder);
+  private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+  // recorders of ended threads, folded together (guarded by this)
+  private final Recorder retired = new Recorder(null);
+  // most recent sampling of the event count, from which the event rate is derived
+  private long sampleNanos = System.nanoTime();
+  private long sampleEventCount = 0;
+  private double eventsPerSecond = 0;
+  private volatile long eventLagMillis = 0; // lag of the most recently followed event
+
+  /** The metrics recorded by one thread. */
+  private static final class Recorder {
+    final LatencyHistogram[] eventLatencies = new LatencyHistogram[EVENT_TYPES.length];
+    final LatencyHistogram networkLatency = new LatencyHistogram();
+    final LatencyHistogram networkSizes = new LatencyHistogram();
+    final LatencyHistogram scoringLatency = new LatencyHistogram();
+    final LatencyHistogram purchasesMerged = new LatencyHistogram();
+    final AtomicLongArray outcomes = new AtomicLongArray(2); // purchases scored, flagged
+    final LatencyHistogram eventLags = new LatencyHistogram(); // milliseconds
+    final WeakReference<Thread> owner;
+
+    Recorder(Thread owner) {
+      this.owner = new WeakReference<>(owner);
+      for (int type = 0; type < eventLatencies.length; type++) {
+        eventLatencies[type] = new LatencyHistogram();
+      }
+    }
+
+    void add(Recorder other) {
+      for (int type = 0; type < eventLatencies.length; type++) {
+        eventLatencies[type].add(other.eventLatencies[type]);
+      }
+      networkLatency.add(other.networkLatency);
+      networkSizes.add(other.networkSizes);
+      scoringLatency.add(other.scoringLatency);
+      purchasesMerged.add(other.purchasesMerged);
+      eventLags.add(other.eventLags);
+      for (int i = 0; i < outcomes.length(); i++) {
+        outcomes.lazySet(i, outcomes.get(i) + other.outcomes.get(i));
+      }
+    }
+
+    boolean isOwnerAlive() {
+      Thread thread = owner.get();
+      return thread != null && thread.isAlive();
+    }
+
+    long getEventCount() {
+      long count = 0;
+      for (LatencyHistogram latencies : eventLatencies) {
+        count += latencies.getCount();
+      }
+      return count;
+    }
+  }
+
+  private synchronized Recorder newRecorder() {
+    retireRecorders();
+    Recorder newRecorder = new Recorder(Thread.currentThread());
+    recorders.add(newRecorder);
+    return newRecorder;
+  }
+
+  /**
+   * Folds the recorders of ended threads into the aggregate of retired recorders, and removes
+   * them from the list of thread recorders. (A thread's termination happens-before the
+   * observation that it is no longer alive, so every count it recorded is visible here.)
+   */
+  private void retireRecorders() {
+    assert Thread.holdsLock(this);
+    for (Recorder threadRecorder : recorders) {
+      if (!threadRecorder.isOwnerAlive()) {
+        retired.add(threadRecorder);
+        recorders.remove(threadRecorder);
+      }
+    }
+  }
+
+  /** Returns the count of recorders of (possibly) live threads. */
+  int getRecorderCount() {
+    return recorders.size();
+  }
+
+  /**
+   * Records the application of an event.
+   *
+   * @param type type of event
+   * @param nanos elapsed nanoseconds
+   */
+  void recordEvent(EventType type, long nanos) {
+    recorder.get().eventLatencies[type.ordinal()].record(nanos);
+  }
+
+  /**
+   * Records the retrieval (and, if uncached, the assembly) of a network.
+   *
+   * @param nanos elapsed nanoseconds
+   * @param size count of users in network
+   */
+  void recordNetwork(long nanos, int size) {
+    Recorder threadRecorder = recorder.get();
+    threadRecorder.networkLatency.record(nanos);
+    threadRecorder.networkSizes.record(size);
+  }
+
+  /**
+   * Records the anomaly assessment of a network's purchases (whether or not the assessment is
+   * ultimately used, as in speculative scoring).
+   *
+   * @param nanos elapsed nanoseconds
+   * @param purchasesMerged count of purchases merged
+   */
+  void recordScoring(long nanos, int purchasesMerged) {
+    Recorder threadRecorder = recorder.get();
+    threadRecorder.scoringLatency.record(nanos);
+    threadRecorder.purchasesMerged.record(purchasesMerged);
+  }
+
+  /**
+   * Records the outcome of the anomaly assessment of an applied purchase.
+   *
+   * @param flagged true if the purchase was flagged as an anomaly
+   */
+  void recordOutcome(boolean flagged) {
+    AtomicLongArray outcomes = recorder.get().outcomes;
+    outcomes.lazySet(0, outcomes.get(0) + 1);
+    if (flagged) {
+      outcomes.lazySet(1, outcomes.get(1) + 1);
+    }
+  }
+
+  /**
+   * Records the lag of the processing of an event behind the event's timestamp.
+   *
+   * @param millis milliseconds elapsed from the event's timestamp to its processing (negative
+   * if the timestamp lies in the future, in which case zero is recorded)
+   */
+  void recordEventLag(long millis) {
+    recorder.get().eventLags.record(millis);
+    eventLagMillis = Math.max(0, millis);
+  }
+
+  /** Returns the metrics of all threads, merged. */
+  private synchronized Recorder merge() {
+    retireRecorders();
+    Recorder merged = new Recorder(null);
+    merged.add(retired);
+    for (Recorder threadRecorder : recorders) {
+      merged.add(threadRecorder);
+    }
+    return merged;
+  }
+
+  /**
+   * Registers these metrics with the platform MBean server, under the name
+   * "org.commonvox.insight.anomaly_detector:type=DetectorMetrics,name=<i>name</i>".
+   *
+   * @param name name distinguishing these metrics from those of other engines
+   * @return name under which the metrics were registered
+   * @throws JMException if registration fails
+   */
+  public ObjectName registerMBean(String name) throws JMException {
+    ObjectName objectName = new ObjectName(DetectorMetrics.class.getPackage().getName()
+            + ":type=" + DetectorMetrics.class.getSimpleName() + ",name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  /**
+   * Starts an HTTP server at the submitted address, serving these metrics in Prometheus text
+   * exposition format at the path "/metrics". The server is to be stopped by the caller.
+   *
+   * @param address address to be bound (port zero for any free port)
+   * @return started server
+   * @throws IOException if the server cannot be bound
+   */
+  public HttpServer startHttpServer(InetSocketAddress address) throws IOException {
+    HttpServer server = HttpServer.create(address, 0);
+    server.createContext(HTTP_CONTEXT, exchange -> {
+      byte[] body = getPrometheusText().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream responseBody = exchange.getResponseBody()) {
+        responseBody.write(body);
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  @Override
+  public long getEventCount() {
+    return merge().getEventCount();
+  }
+
+  @Override
+  public long getPurchaseCount() {
+    return merge().eventLatencies[EventType.PURCHASE.ordinal()].getCount();
+  }
+
+  @Override
+  public long getBefriendCount() {
+    return merge().eventLatencies[EventType.BEFRIEND.ordinal()].getCount();
+  }
+
+  @Override
+  public long getUnfriendCount() {
+    return merge().eventLatencies[EventType.UNFRIEND.ordinal()].getCount();
+  }
+
+  @Override
+  public long getScoredPurchaseCount() {
+    return merge().outcomes.get(0);
+  }
+
+  @Override
+  public long getFlaggedPurchaseCount() {
+    return merge().outcomes.get(1);
+  }
+
+  @Override
+  public double getAnomalyRate() {
+    Recorder merged = merge();
+    long scoredCount = merged.outcomes.get(0);
+    return scoredCount == 0 ? 0 : (double)merged.outcomes.get(1) / scoredCount;
+  }
+
+  @Override
+  public synchronized double getEventsPerSecond() {
+    long now = System.nanoTime();
+    if (now - sampleNanos >= SAMPLING_INTERVAL_NANOS || eventsPerSecond == 0) {
+      long eventCount = getEventCount();
+      if (now > sampleNanos) {
+        eventsPerSecond = (eventCount - sampleEventCount) * 1e9 / (now - sampleNanos);
+      }
+      sampleNanos = now;
+      sampleEventCount = eventCount;
+    }
+    return eventsPerSecond;
+  }
+
+  @Override
+  public long getPurchaseLatencyMedian() {
+    return merge().eventLatencies[EventType.PURCHASE.ordinal()].getValueAtQuantile(0.5);
+  }
+
+  @Override
+  public long getPurchaseLatency99thPercentile() {
+    return merge().eventLatencies[EventType.PURCHASE.ordinal()].getValueAtQuantile(0.99);
+  }
+
+  @Override
+  public long getPurchaseLatencyMax() {
+    return merge().eventLatencies[EventType.PURCHASE.ordinal()].getMax();
+  }
+
+  @Override
+  public long getBefriendLatency99thPercentile() {
+    return merge().eventLatencies[EventType.BEFRIEND.ordinal()].getValueAtQuantile(0.99);
+  }
+
+  @Override
+  public long getUnfriendLatency99thPercentile() {
+    return merge().eventLatencies[EventType.UNFRIEND.ordinal()].getValueAtQuantile(0.99);
+  }
+
+  @Override
+  public long getNetworkLatency99thPercentile() {
+    return merge().networkLatency.getValueAtQuantile(0.99);
+  }
+
+  @Override
+  public long getScoringLatency99thPercentile() {
+    return merge().scoringLatency.getValueAtQuantile(0.99);
+  }
+
+  @Override
+  public double getNetworkSizeMean() {
+    return merge().networkSizes.getMean();
+  }
+
+  @Override
+  public long getNetworkSize99thPercentile() {
+    return merge().networkSizes.getValueAtQuantile(0.99);
+  }
+
+  @Override
+  public long getNetworkSizeMax() {
+    return merge().networkSizes.getMax();
+  }
+
+  @Override
+  public double getPurchasesMergedMean() {
+    return merge().purchasesMerged.getMean();
+  }
+
+  @Override
+  public long getEventLagMillis() {
+    return eventLagMillis;
+  }
+
+  @Override
+  public long getEventLag99thPercentileMillis() {
+    return merge().eventLags.getValueAtQuantile(0.99);
+  }
+
+  @Override
+  public long getEventLagMaxMillis() {
+    return merge().eventLags.getMax();
+  }
+
+  @Override
+  public String getPrometheusText() {
+    Recorder merged = merge();
+    StringBuilder text = new StringBuilder(4096);
+    header(text, "events_total", "counter", "Events applied, by event type.");
+    for (EventType type : EVENT_TYPES) {
+      text.append(METRIC_PREFIX).append("events_total{type=\"").append(typeLabel(type))
+              .append("\"} ").append(merged.eventLatencies[type.ordinal()].getCount()).append('\n');
+    }
+    header(text, "scored_purchases_total", "counter", "Purchases assessed for anomaly.");
+    sample(text, "scored_purchases_total", null, merged.outcomes.get(0));
+    header(text, "flagged_purchases_total", "counter", "Purchases flagged as anomalies.");
+    sample(text, "flagged_purchases_total", null, merged.outcomes.get(1));
+    header(text, "event_latency_seconds", "summary", "Latency of event application.");
+    for (EventType type : EVENT_TYPES) {
+      summary(text, "event_latency_seconds", "type=\"" + typeLabel(type) + "\"",
+              merged.eventLatencies[type.ordinal()], 1e-9);
+    }
+    header(text, "network_latency_seconds", "summary",
+            "Latency of network retrieval, including assembly of uncached networks.");
+    summary(text, "network_latency_seconds", null, merged.networkLatency, 1e-9);
+    header(text, "network_size", "summary", "Count of users per network retrieved.");
+    summary(text, "network_size", null, merged.networkSizes, 1);
+    header(text, "scoring_latency_seconds", "summary",
+            "Latency of anomaly assessment of a network's purchases.");
+    summary(text, "scoring_latency_seconds", null, merged.scoringLatency, 1e-9);
+    header(text, "purchases_merged", "summary", "Count of purchases merged per assessment.");
+    summary(text, "purchases_merged", null, merged.purchasesMerged, 1);
+    header(text, "event_lag_seconds", "summary",
+            "Lag of processing behind event timestamps, of events of a followed stream.");
+    summary(text, "event_lag_seconds", null, merged.eventLags, 1e-3);
+    header(text, "last_event_lag_seconds", "gauge",
+            "Lag of processing behind the timestamp of the most recently followed event.");
+    sample(text, "last_event_lag_seconds", null, eventLagMillis / 1000.0);
+    return text.toString();
+  }
+
+  private static String typeLabel(EventType type) {
+    return type.name().toLowerCase(Locale.ROOT);
+  }
+
+  private static void header(StringBuilder text, String name, String type, String help) {
+    text.append("# HELP ").append(METRIC_PREFIX).append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(METRIC_PREFIX).append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void summary(StringBuilder text, String name, String labels,
+          LatencyHistogram histogram, double scale) {
+    String labelPrefix = labels == null ? "" : labels + ",";
+    for (double quantile : QUANTILES) {
+      sample(text, name, labelPrefix + "quantile=\"" + quantile + "\"",
+              histogram.getValueAtQuantile(quantile) * scale);
+    }
+    sample(text, name + "_sum", labels, histogram.getSum() * scale);
+    sample(text, name + "_count", labels, histogram.getCount());
+  }
+
+  private static void sample(StringBuilder text, String name, String labels, double value) {
+    text.append(METRIC_PREFIX).append(name);
+    if (labels != null) {
+      text.append('{').append(labels).append('}');
+    }
+    text.append(' ');
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      text.append((long)value);
+    } else {
+      text.append(value);
+    }
+    text.append('\n');
+  }
+}
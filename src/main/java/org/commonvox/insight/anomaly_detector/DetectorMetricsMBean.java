@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+/**
+ * Management interface of {@link DetectorMetrics}, through which the throughput, latencies,
+ * network sizes, and anomaly rate of a running detector may be monitored via JMX. Latencies
+ * are in nanoseconds (and event lags in milliseconds); quantiles are accurate to within about
+ * 3%.
+ *
+ * @author Daniel Vimont
+ */
+public interface DetectorMetricsMBean {
+
+  /** @return count of events applied */
+  long getEventCount();
+
+  /** @return count of purchase events applied */
+  long getPurchaseCount();
+
+  /** @return count of befriend events applied */
+  long getBefriendCount();
+
+  /** @return count of unfriend events applied */
+  long getUnfriendCount();
+
+  /** @return count of purchases assessed for anomaly */
+  long getScoredPurchaseCount();
+
+  /** @return count of purchases flagged as anomalies */
+  long getFlaggedPurchaseCount();
+
+  /** @return flagged purchases as a share of purchases assessed */
+  double getAnomalyRate();
+
+  /** @return events applied per second, over the interval since the previous sampling */
+  double getEventsPerSecond();
+
+  /** @return median latency of purchase events */
+  long getPurchaseLatencyMedian();
+
+  /** @return 99th-percentile latency of purchase events */
+  long getPurchaseLatency99thPercentile();
+
+  /** @return maximum latency of purchase events */
+  long getPurchaseLatencyMax();
+
+  /** @return 99th-percentile latency of befriend events */
+  long getBefriendLatency99thPercentile();
+
+  /** @return 99th-percentile latency of unfriend events */
+  long getUnfriendLatency99thPercentile();
+
+  /** @return 99th-percentile latency of network retrieval (including assembly if uncached) */
+  long getNetworkLatency99thPercentile();
+
+  /** @return 99th-percentile latency of anomaly assessment of a network's purchases */
+  long getScoringLatency99thPercentile();
+
+  /** @return mean count of users per network */
+  double getNetworkSizeMean();
+
+  /** @return 99th-percentile count of users per network */
+  long getNetworkSize99thPercentile();
+
+  /** @return maximum count of users per network */
+  long getNetworkSizeMax();
+
+  /** @return mean count of purchases merged per anomaly assessment */
+  double getPurchasesMergedMean();
+
+  /** @return lag of processing behind the timestamp of the most recently followed event */
+  long getEventLagMillis();
+
+  /** @return 99th-percentile lag of processing behind the timestamps of followed events */
+  long getEventLag99thPercentileMillis();
+
+  /** @return maximum lag of processing behind the timestamps of followed events */
+  long getEventLagMaxMillis();
+
+  /** @return all metrics, in Prometheus text exposition format */
+  String getPrometheusText();
+}
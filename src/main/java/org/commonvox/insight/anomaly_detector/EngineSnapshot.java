@@ -0,0 +1,400 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+
+/**
+ * The EngineSnapshot class writes the full state of an {@link AnomalyEngine} to a compact
+ * binary file, and restores an engine from such a file, so that a detector may be restarted
+ * without replaying its batch log. A snapshot consists of (all values little-endian):
+ * <ul>
+ * <li>a header: magic number, format version, degrees of separation, purchase threshold, the
+ * length of the ingest sequence state, and the count of user-ids;</li>
+ * <li>the ingest sequence state of the engine's {@link EventTime}, as a run of longs;</li>
+ * <li>the user-ids, in order of user index, each as a length-prefixed run of UTF-8 bytes;</li>
+ * <li>for each user index, a flag denoting whether a User was created for it, followed (if so)
+ * by the User's friends (as a count and a run of user indexes), the event times of its most
+ * recent befriend and unfriend transactions (each as a count and a run of index/event-time
+ * pairs), and its recent purchases (as a count and a run of event-time/amount pairs, oldest
+ * first); and</li>
+ * <li>a trailer: the CRC-32 checksum of all preceding bytes.</li>
+ * </ul>
+ * Both writing and restoration pass sequentially through the file via a single direct buffer,
+ * with runs of ints (friends) transferred in bulk. The checksum is verified in a first pass
+ * over the file, before the engine being restored is modified. A snapshot is written to a
+ * temporary file which replaces any existing file at the snapshot path only once complete.
+ *
+ * @author Daniel Vimont
+ */
+final class EngineSnapshot implements Closeable {
+
+  private static final int MAGIC = 0x50534441; // "ADSP" in little-endian byte order
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 4 + 4 + 4 + 4 + 4 + 4;
+  private static final int CHECKSUM_LENGTH = 8;
+  private static final int PURCHASE_LENGTH = 8 + 8;
+  private static final int EVENT_TIME_ENTRY_LENGTH = 4 + 8;
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final ByteBuffer buffer
+          = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final CRC32 checksum = new CRC32();
+  private long unreadPayloadLength; // bytes of payload not yet read into the buffer
+
+  private EngineSnapshot(Path path, FileChannel channel) {
+    this.path = path;
+    this.channel = channel;
+  }
+
+  /**
+   * Writes the full state of the submitted engine to a snapshot file at the submitted path.
+   *
+   * @param engine engine to which no transactions are being applied
+   * @param path path of snapshot file
+   * @throws IOException if file access problems encountered
+   */
+  static void write(AnomalyEngine engine, Path path) throws IOException {
+    Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      try (EngineSnapshot snapshot = new EngineSnapshot(temporaryPath, FileChannel.open(
+              temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE))) {
+        snapshot.writeEngine(engine);
+      }
+      Files.move(temporaryPath, path,
+              StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(temporaryPath);
+      throw e;
+    }
+  }
+
+  /**
+   * Restores the state held in the snapshot file at the submitted path into the submitted
+   * engine, which must hold no Users and must not yet be accessed by other threads.
+   *
+   * @param engine newly constructed engine
+   * @param path path of snapshot file
+   * @throws IOException if file access problems encountered, or if the file is not a valid
+   * snapshot
+   * @throws IllegalStateException if the engine already holds Users
+   */
+  static void restore(AnomalyEngine engine, Path path) throws IOException {
+    if (engine.getIdDictionary().size() > 0 || engine.getFriendGraph().getNodeCount() > 0) {
+      throw new IllegalStateException("Engine to be restored from snapshot must hold no Users.");
+    }
+    try (EngineSnapshot snapshot
+            = new EngineSnapshot(path, FileChannel.open(path, StandardOpenOption.READ))) {
+      snapshot.verifyChecksum();
+      snapshot.readEngine(engine);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private void writeEngine(AnomalyEngine engine) throws IOException {
+    IdDictionary idDictionary = engine.getIdDictionary();
+    int userCount = idDictionary.size();
+    long[] sequenceState;
+    synchronized (engine.getEventTime()) {
+      sequenceState = engine.getEventTime().getSequenceState();
+    }
+    buffer.putInt(MAGIC).putInt(FORMAT_VERSION)
+            .putInt(engine.getDegreesOfSeparation()).putInt(engine.getThreshold())
+            .putInt(sequenceState.length).putInt(userCount);
+    for (long value : sequenceState) {
+      ensureRemaining(Long.BYTES);
+      buffer.putLong(value);
+    }
+    for (int index = 0; index < userCount; index++) {
+      byte[] id = idDictionary.getId(index).getBytes(StandardCharsets.UTF_8);
+      ensureRemaining(Integer.BYTES);
+      buffer.putInt(id.length);
+      putBytes(id);
+    }
+    for (int index = 0; index < userCount; index++) {
+      User user = engine.peekUser(index);
+      ensureRemaining(1);
+      buffer.put(user == null ? (byte)0 : (byte)1);
+      if (user != null) {
+        writeUser(engine, user);
+      }
+    }
+    flush();
+    buffer.putLong(checksum.getValue());
+    buffer.flip();
+    writeBuffer();
+    channel.force(true);
+  }
+
+  private void writeUser(AnomalyEngine engine, User user) throws IOException {
+    int[] friends = engine.getFriendGraph().getNeighbors(user.getIndex());
+    ensureRemaining(Integer.BYTES);
+    buffer.putInt(friends.length);
+    putInts(friends);
+    StampedLock lockStripe = engine.getLockStripe(user.getIndex());
+    long stamp = lockStripe.readLock();
+    try {
+      writeEventTimes(user.getBefriendEventTimes());
+      writeEventTimes(user.getUnfriendEventTimes());
+      PurchaseManager purchaseManager = user.getPurchaseManager();
+      ensureRemaining(Integer.BYTES);
+      buffer.putInt(purchaseManager.size());
+      for (int position = 0; position < purchaseManager.size(); position++) {
+        ensureRemaining(PURCHASE_LENGTH);
+        buffer.putLong(purchaseManager.getEventTime(position))
+                .putLong(purchaseManager.getAmount(position));
+      }
+    } finally {
+      lockStripe.unlockRead(stamp);
+    }
+  }
+
+  private void writeEventTimes(IntLongHashMap eventTimes) throws IOException {
+    ensureRemaining(Integer.BYTES);
+    buffer.putInt(eventTimes.size());
+    for (int slot = 0, slotCount = eventTimes.slotCount(); slot < slotCount; slot++) {
+      if (eventTimes.slotKey(slot) >= 0) {
+        ensureRemaining(EVENT_TIME_ENTRY_LENGTH);
+        buffer.putInt(eventTimes.slotKey(slot)).putLong(eventTimes.slotValue(slot));
+      }
+    }
+  }
+
+  private void putBytes(byte[] values) throws IOException {
+    for (int offset = 0; offset < values.length; ) {
+      ensureRemaining(1);
+      int count = Math.min(values.length - offset, buffer.remaining());
+      buffer.put(values, offset, count);
+      offset += count;
+    }
+  }
+
+  private void putInts(int[] values) throws IOException {
+    for (int offset = 0; offset < values.length; ) {
+      ensureRemaining(Integer.BYTES);
+      int count = Math.min(values.length - offset, buffer.remaining() / Integer.BYTES);
+      buffer.asIntBuffer().put(values, offset, count);
+      buffer.position(buffer.position() + count * Integer.BYTES);
+      offset += count;
+    }
+  }
+
+  private void ensureRemaining(int byteCount) throws IOException {
+    if (buffer.remaining() < byteCount) {
+      flush();
+    }
+  }
+
+  /** Writes the buffered bytes to the file, adding them to the checksum. */
+  private void flush() throws IOException {
+    buffer.flip();
+    checksum.update(buffer);
+    buffer.rewind();
+    writeBuffer();
+  }
+
+  private void writeBuffer() throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Passes over the payload of the file, comparing its checksum with that of the trailer, and
+   * prepares for reading of the payload.
+   */
+  private void verifyChecksum() throws IOException {
+    long payloadLength = channel.size() - CHECKSUM_LENGTH;
+    if (payloadLength < HEADER_LENGTH) {
+      throw new IOException("Not a snapshot file (too short): " + path);
+    }
+    ByteBuffer trailer = ByteBuffer.allocate(CHECKSUM_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(trailer, payloadLength);
+    for (long position = 0; position < payloadLength; position += buffer.limit()) {
+      buffer.clear();
+      buffer.limit((int)Math.min(buffer.capacity(), payloadLength - position));
+      readFully(buffer, position);
+      buffer.flip();
+      checksum.update(buffer);
+    }
+    if (checksum.getValue() != trailer.getLong(0)) {
+      throw new IOException("Snapshot file is corrupt (checksum mismatch): " + path);
+    }
+    channel.position(0);
+    unreadPayloadLength = payloadLength;
+    buffer.clear().limit(0);
+  }
+
+  private void readFully(ByteBuffer destination, long position) throws IOException {
+    while (destination.hasRemaining()) {
+      int count = channel.read(destination, position);
+      if (count < 0) {
+        throw new EOFException("Snapshot file is truncated: " + path);
+      }
+      position += count;
+    }
+  }
+
+  private void readEngine(AnomalyEngine engine) throws IOException {
+    require(HEADER_LENGTH);
+    if (buffer.getInt() != MAGIC) {
+      throw new IOException("Not a snapshot file: " + path);
+    }
+    int formatVersion = buffer.getInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported snapshot format version " + formatVersion + ": " + path);
+    }
+    int degreesOfSeparation = buffer.getInt();
+    int threshold = buffer.getInt();
+    int sequenceStateLength = buffer.getInt();
+    int userCount = buffer.getInt();
+    if (sequenceStateLength < 0 || sequenceStateLength > 2 + 2 * EventTime.SECOND_SLOTS) {
+      throw new IOException("Snapshot file holds invalid ingest sequence state: " + path);
+    }
+    long[] sequenceState = new long[sequenceStateLength];
+    for (int i = 0; i < sequenceStateLength; i++) {
+      require(Long.BYTES);
+      sequenceState[i] = buffer.getLong();
+    }
+
+    engine.setDegreesOfSeparation(degreesOfSeparation);
+    engine.setThreshold(threshold);
+    synchronized (engine.getEventTime()) {
+      try {
+        engine.getEventTime().setSequenceState(sequenceState);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Snapshot file holds invalid ingest sequence state: " + path, e);
+      }
+    }
+    IdDictionary idDictionary = engine.getIdDictionary();
+    byte[] idBytes = new byte[64];
+    for (int index = 0; index < userCount; index++) {
+      int length = getInt();
+      if (idBytes.length < length) {
+        idBytes = new byte[Math.max(length, idBytes.length * 2)];
+      }
+      getBytes(idBytes, length);
+      String id = new String(idBytes, 0, length, StandardCharsets.UTF_8);
+      if (idDictionary.getOrAdd(id) != index) {
+        throw new IOException("Snapshot file holds duplicate user-id \"" + id + "\": " + path);
+      }
+    }
+    int[] offsets = new int[userCount + 1];
+    int[] neighbors = new int[Math.max(16, userCount)];
+    for (int index = 0; index < userCount; index++) {
+      int offset = offsets[index];
+      require(1);
+      if (buffer.get() == 0) {
+        offsets[index + 1] = offset;
+        continue;
+      }
+      User user = engine.getOrCreateUser(index);
+      int friendCount = getInt();
+      if (neighbors.length - offset < friendCount) {
+        neighbors = Arrays.copyOf(neighbors, Math.max(neighbors.length * 2, offset + friendCount));
+      }
+      getInts(neighbors, offset, friendCount);
+      offsets[index + 1] = offset + friendCount;
+      readEventTimes(user.getBefriendEventTimes());
+      readEventTimes(user.getUnfriendEventTimes());
+      PurchaseManager purchaseManager = user.getPurchaseManager();
+      for (int purchaseCount = getInt(); purchaseCount > 0; purchaseCount--) {
+        require(PURCHASE_LENGTH);
+        purchaseManager.addPurchase(buffer.getLong(), buffer.getLong()); // oldest first
+      }
+    }
+    if (buffer.hasRemaining() || unreadPayloadLength > 0) {
+      throw new IOException("Snapshot file holds unexpected trailing content: " + path);
+    }
+    engine.getFriendGraph().restore(offsets, Arrays.copyOf(neighbors, offsets[userCount]));
+  }
+
+  private void readEventTimes(IntLongHashMap eventTimes) throws IOException {
+    for (int entryCount = getInt(); entryCount > 0; entryCount--) {
+      require(EVENT_TIME_ENTRY_LENGTH);
+      eventTimes.put(buffer.getInt(), buffer.getLong());
+    }
+  }
+
+  private int getInt() throws IOException {
+    require(Integer.BYTES);
+    return buffer.getInt();
+  }
+
+  private void getBytes(byte[] values, int length) throws IOException {
+    for (int offset = 0; offset < length; ) {
+      require(1);
+      int count = Math.min(length - offset, buffer.remaining());
+      buffer.get(values, offset, count);
+      offset += count;
+    }
+  }
+
+  private void getInts(int[] values, int offset, int length) throws IOException {
+    while (length > 0) {
+      require(Integer.BYTES);
+      int count = Math.min(length, buffer.remaining() / Integer.BYTES);
+      buffer.asIntBuffer().get(values, offset, count);
+      buffer.position(buffer.position() + count * Integer.BYTES);
+      offset += count;
+      length -= count;
+    }
+  }
+
+  /**
+   * Assures that at least the submitted count of unread bytes of the payload is held in the
+   * buffer, reading more of the file as needed.
+   */
+  private void require(int byteCount) throws IOException {
+    if (buffer.remaining() >= byteCount) {
+      return;
+    }
+    buffer.compact();
+    while (buffer.position() < byteCount) {
+      if (unreadPayloadLength == 0) {
+        throw new EOFException("Snapshot file is truncated: " + path);
+      }
+      buffer.limit((int)Math.min(buffer.capacity(), buffer.position() + unreadPayloadLength));
+      int count = channel.read(buffer);
+      if (count < 0) {
+        throw new EOFException("Snapshot file is truncated: " + path);
+      }
+      unreadPayloadLength -= count;
+    }
+    buffer.flip();
+  }
+}
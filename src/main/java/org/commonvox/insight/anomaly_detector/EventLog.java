@@ -0,0 +1,695 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An instance of the EventLog class maintains an append-only, checksummed log of the events
+ * applied to an {@link AnomalyEngine} in stream processing, so that the state of the engine may
+ * be recovered following a crash from the latest {@link EngineSnapshot snapshot} plus a replay
+ * of the events logged since that snapshot was taken. The log is written ahead: each event is
+ * appended before it is applied, so that no applied event can be missing from the log (short
+ * of a crash before the event's group is committed). A log occupies a directory holding:
+ * <ul>
+ * <li><b>segments</b> ("segment-<i>position</i>.log"): files of consecutive records, each
+ * named for the log position (count of preceding records) of its first record. A segment is
+ * sealed, and a new one begun, once it reaches the configured segment size; and</li>
+ * <li><b>snapshots</b> ("snapshot-<i>position</i>.snapshot"): snapshots of the engine's state
+ * following the application of the records preceding the named position.</li>
+ * </ul>
+ * Each record consists of its length, the CRC-32 checksum of its body, and a body holding a
+ * type byte and fixed-width fields (all values little-endian): the parameters, connection
+ * (befriend/unfriend), and purchase events, with users identified by their dense indexes, and
+ * "user-id" records, each of which defines the user-id of the next index, preceding the first
+ * record to reference the index. Replay thus reproduces the user indexes of the logged engine.
+ * (User-ids longer than {@value #MAX_USER_ID_LENGTH} bytes, which could not be logged, are
+ * rejected by the {@link EventParser}.)
+ * <br><br>
+ * Records are buffered and written in groups: once the configured count of records has been
+ * appended (and upon each {@link #commit() commit}), buffered records are written and forced to
+ * the storage device, so that a crash loses at most the records of an uncommitted group. Output
+ * derived from events (such as flagged purchases written to a file) may thus run ahead of their
+ * durability by up to one group, unless, as by an {@link IngestionServer}, it is released only
+ * following a commit. A
+ * record whose write was interrupted by a crash (a "torn" record at the end of the last
+ * segment) is discarded upon recovery.
+ * <br><br>
+ * Once {@value #COMPACTION_SEGMENT_COUNT} segments have been sealed since the latest snapshot,
+ * a background compactor folds them into a new snapshot: the latest snapshot is restored into a
+ * scratch engine, the records of the sealed segments are replayed into it, and the resulting
+ * snapshot replaces the folded segments and the earlier snapshot. Recovery time thus depends
+ * upon the length of the log's tail rather than upon the length of its history.
+ * <br><br>
+ * Records are appended by a single thread at a time (the thread applying events to the engine);
+ * compaction proceeds concurrently with appends.
+ *
+ * @author Daniel Vimont
+ */
+final class EventLog implements Closeable {
+
+  static final int DEFAULT_GROUP_COMMIT_SIZE = 256; // records
+  static final long DEFAULT_SEGMENT_SIZE = 1L << 26; // 64 MiB
+  static final int COMPACTION_SEGMENT_COUNT = 4;
+
+  static final byte USER_ID_RECORD = 0;
+  static final byte PARAMETERS_RECORD = 1;
+  static final byte BEFRIEND_RECORD = 2;
+  static final byte UNFRIEND_RECORD = 3;
+  static final byte PURCHASE_RECORD = 4;
+
+  private static final int SEGMENT_MAGIC = 0x474c4441; // "ADLG" in little-endian byte order
+  private static final int FORMAT_VERSION = 1;
+  private static final int SEGMENT_HEADER_LENGTH = 4 + 4 + 8;
+  private static final int RECORD_HEADER_LENGTH = 4 + 4;
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int MAX_RECORD_LENGTH = BUFFER_SIZE - RECORD_HEADER_LENGTH;
+  static final int MAX_USER_ID_LENGTH = MAX_RECORD_LENGTH - 1; // bytes, less the type byte
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+  private final AnomalyEngine engine;
+  private final Path directory;
+  private final int groupCommitSize;
+  private final long segmentSize;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final CRC32 checksum = new CRC32();
+  private FileChannel segment;
+  private long segmentPosition; // log position of the first record of the current segment
+  private long segmentLength;
+  private long position;        // log position of the next record
+  private int uncommittedCount = 0;
+  private int loggedUserCount;  // count of user indexes whose ids have been logged
+  private int recordStart;
+
+  private final Object compactionLock = new Object(); // serializes compactions
+  private final Object compactorLock = new Object();  // guards compactor
+  private Thread compactor;
+  private volatile Exception compactionFailure;
+
+  private EventLog(AnomalyEngine engine, Path directory, int groupCommitSize, long segmentSize,
+          long position) throws IOException {
+    this.engine = engine;
+    this.directory = directory;
+    this.groupCommitSize = groupCommitSize;
+    this.segmentSize = segmentSize;
+    this.position = position;
+    loggedUserCount = engine.getIdDictionary().size();
+    beginSegment();
+  }
+
+  /**
+   * Opens the event log in the submitted directory for the appending of records. If the
+   * directory holds no log, a new log is begun, with a snapshot of the submitted engine's
+   * current state (e.g., following batch ingestion) as its base. Otherwise, the state of the
+   * log is recovered into the submitted engine (which must hold no Users): the latest snapshot
+   * is restored, and the records logged since are replayed.
+   *
+   * @param engine engine whose applied events are to be logged
+   * @param directory directory of the log
+   * @param groupCommitSize count of records per group commit
+   * @param segmentSize size, in bytes, at which a segment is sealed
+   * @return event log open for appending
+   * @throws IOException if file access problems encountered, or if the log is corrupt
+   * @throws IllegalStateException if a log is to be recovered into an engine holding Users
+   */
+  static EventLog open(AnomalyEngine engine, Path directory, int groupCommitSize,
+          long segmentSize) throws IOException {
+    if (groupCommitSize < 1) {
+      throw new IllegalArgumentException("Group commit size must be positive.");
+    }
+    Files.createDirectories(directory);
+    List<Long> snapshotPositions = listPositions(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+    List<Long> segmentPositions = listPositions(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+    long position;
+    if (snapshotPositions.isEmpty()) {
+      if (!segmentPositions.isEmpty()) {
+        throw new IOException("Event log holds segments but no snapshot: " + directory);
+      }
+      position = 0;
+      EngineSnapshot.write(engine, snapshotPath(directory, position));
+      forceDirectory(directory);
+    } else {
+      long snapshotPosition = snapshotPositions.get(snapshotPositions.size() - 1);
+      engine.restoreSnapshot(snapshotPath(directory, snapshotPosition));
+      position = replay(engine, directory, segmentPositions, snapshotPosition, Long.MAX_VALUE,
+              true);
+    }
+    return new EventLog(engine, directory, groupCommitSize, segmentSize, position);
+  }
+
+  /**
+   * Returns true if the submitted directory holds an event log (i.e., a snapshot of one), whose
+   * state would thus be recovered upon its {@link #open opening}.
+   *
+   * @param directory directory of the log
+   * @return true if the directory holds a log
+   * @throws IOException if file access problems encountered
+   */
+  static boolean exists(Path directory) throws IOException {
+    return Files.isDirectory(directory)
+            && !listPositions(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).isEmpty();
+  }
+
+  /**
+   * Appends a record of the submitted (resolved) event, ahead of its application in serial
+   * processing.
+   *
+   * @param record resolved event
+   * @throws UncheckedIOException if file access problems encountered
+   */
+  synchronized void append(EventRecord record) {
+    switch (record.getType()) {
+      case PARAMETERS:
+        appendParameters(record.getDegreesOfSeparation(), record.getThreshold());
+        break;
+      case BEFRIEND:
+      case UNFRIEND:
+        appendConnection(record.getType() == EventType.BEFRIEND, record.getEventTime(),
+                record.getUserIndex(), record.getOtherUserIndex());
+        break;
+      case PURCHASE:
+        appendPurchase(record.getEventTime(), record.getUserIndex(), record.getAmount());
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Appends a record of the (resolved) event at the submitted position of the submitted chunk,
+   * ahead of its application.
+   *
+   * @param chunk chunk of resolved events
+   * @param i position of event within the chunk
+   * @throws UncheckedIOException if file access problems encountered
+   */
+  synchronized void append(ParsedChunk chunk, int i) {
+    EventType type = chunk.getType(i);
+    switch (type) {
+      case PARAMETERS:
+        appendParameters((int)chunk.userIndexes[i], (int)chunk.otherUserIndexes[i]);
+        break;
+      case BEFRIEND:
+      case UNFRIEND:
+        appendConnection(type == EventType.BEFRIEND, chunk.eventTimes[i],
+                (int)chunk.userIndexes[i], (int)chunk.otherUserIndexes[i]);
+        break;
+      case PURCHASE:
+        appendPurchase(chunk.eventTimes[i], (int)chunk.userIndexes[i], chunk.amounts[i]);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void appendParameters(int degreesOfSeparation, int threshold) {
+    beginRecord(PARAMETERS_RECORD, 4 + 4);
+    buffer.putInt(degreesOfSeparation).putInt(threshold);
+    endRecord();
+  }
+
+  private void appendConnection(boolean befriend, long eventTime, int userIndex,
+          int otherUserIndex) {
+    defineUserIds(Math.max(userIndex, otherUserIndex));
+    beginRecord(befriend ? BEFRIEND_RECORD : UNFRIEND_RECORD, 8 + 4 + 4);
+    buffer.putLong(eventTime).putInt(userIndex).putInt(otherUserIndex);
+    endRecord();
+  }
+
+  private void appendPurchase(long eventTime, int userIndex, long amount) {
+    defineUserIds(userIndex);
+    beginRecord(PURCHASE_RECORD, 8 + 4 + 8);
+    buffer.putLong(eventTime).putInt(userIndex).putLong(amount);
+    endRecord();
+  }
+
+  /** Appends user-id records for all indexes up to the submitted index not yet defined. */
+  private void defineUserIds(int maxUserIndex) {
+    while (loggedUserCount <= maxUserIndex) {
+      byte[] id = engine.getIdDictionary().getId(loggedUserCount).getBytes(StandardCharsets.UTF_8);
+      if (id.length > MAX_USER_ID_LENGTH) {
+        throw new IllegalArgumentException("User-id too long to be logged: " + id.length + " bytes");
+      }
+      beginRecord(USER_ID_RECORD, id.length);
+      buffer.put(id);
+      endRecord();
+      loggedUserCount++;
+    }
+  }
+
+  private void beginRecord(byte type, int fieldLength) {
+    if (buffer.remaining() < RECORD_HEADER_LENGTH + 1 + fieldLength) {
+      writeBuffer();
+    }
+    recordStart = buffer.position();
+    buffer.position(recordStart + RECORD_HEADER_LENGTH);
+    buffer.put(type);
+  }
+
+  private void endRecord() {
+    int bodyStart = recordStart + RECORD_HEADER_LENGTH;
+    int bodyLength = buffer.position() - bodyStart;
+    checksum.reset();
+    checksum.update(buffer.array(), bodyStart, bodyLength);
+    buffer.putInt(recordStart, bodyLength).putInt(recordStart + 4, (int)checksum.getValue());
+    position++;
+    segmentLength += RECORD_HEADER_LENGTH + bodyLength;
+    if (++uncommittedCount >= groupCommitSize) {
+      commitUnchecked();
+    }
+    if (segmentLength >= segmentSize) {
+      sealSegment();
+    }
+  }
+
+  /**
+   * Writes all buffered records, and forces them to the storage device.
+   *
+   * @throws IOException if file access problems encountered
+   */
+  synchronized void commit() throws IOException {
+    try {
+      commitUnchecked();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private void commitUnchecked() {
+    writeBuffer();
+    if (uncommittedCount > 0) {
+      try {
+        segment.force(false);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      uncommittedCount = 0;
+    }
+  }
+
+  private void writeBuffer() {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        segment.write(buffer);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Returns the log position of the next record to be appended (the count of records logged
+   * since the log was begun).
+   *
+   * @return log position
+   */
+  synchronized long getPosition() {
+    return position;
+  }
+
+  private void beginSegment() throws IOException {
+    segmentPosition = position;
+    segment = FileChannel.open(segmentPath(directory, position), StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE);
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(SEGMENT_MAGIC).putInt(FORMAT_VERSION).putLong(position).flip();
+    while (header.hasRemaining()) {
+      segment.write(header);
+    }
+    segment.force(false);
+    forceDirectory(directory);
+    segmentLength = SEGMENT_HEADER_LENGTH;
+  }
+
+  private void sealSegment() {
+    commitUnchecked();
+    try {
+      segment.close();
+      beginSegment();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    try {
+      if (listPositions(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX).size()
+              > COMPACTION_SEGMENT_COUNT) {
+        startCompaction();
+      }
+    } catch (IOException e) {
+      compactionFailure = e;
+    }
+  }
+
+  /** Starts a background compaction, unless one is already in progress. */
+  private void startCompaction() {
+    synchronized (compactorLock) {
+      if (compactor != null && compactor.isAlive()) {
+        return;
+      }
+      compactor = new Thread(() -> {
+        try {
+          compact();
+        } catch (IOException | RuntimeException e) {
+          compactionFailure = e;
+        }
+      }, "anomaly-event-log-compactor");
+      compactor.setDaemon(true);
+      compactor.start();
+    }
+  }
+
+  /**
+   * Folds all sealed segments into a new snapshot, then deletes the folded segments and all
+   * earlier snapshots. The state of the engine is not consulted: the latest snapshot is
+   * restored into a scratch engine, into which the sealed segments are replayed.
+   *
+   * @return log position of the new snapshot (or of the latest snapshot, if no segment was
+   * sealed since it was taken)
+   * @throws IOException if file access problems encountered
+   */
+  long compact() throws IOException {
+    long sealedPosition;
+    synchronized (this) {
+      sealedPosition = segmentPosition;
+    }
+    synchronized (compactionLock) {
+      List<Long> snapshotPositions = listPositions(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+      long snapshotPosition = snapshotPositions.get(snapshotPositions.size() - 1);
+      if (snapshotPosition >= sealedPosition) {
+        return snapshotPosition;
+      }
+      List<Long> sealedSegmentPositions = new ArrayList<>();
+      for (long segmentPosition : listPositions(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+        if (segmentPosition < sealedPosition) {
+          sealedSegmentPositions.add(segmentPosition);
+        }
+      }
+      AnomalyEngine scratchEngine = new AnomalyEngine(engine.getThreadPool());
+      scratchEngine.restoreSnapshot(snapshotPath(directory, snapshotPosition));
+      replay(scratchEngine, directory, sealedSegmentPositions, snapshotPosition, sealedPosition,
+              false);
+      EngineSnapshot.write(scratchEngine, snapshotPath(directory, sealedPosition));
+      forceDirectory(directory);
+      for (long segmentPosition : sealedSegmentPositions) {
+        Files.deleteIfExists(segmentPath(directory, segmentPosition));
+      }
+      for (long earlierPosition : snapshotPositions) {
+        Files.deleteIfExists(snapshotPath(directory, earlierPosition));
+      }
+      return sealedPosition;
+    }
+  }
+
+  /**
+   * Commits all buffered records and closes the log, first awaiting the completion of any
+   * background compaction.
+   *
+   * @throws IOException if file access problems encountered, or if a background compaction
+   * failed
+   */
+  @Override
+  public void close() throws IOException {
+    Thread runningCompactor;
+    synchronized (compactorLock) {
+      runningCompactor = compactor;
+    }
+    try {
+      if (runningCompactor != null) {
+        runningCompactor.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      commit();
+      segment.close();
+    }
+    Exception failure = compactionFailure;
+    if (failure != null) {
+      throw failure instanceof IOException ? (IOException)failure
+              : new IOException("Event log compaction failed.", failure);
+    }
+  }
+
+  /**
+   * Applies to the submitted engine the records of the submitted segments from the submitted
+   * starting position up to (but excluding) the submitted ending position, returning the
+   * position following the last record applied. If a torn tail may be present, a record of the
+   * last segment which is incomplete or fails its checksum is taken to be the end of the log:
+   * the segment is truncated before it (and deleted, if left with no records).
+   */
+  private static long replay(AnomalyEngine engine, Path directory, List<Long> segmentPositions,
+          long fromPosition, long toPosition, boolean tornTailPossible) throws IOException {
+    long position = fromPosition;
+    for (int k = 0; k < segmentPositions.size(); k++) {
+      long firstPosition = segmentPositions.get(k);
+      boolean last = k == segmentPositions.size() - 1;
+      if (!last && segmentPositions.get(k + 1) <= fromPosition) {
+        continue; // all records of segment precede starting position
+      }
+      if (firstPosition >= toPosition) {
+        break;
+      }
+      if (firstPosition > position) {
+        throw new IOException("Event log is missing records " + position + " through "
+                + (firstPosition - 1) + ": " + directory);
+      }
+      Path path = segmentPath(directory, firstPosition);
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        SegmentReader reader = new SegmentReader(channel);
+        long recordPosition = firstPosition;
+        if (reader.require(SEGMENT_HEADER_LENGTH)) {
+          if (reader.buffer.getInt() != SEGMENT_MAGIC || reader.buffer.getInt() != FORMAT_VERSION
+                  || reader.buffer.getLong() != firstPosition) {
+            throw new IOException("Not a valid event log segment: " + path);
+          }
+          while (recordPosition < toPosition && reader.nextRecord()) {
+            if (recordPosition >= fromPosition) {
+              apply(engine, reader.buffer, reader.bodyLength, path);
+            } else {
+              reader.skipBody();
+            }
+            recordPosition++;
+          }
+        } else {
+          reader.torn = true; // header incomplete
+        }
+        if (reader.torn) {
+          if (!(last && tornTailPossible)) {
+            throw new IOException("Event log segment is corrupt at record " + recordPosition
+                    + ": " + path);
+          }
+          channel.truncate(reader.recordStart);
+          channel.force(true);
+        }
+        position = Math.max(position, recordPosition);
+        if (recordPosition == firstPosition && last && tornTailPossible) {
+          channel.close();
+          Files.delete(path);
+        }
+      }
+    }
+    if (position < toPosition && toPosition != Long.MAX_VALUE) {
+      throw new IOException("Event log is missing records " + position + " through "
+              + (toPosition - 1) + ": " + directory);
+    }
+    return position;
+  }
+
+  /** Applies the record whose body (following its type byte) is at the buffer's position. */
+  private static void apply(AnomalyEngine engine, ByteBuffer body, int bodyLength, Path path)
+          throws IOException {
+    byte type = body.get();
+    switch (type) {
+      case USER_ID_RECORD:
+        byte[] id = new byte[bodyLength - 1];
+        body.get(id);
+        IdDictionary idDictionary = engine.getIdDictionary();
+        int expectedIndex = idDictionary.size();
+        if (idDictionary.getOrAdd(new String(id, StandardCharsets.UTF_8)) != expectedIndex) {
+          throw new IOException("Event log redefines a user-id: " + path);
+        }
+        break;
+      case PARAMETERS_RECORD:
+        int degreesOfSeparation = body.getInt();
+        int threshold = body.getInt();
+        if (engine.getDegreesOfSeparation() == 0) {
+          engine.setDegreesOfSeparation(degreesOfSeparation);
+        }
+        if (engine.getThreshold() == 0) {
+          engine.setThreshold(threshold);
+        }
+        break;
+      case BEFRIEND_RECORD:
+      case UNFRIEND_RECORD:
+        long eventTime = body.getLong();
+        User user1 = engine.getOrCreateUser(body.getInt());
+        User user2 = engine.getOrCreateUser(body.getInt());
+        if (type == BEFRIEND_RECORD) {
+          user1.befriend(eventTime, user2);
+          user2.befriend(eventTime, user1);
+        } else {
+          user1.unfriend(eventTime, user2);
+          user2.unfriend(eventTime, user1);
+        }
+        advanceSequence(engine, eventTime);
+        break;
+      case PURCHASE_RECORD:
+        eventTime = body.getLong();
+        User user = engine.getOrCreateUser(body.getInt());
+        user.addPurchase(eventTime, body.getLong());
+        advanceSequence(engine, eventTime);
+        break;
+      default:
+        throw new IOException("Unknown event log record type " + type + ": " + path);
+    }
+  }
+
+  /** Assures that ingest sequence numbers assigned hereafter follow that of the event time. */
+  private static void advanceSequence(AnomalyEngine engine, long eventTime) {
+    EventTime engineEventTime = engine.getEventTime();
+    synchronized (engineEventTime) {
+      engineEventTime.observe(eventTime);
+    }
+  }
+
+  /** Returns the positions named by the files of the directory of the submitted kind, ascending. */
+  private static List<Long> listPositions(Path directory, String prefix, String suffix)
+          throws IOException {
+    List<Long> positions = new ArrayList<>();
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+      for (Path path : paths) {
+        String name = path.getFileName().toString();
+        try {
+          positions.add(Long.parseLong(
+                  name.substring(prefix.length(), name.length() - suffix.length())));
+        } catch (NumberFormatException e) {
+          // not a file of the log
+        }
+      }
+    }
+    Collections.sort(positions);
+    return positions;
+  }
+
+  private static Path segmentPath(Path directory, long position) {
+    return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, position, SEGMENT_SUFFIX));
+  }
+
+  private static Path snapshotPath(Path directory, long position) {
+    return directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, position, SNAPSHOT_SUFFIX));
+  }
+
+  /** Forces the entries of the directory to the storage device, where the platform allows. */
+  private static void forceDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // directories cannot be opened as channels on some platforms
+    }
+  }
+
+  /**
+   * Reads the records of a segment sequentially through a buffer. Upon each
+   * {@link #nextRecord()}, the buffer is positioned at the body of the record.
+   */
+  private static final class SegmentReader {
+    private final FileChannel channel;
+    private final ByteBuffer buffer
+            = ByteBuffer.allocate(BUFFER_SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 checksum = new CRC32();
+    private long bufferOffset = 0; // offset within the file of the start of the buffer
+    private long recordStart = 0;  // offset within the file of the current record
+    private int bodyLength;
+    private int bodyEnd;
+    private boolean torn = false;
+
+    SegmentReader(FileChannel channel) {
+      this.channel = channel;
+      buffer.limit(0);
+    }
+
+    /**
+     * Advances to the next record, returning false at the end of the segment, or if the record
+     * is incomplete or fails its checksum (upon which the reader is marked as torn).
+     */
+    boolean nextRecord() throws IOException {
+      if (bodyEnd > buffer.position()) {
+        buffer.position(bodyEnd);
+      }
+      recordStart = bufferOffset + buffer.position();
+      if (!require(RECORD_HEADER_LENGTH)) {
+        torn = buffer.hasRemaining();
+        return false;
+      }
+      bodyLength = buffer.getInt();
+      int bodyChecksum = buffer.getInt();
+      if (bodyLength < 1 || bodyLength > MAX_RECORD_LENGTH || !require(bodyLength)) {
+        torn = true;
+        return false;
+      }
+      checksum.reset();
+      checksum.update(buffer.array(), buffer.position(), bodyLength);
+      if ((int)checksum.getValue() != bodyChecksum) {
+        torn = true;
+        return false;
+      }
+      bodyEnd = buffer.position() + bodyLength;
+      return true;
+    }
+
+    void skipBody() {
+      buffer.position(bodyEnd);
+    }
+
+    /** Assures that the submitted count of unread bytes is buffered, unless the file ends. */
+    boolean require(int byteCount) throws IOException {
+      if (buffer.remaining() >= byteCount) {
+        return true;
+      }
+      bufferOffset += buffer.position();
+      bodyEnd -= buffer.position();
+      buffer.compact();
+      while (buffer.position() < byteCount) {
+        if (channel.read(buffer) < 0) {
+          buffer.flip();
+          return false;
+        }
+      }
+      buffer.flip();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/**
+ * An instance of the EventParser class parses single-line JSON events directly from the bytes
+ * of a ByteBuffer into a reusable {@link EventRecord}, without building an intermediate JSON
+ * object model and without allocating a String for each key and value. The parser knows the
+ * shapes of the events it must handle (the "D"/"T" startup parameters, and the "purchase",
+ * "befriend", and "unfriend" events): the values of known keys are written into the record in
+ * numeric form (user-ids as dense int indexes, timestamps as {@link EventTime event times},
+ * amounts as long pennies), while the values of unknown keys are skipped over without being
+ * materialized.
+ * <br><br>
+ * Parsing proceeds in two phases: {@link #tokenize tokenization} (which depends upon nothing
+ * beyond the line itself), followed by {@link #resolve resolution} (in which user-ids are
+ * interned and ingest sequence numbers are assigned, and which must therefore be done in input
+ * order). The {@link #parse parse} method performs both.
+ * <br><br>
+ * An instance is not to be concurrently accessed by multiple threads.
+ *
+ * @author Daniel Vimont
+ */
+final class EventParser {
+
+  private static final String EVENT_TYPE_KEY = "event_type";
+  private static final String TIMESTAMP_KEY = "timestamp";
+  private static final String ID_KEY = "id";
+  private static final String ID1_KEY = "id1";
+  private static final String ID2_KEY = "id2";
+  private static final String AMOUNT_KEY = "amount";
+  private static final String DEGREE_KEY = "D";
+  private static final String THRESHOLD_KEY = "T";
+  private static final String BEFRIEND_EVENT = "befriend";
+  private static final String UNFRIEND_EVENT = "unfriend";
+  private static final String PURCHASE_EVENT = "purchase";
+
+  private static final int MAX_INT_DIGITS = 9;
+
+  private final IdDictionary idDictionary;
+  private final EventTime eventTime;
+
+  // state of the line currently being tokenized
+  private ByteBuffer buffer;
+  private int lineStart;
+  private int position;
+  private int end;
+  private ByteBuffer tokenBuffer; // the line's buffer, or a buffer of the decoded token
+  private int tokenStart;
+  private int tokenEnd;
+  private boolean tokenNeedsDecoding; // token contains escape sequences or non-ASCII bytes
+
+  /**
+   * Initializes a new EventParser.
+   *
+   * @param idDictionary dictionary into which user-ids are interned
+   * @param eventTime source of timestamp parsing and of ingest sequence numbers
+   */
+  EventParser(IdDictionary idDictionary, EventTime eventTime) {
+    this.idDictionary = idDictionary;
+    this.eventTime = eventTime;
+  }
+
+  /**
+   * Parses the event on the submitted line (the bytes from start, inclusive, to end, exclusive,
+   * of the submitted buffer, excluding line terminators) into the submitted record:
+   * {@link #tokenize tokenizes} the line, then {@link #resolve resolves} the record.
+   *
+   * @param buffer buffer holding the line
+   * @param start position of the first byte of the line
+   * @param end position following the last byte of the line
+   * @param record record into which the event is to be parsed
+   * @return false if the line is blank; otherwise true
+   * @throws ParseException if the line is not a validly formatted event
+   */
+  boolean parse(ByteBuffer buffer, int start, int end, EventRecord record) throws ParseException {
+    if (!tokenize(buffer, start, end, record)) {
+      return false;
+    }
+    resolve(record);
+    return true;
+  }
+
+  /**
+   * Tokenizes the event on the submitted line into the submitted record, leaving user-ids in
+   * String form (as views of the line's bytes) and timestamps in epoch-second form.
+   *
+   * @param buffer buffer holding the line
+   * @param start position of the first byte of the line
+   * @param end position following the last byte of the line
+   * @param record record into which the event is to be tokenized
+   * @return false if the line is blank; otherwise true
+   * @throws ParseException if the line is not a validly formatted event
+   */
+  boolean tokenize(ByteBuffer buffer, int start, int end, EventRecord record)
+          throws ParseException {
+    this.buffer = buffer;
+    this.lineStart = start;
+    this.position = start;
+    this.end = end;
+    skipWhitespace();
+    if (position == end) {
+      return false;
+    }
+    record.reset(buffer, start, end);
+    EventType type = null;
+    boolean hasTimestamp = false;
+    boolean hasId = false;
+    boolean hasId1 = false;
+    boolean hasId2 = false;
+    boolean hasAmount = false;
+    boolean hasDegree = false;
+    boolean hasThreshold = false;
+
+    expect('{');
+    skipWhitespace();
+    if (position < end && buffer.get(position) == '}') {
+      position++;
+    } else {
+      while (true) {
+        skipWhitespace();
+        expect('"');
+        scanString();
+        String key = tokenNeedsDecoding ? null : knownKey();
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        if (key == null) {
+          skipValue();
+        } else {
+          scanScalar();
+          switch (key) {
+            case EVENT_TYPE_KEY:
+              type = eventType();
+              break;
+            case TIMESTAMP_KEY:
+              record.setEpochSecond(parseEpochSecond());
+              hasTimestamp = true;
+              break;
+            case ID_KEY:
+            case ID1_KEY:
+              checkIdLength();
+              if (tokenNeedsDecoding) {
+                record.setId(decodeToken());
+              } else {
+                record.setId(tokenStart, tokenEnd);
+              }
+              hasId |= key.equals(ID_KEY);
+              hasId1 |= key.equals(ID1_KEY);
+              break;
+            case ID2_KEY:
+              checkIdLength();
+              if (tokenNeedsDecoding) {
+                record.setOtherId(decodeToken());
+              } else {
+                record.setOtherId(tokenStart, tokenEnd);
+              }
+              hasId2 = true;
+              break;
+            case AMOUNT_KEY:
+              record.setAmount(parseAmount());
+              hasAmount = true;
+              break;
+            case DEGREE_KEY:
+              record.setDegreesOfSeparation(parseInt());
+              hasDegree = true;
+              break;
+            case THRESHOLD_KEY:
+              record.setThreshold(parseInt());
+              hasThreshold = true;
+              break;
+            default:
+              break;
+          }
+        }
+        skipWhitespace();
+        byte delimiter = next();
+        if (delimiter == '}') {
+          break;
+        } else if (delimiter != ',') {
+          throw error("Expected ',' or '}'");
+        }
+      }
+    }
+    skipWhitespace();
+    if (position != end) {
+      throw error("Unexpected characters following event");
+    }
+
+    if (type == null) {
+      if (!hasDegree || !hasThreshold) {
+        throw error("Event lacks \"" + EVENT_TYPE_KEY + "\", and is not a valid \""
+                + DEGREE_KEY + "\"/\"" + THRESHOLD_KEY + "\" parameters event");
+      }
+      type = EventType.PARAMETERS;
+    } else if (type == EventType.PURCHASE) {
+      if (!hasTimestamp || !hasId || !hasAmount) {
+        throw error("Purchase event lacks \"" + TIMESTAMP_KEY + "\", \"" + ID_KEY + "\", or \""
+                + AMOUNT_KEY + "\"");
+      }
+    } else if (type == EventType.BEFRIEND || type == EventType.UNFRIEND) {
+      if (!hasTimestamp || !hasId1 || !hasId2) {
+        throw error("Befriend/unfriend event lacks \"" + TIMESTAMP_KEY + "\", \"" + ID1_KEY
+                + "\", or \"" + ID2_KEY + "\"");
+      }
+    }
+    record.setType(type);
+    return true;
+  }
+
+  /**
+   * Completes the parsing of a {@link #tokenize tokenized} record: assigns the next ingest
+   * sequence number to the record's event time, and interns its user-ids into user indexes.
+   * Records are to be resolved in input order.
+   *
+   * @param record tokenized record
+   */
+  void resolve(EventRecord record) {
+    switch (record.getType()) {
+      case BEFRIEND:
+      case UNFRIEND:
+      case PURCHASE:
+        record.setEventTime(eventTime.nextEventTime(record.getEpochSecond()));
+        record.setUserIndex(idDictionary.getOrAdd(record.getId()));
+        if (record.getType() != EventType.PURCHASE) {
+          record.setOtherUserIndex(idDictionary.getOrAdd(record.getOtherId()));
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Returns the known key matching the current token (compared as bytes), or null.
+   */
+  private String knownKey() {
+    switch (tokenEnd - tokenStart) {
+      case 1:
+        return tokenMatches(DEGREE_KEY) ? DEGREE_KEY
+                : tokenMatches(THRESHOLD_KEY) ? THRESHOLD_KEY : null;
+      case 2:
+        return tokenMatches(ID_KEY) ? ID_KEY : null;
+      case 3:
+        return tokenMatches(ID1_KEY) ? ID1_KEY : tokenMatches(ID2_KEY) ? ID2_KEY : null;
+      case 6:
+        return tokenMatches(AMOUNT_KEY) ? AMOUNT_KEY : null;
+      case 9:
+        return tokenMatches(TIMESTAMP_KEY) ? TIMESTAMP_KEY : null;
+      case 10:
+        return tokenMatches(EVENT_TYPE_KEY) ? EVENT_TYPE_KEY : null;
+      default:
+        return null;
+    }
+  }
+
+  private boolean tokenMatches(String asciiString) {
+    if (tokenEnd - tokenStart != asciiString.length()) {
+      return false;
+    }
+    for (int i = 0; i < asciiString.length(); i++) {
+      if (tokenBuffer.get(tokenStart + i) != asciiString.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Replaces a token which contains escape sequences (or non-ASCII bytes) by its decoded form,
+   * so that the value-parsing methods may treat every token as a range of plain bytes.
+   */
+  private void decodeTokenIfNeeded() throws ParseException {
+    if (tokenNeedsDecoding) {
+      byte[] decoded = decodeToken().getBytes(StandardCharsets.UTF_8);
+      tokenBuffer = ByteBuffer.wrap(decoded);
+      tokenStart = 0;
+      tokenEnd = decoded.length;
+      tokenNeedsDecoding = false;
+    }
+  }
+
+  private EventType eventType() throws ParseException {
+    decodeTokenIfNeeded();
+    if (tokenMatches(PURCHASE_EVENT)) {
+      return EventType.PURCHASE;
+    } else if (tokenMatches(BEFRIEND_EVENT)) {
+      return EventType.BEFRIEND;
+    } else if (tokenMatches(UNFRIEND_EVENT)) {
+      return EventType.UNFRIEND;
+    }
+    return EventType.UNKNOWN;
+  }
+
+  private long parseEpochSecond() throws ParseException {
+    decodeTokenIfNeeded();
+    try {
+      return eventTime.parseEpochSecond(tokenBuffer, tokenStart, tokenEnd);
+    } catch (IllegalArgumentException e) {
+      throw error(e.getMessage());
+    }
+  }
+
+  /**
+   * Rejects a user-id too long to be recorded in an {@link EventLog} (as its encoding is no
+   * longer than its token).
+   */
+  private void checkIdLength() throws ParseException {
+    if (tokenEnd - tokenStart > EventLog.MAX_USER_ID_LENGTH) {
+      throw error("User-id longer than " + EventLog.MAX_USER_ID_LENGTH + " bytes");
+    }
+  }
+
+  /**
+   * Parses a decimal amount in dollars (with up to two fractional digits) into pennies.
+   */
+  private long parseAmount() throws ParseException {
+    decodeTokenIfNeeded();
+    try {
+      return AmountCodec.parse(tokenBuffer, tokenStart, tokenEnd);
+    } catch (IllegalArgumentException e) {
+      throw error(e.getMessage());
+    }
+  }
+
+  private int parseInt() throws ParseException {
+    decodeTokenIfNeeded();
+    int length = tokenEnd - tokenStart;
+    if (length == 0 || length > MAX_INT_DIGITS) {
+      throw error("Invalid integer value: \"" + tokenString() + "\"");
+    }
+    int result = 0;
+    for (int i = tokenStart; i < tokenEnd; i++) {
+      byte b = tokenBuffer.get(i);
+      if (!isDigit(b)) {
+        throw error("Invalid integer value: \"" + tokenString() + "\"");
+      }
+      result = result * 10 + (b - '0');
+    }
+    return result;
+  }
+
+  private String tokenString() {
+    return new ByteRange().set(tokenBuffer, tokenStart, tokenEnd).toString();
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  /**
+   * Scans a string whose opening quote has been consumed, setting the token to its contents
+   * and consuming its closing quote.
+   */
+  private void scanString() throws ParseException {
+    tokenBuffer = buffer;
+    tokenStart = position;
+    tokenNeedsDecoding = false;
+    while (position < end) {
+      byte b = buffer.get(position);
+      if (b == '"') {
+        tokenEnd = position++;
+        return;
+      } else if (b == '\\') {
+        tokenNeedsDecoding = true;
+        position += 2;
+      } else {
+        if (b < 0) {
+          tokenNeedsDecoding = true; // non-ASCII byte of a UTF-8 sequence
+        }
+        position++;
+      }
+    }
+    throw error("Unterminated string");
+  }
+
+  /**
+   * Scans a scalar value (a string, or an unquoted number or literal), setting the token to
+   * the contents of the value.
+   */
+  private void scanScalar() throws ParseException {
+    if (position < end && buffer.get(position) == '"') {
+      position++;
+      scanString();
+      return;
+    }
+    tokenBuffer = buffer;
+    tokenStart = position;
+    tokenNeedsDecoding = false;
+    while (position < end && !isDelimiter(buffer.get(position))) {
+      position++;
+    }
+    tokenEnd = position;
+    if (tokenStart == tokenEnd) {
+      throw error("Expected a value");
+    }
+  }
+
+  /**
+   * Skips a value of any kind, including nested objects and arrays, without materializing it.
+   */
+  private void skipValue() throws ParseException {
+    byte b = position < end ? buffer.get(position) : 0;
+    if (b != '{' && b != '[') {
+      scanScalar();
+      return;
+    }
+    int depth = 0;
+    do {
+      b = next();
+      if (b == '"') {
+        scanString();
+      } else if (b == '{' || b == '[') {
+        depth++;
+      } else if (b == '}' || b == ']') {
+        depth--;
+      }
+    } while (depth > 0);
+  }
+
+  /**
+   * Decodes the current token (as UTF-8, with JSON escape sequences resolved) into a String.
+   */
+  private String decodeToken() throws ParseException {
+    byte[] bytes = new byte[tokenEnd - tokenStart];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = tokenBuffer.get(tokenStart + i);
+    }
+    String raw = new String(bytes, StandardCharsets.UTF_8);
+    if (raw.indexOf('\\') < 0) {
+      return raw;
+    }
+    StringBuilder decoded = new StringBuilder(raw.length());
+    for (int i = 0; i < raw.length(); i++) {
+      char c = raw.charAt(i);
+      if (c != '\\') {
+        decoded.append(c);
+        continue;
+      }
+      char escaped = raw.charAt(++i);
+      switch (escaped) {
+        case '"':
+        case '\\':
+        case '/':
+          decoded.append(escaped);
+          break;
+        case 'b':
+          decoded.append('\b');
+          break;
+        case 'f':
+          decoded.append('\f');
+          break;
+        case 'n':
+          decoded.append('\n');
+          break;
+        case 'r':
+          decoded.append('\r');
+          break;
+        case 't':
+          decoded.append('\t');
+          break;
+        case 'u':
+          try {
+            decoded.append((char)Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+          } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw error("Invalid unicode escape sequence");
+          }
+          i += 4;
+          break;
+        default:
+          throw error("Invalid escape sequence: \\" + escaped);
+      }
+    }
+    return decoded.toString();
+  }
+
+  private static boolean isDelimiter(byte b) {
+    return b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  private void skipWhitespace() {
+    while (position < end) {
+      byte b = buffer.get(position);
+      if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+        return;
+      }
+      position++;
+    }
+  }
+
+  private void expect(char expected) throws ParseException {
+    if (next() != expected) {
+      position--;
+      throw error("Expected '" + expected + "'");
+    }
+  }
+
+  private byte next() throws ParseException {
+    if (position >= end) {
+      throw error("Unexpected end of line");
+    }
+    return buffer.get(position++);
+  }
+
+  private ParseException error(String message) {
+    return new ParseException(message + " at offset " + (position - lineStart), position - lineStart);
+  }
+}
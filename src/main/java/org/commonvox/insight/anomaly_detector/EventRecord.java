@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An instance of the EventRecord class is a reusable, mutable container for the fields of a
+ * single input event, into which an {@link EventParser} writes each successive event, so that
+ * no per-event objects need be allocated. Which fields are meaningful depends upon the
+ * {@link #getType() event type}:
+ * <ul>
+ * <li>{@link EventType#PARAMETERS}: degrees of separation and threshold;</li>
+ * <li>{@link EventType#BEFRIEND} and {@link EventType#UNFRIEND}: event time, user index, and
+ * other-user index;</li>
+ * <li>{@link EventType#PURCHASE}: event time, user index, and amount.</li>
+ * </ul>
+ * The record also references the (undecoded) bytes of the line from which it was parsed.
+ *
+ * @author Daniel Vimont
+ */
+final class EventRecord {
+
+  private EventType type;
+  private int degreesOfSeparation;
+  private int threshold;
+  private long epochSecond;
+  private long eventTime;
+  private long amount;
+  private int userIndex;
+  private int otherUserIndex;
+
+  // id tokens, as views of the line's bytes (or as decoded Strings, if escapes are present)
+  private CharSequence id;
+  private CharSequence otherId;
+  private final ByteRange idRange = new ByteRange();
+  private final ByteRange otherIdRange = new ByteRange();
+
+  private ByteBuffer buffer;
+  private int lineStart;
+  private int lineEnd;
+
+  void reset(ByteBuffer buffer, int lineStart, int lineEnd) {
+    this.buffer = buffer;
+    this.lineStart = lineStart;
+    this.lineEnd = lineEnd;
+    type = null;
+    degreesOfSeparation = 0;
+    threshold = 0;
+    epochSecond = -1;
+    eventTime = -1;
+    amount = 0;
+    userIndex = -1;
+    otherUserIndex = -1;
+    id = null;
+    otherId = null;
+  }
+
+  EventType getType() {
+    return type;
+  }
+
+  void setType(EventType type) {
+    this.type = type;
+  }
+
+  int getDegreesOfSeparation() {
+    return degreesOfSeparation;
+  }
+
+  void setDegreesOfSeparation(int degreesOfSeparation) {
+    this.degreesOfSeparation = degreesOfSeparation;
+  }
+
+  int getThreshold() {
+    return threshold;
+  }
+
+  void setThreshold(int threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Returns the epoch second of the event's timestamp, or -1 if the event has no timestamp.
+   *
+   * @return epoch second of timestamp
+   */
+  long getEpochSecond() {
+    return epochSecond;
+  }
+
+  void setEpochSecond(long epochSecond) {
+    this.epochSecond = epochSecond;
+  }
+
+  /**
+   * Returns the packed {@link EventTime event time} (epoch second and ingest sequence number)
+   * assigned to the event, or -1 if none has been assigned.
+   *
+   * @return packed event time
+   */
+  long getEventTime() {
+    return eventTime;
+  }
+
+  void setEventTime(long eventTime) {
+    this.eventTime = eventTime;
+  }
+
+  /**
+   * Returns the purchase amount, in pennies.
+   *
+   * @return amount in pennies
+   */
+  long getAmount() {
+    return amount;
+  }
+
+  void setAmount(long amount) {
+    this.amount = amount;
+  }
+
+  /**
+   * Returns the index of the user who made the purchase (or of "id1" of a befriend/unfriend
+   * event), or -1 if not yet resolved.
+   *
+   * @return user index
+   */
+  int getUserIndex() {
+    return userIndex;
+  }
+
+  void setUserIndex(int userIndex) {
+    this.userIndex = userIndex;
+  }
+
+  /**
+   * Returns the index of the user denoted by "id2" of a befriend/unfriend event, or -1 if not
+   * yet resolved.
+   *
+   * @return other-user index
+   */
+  int getOtherUserIndex() {
+    return otherUserIndex;
+  }
+
+  void setOtherUserIndex(int otherUserIndex) {
+    this.otherUserIndex = otherUserIndex;
+  }
+
+  CharSequence getId() {
+    return id;
+  }
+
+  CharSequence getOtherId() {
+    return otherId;
+  }
+
+  /** Sets the id token to a view of the submitted range of the line's buffer. */
+  void setId(int start, int end) {
+    id = idRange.set(buffer, start, end);
+  }
+
+  void setId(String id) {
+    this.id = id;
+  }
+
+  /** Sets the other-id token to a view of the submitted range of the line's buffer. */
+  void setOtherId(int start, int end) {
+    otherId = otherIdRange.set(buffer, start, end);
+  }
+
+  void setOtherId(String otherId) {
+    this.otherId = otherId;
+  }
+
+  ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  int getLineStart() {
+    return lineStart;
+  }
+
+  int getLineEnd() {
+    return lineEnd;
+  }
+
+  /**
+   * Decodes (as UTF-8) and returns the line from which this record was parsed.
+   *
+   * @return the event's line of input
+   */
+  String getLine() {
+    byte[] bytes = new byte[lineEnd - lineStart];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(lineStart + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An instance of the EventTime class encodes the "yyyy-MM-dd HH:mm:ss" timestamps of
+ * transactions (interpreted as UTC) into packed long "event times", in which the epoch second
+ * of the timestamp occupies the high-order bits and an ingest sequence number occupies the
+ * low-order {@value #SEQUENCE_BITS} bits. Event times thus order transactions by timestamp and,
+ * among transactions with identical timestamps, by order of ingestion -- with every comparison
+ * being a single long comparison.
+ * <br><br>
+ * As sequence numbers serve only to order transactions of the same epoch second, they are
+ * assigned per epoch second (each new second counting from zero), so that they are exhausted
+ * only if some single second is shared by more than 2<sup>31</sup> transactions,
+ * however long the instance runs. The next sequence number of each of the most recently seen
+ * {@value #SECOND_SLOTS} seconds is held in a direct-mapped table; a second no longer held in
+ * the table (e.g., of a transaction arriving hours late) resumes counting above every sequence
+ * number ever assigned to a second evicted from the table, which preserves the order of
+ * ingestion at the cost of some of the second's sequence space.
+ * <br><br>
+ * Each instance assigns its own sequence numbers, and remembers the most recently parsed
+ * timestamp, so that consecutive transactions sharing the same second are not parsed anew. An
+ * instance is not to be concurrently accessed by multiple threads.
+ *
+ * @author Daniel Vimont
+ */
+final class EventTime {
+
+  static final int SEQUENCE_BITS = 31;
+  static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+  static final long MAX_EPOCH_SECOND = (1L << 32) - 1; // 2106-02-07 06:28:15
+  static final int TIMESTAMP_LENGTH = "yyyy-MM-dd HH:mm:ss".length();
+  static final int SECOND_SLOTS = 1 << 14; // about four and a half hours of seconds
+
+  private static final long SECONDS_PER_DAY = 86400;
+  private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+  // the most recently parsed timestamp, held as three (overlapping) 8-byte words
+  private long previousWord0;
+  private long previousWord1;
+  private long previousWord2;
+  private long previousEpochSecond = -1;
+  private final ByteBuffer scratch = ByteBuffer.allocate(TIMESTAMP_LENGTH);
+  // next sequence number of each second held in the table (allocated upon first use)
+  private long[] slotSeconds;
+  private long[] slotNextSequences;
+  private long newestEpochSecond = -1; // seconds beyond this have never been seen
+  private long evictedNextSequence = 0; // exceeds every sequence of every evicted second
+
+  /**
+   * Encodes the submitted timestamp into an event time, assigning it the next ingest sequence
+   * number of its epoch second.
+   *
+   * @param timestamp timestamp in "yyyy-MM-dd HH:mm:ss" format
+   * @return packed event time
+   * @throws IllegalArgumentException if the timestamp is not validly formatted
+   * @throws IllegalStateException if the sequence numbers of the timestamp's second are
+   * exhausted
+   */
+  long encode(CharSequence timestamp) {
+    return nextEventTime(parseEpochSecond(timestamp));
+  }
+
+  /**
+   * Returns the event time of a transaction of the submitted epoch second, assigning it the
+   * next ingest sequence number of that second.
+   *
+   * @param epochSecond epoch second, from zero to {@link #MAX_EPOCH_SECOND}
+   * @return packed event time
+   * @throws IllegalStateException if the sequence numbers of the second are exhausted
+   */
+  long nextEventTime(long epochSecond) {
+    int slot = claimSlot(epochSecond);
+    long sequence = slotNextSequences[slot];
+    if (sequence > MAX_SEQUENCE) {
+      throw new IllegalStateException("Ingest sequence numbers exhausted for epoch second "
+              + epochSecond + ".");
+    }
+    slotNextSequences[slot] = sequence + 1;
+    return pack(epochSecond, sequence);
+  }
+
+  /**
+   * Returns the ingest sequence number to be assigned next to a transaction of the submitted
+   * epoch second, without assigning it.
+   *
+   * @param epochSecond epoch second
+   * @return next ingest sequence number of the second
+   */
+  long peekNextSequence(long epochSecond) {
+    if (slotSeconds != null) {
+      int slot = (int)(epochSecond & (SECOND_SLOTS - 1));
+      if (slotSeconds[slot] == epochSecond) {
+        return slotNextSequences[slot];
+      }
+    }
+    return epochSecond > newestEpochSecond ? 0 : evictedNextSequence;
+  }
+
+  /**
+   * Returns the newest epoch second of any event time assigned or observed, or -1 if none.
+   *
+   * @return newest epoch second, or -1
+   */
+  long getNewestEpochSecond() {
+    return newestEpochSecond;
+  }
+
+  /**
+   * Notes the submitted event time (e.g., of a transaction replayed from an
+   * {@link EventLog event log}), so that sequence numbers assigned hereafter to its epoch second
+   * follow its sequence number.
+   *
+   * @param eventTime packed event time
+   */
+  void observe(long eventTime) {
+    int slot = claimSlot(epochSecond(eventTime));
+    slotNextSequences[slot] = Math.max(slotNextSequences[slot], sequence(eventTime) + 1);
+  }
+
+  /** Returns the table slot of the submitted second, claiming it for the second if need be. */
+  private int claimSlot(long epochSecond) {
+    if (slotSeconds == null) {
+      slotSeconds = new long[SECOND_SLOTS];
+      slotNextSequences = new long[SECOND_SLOTS];
+      Arrays.fill(slotSeconds, -1);
+    }
+    int slot = (int)(epochSecond & (SECOND_SLOTS - 1));
+    if (slotSeconds[slot] != epochSecond) {
+      if (slotSeconds[slot] >= 0) {
+        evictedNextSequence = Math.max(evictedNextSequence, slotNextSequences[slot]);
+      }
+      slotNextSequences[slot] = epochSecond > newestEpochSecond ? 0 : evictedNextSequence;
+      slotSeconds[slot] = epochSecond;
+    }
+    if (epochSecond > newestEpochSecond) {
+      newestEpochSecond = epochSecond;
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the sequence-numbering state of this instance (e.g., for inclusion in an
+   * {@link EngineSnapshot engine snapshot}): the newest epoch second, the sequence number above
+   * which evicted seconds resume counting, and the second and next sequence number of each
+   * second held in the table.
+   *
+   * @return sequence-numbering state
+   */
+  long[] getSequenceState() {
+    int slotCount = 0;
+    for (int slot = 0; slotSeconds != null && slot < SECOND_SLOTS; slot++) {
+      if (slotSeconds[slot] >= 0) {
+        slotCount++;
+      }
+    }
+    long[] state = new long[2 + slotCount * 2];
+    state[0] = newestEpochSecond;
+    state[1] = evictedNextSequence;
+    for (int slot = 0, i = 2; slotSeconds != null && slot < SECOND_SLOTS; slot++) {
+      if (slotSeconds[slot] >= 0) {
+        state[i++] = slotSeconds[slot];
+        state[i++] = slotNextSequences[slot];
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Restores sequence-numbering state returned by {@link #getSequenceState()}.
+   *
+   * @param state sequence-numbering state
+   * @throws IllegalArgumentException if the state is invalid
+   */
+  void setSequenceState(long[] state) {
+    if (state.length < 2 || state.length % 2 != 0 || state[0] < -1 || state[0] > MAX_EPOCH_SECOND
+            || state[1] < 0 || state[1] > MAX_SEQUENCE + 1) {
+      throw new IllegalArgumentException("Invalid ingest sequence state.");
+    }
+    slotSeconds = null;
+    newestEpochSecond = -1;
+    evictedNextSequence = state[1];
+    for (int i = 2; i < state.length; i += 2) {
+      if (state[i] < 0 || state[i] > state[0] || state[i + 1] < 0
+              || state[i + 1] > MAX_SEQUENCE + 1) {
+        throw new IllegalArgumentException("Invalid ingest sequence state.");
+      }
+      int slot = claimSlot(state[i]);
+      slotNextSequences[slot] = state[i + 1];
+    }
+    newestEpochSecond = state[0];
+  }
+
+  /**
+   * Returns the epoch second of the submitted timestamp, reusing the result of the previous
+   * invocation if the timestamp is identical to the one previously submitted.
+   *
+   * @param timestamp timestamp in "yyyy-MM-dd HH:mm:ss" format
+   * @return epoch second of timestamp
+   * @throws IllegalArgumentException if the timestamp is not validly formatted
+   */
+  long parseEpochSecond(CharSequence timestamp) {
+    if (timestamp.length() != TIMESTAMP_LENGTH) {
+      throw invalidTimestamp(timestamp);
+    }
+    for (int i = 0; i < TIMESTAMP_LENGTH; i++) {
+      char c = timestamp.charAt(i);
+      if (c >= 0x80) {
+        throw invalidTimestamp(timestamp);
+      }
+      scratch.put(i, (byte)c);
+    }
+    return parseEpochSecond(scratch, 0, TIMESTAMP_LENGTH);
+  }
+
+  /**
+   * Returns the epoch second of the timestamp held (as ASCII bytes) in the submitted range of
+   * the submitted buffer, reusing the result of the previous invocation if the timestamp is
+   * identical to the one previously submitted.
+   *
+   * @param buffer buffer holding the timestamp
+   * @param start position of the first byte of the timestamp
+   * @param end position following the last byte of the timestamp
+   * @return epoch second of timestamp
+   * @throws IllegalArgumentException if the timestamp is not validly formatted
+   */
+  long parseEpochSecond(ByteBuffer buffer, int start, int end) {
+    if (end - start != TIMESTAMP_LENGTH) {
+      throw invalidTimestamp(buffer, start, end);
+    }
+    long word0 = buffer.getLong(start);
+    long word1 = buffer.getLong(start + 8);
+    long word2 = buffer.getLong(start + TIMESTAMP_LENGTH - 8);
+    if (word2 == previousWord2 && word1 == previousWord1 && word0 == previousWord0
+            && previousEpochSecond >= 0) {
+      return previousEpochSecond;
+    }
+    int year = digits(buffer, start, 4);
+    int month = digits(buffer, start + 5, 2);
+    int day = digits(buffer, start + 8, 2);
+    int hour = digits(buffer, start + 11, 2);
+    int minute = digits(buffer, start + 14, 2);
+    int second = digits(buffer, start + 17, 2);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+            || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+            || buffer.get(start + 4) != '-' || buffer.get(start + 7) != '-'
+            || buffer.get(start + 10) != ' ' || buffer.get(start + 13) != ':'
+            || buffer.get(start + 16) != ':') {
+      throw invalidTimestamp(buffer, start, end);
+    }
+    long epochSecond = daysFromCivil(year, month, day) * SECONDS_PER_DAY
+            + hour * 3600 + minute * 60 + second;
+    if (epochSecond < 0 || epochSecond > MAX_EPOCH_SECOND) {
+      throw invalidTimestamp(buffer, start, end);
+    }
+    previousWord0 = word0;
+    previousWord1 = word1;
+    previousWord2 = word2;
+    previousEpochSecond = epochSecond;
+    return epochSecond;
+  }
+
+  /**
+   * Packs an epoch second and an ingest sequence number into an event time.
+   *
+   * @param epochSecond epoch second, from zero to {@link #MAX_EPOCH_SECOND}
+   * @param sequence ingest sequence number, from zero to {@link #MAX_SEQUENCE}
+   * @return packed event time
+   */
+  static long pack(long epochSecond, long sequence) {
+    return (epochSecond << SEQUENCE_BITS) | sequence;
+  }
+
+  static long epochSecond(long eventTime) {
+    return eventTime >>> SEQUENCE_BITS;
+  }
+
+  static long sequence(long eventTime) {
+    return eventTime & MAX_SEQUENCE;
+  }
+
+  /**
+   * Returns the count of days from 1970-01-01 to the submitted (proleptic Gregorian) date.
+   */
+  static long daysFromCivil(int year, int month, int day) {
+    int adjustedYear = month <= 2 ? year - 1 : year; // years are reckoned from March 1st
+    int era = (adjustedYear >= 0 ? adjustedYear : adjustedYear - 399) / 400;
+    int yearOfEra = adjustedYear - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 2 && (year % 4 != 0 || (year % 100 == 0 && year % 400 != 0))) {
+      return 28;
+    }
+    return DAYS_IN_MONTH[month - 1];
+  }
+
+  /** Returns the value of the submitted run of decimal digits, or -1 if a non-digit is found. */
+  private static int digits(ByteBuffer buffer, int start, int length) {
+    int value = 0;
+    for (int i = start; i < start + length; i++) {
+      int digit = buffer.get(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  private static IllegalArgumentException invalidTimestamp(ByteBuffer buffer, int start, int end) {
+    return invalidTimestamp(new ByteRange().set(buffer, start, end));
+  }
+
+  private static IllegalArgumentException invalidTimestamp(CharSequence timestamp) {
+    return new IllegalArgumentException(
+            "Timestamp not in \"yyyy-MM-dd HH:mm:ss\" format: \"" + timestamp + "\"");
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An instance of the FlaggedPurchaseWriter class writes flagged (anomaly) purchases in the
+ * output format of the original specifications -- the purchase's input line, with the mean and
+ * standard deviation appended as JSON elements before its closing brace, and lines delimited by
+ * the platform line separator -- without constructing any String. The bytes of the input line
+ * are copied directly from the input buffer into a reusable direct buffer, the mean and
+ * standard deviation are {@link AmountCodec#format formatted} (as dollars and cents) directly
+ * into the same buffer, and the buffer is written out (to a FileChannel) only when full, or
+ * upon {@link #flush()}.
+ * <br><br>
+ * The output is byte-for-byte identical to that of decoding the line (as UTF-8), removing its
+ * last character, appending the elements, and encoding the result as UTF-8. (Lines holding
+ * non-ASCII bytes are rare enough to be written via exactly that sequence of conversions.) For
+ * compatibility with callers supplying a {@link Writer}, output may alternatively be decoded
+ * into a Writer upon each flush. For consumers of a live feed (such as the subscribers of an
+ * {@link IngestionServer}), each line may instead be followed by its separator, so that every
+ * line is complete as soon as it is written.
+ * <br><br>
+ * An instance is not to be concurrently accessed by multiple threads.
+ *
+ * @author Daniel Vimont
+ */
+final class FlaggedPurchaseWriter implements Closeable, Flushable {
+
+  static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+  // NOTE: the following EXACT layout (with explicit spaces) required to pass Insight test script!
+  private static final byte[] MEAN_PREFIX = ascii(", \"mean\": \"");
+  private static final byte[] SD_PREFIX = ascii("\", \"sd\": \"");
+  private static final byte[] SUFFIX = ascii("\"}");
+  private static final byte[] LINE_SEPARATOR = ascii(System.lineSeparator());
+
+  private final WritableByteChannel channel;
+  private final boolean terminatingLines;
+  private final Writer writer;
+  private final CharsetDecoder decoder;
+  private final CharBuffer chars;
+  private ByteBuffer buffer;
+  private ByteBuffer input;     // input buffer most recently copied from, and
+  private ByteBuffer inputView; //   a view of it, whose position and limit may be freely set
+  private boolean pastFirstLine = false;
+
+  /**
+   * Initializes a new writer of flagged purchases to the submitted channel, which is closed when
+   * this writer is closed.
+   *
+   * @param channel channel of output file
+   */
+  FlaggedPurchaseWriter(FileChannel channel) {
+    this(channel, false);
+  }
+
+  /**
+   * Initializes a new writer of flagged purchases to the submitted channel, which is closed when
+   * this writer is closed.
+   *
+   * @param channel recipient of output
+   * @param terminatingLines true if each line is to be followed by the line separator; false if
+   * lines are to be separated (as in the original specifications)
+   */
+  FlaggedPurchaseWriter(WritableByteChannel channel, boolean terminatingLines) {
+    this.channel = channel;
+    this.terminatingLines = terminatingLines;
+    writer = null;
+    decoder = null;
+    chars = null;
+    buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Initializes a new writer of flagged purchases to the submitted Writer, into which output is
+   * decoded upon each flush. The Writer is neither flushed nor closed by this writer.
+   *
+   * @param writer recipient of output
+   */
+  FlaggedPurchaseWriter(Writer writer) {
+    channel = null;
+    terminatingLines = false;
+    this.writer = writer;
+    decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    chars = CharBuffer.allocate(1 << 13);
+    buffer = ByteBuffer.allocate(1 << 16);
+  }
+
+  /**
+   * Writes the flagged purchase whose input line occupies the submitted range of the submitted
+   * buffer, with the submitted mean and standard deviation appended.
+   *
+   * @param lineBuffer buffer holding the input line
+   * @param lineStart position of the first byte of the line
+   * @param lineEnd position following the last byte of the line
+   * @param mean mean in pennies
+   * @param standardDeviation standard deviation in pennies
+   * @throws IOException if file access problems encountered
+   */
+  void write(ByteBuffer lineBuffer, int lineStart, int lineEnd, long mean, long standardDeviation)
+          throws IOException {
+    int lineLength = lineEnd - lineStart;
+    ensureRemaining(LINE_SEPARATOR.length + lineLength + MEAN_PREFIX.length + SD_PREFIX.length
+            + SUFFIX.length + AmountCodec.MAX_FORMATTED_LENGTH * 2);
+    if (pastFirstLine && !terminatingLines) {
+      buffer.put(LINE_SEPARATOR);
+    } else {
+      pastFirstLine = true;
+    }
+    if (isAscii(lineBuffer, lineStart, lineEnd)) {
+      if (lineLength > 0) {
+        copy(lineBuffer, lineStart, lineEnd - 1); // all but the closing brace
+      }
+    } else {
+      byte[] lineBytes = new byte[lineLength];
+      for (int i = 0; i < lineLength; i++) {
+        lineBytes[i] = lineBuffer.get(lineStart + i);
+      }
+      String line = new String(lineBytes, StandardCharsets.UTF_8);
+      byte[] encoded = line.substring(0, line.length() - 1).getBytes(StandardCharsets.UTF_8);
+      ensureRemaining(encoded.length + MEAN_PREFIX.length + SD_PREFIX.length + SUFFIX.length
+              + LINE_SEPARATOR.length + AmountCodec.MAX_FORMATTED_LENGTH * 2);
+      buffer.put(encoded);
+    }
+    buffer.put(MEAN_PREFIX);
+    AmountCodec.format(mean, buffer);
+    buffer.put(SD_PREFIX);
+    AmountCodec.format(standardDeviation, buffer);
+    buffer.put(SUFFIX);
+    if (terminatingLines) {
+      buffer.put(LINE_SEPARATOR);
+    }
+  }
+
+  private static boolean isAscii(ByteBuffer lineBuffer, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (lineBuffer.get(i) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void copy(ByteBuffer lineBuffer, int start, int end) {
+    if (lineBuffer.hasArray()) {
+      buffer.put(lineBuffer.array(), lineBuffer.arrayOffset() + start, end - start);
+      return;
+    }
+    if (lineBuffer != input) {
+      input = lineBuffer;
+      inputView = lineBuffer.duplicate();
+    }
+    inputView.limit(end).position(start);
+    buffer.put(inputView);
+  }
+
+  private void ensureRemaining(int byteCount) throws IOException {
+    if (buffer.remaining() < byteCount) {
+      flushBuffer();
+      if (buffer.capacity() < byteCount) {
+        buffer = buffer.isDirect() ? ByteBuffer.allocateDirect(byteCount)
+                : ByteBuffer.allocate(byteCount);
+      }
+    }
+  }
+
+  /**
+   * Writes all buffered output to the channel (or decodes it into the Writer).
+   *
+   * @throws IOException if file access problems encountered
+   */
+  @Override
+  public void flush() throws IOException {
+    flushBuffer();
+  }
+
+  private void flushBuffer() throws IOException {
+    FlightRecorderEvents.Output event = FlightRecorderEvents.beginOutput();
+    buffer.flip();
+    int byteCount = buffer.remaining();
+    if (channel != null) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } else {
+      decoder.reset();
+      while (true) {
+        CoderResult result = decoder.decode(buffer, chars, true);
+        if (result.isUnderflow()) {
+          result = decoder.flush(chars);
+        }
+        writer.write(chars.array(), 0, chars.position());
+        chars.clear();
+        if (result.isUnderflow()) {
+          break;
+        }
+      }
+    }
+    buffer.clear();
+    if (event != null) {
+      event.complete(byteCount);
+    }
+  }
+
+  /**
+   * Writes all buffered output, and closes the channel (but not the Writer) of this writer.
+   *
+   * @throws IOException if file access problems encountered
+   */
+  @Override
+  public void close() throws IOException {
+    flush();
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+}
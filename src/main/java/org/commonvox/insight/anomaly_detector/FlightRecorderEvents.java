@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The FlightRecorderEvents class holds the custom Java Flight Recorder events of the detector,
+ * through which the time of a slow run may be attributed to network assembly, anomaly
+ * assessment, purchase merging, parsing, or output:
+ * <ul>
+ * <li>{@link NetworkAssembly}: retrieval of a user's network (assembled anew if uncached);</li>
+ * <li>{@link AnomalyAssessment}: retrieval of a user's network and assessment of a purchase
+ * against the network's recent purchases;</li>
+ * <li>{@link PurchaseMerge}: addition of one user's purchases to another's;</li>
+ * <li>{@link Parse}: parsing of a line (or, in a {@link StreamPipeline}, tokenization of a batch
+ * of lines); and</li>
+ * <li>{@link Output}: writing of buffered flagged purchases to their destination.</li>
+ * </ul>
+ * Each event is enabled by default with a threshold of {@value #DEFAULT_THRESHOLD}, so that a
+ * recording started at any time (e.g., via "jcmd <i>pid</i> JFR.start") captures only slow
+ * occurrences; thresholds may be overridden in the recording's settings, or by starting a
+ * recording via {@link #startRecording}. Until the Flight Recorder is first started, each
+ * instrumented operation costs a single check, with no allocation; thereafter, an event is
+ * allocated (but not recorded) for each operation while the event is enabled in no recording.
+ * <br><br>
+ * The events are used only if the jdk.jfr API is present in the running JVM (as in OpenJDK 8u262
+ * and later); otherwise the event classes are never loaded.
+ *
+ * @author Daniel Vimont
+ */
+final class FlightRecorderEvents {
+
+  static final String CATEGORY = "Anomaly Detector";
+  static final String DEFAULT_THRESHOLD = "10 ms";
+  static final String EVENT_NAME_PREFIX = "org.commonvox.insight.anomaly_detector.";
+  static final boolean AVAILABLE = isAvailable();
+
+  private FlightRecorderEvents() {
+  }
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  @Name(EVENT_NAME_PREFIX + "NetworkAssembly")
+  @Label("Network Assembly")
+  @Category(CATEGORY)
+  @Description("Retrieval of a user's network, assembled anew if not cached")
+  @Threshold(DEFAULT_THRESHOLD)
+  @StackTrace(false)
+  static final class NetworkAssembly extends Event {
+    @Label("User Id")
+    String userId;
+    @Label("Network Size")
+    int networkSize;
+    @Label("Cached")
+    boolean cached;
+
+    void complete(String userId, int networkSize, boolean cached) {
+      end();
+      if (shouldCommit()) {
+        this.userId = userId;
+        this.networkSize = networkSize;
+        this.cached = cached;
+        commit();
+      }
+    }
+  }
+
+  @Name(EVENT_NAME_PREFIX + "AnomalyAssessment")
+  @Label("Anomaly Assessment")
+  @Category(CATEGORY)
+  @Description("Retrieval of a user's network and assessment of a purchase against the network's"
+          + " recent purchases")
+  @Threshold(DEFAULT_THRESHOLD)
+  @StackTrace(false)
+  static final class AnomalyAssessment extends Event {
+    @Label("User Id")
+    String userId;
+    @Label("Network Size")
+    int networkSize;
+    @Label("Purchases Merged")
+    int purchasesMerged;
+    @Label("Amount")
+    String amount;
+    @Label("Flagged")
+    boolean flagged;
+    @Label("Speculative")
+    @Description("Whether the assessment was made speculatively, ahead of its purchase's turn")
+    boolean speculative;
+
+    void complete(String userId, int networkSize, int purchasesMerged, long amount,
+            boolean flagged, boolean speculative) {
+      end();
+      if (shouldCommit()) {
+        this.userId = userId;
+        this.networkSize = networkSize;
+        this.purchasesMerged = purchasesMerged;
+        this.amount = AmountCodec.toString(amount);
+        this.flagged = flagged;
+        this.speculative = speculative;
+        commit();
+      }
+    }
+  }
+
+  @Name(EVENT_NAME_PREFIX + "PurchaseMerge")
+  @Label("Purchase Merge")
+  @Category(CATEGORY)
+  @Description("Addition of the purchases of one user to those of another")
+  @Threshold(DEFAULT_THRESHOLD)
+  @StackTrace(false)
+  static final class PurchaseMerge extends Event {
+    @Label("Purchases Added")
+    int purchasesAdded;
+    @Label("Purchases Held")
+    int purchasesHeld;
+
+    void complete(int purchasesAdded, int purchasesHeld) {
+      end();
+      if (shouldCommit()) {
+        this.purchasesAdded = purchasesAdded;
+        this.purchasesHeld = purchasesHeld;
+        commit();
+      }
+    }
+  }
+
+  @Name(EVENT_NAME_PREFIX + "Parse")
+  @Label("Parse")
+  @Category(CATEGORY)
+  @Description("Parsing of a line of input, or tokenization of a batch of lines")
+  @Threshold(DEFAULT_THRESHOLD)
+  @StackTrace(false)
+  static final class Parse extends Event {
+    @Label("Line Count")
+    int lineCount;
+    @Label("Byte Count")
+    @DataAmount
+    long byteCount;
+
+    void complete(int lineCount, long byteCount) {
+      end();
+      if (shouldCommit()) {
+        this.lineCount = lineCount;
+        this.byteCount = byteCount;
+        commit();
+      }
+    }
+  }
+
+  @Name(EVENT_NAME_PREFIX + "Output")
+  @Label("Output")
+  @Category(CATEGORY)
+  @Description("Writing of buffered flagged purchases to their destination")
+  @Threshold(DEFAULT_THRESHOLD)
+  @StackTrace(false)
+  static final class Output extends Event {
+    @Label("Byte Count")
+    @DataAmount
+    long byteCount;
+
+    void complete(long byteCount) {
+      end();
+      if (shouldCommit()) {
+        this.byteCount = byteCount;
+        commit();
+      }
+    }
+  }
+
+  /** Returns a begun NetworkAssembly event, or null if the event is not enabled. */
+  static NetworkAssembly beginNetworkAssembly() {
+    if (AVAILABLE && FlightRecorder.isInitialized()) {
+      NetworkAssembly event = new NetworkAssembly();
+      if (event.isEnabled()) {
+        event.begin();
+        return event;
+      }
+    }
+    return null;
+  }
+
+  /** Returns a begun AnomalyAssessment event, or null if the event is not enabled. */
+  static AnomalyAssessment beginAnomalyAssessment() {
+    if (AVAILABLE && FlightRecorder.isInitialized()) {
+      AnomalyAssessment event = new AnomalyAssessment();
+      if (event.isEnabled()) {
+        event.begin();
+        return event;
+      }
+    }
+    return null;
+  }
+
+  /** Returns a begun PurchaseMerge event, or null if the event is not enabled. */
+  static PurchaseMerge beginPurchaseMerge() {
+    if (AVAILABLE && FlightRecorder.isInitialized()) {
+      PurchaseMerge event = new PurchaseMerge();
+      if (event.isEnabled()) {
+        event.begin();
+        return event;
+      }
+    }
+    return null;
+  }
+
+  /** Returns a begun Parse event, or null if the event is not enabled. */
+  static Parse beginParse() {
+    if (AVAILABLE && FlightRecorder.isInitialized()) {
+      Parse event = new Parse();
+      if (event.isEnabled()) {
+        event.begin();
+        return event;
+      }
+    }
+    return null;
+  }
+
+  /** Returns a begun Output event, or null if the event is not enabled. */
+  static Output beginOutput() {
+    if (AVAILABLE && FlightRecorder.isInitialized()) {
+      Output event = new Output();
+      if (event.isEnabled()) {
+        event.begin();
+        return event;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Starts a flight recording (with the JVM's "default" settings) in which the detector's events
+   * are recorded if they take at least the submitted threshold. The recording is written to the
+   * submitted destination when the returned Closeable is closed.
+   *
+   * @param destination path to which the recording is to be written
+   * @param threshold minimum duration of recorded detector events
+   * @return Closeable which stops the recording and writes it to its destination
+   * @throws IOException if the recording cannot be started
+   */
+  static Closeable startRecording(Path destination, Duration threshold) throws IOException {
+    if (!AVAILABLE) {
+      throw new IllegalStateException("Java Flight Recorder is not available in this JVM.");
+    }
+    Recording recording;
+    try {
+      recording = new Recording(Configuration.getConfiguration("default"));
+    } catch (ParseException e) {
+      throw new IOException(e);
+    }
+    for (Class<? extends Event> eventClass : new Class[]{NetworkAssembly.class,
+            AnomalyAssessment.class, PurchaseMerge.class, Parse.class, Output.class}) {
+      recording.enable(eventClass).withThreshold(threshold);
+    }
+    recording.setDestination(destination);
+    recording.start();
+    return () -> {
+      recording.stop(); // written to destination upon stop
+      recording.close();
+    };
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An instance of the FollowingLineReader class reads the lines of a file which is still being
+ * appended to (as with "tail -f"), keeping the byte offset within the file up to which it has
+ * read. Each {@link #read()} reads whatever bytes have been appended since the previous read
+ * into a reusable buffer, from which the complete lines are then handed out by
+ * {@link #nextLine()} as ranges of the buffer, with no decoding of bytes into Strings. A final
+ * line lacking its terminator (possibly still being written) is held back until its terminator
+ * has been appended.
+ * <br><br>
+ * Lines are terminated as with {@link MappedLineReader}. When a read finds nothing new,
+ * {@link #await()} waits for the file to be modified: upon a {@link WatchService} registered
+ * for the file's directory, if available, with a timeout (as some watch services merely poll,
+ * and some files are modified without notice) which doubles upon each fruitless wait, from one
+ * millisecond up to the submitted maximum, and is reset upon the reading of new bytes.
+ * <br><br>
+ * The file is expected to grow by appending only; truncation of the file is reported as an
+ * IOException. An instance is not to be concurrently accessed by multiple threads.
+ * <br><br>
+ * Typical usage:
+ * <pre>
+ * try (FollowingLineReader reader = new FollowingLineReader(path, maxWaitMillis)) {
+ *   while (following) {
+ *     if (!reader.read()) {
+ *       reader.await();
+ *       continue;
+ *     }
+ *     while (reader.nextLine()) {
+ *       process(reader.getBuffer(), reader.getLineStart(), reader.getLineEnd());
+ *     }
+ *   }
+ * }</pre>
+ *
+ * @author Daniel Vimont
+ */
+final class FollowingLineReader implements Closeable {
+
+  static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+  static final long MIN_WAIT_MILLIS = 1;
+  static final long DEFAULT_MAX_WAIT_MILLIS = 100;
+
+  private final FileChannel channel;
+  private final WatchService watchService; // null if unavailable
+  private final long maxWaitMillis;
+  private long waitMillis = MIN_WAIT_MILLIS;
+  private ByteBuffer buffer;
+  private long offset = 0;  // offset within the file following the last byte read
+  private int position = 0; // position within the buffer of the first byte not yet handed out
+  private int lineStart;
+  private int lineEnd;
+
+  /**
+   * Opens the file at the submitted path for reading from its beginning, waiting (when nothing
+   * new is found) for at most the submitted count of milliseconds at a time.
+   *
+   * @param path path of file to be read
+   * @param maxWaitMillis maximum milliseconds of each {@link #await() wait}
+   * @throws IOException if file access problems encountered
+   */
+  FollowingLineReader(Path path, long maxWaitMillis) throws IOException {
+    this(path, maxWaitMillis, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Opens the file at the submitted path for reading from its beginning, with a buffer of the
+   * submitted initial size (enlarged, if a line is longer than the buffer).
+   *
+   * @param path path of file to be read
+   * @param maxWaitMillis maximum milliseconds of each {@link #await() wait}
+   * @param bufferSize initial size, in bytes, of the buffer
+   * @throws IOException if file access problems encountered
+   */
+  FollowingLineReader(Path path, long maxWaitMillis, int bufferSize) throws IOException {
+    if (maxWaitMillis < MIN_WAIT_MILLIS) {
+      throw new IllegalArgumentException(
+              "Maximum wait must be at least " + MIN_WAIT_MILLIS + " millisecond.");
+    }
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("Buffer size must be positive.");
+    }
+    this.maxWaitMillis = maxWaitMillis;
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    buffer = ByteBuffer.allocate(bufferSize);
+    buffer.flip();
+    watchService = newWatchService(path.toAbsolutePath().getParent());
+  }
+
+  private static WatchService newWatchService(Path directory) {
+    if (directory == null) {
+      return null;
+    }
+    WatchService watchService = null;
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      directory.register(watchService,
+              StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+      return watchService;
+    } catch (IOException | UnsupportedOperationException e) {
+      if (watchService != null) {
+        try {
+          watchService.close();
+        } catch (IOException closeException) {
+          e.addSuppressed(closeException);
+        }
+      }
+      return null; // waits are then timed sleeps
+    }
+  }
+
+  /**
+   * Reads the bytes appended to the file since the previous read (retaining any incomplete line
+   * left over from the previous read), without waiting.
+   *
+   * @return true if any bytes were read; otherwise false
+   * @throws IOException if file access problems encountered, or if the file has been truncated
+   */
+  boolean read() throws IOException {
+    long size = channel.size();
+    if (size < offset) {
+      throw new IOException("File truncated (from " + offset + " to " + size
+              + " bytes) while being followed.");
+    }
+    if (size == offset) {
+      return false;
+    }
+    buffer.position(position);
+    buffer.compact(); // carry over the incomplete line (if any)
+    position = 0;
+    if (!buffer.hasRemaining()) { // line exceeds buffer
+      ByteBuffer enlarged = ByteBuffer.allocate(buffer.capacity() * 2);
+      buffer.flip();
+      enlarged.put(buffer);
+      buffer = enlarged;
+    }
+    int byteCount = channel.read(buffer, offset);
+    buffer.flip();
+    if (byteCount <= 0) {
+      return false;
+    }
+    offset += byteCount;
+    waitMillis = MIN_WAIT_MILLIS;
+    return true;
+  }
+
+  /**
+   * Advances to the next complete line among the bytes read so far.
+   *
+   * @return false if no complete line remains to be handed out; otherwise true
+   */
+  boolean nextLine() {
+    int limit = buffer.limit();
+    for (int i = position; i < limit; i++) {
+      byte b = buffer.get(i);
+      if (b == '\n' || b == '\r') {
+        if (b == '\r' && i + 1 == limit) {
+          return false; // a line feed may yet be appended
+        }
+        lineStart = position;
+        lineEnd = i;
+        position = (b == '\r' && buffer.get(i + 1) == '\n') ? i + 2 : i + 1;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Waits until the file may have been modified, or until the current wait interval (which is
+   * then doubled, up to the maximum) elapses.
+   *
+   * @throws IOException if file access problems encountered
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void await() throws IOException, InterruptedException {
+    long timeout = waitMillis;
+    waitMillis = Math.min(waitMillis * 2, maxWaitMillis);
+    if (watchService == null) {
+      Thread.sleep(timeout);
+      return;
+    }
+    WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+    if (key != null) {
+      do {
+        key.pollEvents();
+        key.reset();
+        key = watchService.poll();
+      } while (key != null);
+    }
+  }
+
+  /**
+   * Returns the buffer holding the current line; the buffer is valid only until the next
+   * invocation of {@link #read()}.
+   *
+   * @return buffer holding the current line
+   */
+  ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Returns the position, within {@link #getBuffer() the buffer}, of the first byte of the
+   * current line.
+   *
+   * @return position of first byte of line
+   */
+  int getLineStart() {
+    return lineStart;
+  }
+
+  /**
+   * Returns the position, within {@link #getBuffer() the buffer}, following the last byte of the
+   * current line (excluding its terminator).
+   *
+   * @return position following last byte of line
+   */
+  int getLineEnd() {
+    return lineEnd;
+  }
+
+  /**
+   * Returns the offset within the file following the last complete line handed out.
+   *
+   * @return offset following last complete line
+   */
+  long getOffset() {
+    return offset - (buffer.limit() - position);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (watchService != null) {
+        watchService.close();
+      }
+    } finally {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An instance of the FriendGraph class holds the friend connections of all Users (identified by
+ * their dense user indexes) in a compact two-part store:
+ * <ul>
+ * <li>a frozen "compressed sparse row" (CSR) structure, in which the friends of user {@code n}
+ * occupy the sorted range {@code [offsets[n], offsets[n+1])} of a single int array; and</li>
+ * <li>a small mutable overlay of connections added or removed since the CSR structure was
+ * last built.</li>
+ * </ul>
+ * The overlay is merged into a newly built CSR structure whenever it outgrows a fraction of the
+ * CSR structure (and on demand via {@link #compact()}, e.g., after batch ingestion), so that
+ * network traversal iterates mostly over contiguous int arrays.
+ * <br><br>
+ * Note that connections are directed: a reciprocal friendship consists of two connections.
+ * <br><br>
+ * An instance may be concurrently accessed by multiple threads. The overlay of each user is
+ * guarded by one of {@value #LOCK_STRIPE_COUNT} lock stripes (chosen by user index, as are the
+ * {@link AnomalyEngine#getLockStripe(int) lock stripes of the engine}), so that modifications of
+ * the connections of users of different stripes proceed in parallel; each modification
+ * advances the {@link #getVersion() version} of the graph. The arrays of the graph as a whole
+ * are guarded by a structure lock, held (in read mode) by every modification, and held in write
+ * mode only briefly: to grow the overlay, and to freeze the overlay and swap in a newly built
+ * CSR structure. A merge is done in two such brief steps: the overlay is first frozen (that is,
+ * set aside as a "merging" overlay, with a new empty overlay taking its place), the new CSR
+ * structure is then built from the old one and the frozen overlay without holding any lock
+ * (while modifications continue against the new overlay), and is finally swapped in.
+ * <br><br>
+ * Reads are done under optimistic read stamps of the structure lock and the stripes concerned,
+ * validated upon completion and repeated under their read locks if a modification intervened;
+ * {@link NetworkTraversal network traversal} follows the same protocol (stamping each stripe
+ * upon first reading a user of it), via {@link #tryOptimisticRead()} and
+ * {@link #tryOptimisticReadStripe(int)}, falling back to {@link #readLock(long[])}.
+ *
+ * @author Daniel Vimont
+ */
+final class FriendGraph {
+
+  static final int LOCK_STRIPE_COUNT = AnomalyEngine.LOCK_STRIPE_COUNT;
+  /** Length of the stamp arrays of {@link #readLock(long[])}: structure plus stripes. */
+  static final int STAMP_COUNT = 1 + LOCK_STRIPE_COUNT;
+  private static final int MIN_OVERLAY_MERGE_SIZE = 1 << 12;
+  private static final int OVERLAY_MERGE_DIVISOR = 4; // merge once overlay exceeds 1/4 of CSR
+  private static final int[] NO_NEIGHBORS = new int[0];
+
+  // frozen CSR structure
+  private int frozenNodeCount = 0;
+  private int[] offsets = new int[1];
+  private int[] neighbors = NO_NEIGHBORS;
+
+  // overlay frozen for merging into a new CSR structure (null unless a merge is in progress)
+  private IntHashSet[] mergingAddedNeighbors;
+  private IntHashSet[] mergingRemovedNeighbors;
+
+  // mutable overlay, indexed by user index (null where a user has no overlay entries)
+  private IntHashSet[] addedNeighbors = new IntHashSet[1024];
+  private IntHashSet[] removedNeighbors = new IntHashSet[1024];
+  private final AtomicInteger overlaySize = new AtomicInteger();
+  private final AtomicInteger nodeCount = new AtomicInteger();
+
+  private final StampedLock lock = new StampedLock(); // structure lock
+  private final StampedLock[] lockStripes = newLockStripes();
+  private final ReentrantLock mergeLock = new ReentrantLock(); // held throughout a merge
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * Adds the connection from one user to another.
+   *
+   * @param from index of user adding a friend
+   * @param to index of user being added as a friend
+   * @return true if the connection did not already exist
+   */
+  boolean addEdge(int from, int to) {
+    boolean added;
+    long stamp = lockForModification(Math.max(from, to));
+    StampedLock lockStripe = getLockStripe(from);
+    long stripeStamp = lockStripe.writeLock();
+    try {
+      added = addEdgeLocked(from, to);
+      if (added) {
+        version.incrementAndGet();
+      }
+    } finally {
+      lockStripe.unlockWrite(stripeStamp);
+      lock.unlockRead(stamp);
+    }
+    mergeOverlayIfOversized();
+    return added;
+  }
+
+  private boolean addEdgeLocked(int from, int to) {
+    boolean added;
+    if (baseContains(from, to)) {
+      added = removedNeighbors[from] != null && removedNeighbors[from].remove(to);
+      if (added) {
+        overlaySize.decrementAndGet();
+      }
+    } else {
+      if (addedNeighbors[from] == null) {
+        addedNeighbors[from] = new IntHashSet();
+      }
+      added = addedNeighbors[from].add(to);
+      if (added) {
+        overlaySize.incrementAndGet();
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Removes the connection from one user to another.
+   *
+   * @param from index of user removing a friend
+   * @param to index of user being removed as a friend
+   * @return true if the connection existed
+   */
+  boolean removeEdge(int from, int to) {
+    if (from >= nodeCount.get()) {
+      return false;
+    }
+    boolean removed;
+    long stamp = lock.readLock();
+    StampedLock lockStripe = getLockStripe(from);
+    long stripeStamp = lockStripe.writeLock();
+    try {
+      removed = removeEdgeLocked(from, to);
+      if (removed) {
+        version.incrementAndGet();
+      }
+    } finally {
+      lockStripe.unlockWrite(stripeStamp);
+      lock.unlockRead(stamp);
+    }
+    mergeOverlayIfOversized();
+    return removed;
+  }
+
+  private boolean removeEdgeLocked(int from, int to) {
+    boolean removed;
+    if (baseContains(from, to)) {
+      if (removedNeighbors[from] == null) {
+        removedNeighbors[from] = new IntHashSet();
+      }
+      removed = removedNeighbors[from].add(to);
+      if (removed) {
+        overlaySize.incrementAndGet();
+      }
+    } else {
+      removed = addedNeighbors[from] != null && addedNeighbors[from].remove(to);
+      if (removed) {
+        overlaySize.decrementAndGet();
+      }
+    }
+    return removed;
+  }
+
+  boolean containsEdge(int from, int to) {
+    StampedLock lockStripe = getLockStripe(from);
+    long stamp = lock.tryOptimisticRead();
+    long stripeStamp = lockStripe.tryOptimisticRead();
+    if (stamp != 0 && stripeStamp != 0) {
+      try {
+        boolean contained = containsEdgeUnlocked(from, to);
+        if (lock.validate(stamp) && lockStripe.validate(stripeStamp)) {
+          return contained;
+        }
+      } catch (RuntimeException e) {
+        // inconsistent state observed mid-modification; retry under read lock
+      }
+    }
+    stamp = lock.readLock();
+    stripeStamp = lockStripe.readLock();
+    try {
+      return containsEdgeUnlocked(from, to);
+    } finally {
+      lockStripe.unlockRead(stripeStamp);
+      lock.unlockRead(stamp);
+    }
+  }
+
+  private boolean containsEdgeUnlocked(int from, int to) {
+    if (from >= nodeCount.get()) {
+      return false;
+    }
+    if (baseContains(from, to)) {
+      return removedNeighbors[from] == null || !removedNeighbors[from].contains(to);
+    }
+    return addedNeighbors[from] != null && addedNeighbors[from].contains(to);
+  }
+
+  /**
+   * Returns the friends of the submitted user in ascending order of user index.
+   *
+   * @param node user index
+   * @return indexes of friends of the user
+   */
+  int[] getNeighbors(int node) {
+    StampedLock lockStripe = getLockStripe(node);
+    long stamp = lock.tryOptimisticRead();
+    long stripeStamp = lockStripe.tryOptimisticRead();
+    if (stamp != 0 && stripeStamp != 0) {
+      try {
+        int[] nodeNeighbors = getNeighborsUnlocked(node);
+        if (lock.validate(stamp) && lockStripe.validate(stripeStamp)) {
+          return nodeNeighbors;
+        }
+      } catch (RuntimeException e) {
+        // inconsistent state observed mid-modification; retry under read lock
+      }
+    }
+    stamp = lock.readLock();
+    stripeStamp = lockStripe.readLock();
+    try {
+      return getNeighborsUnlocked(node);
+    } finally {
+      lockStripe.unlockRead(stripeStamp);
+      lock.unlockRead(stamp);
+    }
+  }
+
+  private int[] getNeighborsUnlocked(int node) {
+    if (node >= nodeCount.get()) {
+      return NO_NEIGHBORS;
+    }
+    int[] nodeNeighbors = new int[degree(node)];
+    int count = 0;
+    IntHashSet mergingRemoved = mergingRemovedNeighbors(node);
+    IntHashSet removed = removedNeighbors[node];
+    for (int i = frozenStart(node), end = frozenEnd(node); i < end; i++) {
+      int neighbor = neighbors[i];
+      if ((mergingRemoved == null || !mergingRemoved.contains(neighbor))
+              && (removed == null || !removed.contains(neighbor))) {
+        nodeNeighbors[count++] = neighbor;
+      }
+    }
+    IntHashSet mergingAdded = mergingAddedNeighbors(node);
+    if (mergingAdded != null) {
+      for (int slot = 0, slotCount = mergingAdded.slotCount(); slot < slotCount; slot++) {
+        int neighbor = mergingAdded.slotValue(slot);
+        if (neighbor >= 0 && (removed == null || !removed.contains(neighbor))) {
+          nodeNeighbors[count++] = neighbor;
+        }
+      }
+    }
+    IntHashSet added = addedNeighbors[node];
+    if (added != null) {
+      for (int slot = 0, slotCount = added.slotCount(); slot < slotCount; slot++) {
+        if (added.slotValue(slot) >= 0) {
+          nodeNeighbors[count++] = added.slotValue(slot);
+        }
+      }
+    }
+    Arrays.sort(nodeNeighbors);
+    return nodeNeighbors;
+  }
+
+  int degree(int node) {
+    if (node >= nodeCount.get()) {
+      return 0;
+    }
+    return baseDegree(node)
+            - (removedNeighbors[node] == null ? 0 : removedNeighbors[node].size())
+            + (addedNeighbors[node] == null ? 0 : addedNeighbors[node].size());
+  }
+
+  /** Returns the degree of the submitted user in the frozen CSR structure and merging overlay. */
+  private int baseDegree(int node) {
+    IntHashSet mergingRemoved = mergingRemovedNeighbors(node);
+    IntHashSet mergingAdded = mergingAddedNeighbors(node);
+    return frozenEnd(node) - frozenStart(node)
+            - (mergingRemoved == null ? 0 : mergingRemoved.size())
+            + (mergingAdded == null ? 0 : mergingAdded.size());
+  }
+
+  /**
+   * Returns one greater than the highest user index that has been submitted to this graph.
+   *
+   * @return count of user indexes spanned by this graph
+   */
+  int getNodeCount() {
+    return nodeCount.get();
+  }
+
+  /**
+   * Returns the total count of (directed) connections in this graph.
+   *
+   * @return count of connections
+   */
+  long getEdgeCount() {
+    long[] stamps = new long[STAMP_COUNT];
+    readLock(stamps);
+    try {
+      long edgeCount = 0;
+      for (int node = 0, count = nodeCount.get(); node < count; node++) {
+        edgeCount += degree(node);
+      }
+      return edgeCount;
+    } finally {
+      unlockRead(stamps);
+    }
+  }
+
+  int getOverlaySize() {
+    return overlaySize.get();
+  }
+
+  /**
+   * Merges all overlay entries into a newly built (frozen) CSR structure. Modifications made
+   * while the CSR structure is being built are retained in the (new) overlay.
+   */
+  void compact() {
+    mergeLock.lock();
+    try {
+      merge();
+    } finally {
+      mergeLock.unlock();
+    }
+  }
+
+  /** Merges the overlay (unless another merge is in progress) if it has grown too large. */
+  private void mergeOverlayIfOversized() {
+    int size = overlaySize.get();
+    if (size > MIN_OVERLAY_MERGE_SIZE && size > neighbors.length / OVERLAY_MERGE_DIVISOR
+            && mergeLock.tryLock()) {
+      try {
+        merge();
+      } finally {
+        mergeLock.unlock();
+      }
+    }
+  }
+
+  /** Freezes the overlay, builds a new CSR structure off-lock, and swaps it in. */
+  private void merge() {
+    int mergeNodeCount;
+    long stamp = lock.writeLock();
+    try {
+      mergeNodeCount = nodeCount.get();
+      mergingAddedNeighbors = addedNeighbors;
+      mergingRemovedNeighbors = removedNeighbors;
+      addedNeighbors = new IntHashSet[addedNeighbors.length];
+      removedNeighbors = new IntHashSet[removedNeighbors.length];
+      overlaySize.set(0);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+
+    // the frozen CSR structure and merging overlay are modified only under the merge lock
+    int[] newOffsets = new int[mergeNodeCount + 1];
+    for (int node = 0; node < mergeNodeCount; node++) {
+      newOffsets[node + 1] = newOffsets[node] + baseDegree(node);
+    }
+    int[] newNeighbors = new int[newOffsets[mergeNodeCount]];
+    for (int node = 0; node < mergeNodeCount; node++) {
+      int position = newOffsets[node];
+      IntHashSet removed = mergingRemovedNeighbors[node];
+      for (int i = frozenStart(node), end = frozenEnd(node); i < end; i++) {
+        if (removed == null || !removed.contains(neighbors[i])) {
+          newNeighbors[position++] = neighbors[i];
+        }
+      }
+      IntHashSet added = mergingAddedNeighbors[node];
+      if (added != null) {
+        for (int slot = 0, slotCount = added.slotCount(); slot < slotCount; slot++) {
+          if (added.slotValue(slot) >= 0) {
+            newNeighbors[position++] = added.slotValue(slot);
+          }
+        }
+        Arrays.sort(newNeighbors, newOffsets[node], position);
+      }
+    }
+
+    stamp = lock.writeLock();
+    try {
+      offsets = newOffsets;
+      neighbors = newNeighbors;
+      frozenNodeCount = mergeNodeCount;
+      mergingAddedNeighbors = null;
+      mergingRemovedNeighbors = null;
+      version.incrementAndGet();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Establishes the contents of this (empty) graph as the submitted CSR structure (e.g., upon
+   * restoration of an {@link EngineSnapshot engine snapshot}), in which the friends of user
+   * {@code n} occupy the sorted range {@code [offsets[n], offsets[n+1])} of the neighbors array.
+   *
+   * @param offsets offsets into the neighbors array, one more than the count of users
+   * @param neighbors friends of all users
+   * @throws IllegalStateException if this graph is not empty
+   */
+  void restore(int[] offsets, int[] neighbors) {
+    mergeLock.lock();
+    long stamp = lock.writeLock();
+    try {
+      if (nodeCount.get() > 0) {
+        throw new IllegalStateException("Graph to be restored must be empty.");
+      }
+      int restoredNodeCount = offsets.length - 1;
+      if (restoredNodeCount > 0) {
+        ensureNodeLocked(restoredNodeCount - 1);
+      }
+      this.offsets = offsets;
+      this.neighbors = neighbors;
+      frozenNodeCount = restoredNodeCount;
+      version.incrementAndGet();
+    } finally {
+      lock.unlockWrite(stamp);
+      mergeLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the version of this graph, which is advanced by every modification.
+   *
+   * @return graph version
+   */
+  long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Returns a stamp of the structure lock for an optimistic read of this graph (or zero if the
+   * graph is currently being restructured), to be {@link #validate(long) validated} upon
+   * completion of the read. The stripe of each user whose connections are read must also be
+   * {@link #tryOptimisticReadStripe(int) stamped} before they are read.
+   *
+   * @return optimistic read stamp, or zero if the graph is being restructured
+   */
+  long tryOptimisticRead() {
+    return lock.tryOptimisticRead();
+  }
+
+  /**
+   * Returns true if the graph has not been restructured since issuance of the submitted stamp.
+   *
+   * @param stamp optimistic read stamp
+   * @return true if the read done under the stamp is consistent
+   */
+  boolean validate(long stamp) {
+    return lock.validate(stamp);
+  }
+
+  /**
+   * Returns the lock stripe of the submitted user.
+   *
+   * @param node user index
+   * @return index of the user's lock stripe
+   */
+  static int stripeOf(int node) {
+    return node & (LOCK_STRIPE_COUNT - 1);
+  }
+
+  /**
+   * Returns a stamp of the submitted lock stripe for an optimistic read of the connections of
+   * its users (or zero if one of them is currently being modified), to be
+   * {@link #validateStripe(int, long) validated} upon completion of the read.
+   *
+   * @param stripe index of lock stripe
+   * @return optimistic read stamp, or zero if the stripe is being modified
+   */
+  long tryOptimisticReadStripe(int stripe) {
+    return lockStripes[stripe].tryOptimisticRead();
+  }
+
+  /**
+   * Returns true if the users of the submitted lock stripe have not been modified since
+   * issuance of the submitted stamp.
+   *
+   * @param stripe index of lock stripe
+   * @param stamp optimistic read stamp
+   * @return true if the read done under the stamp is consistent
+   */
+  boolean validateStripe(int stripe, long stamp) {
+    return lockStripes[stripe].validate(stamp);
+  }
+
+  /**
+   * Acquires the read locks of the structure lock and of every stripe (in that order), placing
+   * their stamps in the submitted array.
+   *
+   * @param stamps array of {@value #STAMP_COUNT} stamps
+   */
+  void readLock(long[] stamps) {
+    stamps[0] = lock.readLock();
+    for (int i = 0; i < LOCK_STRIPE_COUNT; i++) {
+      stamps[i + 1] = lockStripes[i].readLock();
+    }
+  }
+
+  void unlockRead(long[] stamps) {
+    for (int i = LOCK_STRIPE_COUNT - 1; i >= 0; i--) {
+      lockStripes[i].unlockRead(stamps[i + 1]);
+    }
+    lock.unlockRead(stamps[0]);
+  }
+
+  // the following accessors provide direct iteration over the graph in network traversal
+
+  int[] frozenNeighbors() {
+    return neighbors;
+  }
+
+  int frozenStart(int node) {
+    return node < frozenNodeCount ? offsets[node] : 0;
+  }
+
+  int frozenEnd(int node) {
+    return node < frozenNodeCount ? offsets[node + 1] : 0;
+  }
+
+  /** Returns the merging overlay of connections added to the submitted user, or null if none. */
+  IntHashSet mergingAddedNeighbors(int node) {
+    IntHashSet[] merging = mergingAddedNeighbors;
+    return merging != null && node < merging.length ? merging[node] : null;
+  }
+
+  /** Returns the merging overlay of frozen connections removed from the user, or null if none. */
+  IntHashSet mergingRemovedNeighbors(int node) {
+    IntHashSet[] merging = mergingRemovedNeighbors;
+    return merging != null && node < merging.length ? merging[node] : null;
+  }
+
+  /** Returns the overlay of connections added to the submitted user, or null if none. */
+  IntHashSet addedNeighbors(int node) {
+    return node < nodeCount.get() ? addedNeighbors[node] : null;
+  }
+
+  /** Returns the overlay of frozen connections removed from the submitted user, or null if none. */
+  IntHashSet removedNeighbors(int node) {
+    return node < nodeCount.get() ? removedNeighbors[node] : null;
+  }
+
+  /**
+   * Returns true if the frozen CSR structure, as amended by the merging overlay (if any),
+   * contains the connection: that is, the structure against which the overlay is recorded.
+   */
+  private boolean baseContains(int from, int to) {
+    int start = frozenStart(from);
+    int end = frozenEnd(from);
+    if (start < end && Arrays.binarySearch(neighbors, start, end, to) >= 0) {
+      IntHashSet mergingRemoved = mergingRemovedNeighbors(from);
+      return mergingRemoved == null || !mergingRemoved.contains(to);
+    }
+    IntHashSet mergingAdded = mergingAddedNeighbors(from);
+    return mergingAdded != null && mergingAdded.contains(to);
+  }
+
+  private StampedLock getLockStripe(int node) {
+    return lockStripes[stripeOf(node)];
+  }
+
+  /**
+   * Acquires the read lock of the structure lock for a modification involving the submitted
+   * user, first growing the overlay (under the write lock) if it cannot hold the user.
+   */
+  private long lockForModification(int node) {
+    long stamp = lock.readLock();
+    while (node >= addedNeighbors.length) {
+      lock.unlockRead(stamp);
+      stamp = lock.writeLock();
+      try {
+        ensureNodeLocked(node);
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+      stamp = lock.readLock();
+    }
+    nodeCount.accumulateAndGet(node + 1, Math::max);
+    return stamp;
+  }
+
+  private void ensureNodeLocked(int node) {
+    if (node >= addedNeighbors.length) {
+      int length = Math.max(addedNeighbors.length * 2, node + 1);
+      addedNeighbors = Arrays.copyOf(addedNeighbors, length);
+      removedNeighbors = Arrays.copyOf(removedNeighbors, length);
+    }
+    nodeCount.accumulateAndGet(node + 1, Math::max);
+  }
+
+  private static StampedLock[] newLockStripes() {
+    StampedLock[] lockStripes = new StampedLock[LOCK_STRIPE_COUNT];
+    for (int i = 0; i < LOCK_STRIPE_COUNT; i++) {
+      lockStripes[i] = new StampedLock();
+    }
+    return lockStripes;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Arrays;
+
+/**
+ * An instance of the IdDictionary class interns String user-ids into dense int indexes
+ * (0, 1, 2, ...), assigned in order of first appearance, so that all other internal structures
+ * may be keyed on primitive ints. Lookup is done via an open-addressing hash table, requiring a
+ * single probe sequence for both retrieval and (on a miss) insertion.
+ * <br><br>
+ * An instance may be concurrently accessed by multiple threads. Lookups take no lock: an id is
+ * recorded before the slot referencing it, and both before the (volatile) size is incremented,
+ * while enlarged arrays are fully populated before being published, so that a lock-free lookup
+ * finds every id added before its start. A lookup that misses (or that encounters a slot whose id
+ * is not yet visible to it) is retried under the lock by which insertions are serialized.
+ *
+ * @author Daniel Vimont
+ */
+final class IdDictionary {
+
+  private static final int INITIAL_CAPACITY = 1024; // must be a power of two
+  private static final int EMPTY_SLOT = -1;
+  private static final int NOT_FOUND = -1;
+
+  private volatile String[] ids = new String[INITIAL_CAPACITY];
+  private volatile int[] slots = newSlots(INITIAL_CAPACITY * 2); // load factor <= 0.5
+  private volatile int size = 0;
+
+  /**
+   * Returns the index of the submitted id, first assigning the next available index to it
+   * if the id has not previously been submitted.
+   *
+   * @param id user-id
+   * @return dense index of the user-id
+   */
+  int getOrAdd(String id) {
+    int index = find(id, id.hashCode());
+    return index != NOT_FOUND ? index : add(id, id);
+  }
+
+  /**
+   * Returns the index of the submitted id (e.g., a {@link ByteRange view} of the bytes of an
+   * input line), first assigning the next available index to it if the id has not previously
+   * been submitted. A String is materialized only when a new id is added.
+   *
+   * @param id user-id
+   * @return dense index of the user-id
+   */
+  int getOrAdd(CharSequence id) {
+    if (id instanceof String) {
+      return getOrAdd((String)id);
+    }
+    int index = find(id, hashCode(id));
+    return index != NOT_FOUND ? index : add(id, null);
+  }
+
+  /**
+   * Returns the index of the submitted id, or -1 if the id has not been submitted.
+   *
+   * @param id user-id
+   * @return dense index of the user-id, or -1 if unknown
+   */
+  int get(String id) {
+    int index = find(id, id.hashCode());
+    if (index == NOT_FOUND) {
+      synchronized (this) {
+        index = find(id, id.hashCode());
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Returns the id to which the submitted index was assigned.
+   *
+   * @param index dense index of a user-id
+   * @return user-id
+   */
+  String getId(int index) {
+    if (index >= size) { // volatile read assures visibility of ids added before
+      throw new IndexOutOfBoundsException("No id assigned to index " + index);
+    }
+    return ids[index];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Probes for the submitted id without locking, returning its index, or -1 if it was not found.
+   */
+  private int find(CharSequence id, int hash) {
+    int[] currentSlots = slots;
+    String[] currentIds = ids; // read after slots, so at least as current as slots
+    int mask = currentSlots.length - 1;
+    int slot = mix(hash) & mask;
+    int index;
+    while ((index = currentSlots[slot]) != EMPTY_SLOT) {
+      String candidate = index < currentIds.length ? currentIds[index] : null;
+      if (candidate == null) {
+        return NOT_FOUND; // an insertion is in progress; retry under lock
+      } else if (candidate.contentEquals(id)) {
+        return index;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Adds the submitted id (unless another thread has added it in the meantime), returning its
+   * index.
+   *
+   * @param id user-id
+   * @param idString the id as a String, or null if it has yet to be materialized
+   */
+  private synchronized int add(CharSequence id, String idString) {
+    int[] currentSlots = slots;
+    String[] currentIds = ids;
+    int mask = currentSlots.length - 1;
+    int slot = mix(idString == null ? hashCode(id) : idString.hashCode()) & mask;
+    int index;
+    while ((index = currentSlots[slot]) != EMPTY_SLOT) {
+      if (currentIds[index].contentEquals(id)) {
+        return index;
+      }
+      slot = (slot + 1) & mask;
+    }
+    index = size;
+    if (index == currentIds.length) {
+      currentIds = Arrays.copyOf(currentIds, currentIds.length * 2);
+      ids = currentIds;
+    }
+    currentIds[index] = idString == null ? id.toString() : idString;
+    currentSlots[slot] = index;
+    size = index + 1;
+    if (size * 2 > currentSlots.length) {
+      rehash(currentSlots.length * 2);
+    }
+    return index;
+  }
+
+  private void rehash(int slotCount) {
+    int[] newSlots = newSlots(slotCount);
+    int mask = slotCount - 1;
+    String[] currentIds = ids;
+    for (int index = 0; index < size; index++) {
+      int slot = mix(currentIds[index].hashCode()) & mask;
+      while (newSlots[slot] != EMPTY_SLOT) {
+        slot = (slot + 1) & mask;
+      }
+      newSlots[slot] = index;
+    }
+    slots = newSlots;
+  }
+
+  private static int[] newSlots(int slotCount) {
+    int[] newSlots = new int[slotCount];
+    Arrays.fill(newSlots, EMPTY_SLOT);
+    return newSlots;
+  }
+
+  /**
+   * Returns the hash code of the submitted char sequence, as computed by {@link String#hashCode()}.
+   */
+  private static int hashCode(CharSequence chars) {
+    int hash = 0;
+    for (int i = 0; i < chars.length(); i++) {
+      hash = 31 * hash + chars.charAt(i);
+    }
+    return hash;
+  }
+
+  /**
+   * Spreads the bits of a String hash code, since the hash codes of short numeric ids are
+   * poorly distributed in their low-order bits.
+   */
+  static int mix(int hash) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+}
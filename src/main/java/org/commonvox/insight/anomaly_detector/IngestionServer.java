@@ -0,0 +1,684 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An instance of the IngestionServer class accepts newline-delimited JSON events over TCP (e.g.,
+ * from checkout frontends), applies them via the event-apply path of a
+ * {@link TransactionProcessor}, and writes each flagged purchase back to every connection which
+ * has subscribed to flagged purchases (by sending the line "subscribe"). Flagged purchases are
+ * written in the output format of the original specifications, each line followed by the
+ * platform line separator.
+ * <br><br>
+ * The server runs on two threads. A selector thread accepts connections, reads each readable
+ * connection's bytes into a direct buffer taken from a pool, and hands each buffer's complete
+ * lines (the bytes of an incomplete final line being carried over into the connection's next
+ * buffer) to the applier thread through a bounded {@link SpscRing}, so that events are applied
+ * in order of arrival at the server. The applier thread parses and applies the lines of each
+ * buffer directly from its bytes, broadcasts the flagged purchases found, and returns the buffer
+ * to the pool. The event log of the processor's engine (if any) is committed whenever the
+ * applier has caught up with its input, and before flagged purchases are released to
+ * subscribers, so that no subscriber receives a flagged purchase whose event a crash could
+ * lose.
+ * <br><br>
+ * When the ring is full, the selector thread stops reading from all connections until the
+ * applier has made room, so that the sockets' receive buffers fill and TCP flow control pushes
+ * back upon producers, rather than buffering without bound. Output is written by the selector
+ * thread as sockets become writable; a subscriber which falls more than
+ * {@value #MAX_OUTPUT_BACKLOG} bytes behind is disconnected, so that a stalled consumer cannot
+ * stall the detector. A line longer than the buffer size (or invalid) is rejected: the former
+ * by disconnection of its producer, the latter by being skipped and counted. (A line is invalid
+ * if it fails the parsing and validation that precede any change to the detector's state; any
+ * other failure in applying an event, which may have been partly applied, stops the server.)
+ * <br><br>
+ * Throughput is bounded by the serial event-apply path (the selector thread only moves bytes),
+ * so that on a given workload the server applies events at nearly the rate of serial processing
+ * of a file.
+ * <br><br>
+ * While the server is running, its TransactionProcessor is not to be otherwise used.
+ *
+ * @author Daniel Vimont
+ */
+public final class IngestionServer implements Closeable {
+
+  static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+  static final int DEFAULT_QUEUE_CAPACITY = 64;
+  static final int MAX_OUTPUT_BACKLOG = 1 << 22;
+  static final long CLOSE_TIMEOUT_MILLIS = 5000;
+  static final String SUBSCRIBE_COMMAND = "subscribe";
+  private static final byte[] SUBSCRIBE_BYTES
+          = SUBSCRIBE_COMMAND.getBytes(StandardCharsets.US_ASCII);
+  private static final int MIN_OUTPUT_CAPACITY = 1 << 13;
+  private static final Chunk END = new Chunk(null); // end of all input, upon close
+
+  private final TransactionProcessor transactionProcessor;
+  private final int bufferSize;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final SpscRing<Chunk> queue;      // selector thread to applier thread
+  private final SpscRing<Chunk> freeChunks; // applier thread to selector thread
+  private final Queue<Connection> outputReady = new ConcurrentLinkedQueue<>();
+  private final FlaggedPurchaseWriter flaggedPurchaseWriter;
+  private final Thread selectorThread;
+  private final Thread applierThread;
+  // state of the selector thread
+  private final List<Connection> connections = new ArrayList<>();
+  private final ArrayDeque<Chunk> pending = new ArrayDeque<>(); // chunks awaiting room in queue
+  // state of the applier thread
+  private final List<Connection> subscribers = new ArrayList<>();
+
+  private volatile boolean started = false;
+  private volatile boolean closing = false;
+  private volatile boolean readsPaused = false;
+  private volatile boolean applierDone = false;
+  private volatile Throwable failure;
+  private volatile int connectionCount = 0;
+  private volatile int subscriberCount = 0;
+  private volatile long pauseCount = 0;
+  private volatile long rejectedLineCount = 0;
+
+  /** A pooled buffer of bytes received from a connection. */
+  private static final class Chunk {
+    final ByteBuffer buffer; // null for a marker of the end of input
+    Connection connection;
+
+    Chunk(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /** A connection, whose output is guarded by the connection's monitor. */
+  private static final class Connection {
+    final SocketChannel channel;
+    SelectionKey key;
+    Chunk input;              // chunk being filled (selector thread)
+    boolean inputEnded;       // (selector thread)
+    boolean subscribed;       // (applier thread)
+    ByteBuffer output;        // bytes awaiting writing, in write mode
+    boolean outputRequested;  // true if queued for servicing by the selector thread
+    boolean closeRequested;
+    volatile boolean closed;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * The recipient of flagged purchases, which copies them to each subscriber's output once the
+   * events from which they derive are committed to the event log (if any).
+   */
+  private final class Broadcast implements WritableByteChannel {
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+      int byteCount = source.remaining();
+      if (!subscribers.isEmpty()) {
+        transactionProcessor.commitEventLog();
+      }
+      for (Iterator<Connection> iterator = subscribers.iterator(); iterator.hasNext(); ) {
+        if (!send(iterator.next(), source)) {
+          iterator.remove();
+          subscriberCount = subscribers.size();
+        }
+      }
+      source.position(source.limit());
+      return byteCount;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Binds a new server to the submitted address, with buffers and queue of the default sizes.
+   * The server accepts no connections until {@link #start() started}.
+   *
+   * @param transactionProcessor processor whose engine (already initialized) is to apply the
+   * received events
+   * @param address address to be bound (port zero for any free port)
+   * @throws IOException if the server cannot be bound
+   */
+  public IngestionServer(TransactionProcessor transactionProcessor, InetSocketAddress address)
+          throws IOException {
+    this(transactionProcessor, address, DEFAULT_BUFFER_SIZE, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Binds a new server to the submitted address, with buffers and queue of the submitted sizes.
+   *
+   * @param transactionProcessor processor whose engine (already initialized) is to apply the
+   * received events
+   * @param address address to be bound (port zero for any free port)
+   * @param bufferSize size, in bytes, of each pooled buffer (and maximum length of a line)
+   * @param queueCapacity count of buffers which may be queued for application before reads are
+   * paused
+   * @throws IOException if the server cannot be bound
+   */
+  IngestionServer(TransactionProcessor transactionProcessor, InetSocketAddress address,
+          int bufferSize, int queueCapacity) throws IOException {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("Buffer size must be positive.");
+    }
+    this.transactionProcessor = transactionProcessor;
+    this.bufferSize = bufferSize;
+    queue = new SpscRing<>("received", queueCapacity);
+    freeChunks = new SpscRing<>("free", queueCapacity + 1);
+    flaggedPurchaseWriter = new FlaggedPurchaseWriter(new Broadcast(), true);
+    selector = Selector.open();
+    try {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(address);
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException | RuntimeException e) {
+      selector.close();
+      throw e;
+    }
+    selectorThread = new Thread(this::select, "ingestion-selector");
+    applierThread = new Thread(this::apply, "ingestion-applier");
+  }
+
+  /**
+   * Starts accepting connections and applying the events received.
+   *
+   * @return this server
+   */
+  public IngestionServer start() {
+    if (started) {
+      throw new IllegalStateException("Server already started.");
+    }
+    started = true;
+    applierThread.start();
+    selectorThread.start();
+    return this;
+  }
+
+  /**
+   * Returns the address to which this server is bound.
+   *
+   * @return bound address
+   * @throws IOException if the address cannot be obtained
+   */
+  public InetSocketAddress getLocalAddress() throws IOException {
+    return (InetSocketAddress)serverChannel.getLocalAddress();
+  }
+
+  /** @return count of open connections */
+  public int getConnectionCount() {
+    return connectionCount;
+  }
+
+  /** @return count of connections subscribed to flagged purchases */
+  public int getSubscriberCount() {
+    return subscriberCount;
+  }
+
+  /** @return count of times that reads were paused because the queue was full */
+  public long getPauseCount() {
+    return pauseCount;
+  }
+
+  /** @return count of lines skipped because they were invalid */
+  public long getRejectedLineCount() {
+    return rejectedLineCount;
+  }
+
+  /**
+   * Waits until this server has stopped, either upon being {@link #close() closed} or upon
+   * failure.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void awaitTermination() throws InterruptedException {
+    selectorThread.join();
+    applierThread.join();
+  }
+
+  /**
+   * Stops this server: no further connections are accepted nor bytes read, the events already
+   * received are applied, and the flagged purchases found are written to subscribers (for up to
+   * {@value #CLOSE_TIMEOUT_MILLIS} milliseconds), after which all connections are closed.
+   *
+   * @throws IOException if the server failed, or if problems are encountered in closing
+   */
+  @Override
+  public void close() throws IOException {
+    closing = true;
+    if (started) {
+      selector.wakeup();
+      boolean interrupted = false;
+      while (selectorThread.isAlive() || applierThread.isAlive()) {
+        try {
+          awaitTermination();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    } else {
+      try {
+        serverChannel.close();
+      } finally {
+        selector.close();
+      }
+    }
+    Throwable cause = failure;
+    if (cause instanceof IOException) {
+      throw (IOException)cause;
+    } else if (cause != null) {
+      throw new IOException("Ingestion server failed.", cause);
+    }
+  }
+
+  private void fail(Throwable throwable) {
+    if (failure == null) {
+      failure = throwable;
+    }
+    closing = true;
+    queue.cancel();
+    selector.wakeup();
+  }
+
+  /** The work of the selector thread. */
+  private void select() {
+    try {
+      while (!closing) {
+        if (!pending.isEmpty()) {
+          offerPending();
+        }
+        serviceOutput();
+        selector.select();
+        handleSelectedKeys();
+      }
+      serverChannel.close();
+      for (Connection connection : connections) {
+        connection.inputEnded = true;
+        setInterest(connection, SelectionKey.OP_READ, false);
+      }
+      readsPaused = false;
+      for (Chunk chunk : pending) {
+        queue.put(chunk);
+      }
+      pending.clear();
+      queue.put(END);
+      long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+      while (System.currentTimeMillis() < deadline && !(applierDone && outputWritten())) {
+        serviceOutput();
+        selector.select(10);
+        handleSelectedKeys();
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      fail(e);
+    } finally {
+      for (Connection connection : new ArrayList<>(connections)) {
+        close(connection);
+      }
+      try {
+        serverChannel.close();
+        selector.close();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+
+  private void handleSelectedKeys() throws IOException {
+    for (Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            iterator.hasNext(); ) {
+      SelectionKey key = iterator.next();
+      iterator.remove();
+      if (!key.isValid()) {
+        continue;
+      }
+      if (key.isAcceptable()) {
+        accept();
+        continue;
+      }
+      Connection connection = (Connection)key.attachment();
+      if (key.isReadable()) {
+        read(connection);
+      }
+      if (key.isValid() && key.isWritable()) {
+        write(connection);
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    for (SocketChannel channel = serverChannel.accept(); channel != null;
+            channel = serverChannel.accept()) {
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      Connection connection = new Connection(channel);
+      connection.key = channel.register(selector, readsPaused ? 0 : SelectionKey.OP_READ,
+              connection);
+      connections.add(connection);
+      connectionCount = connections.size();
+    }
+  }
+
+  private void read(Connection connection) {
+    if (readsPaused) {
+      return;
+    }
+    if (connection.input == null) {
+      connection.input = takeChunk(connection);
+    }
+    ByteBuffer buffer = connection.input.buffer;
+    int byteCount;
+    try {
+      byteCount = connection.channel.read(buffer);
+    } catch (IOException e) {
+      close(connection);
+      return;
+    }
+    if (byteCount < 0) {
+      connection.inputEnded = true;
+      setInterest(connection, SelectionKey.OP_READ, false);
+      if (buffer.position() > 0) { // final line lacks a terminator
+        buffer.flip();
+        enqueue(connection.input);
+      }
+      connection.input = null;
+      Chunk endOfInput = new Chunk(null);
+      endOfInput.connection = connection;
+      enqueue(endOfInput);
+      return;
+    }
+    int end = buffer.position();
+    while (end > 0 && buffer.get(end - 1) != '\n' && buffer.get(end - 1) != '\r') {
+      end--;
+    }
+    if (end == 0) {
+      if (!buffer.hasRemaining()) { // line exceeds buffer
+        close(connection);
+      }
+      return;
+    }
+    Chunk next = takeChunk(connection);
+    for (int i = end; i < buffer.position(); i++) { // carry over the incomplete line
+      next.buffer.put(buffer.get(i));
+    }
+    buffer.limit(end).position(0);
+    enqueue(connection.input);
+    connection.input = next;
+  }
+
+  private Chunk takeChunk(Connection connection) {
+    Chunk chunk = freeChunks.poll();
+    if (chunk == null) {
+      chunk = new Chunk(ByteBuffer.allocateDirect(bufferSize));
+    }
+    chunk.connection = connection;
+    return chunk;
+  }
+
+  private void enqueue(Chunk chunk) {
+    if (readsPaused || !queue.offer(chunk)) {
+      pending.add(chunk);
+      if (!readsPaused) {
+        readsPaused = true; // the applier wakes the selector upon making room
+        pauseCount++;
+        for (Connection connection : connections) {
+          setInterest(connection, SelectionKey.OP_READ, false);
+        }
+      }
+    }
+  }
+
+  private void offerPending() {
+    while (!pending.isEmpty() && queue.offer(pending.peek())) {
+      pending.poll();
+    }
+    if (pending.isEmpty()) {
+      readsPaused = false;
+      for (Connection connection : connections) {
+        if (!connection.inputEnded) {
+          setInterest(connection, SelectionKey.OP_READ, true);
+        }
+      }
+    }
+  }
+
+  private static void setInterest(Connection connection, int operation, boolean interested) {
+    SelectionKey key = connection.key;
+    if (key.isValid()) {
+      key.interestOps(interested ? key.interestOps() | operation
+              : key.interestOps() & ~operation);
+    }
+  }
+
+  /** Starts writing (or closes) the connections queued by the applier thread. */
+  private void serviceOutput() {
+    for (Connection connection = outputReady.poll(); connection != null;
+            connection = outputReady.poll()) {
+      synchronized (connection) {
+        if (connection.closeRequested) {
+          close(connection);
+        } else if (!connection.closed) {
+          setInterest(connection, SelectionKey.OP_WRITE, true);
+        }
+      }
+    }
+  }
+
+  private void write(Connection connection) {
+    synchronized (connection) {
+      ByteBuffer output = connection.output;
+      if (connection.closeRequested || output == null) {
+        close(connection);
+        return;
+      }
+      output.flip();
+      try {
+        connection.channel.write(output);
+      } catch (IOException e) {
+        close(connection);
+        return;
+      }
+      output.compact();
+      if (output.position() == 0) {
+        setInterest(connection, SelectionKey.OP_WRITE, false);
+        connection.outputRequested = false;
+      }
+    }
+  }
+
+  private boolean outputWritten() {
+    for (Connection connection : connections) {
+      synchronized (connection) {
+        if (connection.output != null && connection.output.position() > 0) {
+          return false;
+        }
+      }
+    }
+    return outputReady.isEmpty();
+  }
+
+  private void close(Connection connection) {
+    connection.closed = true;
+    connection.key.cancel();
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      // nothing further to be done with the connection
+    }
+    connections.remove(connection);
+    connectionCount = connections.size();
+  }
+
+  /** The work of the applier thread. */
+  private void apply() {
+    try {
+      while (true) {
+        Chunk chunk = queue.poll();
+        if (chunk == null) { // caught up with input
+          transactionProcessor.commitEventLog();
+          chunk = queue.take();
+          if (chunk == null) { // cancelled
+            break;
+          }
+        }
+        if (readsPaused) {
+          selector.wakeup();
+        }
+        if (chunk == END) {
+          break;
+        }
+        if (chunk.buffer == null) {
+          endInput(chunk.connection);
+          continue;
+        }
+        applyChunk(chunk);
+        flaggedPurchaseWriter.flush();
+        chunk.buffer.clear();
+        chunk.connection = null;
+        freeChunks.offer(chunk);
+      }
+      flaggedPurchaseWriter.flush();
+      transactionProcessor.commitEventLog();
+    } catch (IOException | RuntimeException | Error e) {
+      fail(e);
+    } finally {
+      applierDone = true;
+      selector.wakeup();
+    }
+  }
+
+  private void applyChunk(Chunk chunk) throws IOException {
+    ByteBuffer buffer = chunk.buffer;
+    int limit = buffer.limit();
+    int lineStart = 0;
+    for (int i = 0; i <= limit; i++) {
+      if (i == limit || buffer.get(i) == '\n' || buffer.get(i) == '\r') {
+        if (i > lineStart) {
+          applyLine(chunk.connection, buffer, lineStart, i);
+        }
+        lineStart = i + 1;
+      }
+    }
+  }
+
+  private void applyLine(Connection connection, ByteBuffer buffer, int start, int end)
+          throws IOException {
+    if (isSubscribe(buffer, start, end)) {
+      if (!connection.subscribed && !connection.closed) {
+        connection.subscribed = true;
+        subscribers.add(connection);
+        subscriberCount = subscribers.size();
+      }
+      return;
+    }
+    try {
+      transactionProcessor.processLine(buffer, start, end, flaggedPurchaseWriter);
+    } catch (ParseException e) { // rejected before any change to the engine's state
+      rejectedLineCount++;
+    }
+  }
+
+  private static boolean isSubscribe(ByteBuffer buffer, int start, int end) {
+    if (end - start != SUBSCRIBE_BYTES.length) {
+      return false;
+    }
+    for (int i = 0; i < SUBSCRIBE_BYTES.length; i++) {
+      if (buffer.get(start + i) != SUBSCRIBE_BYTES[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Closes a connection whose input has ended, unless it awaits flagged purchases. */
+  private void endInput(Connection connection) {
+    if (!connection.subscribed) {
+      synchronized (connection) {
+        connection.closeRequested = true;
+        requestService(connection);
+      }
+    }
+  }
+
+  /**
+   * Appends the submitted bytes to the output of the submitted subscriber, returning false if
+   * the subscriber is closed (or is to be closed, its output backlog having been exceeded).
+   */
+  private boolean send(Connection subscriber, ByteBuffer source) {
+    synchronized (subscriber) {
+      if (subscriber.closed || subscriber.closeRequested) {
+        return false;
+      }
+      int byteCount = source.remaining();
+      ByteBuffer output = subscriber.output;
+      int backlog = output == null ? 0 : output.position();
+      if (backlog + byteCount > MAX_OUTPUT_BACKLOG) {
+        subscriber.output = null;
+        subscriber.closeRequested = true;
+        requestService(subscriber);
+        return false;
+      }
+      if (output == null || output.remaining() < byteCount) {
+        int capacity = Math.max(MIN_OUTPUT_CAPACITY, backlog + byteCount);
+        capacity = Math.min(Math.max(capacity, backlog * 2), MAX_OUTPUT_BACKLOG);
+        ByteBuffer enlarged = ByteBuffer.allocate(capacity);
+        if (output != null) {
+          output.flip();
+          enlarged.put(output);
+        }
+        subscriber.output = output = enlarged;
+      }
+      output.put(source.duplicate());
+      requestService(subscriber);
+      return true;
+    }
+  }
+
+  /** Queues the submitted connection for servicing by the selector thread (holding its lock). */
+  private void requestService(Connection connection) {
+    if (!connection.outputRequested || connection.closeRequested) {
+      connection.outputRequested = true;
+      outputReady.add(connection);
+      selector.wakeup();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Arrays;
+
+/**
+ * An instance of the IntHashSet class is a set of non-negative ints (e.g., user indexes),
+ * maintained in an open-addressing hash table with linear probing, so that no object is
+ * allocated per element. Elements may be traversed directly via {@link #slotCount()} and
+ * {@link #slotValue(int)}, in which empty slots are denoted by a negative value.
+ *
+ * @author Daniel Vimont
+ */
+final class IntHashSet {
+
+  private static final int INITIAL_SLOT_COUNT = 8; // must be a power of two
+  private static final int EMPTY_SLOT = -1;
+
+  private int[] slots = newSlots(INITIAL_SLOT_COUNT);
+  private int size = 0;
+
+  /**
+   * Adds the submitted value to this set.
+   *
+   * @param value non-negative value
+   * @return true if the value was not already present in this set
+   */
+  boolean add(int value) {
+    int mask = slots.length - 1;
+    int slot = IdDictionary.mix(value) & mask;
+    int slotValue;
+    while ((slotValue = slots[slot]) != EMPTY_SLOT) {
+      if (slotValue == value) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = value;
+    if (++size * 4 > slots.length * 3) {
+      rehash(slots.length * 2);
+    }
+    return true;
+  }
+
+  boolean contains(int value) {
+    int mask = slots.length - 1;
+    int slot = IdDictionary.mix(value) & mask;
+    int slotValue;
+    while ((slotValue = slots[slot]) != EMPTY_SLOT) {
+      if (slotValue == value) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Removes the submitted value from this set, shifting back any subsequent elements of its
+   * probe sequence so that no "tombstone" markers are needed.
+   *
+   * @param value non-negative value
+   * @return true if the value was present in this set
+   */
+  boolean remove(int value) {
+    int mask = slots.length - 1;
+    int slot = IdDictionary.mix(value) & mask;
+    int slotValue;
+    while ((slotValue = slots[slot]) != value) {
+      if (slotValue == EMPTY_SLOT) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    int gap = slot;
+    while (true) {
+      slot = (slot + 1) & mask;
+      slotValue = slots[slot];
+      if (slotValue == EMPTY_SLOT) {
+        break;
+      }
+      int home = IdDictionary.mix(slotValue) & mask;
+      // move the element into the gap unless its home slot lies cyclically within (gap, slot]
+      if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+        slots[gap] = slotValue;
+        gap = slot;
+      }
+    }
+    slots[gap] = EMPTY_SLOT;
+    size--;
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    Arrays.fill(slots, EMPTY_SLOT);
+    size = 0;
+  }
+
+  int slotCount() {
+    return slots.length;
+  }
+
+  /**
+   * Returns the value held in the submitted slot, or a negative value if the slot is empty.
+   *
+   * @param slot slot position, from zero to {@link #slotCount()} - 1
+   * @return value held in slot, or a negative value if the slot is empty
+   */
+  int slotValue(int slot) {
+    return slots[slot];
+  }
+
+  /**
+   * Returns the elements of this set in ascending order.
+   *
+   * @return elements of this set in ascending order
+   */
+  int[] toSortedArray() {
+    int[] values = new int[size];
+    int i = 0;
+    for (int slotValue : slots) {
+      if (slotValue != EMPTY_SLOT) {
+        values[i++] = slotValue;
+      }
+    }
+    Arrays.sort(values);
+    return values;
+  }
+
+  private void rehash(int slotCount) {
+    int[] oldSlots = slots;
+    slots = newSlots(slotCount);
+    int mask = slotCount - 1;
+    for (int value : oldSlots) {
+      if (value != EMPTY_SLOT) {
+        int slot = IdDictionary.mix(value) & mask;
+        while (slots[slot] != EMPTY_SLOT) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = value;
+      }
+    }
+  }
+
+  private static int[] newSlots(int slotCount) {
+    int[] newSlots = new int[slotCount];
+    Arrays.fill(newSlots, EMPTY_SLOT);
+    return newSlots;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Arrays;
+
+/**
+ * An instance of the IntLongHashMap class maps non-negative int keys (e.g., user indexes) to
+ * long values (e.g., {@link EventTime event times}), maintained in parallel primitive arrays of
+ * an open-addressing hash table with linear probing, so that no entry object (and no boxed key
+ * or value) is allocated per mapping. Mappings may be added or replaced, but not removed.
+ *
+ * @author Daniel Vimont
+ */
+final class IntLongHashMap {
+
+  private static final int INITIAL_SLOT_COUNT = 8; // must be a power of two
+  private static final int EMPTY_SLOT = -1;
+
+  private int[] keys = newKeys(INITIAL_SLOT_COUNT);
+  private long[] values = new long[INITIAL_SLOT_COUNT];
+  private int size = 0;
+
+  /**
+   * Returns the value to which the submitted key is mapped, or the submitted default value if
+   * the key is not mapped.
+   *
+   * @param key non-negative key
+   * @param defaultValue value to be returned if the key is not mapped
+   * @return mapped value, or defaultValue
+   */
+  long get(int key, long defaultValue) {
+    int mask = keys.length - 1;
+    int slot = IdDictionary.mix(key) & mask;
+    int slotKey;
+    while ((slotKey = keys[slot]) != EMPTY_SLOT) {
+      if (slotKey == key) {
+        return values[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Maps the submitted key to the submitted value, replacing any existing mapping of the key.
+   *
+   * @param key non-negative key
+   * @param value value to be mapped
+   */
+  void put(int key, long value) {
+    int mask = keys.length - 1;
+    int slot = IdDictionary.mix(key) & mask;
+    int slotKey;
+    while ((slotKey = keys[slot]) != EMPTY_SLOT) {
+      if (slotKey == key) {
+        values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size * 4 > keys.length * 3) {
+      rehash(keys.length * 2);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  // the following accessors provide direct iteration over the mappings (e.g., in snapshots)
+
+  int slotCount() {
+    return keys.length;
+  }
+
+  /** Returns the key held in the submitted slot, or -1 if the slot is empty. */
+  int slotKey(int slot) {
+    return keys[slot];
+  }
+
+  long slotValue(int slot) {
+    return values[slot];
+  }
+
+  private void rehash(int slotCount) {
+    int[] oldKeys = keys;
+    long[] oldValues = values;
+    keys = newKeys(slotCount);
+    values = new long[slotCount];
+    int mask = slotCount - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY_SLOT) {
+        int slot = IdDictionary.mix(oldKeys[i]) & mask;
+        while (keys[slot] != EMPTY_SLOT) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private static int[] newKeys(int slotCount) {
+    int[] newKeys = new int[slotCount];
+    Arrays.fill(newKeys, EMPTY_SLOT);
+    return newKeys;
+  }
+}
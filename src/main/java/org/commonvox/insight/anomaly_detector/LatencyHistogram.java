@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An instance of the LatencyHistogram class records a distribution of non-negative long values
+ * (e.g., latencies in nanoseconds, or network sizes) in log-bucketed counts, in the manner of an
+ * HDR histogram: values below {@value #SUB_BUCKET_COUNT} * 2 are counted exactly, and larger
+ * values in buckets whose widths double with each power of two, so that every bucket spans
+ * less than 1/{@value #SUB_BUCKET_COUNT} of the values within it. Recording is a handful of
+ * array writes, without allocation or locking.
+ * <br><br>
+ * An instance is to be recorded into by a single thread, but may be concurrently read (e.g.,
+ * {@link #add(LatencyHistogram) added} into another histogram) by other threads, which see
+ * counts that are at worst slightly stale.
+ *
+ * @author Daniel Vimont
+ */
+final class LatencyHistogram {
+
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+  private static final int SUM = BUCKET_COUNT;
+  private static final int MAX = BUCKET_COUNT + 1;
+
+  // bucket counts, followed by the sum and the maximum of recorded values
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT + 2);
+
+  /**
+   * Records the submitted value (negative values being recorded as zero).
+   *
+   * @param value value to be recorded
+   */
+  void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    int bucket = bucketOf(value);
+    counts.lazySet(bucket, counts.get(bucket) + 1);
+    counts.lazySet(SUM, counts.get(SUM) + value);
+    if (value > counts.get(MAX)) {
+      counts.lazySet(MAX, value);
+    }
+  }
+
+  /**
+   * Adds the counts of the submitted histogram into this histogram, which must not be
+   * concurrently recorded into.
+   *
+   * @param other histogram to be added
+   */
+  void add(LatencyHistogram other) {
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      long count = other.counts.get(bucket);
+      if (count != 0) {
+        counts.lazySet(bucket, counts.get(bucket) + count);
+      }
+    }
+    counts.lazySet(SUM, counts.get(SUM) + other.counts.get(SUM));
+    counts.lazySet(MAX, Math.max(counts.get(MAX), other.counts.get(MAX)));
+  }
+
+  long getCount() {
+    long count = 0;
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      count += counts.get(bucket);
+    }
+    return count;
+  }
+
+  long getSum() {
+    return counts.get(SUM);
+  }
+
+  long getMax() {
+    return counts.get(MAX);
+  }
+
+  double getMean() {
+    long count = getCount();
+    return count == 0 ? 0 : (double)getSum() / count;
+  }
+
+  /**
+   * Returns the value at the submitted quantile: the highest value of the bucket in which the
+   * value of that rank falls (but no higher than the maximum recorded value), or zero if no
+   * values have been recorded.
+   *
+   * @param quantile quantile, from 0 to 1
+   * @return value at quantile
+   */
+  long getValueAtQuantile(double quantile) {
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long)Math.ceil(quantile * count));
+    long cumulativeCount = 0;
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      cumulativeCount += counts.get(bucket);
+      if (cumulativeCount >= rank) {
+        return Math.min(highestValue(bucket), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  static int bucketOf(long value) {
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    if (shift <= 0) {
+      return (int)value;
+    }
+    return (shift << SUB_BUCKET_BITS) + (int)(value >>> shift);
+  }
+
+  static long lowestValue(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT * 2) {
+      return bucket;
+    }
+    int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    return (long)(bucket - (shift << SUB_BUCKET_BITS)) << shift;
+  }
+
+  static long highestValue(int bucket) {
+    return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An instance of the MappedLineReader class reads the lines of a file by memory-mapping the
+ * file in successive windows (via {@link FileChannel#map}) and finding line boundaries on the
+ * raw bytes, so that each line may be handed to a parser as a range of a buffer, with no
+ * decoding of bytes into Strings. Only the current window is referenced by the reader, so
+ * heap usage is independent of file size.
+ * <br><br>
+ * Lines are terminated by a line feed, a carriage return, or a carriage return followed by a
+ * line feed (as with {@link java.io.BufferedReader#readLine()}). A line which extends beyond the
+ * end of the current window is found in the next window, which is mapped to begin at the start
+ * of the line (and is enlarged, if the line is longer than a window). A reader may be confined
+ * to a region of a file, so that separate regions may be read concurrently.
+ * <br><br>
+ * Typical usage:
+ * <pre>
+ * try (MappedLineReader reader = new MappedLineReader(path)) {
+ *   while (reader.nextLine()) {
+ *     process(reader.getBuffer(), reader.getLineStart(), reader.getLineEnd());
+ *   }
+ * }</pre>
+ *
+ * @author Daniel Vimont
+ */
+final class MappedLineReader implements Closeable {
+
+  static final int DEFAULT_WINDOW_SIZE = 1 << 26; // 64 MiB
+
+  private final FileChannel channel;
+  private final boolean ownsChannel;
+  private final long regionEnd;    // offset within the file following the last byte to be read
+  private int windowSize;
+  private MappedByteBuffer window;
+  private long windowOffset = 0; // offset within the file of the current window
+  private int position = 0;      // position within the current window
+  private int lineStart;
+  private int lineEnd;
+
+  /**
+   * Opens the file at the submitted path for reading, with windows of the default size.
+   *
+   * @param path path of file to be read
+   * @throws IOException if file access problems encountered
+   */
+  MappedLineReader(Path path) throws IOException {
+    this(path, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Opens the file at the submitted path for reading, with windows of the submitted size.
+   *
+   * @param path path of file to be read
+   * @param windowSize size, in bytes, of each mapped window of the file
+   * @throws IOException if file access problems encountered
+   */
+  MappedLineReader(Path path, int windowSize) throws IOException {
+    this(FileChannel.open(path, StandardOpenOption.READ), true, 0, -1, windowSize);
+  }
+
+  /**
+   * Prepares for reading of the lines in the submitted region of the file open in the submitted
+   * channel; the region is to begin at the start of a line. The channel is not closed when this
+   * reader is closed.
+   *
+   * @param channel channel of file to be read
+   * @param regionStart offset within the file of the first byte to be read
+   * @param regionEnd offset within the file following the last byte to be read
+   * @param windowSize size, in bytes, of each mapped window of the file
+   * @throws IOException if file access problems encountered
+   */
+  MappedLineReader(FileChannel channel, long regionStart, long regionEnd, int windowSize)
+          throws IOException {
+    this(channel, false, regionStart, regionEnd, windowSize);
+  }
+
+  private MappedLineReader(FileChannel channel, boolean ownsChannel, long regionStart,
+          long regionEnd, int windowSize) throws IOException {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("Window size must be positive.");
+    }
+    this.channel = channel;
+    this.ownsChannel = ownsChannel;
+    this.regionEnd = regionEnd < 0 ? channel.size() : regionEnd;
+    this.windowSize = windowSize;
+    map(regionStart);
+  }
+
+  /**
+   * Advances to the next line of the file.
+   *
+   * @return false if the end of the file has been reached; otherwise true
+   * @throws IOException if file access problems encountered
+   */
+  boolean nextLine() throws IOException {
+    while (true) {
+      int limit = window.limit();
+      for (int i = position; i < limit; i++) {
+        byte b = window.get(i);
+        if (b == '\n' || b == '\r') {
+          if (b == '\r' && i + 1 == limit && !atEndOfFile()) {
+            break; // a line feed may follow, in the next window
+          }
+          lineStart = position;
+          lineEnd = i;
+          position = (b == '\r' && i + 1 < limit && window.get(i + 1) == '\n') ? i + 2 : i + 1;
+          return true;
+        }
+      }
+      if (atEndOfFile()) {
+        if (position == limit) {
+          return false;
+        }
+        lineStart = position; // final line lacks a terminator
+        lineEnd = limit;
+        position = limit;
+        return true;
+      }
+      if (position == 0) {
+        windowSize = (int)Math.min((long)windowSize * 2, Integer.MAX_VALUE); // line exceeds window
+      }
+      map(windowOffset + position);
+    }
+  }
+
+  /**
+   * Returns the buffer holding the current line; the buffer is valid only until the next
+   * invocation of {@link #nextLine()}.
+   *
+   * @return buffer holding the current line
+   */
+  MappedByteBuffer getBuffer() {
+    return window;
+  }
+
+  /**
+   * Returns the position, within {@link #getBuffer() the buffer}, of the first byte of the
+   * current line.
+   *
+   * @return position of first byte of line
+   */
+  int getLineStart() {
+    return lineStart;
+  }
+
+  /**
+   * Returns the position, within {@link #getBuffer() the buffer}, following the last byte of the
+   * current line (excluding its terminator).
+   *
+   * @return position following last byte of line
+   */
+  int getLineEnd() {
+    return lineEnd;
+  }
+
+  private boolean atEndOfFile() {
+    return windowOffset + window.limit() == regionEnd;
+  }
+
+  private void map(long offset) throws IOException {
+    windowOffset = offset;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+            Math.min(windowSize, regionEnd - offset));
+    position = 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    if (ownsChannel) {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Arrays;
+
+/**
+ * An instance of the NetworkCache class retains the most recently assembled networks of Users,
+ * so that a network need not be reassembled for every purchase when no befriend or unfriend
+ * transaction has affected it in the meantime. The capacity of the cache is expressed as the
+ * total count of connections held across all cached networks; once that capacity is exceeded,
+ * the least-recently-used networks are evicted.
+ * <br><br>
+ * Networks are cached as arrays of user indexes, in a table indexed by user index; recency of
+ * use is tracked in a doubly-linked list threaded through parallel int arrays, so that no
+ * object is allocated per cached network beyond the network array itself.
+ * <br><br>
+ * An instance may be concurrently accessed by multiple threads, all of its operations being
+ * synchronized on the instance.
+ *
+ * @author Daniel Vimont
+ */
+final class NetworkCache {
+
+  static final long DEFAULT_CAPACITY = 1L << 24; // total count of cached connections
+  private static final int NONE = -1;
+
+  private int[][] networks = new int[1024][];
+  private int[] previous = new int[1024]; // toward least-recently-used
+  private int[] next = new int[1024];     // toward most-recently-used
+  private int eldest = NONE;
+  private int youngest = NONE;
+  private long capacity;
+  private long cachedConnectionCount = 0;
+  private long hitCount = 0;
+  private long missCount = 0;
+
+  NetworkCache(long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Returns the cached network of the User with the submitted index, or null if no network is
+   * cached for it.
+   *
+   * @param userIndex index of User whose network is requested
+   * @return cached network (as an array of user indexes), or null if none is cached
+   */
+  synchronized int[] get(int userIndex) {
+    int[] network = userIndex < networks.length ? networks[userIndex] : null;
+    if (network == null) {
+      missCount++;
+    } else {
+      hitCount++;
+      unlink(userIndex);
+      linkAsYoungest(userIndex);
+    }
+    return network;
+  }
+
+  /**
+   * Returns the cached network of the User with the submitted index, or null if no network is
+   * cached for it, without updating recency of use or hit/miss counts; the cache is thus not
+   * modified, so this method may be invoked concurrently by multiple threads while no thread is
+   * modifying the cache.
+   *
+   * @param userIndex index of User whose network is requested
+   * @return cached network (as an array of user indexes), or null if none is cached
+   */
+  synchronized int[] peek(int userIndex) {
+    return userIndex < networks.length ? networks[userIndex] : null;
+  }
+
+  /**
+   * Caches the submitted network of the User with the submitted index, evicting
+   * least-recently-used networks as needed to stay within capacity. A network which by itself
+   * exceeds capacity is not cached.
+   *
+   * @param userIndex index of User whose network is to be cached
+   * @param network network of the User (as an array of user indexes)
+   */
+  synchronized void put(int userIndex, int[] network) {
+    if (capacity == 0 || network.length > capacity) {
+      return;
+    }
+    invalidate(userIndex);
+    if (userIndex >= networks.length) {
+      int length = Math.max(networks.length * 2, userIndex + 1);
+      networks = Arrays.copyOf(networks, length);
+      previous = Arrays.copyOf(previous, length);
+      next = Arrays.copyOf(next, length);
+    }
+    networks[userIndex] = network;
+    linkAsYoungest(userIndex);
+    cachedConnectionCount += network.length;
+    while (cachedConnectionCount > capacity) {
+      invalidate(eldest);
+    }
+  }
+
+  /**
+   * Removes the cached network (if any) of the User with the submitted index.
+   *
+   * @param userIndex index of User whose cached network is no longer valid
+   */
+  synchronized void invalidate(int userIndex) {
+    invalidateUnsynchronized(userIndex);
+  }
+
+  /**
+   * Invalidates the cached networks of the users whose indexes occupy the first {@code count}
+   * elements of the submitted array.
+   *
+   * @param userIndexes indexes of users whose networks are to be invalidated
+   * @param count count of indexes to be processed
+   */
+  synchronized void invalidate(int[] userIndexes, int count) {
+    for (int i = 0; i < count; i++) {
+      invalidateUnsynchronized(userIndexes[i]);
+    }
+  }
+
+  private void invalidateUnsynchronized(int userIndex) {
+    if (userIndex < networks.length && networks[userIndex] != null) {
+      cachedConnectionCount -= networks[userIndex].length;
+      networks[userIndex] = null;
+      unlink(userIndex);
+    }
+  }
+
+  synchronized void clear() {
+    while (eldest != NONE) {
+      invalidate(eldest);
+    }
+  }
+
+  synchronized boolean isEmpty() {
+    return eldest == NONE;
+  }
+
+  synchronized void setCapacity(long capacity) {
+    this.capacity = capacity;
+    if (capacity == 0) {
+      clear();
+    }
+    while (cachedConnectionCount > capacity) {
+      invalidate(eldest);
+    }
+  }
+
+  synchronized long getCapacity() {
+    return capacity;
+  }
+
+  synchronized long getCachedConnectionCount() {
+    return cachedConnectionCount;
+  }
+
+  synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  synchronized long getMissCount() {
+    return missCount;
+  }
+
+  private void linkAsYoungest(int userIndex) {
+    previous[userIndex] = youngest;
+    next[userIndex] = NONE;
+    if (youngest == NONE) {
+      eldest = userIndex;
+    } else {
+      next[youngest] = userIndex;
+    }
+    youngest = userIndex;
+  }
+
+  private void unlink(int userIndex) {
+    int previousIndex = previous[userIndex];
+    int nextIndex = next[userIndex];
+    if (previousIndex == NONE) {
+      eldest = nextIndex;
+    } else {
+      next[previousIndex] = nextIndex;
+    }
+    if (nextIndex == NONE) {
+      youngest = previousIndex;
+    } else {
+      previous[nextIndex] = previousIndex;
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Arrays;
+
+/**
+ * An instance of the NetworkTraversal class assembles the network of a user (all connections
+ * within a given number of degrees of separation) from a {@link FriendGraph}, via a
+ * level-synchronous breadth-first traversal in which each connection is expanded at most once.
+ * Visited users are marked by stamping their slot of a reused array with a new traversal
+ * generation (rather than by adding them to a per-query "visited" collection), and assembled
+ * user indexes are placed in a reused buffer which doubles as the traversal frontier, so that
+ * a traversal allocates nothing per visited user.
+ * <br><br>
+ * A traversal is first done under an {@link FriendGraph#tryOptimisticRead() optimistic read} of
+ * the graph (stamping the lock stripe of each user upon first reading that user's connections),
+ * and is repeated under the graph's read locks only if the stripes read (or the graph's
+ * structure) were modified in the meantime, so that concurrent traversals by multiple threads
+ * do not contend with each other, nor with modifications of unrelated users.
+ * An instance is not itself to be concurrently accessed by multiple threads.
+ *
+ * @author Daniel Vimont
+ */
+final class NetworkTraversal {
+
+  private int[] visitedGenerations = new int[1024]; // indexed by user index
+  private int generation = 0;
+  private int[] network = new int[64];
+  private int networkSize = 0;
+  private final long[] stamps = new long[FriendGraph.STAMP_COUNT]; // structure, then stripes
+  private final boolean[] stripesStamped = new boolean[FriendGraph.LOCK_STRIPE_COUNT];
+  private final int[] stampedStripes = new int[FriendGraph.LOCK_STRIPE_COUNT];
+  private int stampedStripeCount = 0;
+  private boolean optimistic = false;
+
+  /**
+   * Assembles the indexes of all connections of the submitted user that are within the degrees
+   * of separation denoted by the {@code level} parameter; the assembled indexes are available
+   * via {@link #getNetwork()} until the next invocation.
+   *
+   * @param graph friend graph to be traversed
+   * @param source index of user whose network is to be assembled
+   * @param level degrees of separation for network of connections to be assembled
+   * @return count of connections assembled (in breadth-first order) in the network buffer
+   */
+  int assemble(FriendGraph graph, int source, int level) {
+    long stamp = graph.tryOptimisticRead();
+    if (stamp != 0) {
+      optimistic = true;
+      try {
+        int size = traverse(graph, source, level);
+        if (size >= 0 && graph.validate(stamp) && validateStripes(graph)) {
+          return size;
+        }
+      } catch (RuntimeException e) {
+        // inconsistent graph observed mid-modification; retry under read locks
+      } finally {
+        optimistic = false;
+        clearStripeStamps();
+      }
+    }
+    graph.readLock(stamps);
+    try {
+      return traverse(graph, source, level);
+    } finally {
+      graph.unlockRead(stamps);
+    }
+  }
+
+  /**
+   * Traverses the graph from the source; returns -1 if (in an optimistic read) a stripe to be
+   * read is being modified.
+   */
+  private int traverse(FriendGraph graph, int source, int level) {
+    int requiredLength = Math.max(graph.getNodeCount(), source + 1);
+    if (visitedGenerations.length < requiredLength) {
+      visitedGenerations = Arrays.copyOf(visitedGenerations,
+              Math.max(visitedGenerations.length * 2, requiredLength));
+    }
+    nextGeneration();
+    visitedGenerations[source] = generation; // assures that source is excluded from own network
+    networkSize = 0;
+    if (!addUnvisitedNeighbors(graph, source)) {
+      return -1;
+    }
+    int levelStart = 0;
+    for (int depth = 1; depth < level; depth++) {
+      int levelEnd = networkSize;
+      if (levelStart == levelEnd) {
+        break; // no connections were added at the previous level
+      }
+      for (int i = levelStart; i < levelEnd; i++) {
+        if (!addUnvisitedNeighbors(graph, network[i])) {
+          return -1;
+        }
+      }
+      levelStart = levelEnd;
+    }
+    return networkSize;
+  }
+
+  /**
+   * Returns the reused buffer holding the indexes assembled by the most recent invocation of
+   * {@link #assemble(FriendGraph, int, int)}, valid up to the count it returned.
+   *
+   * @return network buffer
+   */
+  int[] getNetwork() {
+    return network;
+  }
+
+  /** Adds the unvisited neighbors of the node; returns false if its stripe cannot be stamped. */
+  private boolean addUnvisitedNeighbors(FriendGraph graph, int node) {
+    if (optimistic && !stampStripe(graph, FriendGraph.stripeOf(node))) {
+      return false;
+    }
+    int[] neighbors = graph.frozenNeighbors();
+    IntHashSet mergingRemoved = graph.mergingRemovedNeighbors(node);
+    IntHashSet removed = graph.removedNeighbors(node);
+    for (int i = graph.frozenStart(node), end = graph.frozenEnd(node); i < end; i++) {
+      int neighbor = neighbors[i];
+      if ((mergingRemoved == null || !mergingRemoved.contains(neighbor))
+              && (removed == null || !removed.contains(neighbor))) {
+        visit(neighbor);
+      }
+    }
+    IntHashSet mergingAdded = graph.mergingAddedNeighbors(node);
+    if (mergingAdded != null) {
+      for (int slot = 0, slotCount = mergingAdded.slotCount(); slot < slotCount; slot++) {
+        int neighbor = mergingAdded.slotValue(slot);
+        if (neighbor >= 0 && (removed == null || !removed.contains(neighbor))) {
+          visit(neighbor);
+        }
+      }
+    }
+    IntHashSet added = graph.addedNeighbors(node);
+    if (added != null) {
+      for (int slot = 0, slotCount = added.slotCount(); slot < slotCount; slot++) {
+        int neighbor = added.slotValue(slot);
+        if (neighbor >= 0) {
+          visit(neighbor);
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean stampStripe(FriendGraph graph, int stripe) {
+    if (!stripesStamped[stripe]) {
+      long stamp = graph.tryOptimisticReadStripe(stripe);
+      if (stamp == 0) {
+        return false;
+      }
+      stamps[stripe + 1] = stamp;
+      stripesStamped[stripe] = true;
+      stampedStripes[stampedStripeCount++] = stripe;
+    }
+    return true;
+  }
+
+  private boolean validateStripes(FriendGraph graph) {
+    for (int i = 0; i < stampedStripeCount; i++) {
+      if (!graph.validateStripe(stampedStripes[i], stamps[stampedStripes[i] + 1])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void clearStripeStamps() {
+    for (int i = 0; i < stampedStripeCount; i++) {
+      stripesStamped[stampedStripes[i]] = false;
+    }
+    stampedStripeCount = 0;
+  }
+
+  private void visit(int node) {
+    if (visitedGenerations[node] != generation) {
+      visitedGenerations[node] = generation;
+      if (networkSize == network.length) {
+        network = Arrays.copyOf(network, networkSize * 2);
+      }
+      network[networkSize++] = node;
+    }
+  }
+
+  private void nextGeneration() {
+    if (++generation == 0) { // generation counter has wrapped; clear all stale stamps
+      Arrays.fill(visitedGenerations, 0);
+      generation = 1;
+    }
+  }
+}
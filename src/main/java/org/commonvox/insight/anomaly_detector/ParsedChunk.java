@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An instance of the ParsedChunk class holds the {@link EventParser#tokenize tokenized} events
+ * of a run of consecutive input lines in compact columnar form (parallel arrays), so that
+ * events may be tokenized on one thread and {@link #resolve resolved} on another.
+ * <br><br>
+ * Prior to resolution, user-ids are held as (start, end) positions within the chunk's buffer,
+ * packed into longs (or, for ids which required decoding, as indexes into a list of decoded
+ * ids), and event times hold epoch seconds; following resolution, they hold user indexes and
+ * packed event times. The position of each event's line within the buffer is also retained.
+ *
+ * @author Daniel Vimont
+ */
+final class ParsedChunk {
+
+  private static final long DECODED_ID = -1L << 62;
+  private static final EventType[] EVENT_TYPES = EventType.values();
+  private static final int INITIAL_CAPACITY = 256;
+
+  ByteBuffer buffer;
+  private List<String> decodedIds;
+  int count = 0;
+  byte[] types = new byte[INITIAL_CAPACITY];
+  long[] eventTimes = new long[INITIAL_CAPACITY];
+  long[] userIndexes = new long[INITIAL_CAPACITY];      // degrees of separation, for parameters
+  long[] otherUserIndexes = new long[INITIAL_CAPACITY]; // threshold, for parameters
+  long[] amounts = new long[INITIAL_CAPACITY];
+  int[] lineStarts = new int[INITIAL_CAPACITY];
+  int[] lineEnds = new int[INITIAL_CAPACITY];
+
+  void add(EventRecord record) {
+    if (count == types.length) {
+      int capacity = count * 2;
+      types = Arrays.copyOf(types, capacity);
+      eventTimes = Arrays.copyOf(eventTimes, capacity);
+      userIndexes = Arrays.copyOf(userIndexes, capacity);
+      otherUserIndexes = Arrays.copyOf(otherUserIndexes, capacity);
+      amounts = Arrays.copyOf(amounts, capacity);
+      lineStarts = Arrays.copyOf(lineStarts, capacity);
+      lineEnds = Arrays.copyOf(lineEnds, capacity);
+    }
+    types[count] = (byte)record.getType().ordinal();
+    eventTimes[count] = record.getEpochSecond();
+    amounts[count] = record.getAmount();
+    if (record.getType() == EventType.PARAMETERS) {
+      userIndexes[count] = record.getDegreesOfSeparation();
+      otherUserIndexes[count] = record.getThreshold();
+    } else {
+      userIndexes[count] = idReference(record.getId());
+      otherUserIndexes[count] = idReference(record.getOtherId());
+    }
+    lineStarts[count] = record.getLineStart();
+    lineEnds[count] = record.getLineEnd();
+    count++;
+  }
+
+  EventType getType(int i) {
+    return EVENT_TYPES[types[i]];
+  }
+
+  void setType(int i, EventType type) {
+    types[i] = (byte)type.ordinal();
+  }
+
+  /**
+   * Resolves the event at the submitted position (assigning it the next ingest sequence number
+   * and interning its user-ids), and applies it -- unless it is a purchase -- exactly as
+   * {@link TransactionProcessor} would in serial processing. Events are to be resolved in input
+   * order.
+   *
+   * @param engine engine to which the event is to be applied
+   * @param i position of event within the chunk
+   * @param range reusable range, used for id lookup
+   * @return the purchasing user, if the event is a purchase; otherwise null
+   */
+  User resolve(AnomalyEngine engine, int i, ByteRange range) {
+    resolveIdentities(engine, i, range);
+    return apply(engine, i);
+  }
+
+  /**
+   * Assigns the next ingest sequence number to the event at the submitted position, and interns
+   * its user-ids (creating any users not yet known), without otherwise applying the event.
+   * Events are to be resolved in input order.
+   *
+   * @param engine engine to which the event is to be applied
+   * @param i position of event within the chunk
+   * @param range reusable range, used for id lookup
+   */
+  void resolveIdentities(AnomalyEngine engine, int i, ByteRange range) {
+    EventType type = getType(i);
+    if (type != EventType.BEFRIEND && type != EventType.UNFRIEND && type != EventType.PURCHASE) {
+      return;
+    }
+    IdDictionary idDictionary = engine.getIdDictionary();
+    eventTimes[i] = engine.getEventTime().nextEventTime(eventTimes[i]);
+    userIndexes[i] = engine.getOrCreateUser(
+            idDictionary.getOrAdd(getId(userIndexes[i], range))).getIndex();
+    if (type != EventType.PURCHASE) {
+      otherUserIndexes[i] = engine.getOrCreateUser(
+              idDictionary.getOrAdd(getId(otherUserIndexes[i], range))).getIndex();
+    }
+  }
+
+  /**
+   * Applies the (previously {@link #resolveIdentities resolved}) event at the submitted position
+   * -- unless it is a purchase -- exactly as {@link TransactionProcessor} would in serial
+   * processing. Events are to be applied in input order.
+   *
+   * @param engine engine to which the event is to be applied
+   * @param i position of event within the chunk
+   * @return the purchasing user, if the event is a purchase; otherwise null
+   */
+  User apply(AnomalyEngine engine, int i) {
+    EventType type = getType(i);
+    switch (type) {
+      case PARAMETERS:
+        if (engine.getDegreesOfSeparation() == 0) {
+          engine.setDegreesOfSeparation((int)userIndexes[i]);
+        }
+        if (engine.getThreshold() == 0) {
+          engine.setThreshold((int)otherUserIndexes[i]);
+        }
+        return null;
+      case BEFRIEND:
+      case UNFRIEND:
+        User user1 = engine.getUser((int)userIndexes[i]);
+        User user2 = engine.getUser((int)otherUserIndexes[i]);
+        if (type == EventType.BEFRIEND) {
+          user1.befriend(eventTimes[i], user2);
+          user2.befriend(eventTimes[i], user1);
+        } else {
+          user1.unfriend(eventTimes[i], user2);
+          user2.unfriend(eventTimes[i], user1);
+        }
+        return null;
+      case PURCHASE:
+        return engine.getUser((int)userIndexes[i]);
+      default:
+        engine.rejectEvent();
+        setType(i, EventType.UNKNOWN);
+        return null;
+    }
+  }
+
+  /**
+   * Releases the references held by the chunk to its tokens; to be invoked once all its events
+   * have been resolved.
+   */
+  void releaseTokens() {
+    decodedIds = null;
+  }
+
+  private long idReference(CharSequence id) {
+    if (id == null) {
+      return 0;
+    } else if (id instanceof ByteRange) {
+      ByteRange range = (ByteRange)id;
+      return ((long)range.getStart() << 31) | range.getEnd();
+    }
+    if (decodedIds == null) {
+      decodedIds = new ArrayList<>();
+    }
+    decodedIds.add(id.toString());
+    return DECODED_ID | (decodedIds.size() - 1);
+  }
+
+  private CharSequence getId(long idReference, ByteRange range) {
+    if ((idReference & DECODED_ID) == DECODED_ID) {
+      return decodedIds.get((int)(idReference & ~DECODED_ID));
+    }
+    return range.set(buffer, (int)(idReference >>> 31), (int)(idReference & Integer.MAX_VALUE));
+  }
+}
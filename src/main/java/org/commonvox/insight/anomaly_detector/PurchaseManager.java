@@ -15,134 +15,257 @@
  */
 package org.commonvox.insight.anomaly_detector;
 
-import java.util.NavigableMap;
-import java.util.TreeMap;
-
 /**
  * An instance of the PurchaseManager class serves as the container for recent purchases of
  * either a User or a network of Users, up to the capacity established by
- * {@link #getThreshold() the purchase threshold}.
+ * {@link AnomalyEngine#getThreshold() the purchase threshold}.
+ * <br><br>
+ * Purchases are held in a ring buffer of parallel primitive arrays ({@link EventTime event
+ * times} and amounts), ordered from oldest to newest. The buffer grows on demand up to the
+ * purchase threshold, after which each newly added purchase displaces the oldest. The
+ * {@link RunningStatistics running statistics} of the held amounts are maintained as purchases
+ * enter and leave the buffer, so that anomaly assessment requires no pass over the purchases.
+ * <br><br>
+ * An instance is not itself synchronized: the PurchaseManager of each User is modified only
+ * under the write lock of the User's lock stripe (see {@link User#addPurchase(long, long)}).
+ * The static conversion methods may be invoked concurrently by multiple threads.
  *
  * @author Daniel Vimont
  */
 public class PurchaseManager {
 
-  private static int threshold = 0;
   private static final int MIN_PURCHASES_FOR_ANOMALY_ASSESSMENT = 2;
-  private static final StringBuilder STRING_BUILDER = new StringBuilder(15);
-  private static final char LEADING_ZERO = '0';
+  private static final int INITIAL_CAPACITY = 4;
 
-  private final NavigableMap<PurchaseKey,Integer> purchaseMap = new TreeMap<>();
+  private final AnomalyEngine engine; // source of the purchase threshold and of event times
+  // ring buffer of purchases: logical position 0 (the oldest purchase) is at physical index head
+  private long[] eventTimes = new long[INITIAL_CAPACITY];
+  private long[] amounts = new long[INITIAL_CAPACITY]; // in pennies
+  private int head = 0;
+  private int size = 0;
+  private volatile long newestEventTime = -1; // published for unlocked pruning by mergers
+  private final RunningStatistics statistics = new RunningStatistics();
 
   /**
-   * Set threshold class variable, representing the threshold (max count) of purchases to be
-   * utilized in {@link #getAnomalyData(java.lang.Integer) anomaly assessment}.
+   * Initializes a new PurchaseManager, subject to the purchase threshold of the submitted
+   * engine.
    *
-   * @param classThreshold value to which class variable, threshold, is to be set
+   * @param engine engine whose {@link AnomalyEngine#getThreshold() purchase threshold} limits
+   * the purchases held
    */
-  protected static void setThreshold(int classThreshold) {
-    threshold = classThreshold;
+  protected PurchaseManager(AnomalyEngine engine) {
+    this.engine = engine;
   }
 
   /**
-   * Value of threshold class variable, representing the threshold (max count) of purchases to be
-   * utilized in {@link #getAnomalyData(java.lang.Integer) anomaly assessment}.
+   * Standardizes conversion of String timestamps (from JSON streams, in "yyyy-MM-dd HH:mm:ss"
+   * format) into epoch seconds, so that timestamps may be compared as primitive values.
    *
-   * @return value of class variable, threshold
+   * @param timestamp timestamp in "yyyy-MM-dd HH:mm:ss" format
+   * @return timestamp in epoch seconds
    */
-  protected static int getThreshold() {
-    return threshold;
+  protected static long timestampToEpochSecond(String timestamp) {
+    return new EventTime().parseEpochSecond(timestamp);
   }
 
   /**
    * Standardizes conversion of decimal String values (from JSON streams) into Integer objects
-   * (with decimal point removed to manage amounts as pennies).
+   * (with decimal point removed to manage amounts as pennies). Amounts are parsed by
+   * {@link AmountCodec#parse(java.lang.CharSequence)}, which accepts zero to two digits of cents.
    *
    * @param amountString original decimal String (dollars and cents delimited by decimal point)
    * @return Integer object representing value in cents derived from dollar-formatted decimal String
+   * @throws IllegalArgumentException if the amount is not validly formatted
+   * @throws ArithmeticException if the amount in pennies overflows an int
    */
   protected static Integer amountStringToInteger(String amountString) {
-    STRING_BUILDER.setLength(0);
-    String cents = STRING_BUILDER.append(amountString).deleteCharAt(amountString.length() - 3).toString();
-    return Integer.valueOf(cents);
-   }
+    return Math.toIntExact(AmountCodec.parse(amountString));
+  }
 
   /**
    * Standardizes conversion of integer amounts (representing values in cents) to "dollars and cents"
-   * decimal String values.
+   * decimal String values, as formatted by {@link AmountCodec#format AmountCodec}.
    *
    * @param amount value in cents
    * @return String formatted in dollars and cents, delimited by decimal point
    */
   protected static String amountIntegerToString(Integer amount) {
-    STRING_BUILDER.setLength(0);
-    String amountString = String.valueOf(amount);
-    if (amountString.length() < 3) {
-      STRING_BUILDER.append(LEADING_ZERO);
-      if (amountString.length() == 1) {
-        STRING_BUILDER.append(LEADING_ZERO);
-      }
-    }
-    return STRING_BUILDER.append(amountString).insert(STRING_BUILDER.length() - 2, '.').toString();
+    return AmountCodec.toString(amount);
+  }
+
+  /**
+   * Returns the count of recent purchases currently held, which is limited by
+   * {@link AnomalyEngine#getThreshold() the purchase threshold}.
+   *
+   * @return count of purchases held
+   */
+  protected int size() {
+    return size;
+  }
+
+  /**
+   * Returns the timestamp (in epoch seconds) of the held purchase at the submitted position.
+   *
+   * @param position position of purchase, from zero (the oldest) to {@link #size()} - 1
+   * @return timestamp in epoch seconds
+   */
+  protected long getTimestamp(int position) {
+    return EventTime.epochSecond(getEventTime(position));
+  }
+
+  /**
+   * Returns the {@link EventTime event time} (epoch second and ingest sequence number) of the
+   * held purchase at the submitted position.
+   *
+   * @param position position of purchase, from zero (the oldest) to {@link #size()} - 1
+   * @return packed event time
+   */
+  long getEventTime(int position) {
+    return eventTimes[physicalIndex(position)];
   }
 
   /**
-   * Returns the internally-managed purchaseMap, containing recent purchases up to the
-   * capacity established by {@link #getThreshold() the purchase threshold}.
+   * Returns the {@link EventTime event time} of the newest held purchase (or -1 if none is
+   * held). Since it is published upon each modification, it may be read without locking.
    *
-   * @return purchaseMap
+   * @return packed event time of newest purchase
    */
-  protected NavigableMap<PurchaseKey,Integer> getPurchaseMap() {
-    return purchaseMap;
+  long getNewestEventTime() {
+    return newestEventTime;
+  }
+
+  /**
+   * Returns the amount of the held purchase at the submitted position.
+   *
+   * @param position position of purchase, from zero (the oldest) to {@link #size()} - 1
+   * @return amount in pennies
+   */
+  protected long getAmount(int position) {
+    return amounts[physicalIndex(position)];
   }
 
   /**
    * Add purchase (denoted by submitted timestamp and amount) to this PurchaseManager's internally
-   * maintained purchaseMap, subject to {@link #getThreshold() the purchase threshold} constraint.
-   * The submitted purchase will not be added if its timestamp precedes that of the earliest
-   * purchase in an already filled-to-threshold-capacity purchaseMap.
+   * maintained purchases, subject to {@link AnomalyEngine#getThreshold() the purchase threshold}
+   * constraint. The submitted purchase will not be added if its timestamp precedes that of the
+   * earliest purchase in an already filled-to-threshold-capacity PurchaseManager.
    *
    * @param timestamp in String format
    * @param amountDecimalString in dollars and cents format
    */
   protected void addPurchase(String timestamp, String amountDecimalString) {
-    PurchaseManager.this.addPurchase(timestamp, amountStringToInteger(amountDecimalString));
+    addPurchase(engine.timestampToEventTime(timestamp), AmountCodec.parse(amountDecimalString));
   }
 
   /**
    * Add purchase (denoted by submitted timestamp and amount) to this PurchaseManager's internally
-   * maintained purchaseMap, subject to {@link #getThreshold() the purchase threshold} constraint.
-   * The submitted purchase will not be added if its timestamp precedes that of the earliest
-   * purchase in an already filled-to-threshold-capacity purchaseMap.
+   * maintained purchases, subject to {@link AnomalyEngine#getThreshold() the purchase threshold}
+   * constraint. The submitted purchase will not be added if its timestamp precedes that of the
+   * earliest purchase in an already filled-to-threshold-capacity PurchaseManager.
    *
    * @param timestamp in String format
    * @param amount in pennies
    */
   protected void addPurchase(String timestamp, Integer amount) {
-    if (purchaseMap.size() < getThreshold()) {
-      purchaseMap.put(new PurchaseKey(timestamp), amount);
-    } else {
-      PurchaseKey purchaseKey = new PurchaseKey(timestamp);
-      if (purchaseKey.compareTo(purchaseMap.firstEntry().getKey()) > 0) {
-        purchaseMap.pollFirstEntry(); // remove earliest purchase element
-        purchaseMap.put(purchaseKey, amount);
-      }
-    }
+    addPurchase(engine.timestampToEventTime(timestamp), amount);
   }
 
   /**
    * Add all purchases from submitted PurchaseManager to this PurchaseManager, subject to
-   * {@link #getThreshold() the purchase threshold constraint}.
+   * {@link AnomalyEngine#getThreshold() the purchase threshold constraint}.
    *
    * @param addedPurchaseManager purchaseManager object used as source of added purchase transactions.
    */
   protected void addPurchases(PurchaseManager addedPurchaseManager) {
-    addedPurchaseManager.purchaseMap.forEach((k,v) -> {
-      this.purchaseMap.put(k,v);
-      if (this.purchaseMap.size() > getThreshold()) {
-        this.purchaseMap.pollFirstEntry(); // remove oldest entry to keep size within threshold
+    FlightRecorderEvents.PurchaseMerge event = FlightRecorderEvents.beginPurchaseMerge();
+    for (int position = 0; position < addedPurchaseManager.size; position++) {
+      int index = addedPurchaseManager.physicalIndex(position);
+      addPurchase(addedPurchaseManager.eventTimes[index], addedPurchaseManager.amounts[index]);
+    }
+    if (event != null) {
+      event.complete(addedPurchaseManager.size, size);
+    }
+  }
+
+  /**
+   * Add purchase (denoted by submitted event time and amount) to this PurchaseManager's
+   * internally maintained purchases, subject to
+   * {@link AnomalyEngine#getThreshold() the purchase threshold} constraint. The purchase is
+   * inserted in event-time order (normally at the newest end; a late-arriving purchase is
+   * positioned via binary search), displacing the oldest purchase if the buffer is filled to
+   * threshold capacity.
+   *
+   * @param eventTime packed {@link EventTime event time}
+   * @param amount in pennies
+   */
+  protected void addPurchase(long eventTime, long amount) {
+    int threshold = engine.getThreshold();
+    if (size >= threshold) {
+      if (size == 0 || eventTime <= eventTimes[head]) {
+        return; // precedes earliest purchase of filled-to-capacity buffer
+      }
+      while (size >= threshold) {
+        statistics.remove(amounts[head]);
+        head = physicalIndex(1); // remove earliest purchase
+        size--;
+      }
+    }
+    if (size == eventTimes.length) {
+      grow(Math.min(eventTimes.length * 2, threshold));
+    }
+    int position = size;
+    if (size > 0 && eventTime < getEventTime(size - 1)) {
+      position = upperBound(eventTime);
+      for (int i = size; i > position; i--) { // shift newer purchases toward the newest end
+        int to = physicalIndex(i);
+        int from = physicalIndex(i - 1);
+        eventTimes[to] = eventTimes[from];
+        amounts[to] = amounts[from];
       }
-    });
+    }
+    int index = physicalIndex(position);
+    eventTimes[index] = eventTime;
+    amounts[index] = amount;
+    size++;
+    statistics.add(amount);
+    if (position == size - 1) {
+      newestEventTime = eventTime;
+    }
+  }
+
+  /**
+   * Returns the position of the earliest held purchase that follows the submitted event time.
+   */
+  private int upperBound(long eventTime) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (eventTime >= getEventTime(middle)) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private int physicalIndex(int position) {
+    int index = head + position;
+    return index < eventTimes.length ? index : index - eventTimes.length;
+  }
+
+  private void grow(int capacity) {
+    long[] newEventTimes = new long[capacity];
+    long[] newAmounts = new long[capacity];
+    for (int position = 0; position < size; position++) {
+      int index = physicalIndex(position);
+      newEventTimes[position] = eventTimes[index];
+      newAmounts[position] = amounts[index];
+    }
+    eventTimes = newEventTimes;
+    amounts = newAmounts;
+    head = 0;
   }
 
   /**
@@ -151,82 +274,47 @@ public class PurchaseManager {
    * purchase amount is NOT an anomaly, returns null.
    *
    * @param amount purchase amount in pennies
-   * @return null if amount is not an anomaly; otherwise, returns a two-element int array
+   * @return null if amount is not an anomaly; otherwise, returns a two-element long array
+   * consisting of (a) mean and (b) standard deviation that formed basis of anomaly computation.
+   */
+  protected long[] getAnomalyData(long amount) {
+    return getAnomalyData(statistics, amount);
+  }
+
+  /**
+   * If submitted purchase amount is an anomaly in comparison to the recent purchase amounts
+   * summarized by the submitted running statistics, returns a two-element array consisting of
+   * (a) mean and (b) standard deviation that formed the basis for the anomaly computation;
+   * otherwise returns null.
+   *
+   * @param statistics running statistics of recent purchase amounts
+   * @param amount purchase amount in pennies
+   * @return null if amount is not an anomaly; otherwise, returns a two-element long array
    * consisting of (a) mean and (b) standard deviation that formed basis of anomaly computation.
    */
-  protected int[] getAnomalyData(Integer amount) {
-    if (purchaseMap.size() < MIN_PURCHASES_FOR_ANOMALY_ASSESSMENT) {
+  static long[] getAnomalyData(RunningStatistics statistics, long amount) {
+    if (statistics.getCount() < MIN_PURCHASES_FOR_ANOMALY_ASSESSMENT) {
       return null;
     }
-    int mean = getMean();
-    int standardDeviation = getStandardDeviation(mean);
+    long mean = statistics.getMean();
+    long standardDeviation = statistics.getStandardDeviation();
     if (amount > mean + (standardDeviation * 3)) {
-      return new int[]{mean, standardDeviation};
+      return new long[]{mean, standardDeviation};
     } else {
       return null;
     }
   }
 
-  private int getMean() {
-    int sum = 0;
-    for(int n : purchaseMap.values()) {
-      sum += n;
-    }
-    return sum / purchaseMap.size(); // rounds down to nearest penny!
-  }
-
-  private int getStandardDeviation(int mean) {
-    double sumOfDeviationsSquared = 0;
-    for(int amount : purchaseMap.values()) {
-      sumOfDeviationsSquared += Math.pow((amount - mean), 2);
-    }
-    return (int)Math.sqrt(sumOfDeviationsSquared / purchaseMap.size());
-  }
-
   @Override
   public String toString() {
     StringBuilder contents = new StringBuilder();
     contents.append("PurchaseManager{");
-    purchaseMap.forEach((k,v) -> {
-      contents.append("\n -- key: ").append(k)
-              .append(" ; value: ").append(PurchaseManager.amountIntegerToString(v));  });
-    int mean = getMean();
-//    contents.append("\n===========");
-//    contents.append("\n -- MEAN: ").append(mean).append(" cents.");
-//    contents.append("\n -- STANDARD DEVIATION: ").append(getStandardDeviation(mean)).append(" cents.");
+    for (int position = 0; position < size; position++) {
+      contents.append("\n -- timestamp: ").append(getTimestamp(position))
+              .append(" ; sequence: ").append(EventTime.sequence(getEventTime(position)))
+              .append(" ; value: ").append(AmountCodec.toString(getAmount(position)));
+    }
     contents.append("\n}");
     return contents.toString();
   }
-
-  /**
-   * Provides unique key for purchase transactions, since timestamps themselves are not necessarily
-   * unique.
-   */
-  protected class PurchaseKey implements Comparable<PurchaseKey> {
-    final String timestamp;
-    final Long nanoTime;
-
-    public PurchaseKey(String timestamp) {
-      this.timestamp = timestamp;
-      this.nanoTime = System.nanoTime();
-    }
-
-    /**
-     * This compareTo sorts in ascending chronological order!!
-     *
-     * @param other PurchaseKey object to be compared.
-     * @return a negative integer, zero, or a positive integer as this object is less than,
-     * equal to, or greater than the specified object.
-     */
-    @Override
-    public int compareTo(PurchaseKey other) {
-      int timestampCompare = this.timestamp.compareTo(other.timestamp);
-      return timestampCompare == 0 ? this.nanoTime.compareTo(other.nanoTime) : timestampCompare;
-    }
-
-    @Override
-    public String toString() {
-      return "PurchaseKey{" + "timestamp=" + timestamp + ", nanoTime=" + nanoTime.toString() + '}';
-    }
-  }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An instance of the RecentPurchaseMerger class selects the most recent purchases (up to
+ * {@link AnomalyEngine#getThreshold() the purchase threshold}) from among the PurchaseManagers
+ * of all members of a network, without copying the members' purchases into a network-specific
+ * PurchaseManager.
+ * <br><br>
+ * Selected purchases are held in a size-bounded min-heap, whose root is the oldest selected
+ * purchase (i.e., the current cutoff). The purchases of each member are walked newest-first, and
+ * the walk stops at the first purchase that is older than the cutoff of a full heap; a member
+ * whose newest purchase is older than the cutoff is thus pruned after a single comparison. The
+ * {@link RunningStatistics running statistics} of the selected amounts are maintained as
+ * purchases enter and leave the heap.
+ * <br><br>
+ * The purchases of a member that may be concurrently modified are merged via
+ * {@link #merge(PurchaseManager, StampedLock)}, which copies the member's candidate purchases
+ * (those newer than the current cutoff) under an optimistic read of the lock guarding the
+ * member, repeating the copy under the read lock only if the member was modified in the
+ * meantime.
+ * <br><br>
+ * An instance is reused from one network to the next, and is not to be concurrently accessed by
+ * multiple threads.
+ *
+ * @author Daniel Vimont
+ */
+final class RecentPurchaseMerger {
+
+  // min-heap of selected purchases, held in parallel arrays
+  private long[] eventTimes = new long[16];
+  private long[] amounts = new long[16];
+  private int size = 0;
+  private int capacity = 0;
+  // candidate purchases copied from a member, newest first
+  private long[] candidateEventTimes = new long[16];
+  private long[] candidateAmounts = new long[16];
+  private final RunningStatistics statistics = new RunningStatistics();
+
+  /**
+   * Empties this merger in preparation for the merging of a new network's purchases.
+   *
+   * @param threshold maximum count of purchases to be selected
+   */
+  void reset(int threshold) {
+    size = 0;
+    capacity = threshold;
+    statistics.clear();
+    if (eventTimes.length < threshold) {
+      eventTimes = new long[threshold];
+      amounts = new long[threshold];
+      candidateEventTimes = new long[threshold];
+      candidateAmounts = new long[threshold];
+    }
+  }
+
+  /**
+   * Merges the purchases of the submitted PurchaseManager into the selection of most recent
+   * purchases.
+   *
+   * @param member PurchaseManager of a network member
+   */
+  void merge(PurchaseManager member) {
+    int position = member.size() - 1;
+    if (capacity == 0 || position < 0) {
+      return;
+    }
+    if (size == capacity && member.getEventTime(position) <= eventTimes[0]) {
+      return; // even the member's newest purchase is older than the cutoff
+    }
+    for (; position >= 0; position--) { // newest first
+      if (!offer(member.getEventTime(position), member.getAmount(position))) {
+        break; // all remaining purchases of member are older than the cutoff
+      }
+    }
+  }
+
+  /**
+   * Merges the purchases of the submitted PurchaseManager, which may be concurrently modified
+   * under the write lock of the submitted lock, into the selection of most recent purchases.
+   *
+   * @param member PurchaseManager of a network member
+   * @param lock lock guarding modification of the member
+   */
+  void merge(PurchaseManager member, StampedLock lock) {
+    if (capacity == 0 || (size == capacity && member.getNewestEventTime() <= eventTimes[0])) {
+      return; // even the member's newest purchase is older than the cutoff
+    }
+    int count = -1;
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        count = copyCandidates(member);
+      } catch (RuntimeException e) {
+        // inconsistent state observed mid-modification; copy again under read lock
+      }
+      if (!lock.validate(stamp)) {
+        count = -1;
+      }
+    }
+    if (count < 0) {
+      stamp = lock.readLock();
+      try {
+        count = copyCandidates(member);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    for (int i = 0; i < count; i++) { // newest first
+      if (!offer(candidateEventTimes[i], candidateAmounts[i])) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Copies (newest first) those purchases of the submitted member which are newer than the
+   * current cutoff, up to the capacity of the selection, returning the count copied.
+   */
+  private int copyCandidates(PurchaseManager member) {
+    long cutoff = size == capacity ? eventTimes[0] : Long.MIN_VALUE;
+    int count = 0;
+    for (int position = member.size() - 1; position >= 0 && count < capacity; position--) {
+      long eventTime = member.getEventTime(position);
+      if (eventTime <= cutoff) {
+        break;
+      }
+      candidateEventTimes[count] = eventTime;
+      candidateAmounts[count++] = member.getAmount(position);
+    }
+    return count;
+  }
+
+  /**
+   * Adds the submitted purchase to the selection (displacing the current cutoff if the
+   * selection is full), returning false if the selection is full and the purchase is not newer
+   * than the cutoff.
+   */
+  private boolean offer(long eventTime, long amount) {
+    if (size < capacity) {
+      eventTimes[size] = eventTime;
+      amounts[size] = amount;
+      statistics.add(amount);
+      siftUp(size++);
+    } else if (eventTime > eventTimes[0]) {
+      statistics.remove(amounts[0]);
+      eventTimes[0] = eventTime; // replace current cutoff
+      amounts[0] = amount;
+      statistics.add(amount);
+      siftDown(0);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * If submitted purchase amount is an anomaly in comparison to the purchases currently selected,
+   * returns a two-element array consisting of (a) mean and (b) standard deviation that formed the
+   * basis for the anomaly computation; otherwise returns null.
+   *
+   * @param amount purchase amount in pennies
+   * @return null if amount is not an anomaly; otherwise, returns a two-element long array
+   * consisting of (a) mean and (b) standard deviation that formed basis of anomaly computation.
+   */
+  long[] getAnomalyData(long amount) {
+    return PurchaseManager.getAnomalyData(statistics, amount);
+  }
+
+  /**
+   * Returns the count of purchases currently selected.
+   *
+   * @return count of purchases selected
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the amount of the selected purchase at the submitted (unordered) position.
+   *
+   * @param position position from zero to {@link #size()} - 1
+   * @return purchase amount in pennies
+   */
+  long getAmount(int position) {
+    return amounts[position];
+  }
+
+  private void siftUp(int position) {
+    while (position > 0) {
+      int parent = (position - 1) >>> 1;
+      if (eventTimes[position] >= eventTimes[parent]) {
+        break;
+      }
+      swap(position, parent);
+      position = parent;
+    }
+  }
+
+  private void siftDown(int position) {
+    int half = size >>> 1;
+    while (position < half) {
+      int child = 2 * position + 1;
+      if (child + 1 < size && eventTimes[child + 1] < eventTimes[child]) {
+        child++;
+      }
+      if (eventTimes[child] >= eventTimes[position]) {
+        break;
+      }
+      swap(position, child);
+      position = child;
+    }
+  }
+
+  private void swap(int position, int otherPosition) {
+    long eventTime = eventTimes[position];
+    eventTimes[position] = eventTimes[otherPosition];
+    eventTimes[otherPosition] = eventTime;
+    long amount = amounts[position];
+    amounts[position] = amounts[otherPosition];
+    amounts[otherPosition] = amount;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.math.BigInteger;
+
+/**
+ * An instance of the RunningStatistics class maintains the count, sum, and sum of squares of a
+ * window of purchase amounts, as amounts enter and leave the window, so that the mean and
+ * standard deviation of the window may be derived without passing over its amounts.
+ * <br><br>
+ * The sum and the sum of squares are each held in a 128-bit (high/low long) accumulator, which
+ * cannot overflow for any count of amounts (of magnitude up to {@link AmountCodec#MAX_AMOUNT})
+ * that an array can hold. Derived values follow the original truncation rules exactly: the
+ * mean is the sum divided by the count, rounded down to the nearest penny, and the standard
+ * deviation is the square root of the mean of the squared deviations <i>from that truncated
+ * mean</i>, rounded down to the nearest penny. Both are computed exactly in long arithmetic
+ * (falling back to BigInteger arithmetic only if it would overflow a long).
+ *
+ * @author Daniel Vimont
+ */
+final class RunningStatistics {
+
+  private int count = 0;
+  private long sumHigh = 0; // sum is the signed 128-bit value (high, low)
+  private long sumLow = 0;
+  private long sumOfSquaresHigh = 0; // sum of squares is the unsigned 128-bit value (high, low)
+  private long sumOfSquaresLow = 0;
+
+  void add(long amount) {
+    long low = sumLow + amount;
+    sumHigh += (amount >> 63) + (Long.compareUnsigned(low, sumLow) < 0 ? 1 : 0); // sign, carry
+    sumLow = low;
+    long square = amount * amount;
+    low = sumOfSquaresLow + square;
+    sumOfSquaresHigh += squareHigh(amount) + (Long.compareUnsigned(low, square) < 0 ? 1 : 0);
+    sumOfSquaresLow = low;
+    count++;
+  }
+
+  void remove(long amount) {
+    long low = sumLow - amount;
+    sumHigh -= (amount >> 63) + (Long.compareUnsigned(sumLow, amount) < 0 ? 1 : 0); // sign, borrow
+    sumLow = low;
+    long square = amount * amount;
+    sumOfSquaresHigh -= squareHigh(amount)
+            + (Long.compareUnsigned(sumOfSquaresLow, square) < 0 ? 1 : 0);
+    sumOfSquaresLow -= square;
+    count--;
+  }
+
+  /** Returns the high-order 64 bits of the (unsigned 128-bit) square of the submitted value. */
+  private static long squareHigh(long value) {
+    if (value > -3037000500L && value < 3037000500L) { // square fits in 63 bits
+      return 0;
+    }
+    long magnitude = Math.abs(value); // at most AmountCodec.MAX_AMOUNT, well below 2^63
+    long high = magnitude >>> 32;
+    long low = magnitude & 0xFFFFFFFFL;
+    long middle = high * low;
+    long lowProduct = low * low;
+    long carry = ((lowProduct >>> 32) + ((middle & 0x7FFFFFFFL) << 1)) >>> 32;
+    return high * high + (middle >>> 31) + carry;
+  }
+
+  void clear() {
+    count = 0;
+    sumHigh = 0;
+    sumLow = 0;
+    sumOfSquaresHigh = 0;
+    sumOfSquaresLow = 0;
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the mean of the amounts in the window, truncated to a whole penny.
+   *
+   * @return mean in pennies
+   */
+  long getMean() {
+    if (sumHigh == sumLow >> 63) { // sum fits in a long
+      return sumLow / count; // rounds down to nearest penny!
+    }
+    return getSum().divide(BigInteger.valueOf(count)).longValueExact();
+  }
+
+  /**
+   * Returns the (population) standard deviation of the amounts in the window, computed with
+   * respect to the {@link #getMean() truncated mean} and truncated to a whole penny.
+   *
+   * @return standard deviation in pennies
+   */
+  long getStandardDeviation() {
+    long mean = getMean();
+    // sum of (amount - mean)^2 == sumOfSquares - 2 * mean * sum + count * mean^2
+    if (sumOfSquaresHigh == 0 && sumOfSquaresLow >= 0 && sumHigh == sumLow >> 63) {
+      try {
+        long sumOfDeviationsSquared = Math.addExact(
+                Math.subtractExact(sumOfSquaresLow, Math.multiplyExact(2 * mean, sumLow)),
+                Math.multiplyExact(count, Math.multiplyExact(mean, mean)));
+        return (long)Math.sqrt((double)sumOfDeviationsSquared / count);
+      } catch (ArithmeticException e) {
+        // fall through to BigInteger arithmetic
+      }
+    }
+    BigInteger bigMean = BigInteger.valueOf(mean);
+    BigInteger sumOfDeviationsSquared = getSumOfSquares()
+            .subtract(bigMean.shiftLeft(1).multiply(getSum()))
+            .add(bigMean.multiply(bigMean).multiply(BigInteger.valueOf(count)));
+    return (long)Math.sqrt(sumOfDeviationsSquared.doubleValue() / count);
+  }
+
+  BigInteger getSum() {
+    return BigInteger.valueOf(sumHigh).shiftLeft(64).add(unsigned(sumLow));
+  }
+
+  BigInteger getSumOfSquares() {
+    return BigInteger.valueOf(sumOfSquaresHigh).shiftLeft(64).add(unsigned(sumOfSquaresLow));
+  }
+
+  private static BigInteger unsigned(long value) {
+    return BigInteger.valueOf(value >>> 1).shiftLeft(1).add(BigInteger.valueOf(value & 1));
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * An instance of the SpeculativeScorer class processes chunks of consecutive events (such as
+ * the {@link ParsedChunk chunks} of a {@link StreamPipeline}), scoring purchases in parallel,
+ * ahead of their turn, while producing exactly the output of serial processing. First, all
+ * events of a chunk are <b>resolved</b> (serially, in input order): ingest sequence numbers are
+ * assigned and user-ids are interned, so that every user referenced by the chunk exists. The
+ * chunk's purchases are then processed in successive windows, each window in two phases:
+ * <ol>
+ * <li><b>speculation</b> (parallel): every purchase of the window is scored against the state
+ * of the detector as of the start of the window (the "snapshot" version), which is not modified
+ * during this phase. Each score records the network upon which it depended;</li>
+ * <li><b>commit</b> (serial, in input order): each event up to the window's last purchase is
+ * applied, and the user(s) whose connections or purchases it modifies are stamped with a new
+ * version. A speculative score is accepted only if no earlier event of the window changed the
+ * connections of the purchaser, or the connections or purchases of a member of the purchaser's
+ * network -- one of which is a prerequisite to any change in the network or in its recent
+ * purchases. Otherwise the purchase is scored anew, against current state.</li>
+ * </ol>
+ * Where networks are small relative to the user population, most purchases touch network
+ * neighborhoods that are disjoint from those modified earlier in their window, and most scores
+ * are accepted. The window size adapts to the proportion of scores recomputed: shrinking as it
+ * rises, growing as it falls, and, where even small windows see most scores recomputed (as
+ * when networks span much of the population), giving way to runs of serial scoring. The counts
+ * of accepted and recomputed scores are available as metrics.
+ * <br><br>
+ * Speculation is shared between the invoking thread and the threads of the engine's
+ * {@link AnomalyEngine#getThreadPool() thread pool} (which may be shared with other engines),
+ * each with its own {@link NetworkTraversal} and {@link RecentPurchaseMerger}. An instance is not
+ * to be concurrently accessed by multiple (invoking) threads.
+ *
+ * @author Daniel Vimont
+ */
+final class SpeculativeScorer {
+
+  static final int MAX_WINDOW_SIZE = 1024; // purchases
+  static final int MIN_SERIAL_RUN = 64;     // purchases
+  static final int MAX_SERIAL_RUN = 1 << 16;
+
+  private final AnomalyEngine engine;
+  private final int workerCount;
+  private final int minWindowSize;
+  private int windowSize;
+  private int serialRun = MIN_SERIAL_RUN; // length of next run of serial scoring
+  private int serialRemaining = 0;        // purchases remaining in current run of serial scoring
+  private final ForkJoinPool pool;
+  private final NetworkTraversal[] traversals;
+  private final RecentPurchaseMerger[] mergers;
+
+  // versions of state: a user's graph (or purchase) version is that of the last committed event
+  //   to modify the user's connections (or purchases)
+  private long version = 0;
+  private long[] graphVersions = new long[1024];    // indexed by user index
+  private long[] purchaseVersions = new long[1024]; // indexed by user index
+  private long parametersVersion = 0;
+
+  // speculative scores of the current window, indexed by position of event within window
+  private int[][] networks = new int[0][];
+  private long[][] anomalyData = new long[0][];
+  private int[] purchases = new int[0]; // positions of purchases within window
+
+  private long speculatedCount = 0;
+  private long acceptedCount = 0;
+  private long recomputedCount = 0;
+
+  /**
+   * Initializes a new SpeculativeScorer.
+   *
+   * @param engine engine whose events are to be scored
+   * @param workerCount number of threads to perform speculation, including the invoking thread
+   */
+  SpeculativeScorer(AnomalyEngine engine, int workerCount) {
+    if (workerCount < 1) {
+      throw new IllegalArgumentException("At least one worker required.");
+    }
+    this.engine = engine;
+    this.workerCount = workerCount;
+    minWindowSize = Math.min(workerCount * 2, MAX_WINDOW_SIZE);
+    windowSize = MAX_WINDOW_SIZE;
+    pool = engine.getThreadPool();
+    traversals = new NetworkTraversal[workerCount];
+    mergers = new RecentPurchaseMerger[workerCount];
+    for (int i = 0; i < workerCount; i++) {
+      traversals[i] = new NetworkTraversal();
+      mergers[i] = new RecentPurchaseMerger();
+    }
+  }
+
+  /**
+   * Resolves, scores, and applies the events of the submitted chunk, with results identical to
+   * those of serial processing: flagged purchases are passed (in input order) to the submitted
+   * handler. Should an event fail to be resolved or applied, the events preceding it are
+   * processed before the exception is thrown.
+   *
+   * @param chunk tokenized events
+   * @param range reusable range, used for id lookup
+   * @param flaggedPurchaseHandler recipient of the anomaly data (mean and standard deviation)
+   * and chunk position of each flagged purchase
+   */
+  void process(ParsedChunk chunk, ByteRange range, ObjIntConsumer<long[]> flaggedPurchaseHandler) {
+    int count = chunk.count;
+    RuntimeException failure = null;
+    int purchaseCount = 0;
+    if (purchases.length < count) {
+      purchases = new int[count];
+      networks = new int[count][];
+      anomalyData = new long[count][];
+    }
+
+    // resolution of all events
+    for (int i = 0; i < count; i++) {
+      try {
+        chunk.resolveIdentities(engine, i, range);
+        if (chunk.getType(i) == EventType.PURCHASE) {
+          purchases[purchaseCount++] = i;
+        }
+      } catch (RuntimeException e) {
+        failure = e;
+        count = i;
+        break;
+      }
+    }
+    int userCount = engine.getIdDictionary().size();
+    if (graphVersions.length < userCount) {
+      int length = Math.max(graphVersions.length * 2, userCount);
+      graphVersions = Arrays.copyOf(graphVersions, length);
+      purchaseVersions = Arrays.copyOf(purchaseVersions, length);
+    }
+
+    // speculation and commit, for successive windows of purchases (and the events preceding them)
+    int committed = 0;
+    for (int first = 0; first < purchaseCount; ) {
+      int last;
+      if (serialRemaining > 0) {
+        last = Math.min(first + serialRemaining, purchaseCount);
+        serialRemaining -= last - first;
+        committed = commit(chunk, committed, purchases[last - 1] + 1, version,
+                flaggedPurchaseHandler);
+      } else {
+        last = Math.min(first + windowSize, purchaseCount);
+        long snapshotVersion = version;
+        speculate(chunk, first, last);
+        speculatedCount += last - first;
+        long previouslyRecomputed = recomputedCount;
+        committed = commit(chunk, committed, purchases[last - 1] + 1, snapshotVersion,
+                flaggedPurchaseHandler);
+        adaptWindowSize(last - first, recomputedCount - previouslyRecomputed);
+      }
+      first = last;
+    }
+    commit(chunk, committed, count, version, flaggedPurchaseHandler);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Scores the purchases at the submitted range of positions of the purchases array against
+   * current state, dividing them (in strides) among the workers.
+   */
+  private void speculate(ParsedChunk chunk, int first, int last) {
+    int taskCount = Math.min(workerCount, last - first);
+    List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    for (int worker = 1; worker < taskCount; worker++) {
+      int taskWorker = worker;
+      tasks.add(pool.submit(
+              () -> speculate(chunk, first + taskWorker, last, taskWorker, taskCount)));
+    }
+    speculate(chunk, first, last, 0, taskCount);
+    for (ForkJoinTask<?> task : tasks) {
+      task.join();
+    }
+  }
+
+  private void speculate(ParsedChunk chunk, int first, int last, int worker, int stride) {
+    NetworkTraversal traversal = traversals[worker];
+    RecentPurchaseMerger merger = mergers[worker];
+    for (int p = first; p < last; p += stride) {
+      int i = purchases[p];
+      FlightRecorderEvents.AnomalyAssessment event = FlightRecorderEvents.beginAnomalyAssessment();
+      int[] network = engine.peekNetwork((int)chunk.userIndexes[i], traversal);
+      networks[i] = network;
+      anomalyData[i] = engine.getAnomalyData(network, chunk.amounts[i], merger);
+      if (event != null) {
+        event.complete(engine.getUser((int)chunk.userIndexes[i]).getId(), network.length,
+                merger.size(), chunk.amounts[i], anomalyData[i] != null, true);
+      }
+    }
+  }
+
+  /**
+   * Applies, in order, the events at the submitted range of positions of the chunk, accepting
+   * the speculative scores (made as of the submitted version) of those purchases whose inputs
+   * remain unmodified, and scoring the others anew.
+   *
+   * @return position following the last event applied
+   */
+  private int commit(ParsedChunk chunk, int first, int last, long snapshotVersion,
+          ObjIntConsumer<long[]> flaggedPurchaseHandler) {
+    EventLog eventLog = engine.getEventLog();
+    DetectorMetrics metrics = engine.getMetrics();
+    for (int i = first; i < last; i++) {
+      long startNanos = metrics == null ? 0 : System.nanoTime();
+      if (eventLog != null) { // written ahead of the event's application
+        eventLog.append(chunk, i);
+      }
+      User purchaser = chunk.apply(engine, i);
+      switch (chunk.getType(i)) {
+        case PARAMETERS:
+          parametersVersion = ++version;
+          break;
+        case BEFRIEND:
+        case UNFRIEND:
+          version++;
+          graphVersions[(int)chunk.userIndexes[i]] = version;
+          graphVersions[(int)chunk.otherUserIndexes[i]] = version;
+          break;
+        case PURCHASE:
+          long amount = chunk.amounts[i];
+          long[] purchaseAnomalyData;
+          if (networks[i] == null) { // not speculatively scored
+            purchaseAnomalyData = purchaser.getAnomalyData(amount);
+          } else if (isCurrent(purchaser.getIndex(), networks[i], snapshotVersion)) {
+            purchaseAnomalyData = anomalyData[i];
+            engine.cacheNetwork(purchaser.getIndex(), networks[i]);
+            acceptedCount++;
+          } else {
+            purchaseAnomalyData = purchaser.getAnomalyData(amount);
+            recomputedCount++;
+          }
+          if (metrics != null) {
+            metrics.recordOutcome(purchaseAnomalyData != null);
+          }
+          if (purchaseAnomalyData != null) {
+            flaggedPurchaseHandler.accept(purchaseAnomalyData, i);
+          }
+          purchaser.addPurchase(chunk.eventTimes[i], amount);
+          purchaseVersions[purchaser.getIndex()] = ++version;
+          networks[i] = null;
+          anomalyData[i] = null;
+          break;
+        default:
+          break;
+      }
+      if (metrics != null) {
+        metrics.recordEvent(chunk.getType(i), System.nanoTime() - startNanos);
+      }
+    }
+    return last;
+  }
+
+  /**
+   * Halves the window size if most of the scores of the last window were recomputed, and
+   * doubles it if few were. Should most scores be recomputed even in a window of the minimum
+   * size (as when networks are so large as to overlap nearly all others), speculation is
+   * suspended for a run of purchases, the length of which doubles with each consecutive
+   * suspension.
+   */
+  private void adaptWindowSize(long windowPurchaseCount, long windowRecomputedCount) {
+    if (windowRecomputedCount * 2 > windowPurchaseCount) {
+      if (windowSize == minWindowSize) {
+        serialRemaining = serialRun;
+        serialRun = Math.min(MAX_SERIAL_RUN, serialRun * 2);
+      }
+      windowSize = Math.max(minWindowSize, windowSize / 2);
+    } else {
+      serialRun = MIN_SERIAL_RUN;
+      if (windowRecomputedCount * 8 < windowPurchaseCount) {
+        windowSize = Math.min(MAX_WINDOW_SIZE, windowSize * 2);
+      }
+    }
+  }
+
+  /**
+   * Returns true if a score of a purchase by the submitted user, based upon the submitted network
+   * as of the submitted version, remains current: that is, if neither the parameters, nor the
+   * connections of the user, nor the connections or purchases of any member of the network have
+   * been modified since that version. (The user's own purchases have no bearing on the score.)
+   */
+  private boolean isCurrent(int userIndex, int[] network, long snapshotVersion) {
+    if (version == snapshotVersion) {
+      return true;
+    } else if (parametersVersion > snapshotVersion || graphVersions[userIndex] > snapshotVersion) {
+      return false;
+    }
+    for (int member : network) {
+      if (graphVersions[member] > snapshotVersion || purchaseVersions[member] > snapshotVersion) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the count of purchases scored speculatively.
+   *
+   * @return count of speculative scores
+   */
+  long getSpeculatedCount() {
+    return speculatedCount;
+  }
+
+  /**
+   * Returns the count of speculative scores accepted upon commit.
+   *
+   * @return count of accepted scores
+   */
+  long getAcceptedCount() {
+    return acceptedCount;
+  }
+
+  /**
+   * Returns the count of speculative scores rejected upon commit (because an earlier event of
+   * their window modified their inputs), whose purchases were scored anew.
+   *
+   * @return count of recomputed scores
+   */
+  long getRecomputedCount() {
+    return recomputedCount;
+  }
+
+  /**
+   * Returns the current size (in purchases) of the windows in which purchases are speculatively
+   * scored.
+   *
+   * @return current window size
+   */
+  int getWindowSize() {
+    return windowSize;
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An instance of the SpscRing class is a bounded, lock-free queue connecting exactly one
+ * producing thread to exactly one consuming thread, as between successive stages of a
+ * {@link StreamPipeline}. Elements are held in a power-of-two array indexed by two
+ * monotonically increasing counters: the tail (written only by the producer) and the head
+ * (written only by the consumer). A producer finding the ring full, or a consumer finding it
+ * empty, waits by spinning, then yielding, then parking briefly -- unless it uses the
+ * non-waiting {@link #offer offer} or {@link #poll poll}, as does a thread which must remain
+ * free for other work (e.g., the selector thread of an {@link IngestionServer}).
+ * <br><br>
+ * The ring also maintains queue-depth metrics: its current depth, the maximum and mean depths
+ * observed by the producer upon each insertion, and the number of times that either side had to
+ * wait. Once {@link #cancel cancelled}, a ring neither accepts nor yields further elements, so
+ * that threads waiting upon it may be released when a pipeline fails.
+ *
+ * @param <E> type of element
+ * @author Daniel Vimont
+ */
+final class SpscRing<E> {
+
+  private static final int SPIN_TRIES = 100;
+  private static final int YIELD_TRIES = 100;
+  private static final long PARK_NANOS = 50_000;
+
+  private final String name;
+  private final Object[] elements;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong(); // position of next element to be taken
+  private final AtomicLong tail = new AtomicLong(); // position of next element to be put
+  private volatile boolean cancelled = false;
+
+  // metrics: written only by the producer (except for emptyWaitCount, by the consumer)
+  private volatile long putCount = 0;
+  private volatile long depthSum = 0;
+  private volatile int maxDepth = 0;
+  private volatile long fullWaitCount = 0;
+  private volatile long emptyWaitCount = 0;
+
+  /**
+   * Initializes a new ring.
+   *
+   * @param name name of the ring (for reporting of metrics)
+   * @param capacity capacity of the ring, rounded up to a power of two
+   */
+  SpscRing(String name, int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid ring capacity: " + capacity);
+    }
+    this.name = name;
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    elements = new Object[size];
+    mask = size - 1;
+  }
+
+  /**
+   * Appends the submitted element to the ring, waiting for space if the ring is full. To be
+   * invoked only by the producing thread.
+   *
+   * @param element element to be appended
+   * @return true if the element was appended; false if the ring has been cancelled
+   */
+  boolean put(E element) {
+    long position = tail.get();
+    long wrapPoint = position - elements.length;
+    if (head.get() <= wrapPoint) {
+      fullWaitCount++;
+      for (int tries = 0; head.get() <= wrapPoint; tries++) {
+        if (cancelled) {
+          return false;
+        }
+        backOff(tries);
+      }
+    }
+    if (cancelled) {
+      return false;
+    }
+    publish(position, element);
+    return true;
+  }
+
+  /**
+   * Appends the submitted element to the ring if space is available, without waiting. To be
+   * invoked only by the producing thread.
+   *
+   * @param element element to be appended
+   * @return true if the element was appended; false if the ring is full or has been cancelled
+   */
+  boolean offer(E element) {
+    long position = tail.get();
+    if (cancelled) {
+      return false;
+    }
+    if (head.get() <= position - elements.length) {
+      fullWaitCount++;
+      return false;
+    }
+    publish(position, element);
+    return true;
+  }
+
+  private void publish(long position, E element) {
+    elements[(int)position & mask] = element;
+    tail.lazySet(position + 1); // publishes the element to the consumer
+    int depth = (int)(position + 1 - head.get());
+    putCount++;
+    depthSum += depth;
+    if (depth > maxDepth) {
+      maxDepth = depth;
+    }
+  }
+
+  /**
+   * Removes and returns the element at the head of the ring, waiting for an element if the ring
+   * is empty. To be invoked only by the consuming thread.
+   *
+   * @return the element at the head of the ring, or null if the ring has been cancelled
+   */
+  E take() {
+    long position = head.get();
+    if (tail.get() <= position) {
+      emptyWaitCount++;
+      for (int tries = 0; tail.get() <= position; tries++) {
+        if (cancelled) {
+          return null;
+        }
+        backOff(tries);
+      }
+    }
+    if (cancelled) {
+      return null;
+    }
+    return remove(position);
+  }
+
+  /**
+   * Removes and returns the element at the head of the ring if one is available, without
+   * waiting. To be invoked only by the consuming thread.
+   *
+   * @return the element at the head of the ring, or null if the ring is empty or has been
+   * cancelled
+   */
+  E poll() {
+    long position = head.get();
+    if (cancelled || tail.get() <= position) {
+      return null;
+    }
+    return remove(position);
+  }
+
+  @SuppressWarnings("unchecked")
+  private E remove(long position) {
+    int index = (int)position & mask;
+    E element = (E)elements[index];
+    elements[index] = null;
+    head.lazySet(position + 1); // releases the slot to the producer
+    return element;
+  }
+
+  /**
+   * Cancels the ring, releasing any thread waiting upon it; subsequent invocations of
+   * {@link #put put} and {@link #offer offer} return false, and of {@link #take take} and
+   * {@link #poll poll} return null.
+   */
+  void cancel() {
+    cancelled = true;
+  }
+
+  private static void backOff(int tries) {
+    if (tries < SPIN_TRIES) {
+      return;
+    } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getCapacity() {
+    return elements.length;
+  }
+
+  /**
+   * Returns the count of elements currently in the ring.
+   *
+   * @return current depth of the ring
+   */
+  int getDepth() {
+    return (int)Math.max(0, tail.get() - head.get());
+  }
+
+  /**
+   * Returns the greatest depth of the ring observed upon insertion of an element.
+   *
+   * @return maximum depth of the ring
+   */
+  int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * Returns the mean depth of the ring observed upon insertion of an element.
+   *
+   * @return mean depth of the ring
+   */
+  double getMeanDepth() {
+    long count = putCount;
+    return count == 0 ? 0 : (double)depthSum / count;
+  }
+
+  long getPutCount() {
+    return putCount;
+  }
+
+  /**
+   * Returns the number of times the producer found the ring full (i.e., was held up by the
+   * consumer).
+   *
+   * @return count of waits by the producer
+   */
+  long getFullWaitCount() {
+    return fullWaitCount;
+  }
+
+  /**
+   * Returns the number of times the consumer found the ring empty (i.e., was held up by the
+   * producer).
+   *
+   * @return count of waits by the consumer
+   */
+  long getEmptyWaitCount() {
+    return emptyWaitCount;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: depth=%d/%d, maxDepth=%d, meanDepth=%.2f, puts=%d, "
+            + "fullWaits=%d, emptyWaits=%d", name, getDepth(), getCapacity(), maxDepth,
+            getMeanDepth(), putCount, fullWaitCount, emptyWaitCount);
+  }
+}
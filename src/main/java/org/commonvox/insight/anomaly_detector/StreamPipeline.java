@@ -0,0 +1,472 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An instance of the StreamPipeline class processes a stream of transactions in stages, each
+ * stage running on its own thread, with stages connected by bounded single-producer/
+ * single-consumer {@link SpscRing rings}:
+ * <ol>
+ * <li>the <b>reader</b> (the invoking thread) gathers input lines into batches, dealing the
+ * batches out in rotation to the parsers;</li>
+ * <li>each of N <b>parsers</b> {@link EventParser#tokenize tokenizes} the lines of the batches
+ * dealt to it;</li>
+ * <li>the <b>scorer</b> collects the tokenized batches from the parsers in the same rotation
+ * (thus restoring input order), and then -- as the only thread to touch the state of the
+ * detector -- resolves each event, applies it to the friend graph or purchase history, and
+ * assesses each purchase for anomaly;</li>
+ * <li>the <b>writer</b> formats and writes the flagged purchases of each batch, in input
+ * order, through a {@link FlaggedPurchaseWriter} (directly from the bytes of the batch).</li>
+ * </ol>
+ * If the pipeline is given a {@link SpeculativeScorer}, the scorer processes each batch through
+ * it, so that the batch's purchases are scored in parallel (with identical results).
+ * The output is thus identical to that of serial processing, while the scorer is spared the
+ * costs of reading, parsing, and output. Should a line fail to parse, the events preceding it
+ * are processed (and their flagged purchases written) before the exception is thrown, just as
+ * in serial processing. The depths of the rings are available as {@link #getRings() metrics}.
+ * <br><br>
+ * A pipeline is to be used for a single run.
+ *
+ * @author Daniel Vimont
+ */
+final class StreamPipeline {
+
+  static final int DEFAULT_RING_CAPACITY = 16; // batches
+  static final int MAX_BATCH_LINES = 1024;
+  static final int MAX_BATCH_BYTES = 1 << 16;
+
+  private static final Batch END = new Batch();
+
+  private final AnomalyEngine engine;
+  private final int parserCount;
+  private final List<SpscRing<Batch>> parseRings = new ArrayList<>();    // reader to parsers
+  private final List<SpscRing<Batch>> sequenceRings = new ArrayList<>(); // parsers to scorer
+  private final SpscRing<Batch> outputRing;                               // scorer to writer
+  private final SpeculativeScorer speculativeScorer;
+  private final List<Thread> threads = new ArrayList<>();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  private long dispatchCount = 0;
+  private boolean used = false;
+
+  /**
+   * Initializes a new pipeline, with rings of the default capacity.
+   *
+   * @param engine engine to which transactions are to be applied
+   * @param parserCount number of parser threads
+   */
+  StreamPipeline(AnomalyEngine engine, int parserCount) {
+    this(engine, parserCount, DEFAULT_RING_CAPACITY, null);
+  }
+
+  /**
+   * Initializes a new pipeline.
+   *
+   * @param engine engine to which transactions are to be applied
+   * @param parserCount number of parser threads
+   * @param ringCapacity capacity (in batches) of each ring
+   * @param speculativeScorer scorer through which batches are to be processed, or null if
+   * purchases are to be scored serially (the scorer must be of the same engine)
+   */
+  StreamPipeline(AnomalyEngine engine, int parserCount, int ringCapacity,
+          SpeculativeScorer speculativeScorer) {
+    if (parserCount < 1) {
+      throw new IllegalArgumentException("At least one parser thread required.");
+    }
+    this.engine = engine;
+    this.parserCount = parserCount;
+    for (int i = 0; i < parserCount; i++) {
+      parseRings.add(new SpscRing<>("parse-" + i, ringCapacity));
+      sequenceRings.add(new SpscRing<>("sequence-" + i, ringCapacity));
+    }
+    outputRing = new SpscRing<>("output", ringCapacity);
+    this.speculativeScorer = speculativeScorer;
+  }
+
+  /**
+   * Processes the lines of the submitted memory-mapped reader. The lines are not copied: each
+   * batch references the mapped window from which its lines were read.
+   *
+   * @param reader reader of a memory-mapped file of newline-delimited transactions
+   * @param anomalyWriter writer to receive flagged purchases, or null if purchases are not to be
+   * assessed
+   * @throws IOException if file access problems encountered
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
+   */
+  void process(MappedLineReader reader, FlaggedPurchaseWriter anomalyWriter)
+          throws IOException, ParseException {
+    start(anomalyWriter);
+    try {
+      Batch batch = new Batch();
+      while (failure.get() == null && reader.nextLine()) {
+        ByteBuffer buffer = reader.getBuffer();
+        if (batch.lineCount == MAX_BATCH_LINES
+                || (batch.lineCount > 0 && batch.buffer != buffer)) { // window remapped
+          dispatch(batch);
+          batch = new Batch();
+        }
+        batch.buffer = buffer;
+        batch.addLine(reader.getLineStart(), reader.getLineEnd());
+      }
+      dispatch(batch);
+      dispatchEnd();
+    } catch (IOException | RuntimeException | Error e) {
+      fail(e);
+    }
+    finish();
+  }
+
+  /**
+   * Processes the lines of the submitted iterator, each of which is encoded (as UTF-8) into the
+   * byte array of its batch.
+   *
+   * @param lines lines of transactions
+   * @param anomalyWriter writer to receive flagged purchases, or null if purchases are not to be
+   * assessed
+   * @throws IOException if file access problems encountered
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
+   */
+  void process(Iterator<String> lines, FlaggedPurchaseWriter anomalyWriter)
+          throws IOException, ParseException {
+    start(anomalyWriter);
+    try {
+      Batch batch = new Batch();
+      while (failure.get() == null && lines.hasNext()) {
+        if (batch.lineCount == MAX_BATCH_LINES || batch.byteCount >= MAX_BATCH_BYTES) {
+          dispatch(batch);
+          batch = new Batch();
+        }
+        batch.addLine(lines.next());
+      }
+      dispatch(batch);
+      dispatchEnd();
+    } catch (RuntimeException | Error e) {
+      fail(e);
+    }
+    finish();
+  }
+
+  /**
+   * Returns the rings connecting the stages of the pipeline, whose depth metrics may be
+   * consulted during or after a run.
+   *
+   * @return rings of the pipeline, in stage order
+   */
+  List<SpscRing<?>> getRings() {
+    List<SpscRing<?>> rings = new ArrayList<>(parseRings);
+    rings.addAll(sequenceRings);
+    rings.add(outputRing);
+    return Collections.unmodifiableList(rings);
+  }
+
+  /**
+   * Returns the speculative scorer of the pipeline (whose metrics may be consulted), or null if
+   * purchases are scored serially.
+   *
+   * @return speculative scorer, or null
+   */
+  SpeculativeScorer getSpeculativeScorer() {
+    return speculativeScorer;
+  }
+
+  private void start(FlaggedPurchaseWriter anomalyWriter) {
+    if (used) {
+      throw new IllegalStateException("A StreamPipeline may only be used for a single run.");
+    }
+    used = true;
+    for (int i = 0; i < parserCount; i++) {
+      SpscRing<Batch> input = parseRings.get(i);
+      SpscRing<Batch> output = sequenceRings.get(i);
+      threads.add(new Thread(() -> parse(input, output), "anomaly-pipeline-parser-" + i));
+    }
+    threads.add(new Thread(() -> score(anomalyWriter != null), "anomaly-pipeline-scorer"));
+    threads.add(new Thread(() -> write(anomalyWriter), "anomaly-pipeline-writer"));
+    for (Thread thread : threads) {
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void dispatch(Batch batch) {
+    if (batch.lineCount > 0) {
+      batch.seal();
+      parseRings.get((int)(dispatchCount++ % parserCount)).put(batch);
+    }
+  }
+
+  private void dispatchEnd() {
+    for (SpscRing<Batch> ring : parseRings) {
+      ring.put(END);
+    }
+  }
+
+  /** Body of each parser thread. */
+  private void parse(SpscRing<Batch> input, SpscRing<Batch> output) {
+    EventParser parser = new EventParser(null, new EventTime()); // used only for tokenization
+    EventRecord record = new EventRecord();
+    Batch batch;
+    while ((batch = input.take()) != null) {
+      if (batch != END) {
+        batch.tokenize(parser, record);
+      }
+      if (!output.put(batch) || batch == END) {
+        return;
+      }
+    }
+  }
+
+  /** Body of the scorer thread, which collects batches from the parsers in dispatch order. */
+  private void score(boolean scoring) {
+    ByteRange range = new ByteRange();
+    for (long sequence = 0; ; sequence++) {
+      Batch batch = sequenceRings.get((int)(sequence % parserCount)).take();
+      if (batch == null) {
+        return;
+      }
+      if (batch != END) {
+        if (scoring && speculativeScorer != null) {
+          batch.apply(speculativeScorer, range);
+        } else {
+          batch.apply(engine, scoring, range);
+        }
+      }
+      if (!outputRing.put(batch) || batch == END || batch.failure != null) {
+        return;
+      }
+    }
+  }
+
+  /** Body of the writer thread. */
+  private void write(FlaggedPurchaseWriter anomalyWriter) {
+    try {
+      Batch batch;
+      while ((batch = outputRing.take()) != null && batch != END) {
+        for (int flagged = 0; flagged < batch.flaggedCount; flagged++) {
+          int event = batch.flaggedEvents[flagged];
+          anomalyWriter.write(batch.buffer, batch.chunk.lineStarts[event],
+                  batch.chunk.lineEnds[event], batch.flaggedMeans[flagged],
+                  batch.flaggedSds[flagged]);
+        }
+        if (batch.failure != null) {
+          fail(batch.failure);
+          break;
+        }
+      }
+      if (anomalyWriter != null) {
+        anomalyWriter.flush();
+      }
+    } catch (IOException | RuntimeException | Error e) {
+      fail(e);
+    }
+  }
+
+  /** Records the first failure of the pipeline, and releases all threads waiting upon rings. */
+  private void fail(Throwable throwable) {
+    failure.compareAndSet(null, throwable);
+    for (SpscRing<?> ring : getRings()) {
+      ring.cancel();
+    }
+  }
+
+  /** Awaits the completion of all stages, then throws the first failure of the pipeline. */
+  private void finish() throws IOException, ParseException {
+    boolean interrupted = false;
+    for (Thread thread : threads) {
+      while (true) {
+        try {
+          thread.join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+          fail(new InterruptedIOException("Interrupted while awaiting completion of pipeline."));
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    Throwable throwable = failure.get();
+    if (throwable == null) {
+      return;
+    } else if (throwable instanceof IOException) {
+      throw (IOException)throwable;
+    } else if (throwable instanceof UncheckedIOException) { // e.g., from the event log
+      throw ((UncheckedIOException)throwable).getCause();
+    } else if (throwable instanceof ParseException) {
+      throw (ParseException)throwable;
+    } else if (throwable instanceof RuntimeException) {
+      throw (RuntimeException)throwable;
+    } else if (throwable instanceof Error) {
+      throw (Error)throwable;
+    }
+    throw new IllegalStateException(throwable);
+  }
+
+  /**
+   * A batch of consecutive input lines, which passes through every stage of the pipeline: its
+   * lines are gathered by the reader, tokenized by a parser (into a {@link ParsedChunk}),
+   * resolved and scored by the scorer (which notes the batch's flagged purchases), and its
+   * flagged purchases are written by the writer.
+   */
+  private static final class Batch {
+    private ByteBuffer buffer;
+    private byte[] bytes; // holds the lines of String input
+    private int byteCount = 0;
+    private int lineCount = 0;
+    private int[] lineStarts = new int[64];
+    private int[] lineEnds = new int[64];
+
+    private final ParsedChunk chunk = new ParsedChunk();
+    private Exception failure; // failure following the last of the chunk's events
+
+    private int flaggedCount = 0;
+    private int[] flaggedEvents;
+    private long[] flaggedMeans;
+    private long[] flaggedSds;
+
+    void addLine(int start, int end) {
+      if (lineCount == lineStarts.length) {
+        lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+        lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+      }
+      lineStarts[lineCount] = start;
+      lineEnds[lineCount++] = end;
+    }
+
+    void addLine(String line) {
+      int length = line.length();
+      if (bytes == null) {
+        bytes = new byte[Math.max(MAX_BATCH_BYTES, length) + 64];
+      }
+      ensureCapacity(length);
+      int start = byteCount;
+      for (int i = 0; i < length; i++) {
+        char c = line.charAt(i);
+        if (c >= 0x80) {
+          byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+          ensureCapacity(encoded.length);
+          System.arraycopy(encoded, 0, bytes, start, encoded.length);
+          byteCount = start + encoded.length;
+          addLine(start, byteCount);
+          return;
+        }
+        bytes[byteCount++] = (byte)c;
+      }
+      addLine(start, byteCount);
+    }
+
+    private void ensureCapacity(int length) {
+      if (bytes.length - byteCount < length) {
+        bytes = Arrays.copyOf(bytes, Math.max(byteCount + length, bytes.length * 2));
+      }
+    }
+
+    /** Completes the gathering of lines into the batch. */
+    void seal() {
+      if (bytes != null) {
+        buffer = ByteBuffer.wrap(bytes, 0, byteCount);
+      }
+      chunk.buffer = buffer;
+    }
+
+    void tokenize(EventParser parser, EventRecord record) {
+      FlightRecorderEvents.Parse event = FlightRecorderEvents.beginParse();
+      try {
+        for (int line = 0; line < lineCount; line++) {
+          if (parser.tokenize(buffer, lineStarts[line], lineEnds[line], record)) {
+            chunk.add(record);
+          }
+        }
+      } catch (ParseException | RuntimeException e) {
+        failure = e;
+      }
+      if (event != null && lineCount > 0) {
+        event.complete(lineCount, lineEnds[lineCount - 1] - lineStarts[0]);
+      }
+    }
+
+    void apply(AnomalyEngine engine, boolean scoring, ByteRange range) {
+      EventLog eventLog = engine.getEventLog();
+      DetectorMetrics metrics = engine.getMetrics();
+      int i = 0;
+      try {
+        for (; i < chunk.count; i++) {
+          long startNanos = metrics == null ? 0 : System.nanoTime();
+          chunk.resolveIdentities(engine, i, range);
+          if (eventLog != null) { // written ahead of the event's application
+            eventLog.append(chunk, i);
+          }
+          User purchaser = chunk.apply(engine, i);
+          if (purchaser != null) {
+            long amount = chunk.amounts[i];
+            if (scoring) {
+              long[] anomalyData = purchaser.getAnomalyData(amount);
+              if (metrics != null) {
+                metrics.recordOutcome(anomalyData != null);
+              }
+              if (anomalyData != null) {
+                addFlagged(i, anomalyData);
+              }
+            }
+            purchaser.addPurchase(chunk.eventTimes[i], amount);
+          }
+          if (metrics != null) {
+            metrics.recordEvent(chunk.getType(i), System.nanoTime() - startNanos);
+          }
+        }
+      } catch (RuntimeException e) {
+        failure = e; // precedes any failure of tokenization
+      }
+      chunk.releaseTokens();
+    }
+
+    void apply(SpeculativeScorer speculativeScorer, ByteRange range) {
+      try {
+        speculativeScorer.process(chunk, range, (anomalyData, i) -> addFlagged(i, anomalyData));
+      } catch (RuntimeException e) {
+        failure = e; // precedes any failure of tokenization
+      }
+      chunk.releaseTokens();
+    }
+
+    private void addFlagged(int event, long[] anomalyData) {
+      if (flaggedEvents == null) {
+        flaggedEvents = new int[8];
+        flaggedMeans = new long[8];
+        flaggedSds = new long[8];
+      } else if (flaggedCount == flaggedEvents.length) {
+        flaggedEvents = Arrays.copyOf(flaggedEvents, flaggedCount * 2);
+        flaggedMeans = Arrays.copyOf(flaggedMeans, flaggedCount * 2);
+        flaggedSds = Arrays.copyOf(flaggedSds, flaggedCount * 2);
+      }
+      flaggedEvents[flaggedCount] = event;
+      flaggedMeans[flaggedCount] = anomalyData[0];
+      flaggedSds[flaggedCount++] = anomalyData[1];
+    }
+  }
+}
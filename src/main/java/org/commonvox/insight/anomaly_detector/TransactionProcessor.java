@@ -17,14 +17,17 @@ package org.commonvox.insight.anomaly_detector;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
 import java.time.Instant;
+import java.util.Iterator;
 import java.util.stream.Stream;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 /**
  * The TransactionProcessor class serves as the primary API for the "anomaly_detector"
@@ -34,38 +37,140 @@ import org.json.simple.parser.ParseException;
  */
 public class TransactionProcessor {
 
-  private static final String DEGREE_KEY = "D";
-  private static final String THRESHOLD_KEY = "T";
-  private static final String EVENT_TYPE_KEY = "event_type";
-  private static final String BEFRIEND_EVENT = "befriend";
-  private static final String UNFRIEND_EVENT = "unfriend";
-  private static final String PURCHASE_EVENT = "purchase";
-  private static final String TIMESTAMP_KEY = "timestamp";
-  private static final String ID_KEY = "id";
-  private static final String AMOUNT_KEY = "amount";
-  private static final String ID1_KEY = "id1";
-  private static final String ID2_KEY = "id2";
-  private static final StringBuilder STRING_BUILDER = new StringBuilder(50);
-  private static final JSONParser JSON_PARSER = new JSONParser();
+  private static final int INITIAL_LINE_CAPACITY = 256;
+  static final int DEFAULT_PIPELINE_PARSER_COUNT
+          = Math.min(4, Math.max(0, Runtime.getRuntime().availableProcessors() - 2));
+  static final int DEFAULT_SCORING_THREAD_COUNT
+          = Runtime.getRuntime().availableProcessors() >= 4
+                  ? Runtime.getRuntime().availableProcessors() : 0;
 
-  // NOTE: the following EXACT template (with explicit spaces) required to pass Insight test script!
-  private static final String MEAN_SD_JSON_TEMPLATE = ", \"mean\": \"%s\", \"sd\": \"%s\"}";
+  private final AnomalyEngine engine;
+  private final EventParser eventParser;
+  private final EventRecord eventRecord = new EventRecord();
+  private byte[] lineBytes = new byte[INITIAL_LINE_CAPACITY]; // encoding of String-based input
+  private ByteBuffer lineBuffer = ByteBuffer.wrap(lineBytes);
+  private int pipelineParserCount = DEFAULT_PIPELINE_PARSER_COUNT;
+  private int scoringThreadCount = DEFAULT_SCORING_THREAD_COUNT;
+  private StreamPipeline pipeline;
+  private volatile boolean following = false;
 
   /**
    * Initializes a new TransactionProcessor, which reads in startup parameters and initializing
    * transactions from a batch file (e.g., "batch_log.json") for which a relative path is
-   * identified by the submitted parameter.
+   * identified by the submitted parameter. The batch file is loaded in parallel (see
+   * {@link BatchLoader}), yielding the same state as would serial processing of the file.
    *
    * @param batchPathString String representation of local relative path for an existing batch file
    * (e.g., "batch_log.json") containing startup parameters and initializing transactions.
    * @throws IOException if file access problems encountered
-   * @throws org.json.simple.parser.ParseException if problems encountered in parsing of JSON input
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
    */
   public TransactionProcessor(String batchPathString)
           throws IOException, ParseException {
-    processPathStringInput(batchPathString, null);
+    this(new AnomalyEngine(), batchPathString);
+  }
+
+  /**
+   * Initializes a new TransactionProcessor, which reads in startup parameters and initializing
+   * transactions from a batch file (e.g., "batch_log.json") into the submitted engine. Each
+   * engine is independent of all others, so that multiple detectors (each with its own engine
+   * and TransactionProcessor) may run side by side in one JVM.
+   *
+   * @param engine engine to hold the state of the detector (which is to be otherwise unused)
+   * @param batchPathString String representation of local relative path for an existing batch file
+   * (e.g., "batch_log.json") containing startup parameters and initializing transactions.
+   * @throws IOException if file access problems encountered
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
+   */
+  public TransactionProcessor(AnomalyEngine engine, String batchPathString)
+          throws IOException, ParseException {
+    this(engine);
+    new BatchLoader(engine).load(Paths.get(batchPathString));
+    engine.compactFriendGraph();
     // throw exception if, after batch file processed,
-    //   either User.getDegreesOfSeparation or PurchaseManager.getThreshold == 0!!
+    //   either engine.getDegreesOfSeparation or engine.getThreshold == 0!!
+  }
+
+  /**
+   * Initializes a new TransactionProcessor upon the submitted engine, whose state (including
+   * startup parameters) has already been established, e.g., via
+   * {@link AnomalyEngine#restoreSnapshot(java.nio.file.Path) restoration from a snapshot}.
+   *
+   * @param engine engine holding the state of the detector (which is to be otherwise unused)
+   */
+  public TransactionProcessor(AnomalyEngine engine) {
+    this.engine = engine;
+    eventParser = new EventParser(engine.getIdDictionary(), engine.getEventTime());
+  }
+
+  /**
+   * Returns the engine holding the state of this TransactionProcessor's detector.
+   *
+   * @return engine of this detector
+   */
+  public AnomalyEngine getEngine() {
+    return engine;
+  }
+
+  /**
+   * Sets the number of parser threads of the {@link StreamPipeline} through which subsequently
+   * submitted stream input is processed; if set to zero, stream input is processed serially, on
+   * the invoking thread. The default is based upon the number of available processors (with
+   * serial processing on machines having fewer than three).
+   *
+   * @param pipelineParserCount number of parser threads, or zero for serial processing
+   */
+  protected void setPipelineParserCount(int pipelineParserCount) {
+    if (pipelineParserCount < 0) {
+      throw new IllegalArgumentException("Parser thread count may not be negative.");
+    }
+    this.pipelineParserCount = pipelineParserCount;
+  }
+
+  /**
+   * Returns the number of parser threads of the {@link StreamPipeline} through which stream
+   * input is processed, or zero if stream input is processed serially.
+   *
+   * @return number of parser threads, or zero for serial processing
+   */
+  protected int getPipelineParserCount() {
+    return pipelineParserCount;
+  }
+
+  /**
+   * Sets the number of threads among which the purchases of stream input processed through a
+   * {@link StreamPipeline} are {@link SpeculativeScorer speculatively scored}; if set to zero,
+   * purchases are scored serially. (Output is identical in either case.) The default is the
+   * number of available processors (with serial scoring on machines having fewer than four).
+   *
+   * @param scoringThreadCount number of scoring threads, or zero for serial scoring
+   */
+  protected void setScoringThreadCount(int scoringThreadCount) {
+    if (scoringThreadCount < 0) {
+      throw new IllegalArgumentException("Scoring thread count may not be negative.");
+    }
+    this.scoringThreadCount = scoringThreadCount;
+  }
+
+  /**
+   * Returns the number of threads among which the purchases of stream input processed through a
+   * {@link StreamPipeline} are speculatively scored, or zero if purchases are scored serially.
+   *
+   * @return number of scoring threads, or zero for serial scoring
+   */
+  protected int getScoringThreadCount() {
+    return scoringThreadCount;
+  }
+
+  /**
+   * Returns the pipeline through which stream input was most recently processed (whose
+   * queue-depth metrics may be consulted), or null if no input has been processed through a
+   * pipeline.
+   *
+   * @return most recent pipeline, or null
+   */
+  StreamPipeline getPipeline() {
+    return pipeline;
   }
 
   /**
@@ -79,7 +184,7 @@ public class TransactionProcessor {
    * @param anomalyPathString String representation of local relative path for output file (which
    * need not yet exist) which is to receive outputted anomaly records in JSON format.
    * @throws IOException if file access problems encountered
-   * @throws org.json.simple.parser.ParseException if problems encountered in parsing of JSON input
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
    */
   public final void processPathStringInput(String pathString, String anomalyPathString)
           throws IOException, ParseException {
@@ -97,121 +202,278 @@ public class TransactionProcessor {
    * @param anomalyPathString String representation of local relative path for output file (which
    * need not yet exist) which is to receive outputted anomaly records in JSON format.
    * @throws IOException if file access problems encountered
-   * @throws org.json.simple.parser.ParseException if problems encountered in parsing of JSON input
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
    */
   public final void processPathInput(Path path, String anomalyPathString)
           throws IOException, ParseException {
     if (anomalyPathString == null) {
-      try (Stream<String> stream = Files.lines(path) ) {
-        processStreamInput(stream, null);
+      try (MappedLineReader reader = new MappedLineReader(path)) {
+        processMappedInput(reader, null);
       }
     } else {
-      Path anomalyPath = Paths.get(anomalyPathString);
-
-      // Do not overlay previous anomaly analysis output; if previous output exists, rename it!
-      if (Files.exists(anomalyPath)) {
-        // System.out.println("RENAMING EXISTING OUTPUT FILE!!");
-        Files.move(anomalyPath, Paths.get(anomalyPathString + "." + Instant.now().toString() + ".json"));
+      try (MappedLineReader reader = new MappedLineReader(path);
+              FlaggedPurchaseWriter anomalyWriter = openAnomalyWriter(anomalyPathString) ) {
+        processMappedInput(reader, anomalyWriter);
       }
+    }
+  }
 
-      try (Stream<String> stream = Files.lines(path);
-              BufferedWriter anomalyWriter = Files.newBufferedWriter(anomalyPath) ) {
-        processStreamInput(stream, anomalyWriter);
+  /**
+   * Provides for real-time stream processing of a file to which transactions are still being
+   * appended (e.g., a growing "stream_log.json"), in the manner of "tail -f": the lines already
+   * in the file are processed, after which each line appended to the file is processed as soon
+   * as it is complete, and any anomalies found are written out immediately (rather than upon
+   * the end of input). Lines are read via a {@link FollowingLineReader}, which waits for the
+   * file to be modified for at most the submitted count of milliseconds at a time. Processing
+   * is serial, on the invoking thread (regardless of the
+   * {@link #setPipelineParserCount pipeline parser count}), and continues until
+   * {@link #stopFollowing()} is invoked or the invoking thread is interrupted. If
+   * {@link AnomalyEngine#setMetrics metrics} are attached to the engine, the lag of each
+   * event's processing behind its timestamp is recorded.
+   *
+   * @param path Path representation of local relative path for an existing file
+   * (e.g., "stream_log.json") for anomaly-detection processing.
+   * @param anomalyPathString String representation of local relative path for output file (which
+   * need not yet exist) which is to receive outputted anomaly records in JSON format.
+   * @param maxWaitMillis maximum milliseconds of each wait for the file to be modified
+   * @throws IOException if file access problems encountered (including truncation of the file)
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
+   */
+  public final void followPathInput(Path path, String anomalyPathString, long maxWaitMillis)
+          throws IOException, ParseException {
+    following = true;
+    try (FollowingLineReader reader = new FollowingLineReader(path, maxWaitMillis);
+            FlaggedPurchaseWriter anomalyWriter = anomalyPathString == null ? null
+                    : openAnomalyWriter(anomalyPathString) ) {
+      while (following) {
+        if (!reader.read()) {
+          try {
+            reader.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+          continue;
+        }
+        while (reader.nextLine()) {
+          if (processLine(reader.getBuffer(), reader.getLineStart(), reader.getLineEnd(),
+                  anomalyWriter)) {
+            recordEventLag();
+          }
+        }
+        if (anomalyWriter != null) {
+          anomalyWriter.flush();
+        }
+        commitEventLog();
       }
+    } finally {
+      following = false;
+    }
+  }
+
+  /**
+   * Stops the {@link #followPathInput following} of a file (if any is in progress), once the
+   * lines already read from the file have been processed.
+   */
+  public void stopFollowing() {
+    following = false;
+  }
+
+  private void recordEventLag() {
+    DetectorMetrics metrics = engine.getMetrics();
+    if (metrics != null && eventRecord.getType() != EventType.PARAMETERS) {
+      metrics.recordEventLag(System.currentTimeMillis()
+              - EventTime.epochSecond(eventRecord.getEventTime()) * 1000);
+    }
+  }
+
+  /**
+   * Opens a writer of flagged purchases to the submitted output file, first renaming any
+   * previous output found there.
+   */
+  private static FlaggedPurchaseWriter openAnomalyWriter(String anomalyPathString)
+          throws IOException {
+    Path anomalyPath = Paths.get(anomalyPathString);
+
+    // Do not overlay previous anomaly analysis output; if previous output exists, rename it!
+    if (Files.exists(anomalyPath)) {
+      // System.out.println("RENAMING EXISTING OUTPUT FILE!!");
+      Files.move(anomalyPath, Paths.get(anomalyPathString + "." + Instant.now().toString() + ".json"));
     }
+    return new FlaggedPurchaseWriter(FileChannel.open(anomalyPath, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
   }
 
   /**
    * Provides for real-time stream processing of transactions being submitted for anomaly-detection
    * processing. Note that this method is also internally invoked by other TransactionProcessor
-   * method(s) which convert batch file records into streaming records.
+   * method(s) which convert batch file records into streaming records. Unless the
+   * {@link #setPipelineParserCount pipeline parser count} is zero, the transactions are
+   * processed through a multi-threaded {@link StreamPipeline}, with output in input order.
    *
    * @param stream stream of transactions being submitted for anomaly-detection processing.
    * @param anomalyWriter BufferedWriter object to receive outputted anomaly records in JSON format.
    * @throws IOException if file access problems encountered
-   * @throws org.json.simple.parser.ParseException if problems encountered in parsing of JSON input
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
    */
   public final void processStreamInput(Stream<String> stream, BufferedWriter anomalyWriter)
           throws ParseException, IOException {
+    FlaggedPurchaseWriter flaggedPurchaseWriter
+            = anomalyWriter == null ? null : new FlaggedPurchaseWriter(anomalyWriter);
+    try {
+      if (pipelineParserCount > 0) {
+        pipeline = new StreamPipeline(engine, pipelineParserCount,
+                StreamPipeline.DEFAULT_RING_CAPACITY, newSpeculativeScorer());
+        pipeline.process(stream.iterator(), flaggedPurchaseWriter);
+        return;
+      }
+      try {
+        for (Iterator<String> iterator = stream.iterator(); iterator.hasNext(); ) {
+          ByteBuffer buffer = encode(iterator.next());
+          processLine(buffer, 0, buffer.limit(), flaggedPurchaseWriter);
+        }
+      } finally {
+        if (flaggedPurchaseWriter != null) {
+          flaggedPurchaseWriter.flush();
+        }
+      }
+    } finally {
+      commitEventLog();
+    }
+  }
 
-    boolean pastFirstOutputLine = false;
-    for(String jsonString : stream.toArray(String[]::new)) {
-      if (jsonString.isEmpty()) {
-        continue;
+  /**
+   * Processes the lines of JSON transactions read by the submitted reader, each of which is
+   * parsed directly from the bytes of the mapped file.
+   *
+   * @param reader reader of a memory-mapped file of newline-delimited transactions
+   * @param anomalyWriter writer to receive outputted anomaly records in JSON format, or null if
+   * purchases are not to be assessed for anomaly.
+   * @throws IOException if file access problems encountered
+   * @throws java.text.ParseException if problems encountered in parsing of JSON input
+   */
+  private void processMappedInput(MappedLineReader reader, FlaggedPurchaseWriter anomalyWriter)
+          throws ParseException, IOException {
+    try {
+      if (pipelineParserCount > 0) {
+        pipeline = new StreamPipeline(engine, pipelineParserCount,
+                StreamPipeline.DEFAULT_RING_CAPACITY, newSpeculativeScorer());
+        pipeline.process(reader, anomalyWriter);
+        return;
+      }
+      while (reader.nextLine()) {
+        processLine(reader.getBuffer(), reader.getLineStart(), reader.getLineEnd(), anomalyWriter);
       }
-      JSONObject jsonObject = (JSONObject) JSON_PARSER.parse(jsonString);
-      String eventType = (String) jsonObject.get(EVENT_TYPE_KEY);
-      if (eventType == null) {
-        String degreeString = (String) jsonObject.get(DEGREE_KEY);  // throw exception if null; write line to "bad data" file.
-        String thresholdString = (String) jsonObject.get(THRESHOLD_KEY);  // throw exception if null; write line to "bad data file"
-
-        if (User.getDegreesOfSeparation() == 0) { // may only be set once; subsequent submissions ignored (throw exception?).
-          User.setDegreesOfSeparation(Integer.parseInt(degreeString));
+    } finally {
+      commitEventLog();
+    }
+  }
+
+  /** Commits the events appended to the engine's event log (if any) during processing. */
+  void commitEventLog() throws IOException {
+    EventLog eventLog = engine.getEventLog();
+    if (eventLog != null) {
+      eventLog.commit();
+    }
+  }
+
+  private SpeculativeScorer newSpeculativeScorer() {
+    return scoringThreadCount > 0 ? new SpeculativeScorer(engine, scoringThreadCount) : null;
+  }
+
+  /**
+   * Parses and applies the line occupying the submitted range of the submitted buffer,
+   * returning false if the line holds no event (e.g., is blank) or an event of unrecognized type
+   * (which is counted as {@link AnomalyEngine#getRejectedEventCount rejected}). (Also invoked by
+   * the applier thread of an {@link IngestionServer}.) A line is parsed and validated in full
+   * before the event is logged or applied, so that a ParseException leaves the engine's state
+   * unchanged (but for the interning of user-ids); any other exception may leave the event
+   * partly applied, and is not to be survived.
+   */
+  boolean processLine(ByteBuffer buffer, int start, int end,
+          FlaggedPurchaseWriter anomalyWriter)
+          throws ParseException, IOException {
+    EventRecord record = eventRecord;
+    FlightRecorderEvents.Parse parseEvent = FlightRecorderEvents.beginParse();
+    boolean parsed = eventParser.parse(buffer, start, end, record);
+    if (parseEvent != null) {
+      parseEvent.complete(1, end - start);
+    }
+    if (!parsed) {
+      return false;
+    }
+    DetectorMetrics metrics = engine.getMetrics();
+    long startNanos = metrics == null ? 0 : System.nanoTime();
+    EventLog eventLog = engine.getEventLog();
+    if (eventLog != null) { // written ahead of the event's application
+      eventLog.append(record);
+    }
+    User user1, user2;
+    switch (record.getType()) {
+      case PARAMETERS:
+        if (engine.getDegreesOfSeparation() == 0) { // may only be set once; subsequent submissions ignored (throw exception?).
+          engine.setDegreesOfSeparation(record.getDegreesOfSeparation());
         }
-        if (PurchaseManager.getThreshold() == 0) { // may only be set once; subsequent submissions ignored (throw exception?).
-          PurchaseManager.setThreshold(Integer.parseInt(thresholdString));
+        if (engine.getThreshold() == 0) { // may only be set once; subsequent submissions ignored (throw exception?).
+          engine.setThreshold(record.getThreshold());
         }
-      } else {
-        String timestamp = (String)jsonObject.get(TIMESTAMP_KEY);
-        User user1, user2;
-        String id1, id2;
-
-        switch (eventType) {
-          case BEFRIEND_EVENT:
-            // System.out.println("befriend event");
-            id1 = (String)jsonObject.get(ID1_KEY);
-            id2 = (String)jsonObject.get(ID2_KEY);
-            user1 = User.getOrCreateUser(id1);
-            user2 = User.getOrCreateUser(id2);
-            user1.befriend(timestamp, user2);
-            user2.befriend(timestamp, user1);
-            break;
-          case UNFRIEND_EVENT:
-            // System.out.println("unfriend event");
-            id1 = (String)jsonObject.get(ID1_KEY);
-            id2 = (String)jsonObject.get(ID2_KEY);
-            user1 = User.getOrCreateUser(id1);
-            user2 = User.getOrCreateUser(id2);
-            user1.unfriend(timestamp, user2);
-            user2.unfriend(timestamp, user1);
-            break;
-          case PURCHASE_EVENT:
-            // System.out.println("purchase event");
-            String id = (String)jsonObject.get(ID_KEY);
-            Integer amount = PurchaseManager.amountStringToInteger((String)jsonObject.get(AMOUNT_KEY));
-
-            User user = User.getOrCreateUser(id);
-            if (anomalyWriter != null) {
-              int[] anomalyData = user.getAnomalyData(amount);
-              if (anomalyData != null) {
-                //**********************
-                // NOTE: the following string manipulation SHOULD likely be replaced by standard usage of
-                //   the JSONObject already parsed above. String manipulation is temporarily done
-                //   here simply to keep the order of the JSON elements in the output file
-                //   consistent with requirements specified in the original project specifications!
-                //**********************
-                STRING_BUILDER.setLength(0);
-                STRING_BUILDER.append(jsonString.substring(0, jsonString.length() - 1))
-                        .append(String.format(
-                                MEAN_SD_JSON_TEMPLATE,
-                                PurchaseManager.amountIntegerToString(anomalyData[0]),
-                                PurchaseManager.amountIntegerToString(anomalyData[1])));
-                if (pastFirstOutputLine) {
-                  anomalyWriter.newLine();
-                } else {
-                  pastFirstOutputLine = true;
-                }
-                anomalyWriter.write(STRING_BUILDER.toString());
-              }
-            }
-            user.addPurchase(timestamp, amount);
-            break;
-          default:
-            System.out.println("UNKNOWN event encountered!!"); // throw exception; or write line to "bad data" file.
-            break;
+        break;
+      case BEFRIEND:
+        user1 = engine.getOrCreateUser(record.getUserIndex());
+        user2 = engine.getOrCreateUser(record.getOtherUserIndex());
+        user1.befriend(record.getEventTime(), user2);
+        user2.befriend(record.getEventTime(), user1);
+        break;
+      case UNFRIEND:
+        user1 = engine.getOrCreateUser(record.getUserIndex());
+        user2 = engine.getOrCreateUser(record.getOtherUserIndex());
+        user1.unfriend(record.getEventTime(), user2);
+        user2.unfriend(record.getEventTime(), user1);
+        break;
+      case PURCHASE:
+        long amount = record.getAmount();
+        User user = engine.getOrCreateUser(record.getUserIndex());
+        if (anomalyWriter != null) {
+          long[] anomalyData = user.getAnomalyData(amount);
+          if (metrics != null) {
+            metrics.recordOutcome(anomalyData != null);
+          }
+          if (anomalyData != null) { // mean and sd elements appended to the original input line
+            anomalyWriter.write(record.getBuffer(), record.getLineStart(), record.getLineEnd(),
+                    anomalyData[0], anomalyData[1]);
+          }
         }
-        // System.out.println(jsonObject.toString());
+        user.addPurchase(record.getEventTime(), amount);
+        break;
+      default:
+        engine.rejectEvent();
+        return false;
+    }
+    if (metrics != null) {
+      metrics.recordEvent(record.getType(), System.nanoTime() - startNanos);
+    }
+    return true;
+  }
+
+  /**
+   * Encodes the submitted String (as UTF-8) into the reusable line buffer, avoiding allocation
+   * for ASCII Strings.
+   */
+  private ByteBuffer encode(String jsonString) {
+    int length = jsonString.length();
+    if (lineBytes.length < length) {
+      lineBytes = new byte[Math.max(length, lineBytes.length * 2)];
+      lineBuffer = ByteBuffer.wrap(lineBytes);
+    }
+    for (int i = 0; i < length; i++) {
+      char c = jsonString.charAt(i);
+      if (c >= 0x80) {
+        return ByteBuffer.wrap(jsonString.getBytes(StandardCharsets.UTF_8));
       }
+      lineBytes[i] = (byte)c;
     }
+    lineBuffer.clear();
+    lineBuffer.limit(length);
+    return lineBuffer;
   }
 }
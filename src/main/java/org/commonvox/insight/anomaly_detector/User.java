@@ -15,95 +15,99 @@
  */
 package org.commonvox.insight.anomaly_detector;
 
-import java.util.Collection;
-import java.util.NavigableMap;
+import java.util.Arrays;
 import java.util.NavigableSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * An instance of the User class serves as the container for friends and recent purchases of a
- * user, and the User class crucially provides the {@link #getAnomalyData(java.lang.Integer)
+ * user, and the User class crucially provides the {@link #getAnomalyData(long)
  * #getAnomalyData} method, which invokes anomaly-detection on each of a user's new purchases.
+ * Each User belongs to an {@link AnomalyEngine}, from which it is obtained (via
+ * {@link AnomalyEngine#getOrCreateUser(java.lang.String)}), and whose configuration, friend
+ * graph, and locks it uses; the methods of a User may be invoked concurrently by multiple
+ * threads (see {@link AnomalyEngine}).
  *
  * @author Daniel Vimont
  */
 public class User implements Comparable<User> {
 
-  private static int degreesOfSeparation;
-  private static final NavigableMap<String,User> userMap = new TreeMap<>((id1, id2) -> id1.compareTo(id2));
-
+  private final AnomalyEngine engine;
+  private final int index;
   private final String id;
-  private final NavigableSet<User> friends = new TreeSet<>();
 
-  private final NavigableMap<String, String> befriendTimestamps = new TreeMap<>();
-  private final NavigableMap<String, String> unfriendTimestamps = new TreeMap<>();
+  private static final long NO_EVENT_TIME = -1;
+
+  // event times of most recent befriend/unfriend transactions, keyed by index of other user;
+  // these, and the purchaseManager, are guarded by the lock stripe of this user
+  private final IntLongHashMap befriendEventTimes = new IntLongHashMap();
+  private final IntLongHashMap unfriendEventTimes = new IntLongHashMap();
 
-  private final PurchaseManager purchaseManager = new PurchaseManager();
+  private final PurchaseManager purchaseManager;
 
   /**
-   * Set the value of "degrees of separation" class variable, establishing how User networks
-   * will be derived.
+   * Constructor to create a new User object; Users are created via
+   * {@link AnomalyEngine#getOrCreateUser(int)}.
    *
-   * @param classDegreesOfSeparation degrees of separation
+   * @param engine engine to which User belongs
+   * @param index dense int index assigned to the id of User
+   * @param id unique identifier of User
    */
-  protected static void setDegreesOfSeparation(int classDegreesOfSeparation) {
-    // throw exception if degreesOfSeparation < 1
-    degreesOfSeparation = classDegreesOfSeparation;
+  User(AnomalyEngine engine, int index, String id) {
+    this.engine = engine;
+    this.index = index;
+    this.id = id;
+    purchaseManager = new PurchaseManager(engine);
   }
 
   /**
-   * Get the class-variable setting for "degrees of separation", which establishes how User networks
-   * are derived.
+   * Returns id, which uniquely identifies User instance.
    *
-   * @return degrees of separation setting
+   * @return user's id
    */
-  protected static int getDegreesOfSeparation() {
-    return degreesOfSeparation;
+  protected String getId() {
+    return id;
   }
 
   /**
-   * Either gets existing User identified by the submitted id, or if no such User exists, creates
-   * and returns a new User instantiated with the submitted id.
+   * Returns the dense int index assigned to this user's id, which keys all internal structures
+   * (friend sets, networks, and befriend/unfriend event times).
    *
-   * @param id user-id of the new or existing User
-   * @return either existing User identified by the submitted id, or a new User instantiated with
-   * the submitted id.
+   * @return user's index
    */
-  protected static User getOrCreateUser(String id) {
-    User returnedUser = userMap.get(id);
-    if (returnedUser == null) {
-      returnedUser = new User(id);
-      userMap.put(id, returnedUser);
-    }
-    return returnedUser;
+  protected int getIndex() {
+    return index;
   }
 
   /**
-   * Returns a Collection of all instantiated User objects in user-id order.
+   * Returns the PurchaseManager holding this user's recent purchases, which is to be read or
+   * modified only under {@link AnomalyEngine#getLockStripe(int) this user's lock stripe}.
    *
-   * @return Collection of all Users
+   * @return user's PurchaseManager
    */
-  protected static Collection<User> getAllUsers() {
-    return userMap.values();
+  PurchaseManager getPurchaseManager() {
+    return purchaseManager;
   }
 
   /**
-   * Private constructor to create a new User object.
+   * Returns the event times of this user's most recent befriend transactions, keyed by index of
+   * the other user, which are to be read or modified only under this user's lock stripe.
    *
-   * @param id unique identifier of User
+   * @return befriend event times
    */
-  private User(String id) {
-    this.id = id;
+  IntLongHashMap getBefriendEventTimes() {
+    return befriendEventTimes;
   }
 
   /**
-   * Returns id, which uniquely identifies User instance.
+   * Returns the event times of this user's most recent unfriend transactions, keyed by index of
+   * the other user, which are to be read or modified only under this user's lock stripe.
    *
-   * @return user's id
+   * @return unfriend event times
    */
-  protected String getId() {
-    return id;
+  IntLongHashMap getUnfriendEventTimes() {
+    return unfriendEventTimes;
   }
 
   /**
@@ -112,7 +116,7 @@ public class User implements Comparable<User> {
    * @return NavigableSet of user's friends
    */
   protected NavigableSet<User> getFriends() {
-    return friends;
+    return toUserSet(engine.getFriendGraph().getNeighbors(index));
   }
 
   /**
@@ -121,27 +125,15 @@ public class User implements Comparable<User> {
    * @return NavigableSet of all users in this user's network
    */
   protected NavigableSet<User> getNetwork() {
-    return this.getNetwork(degreesOfSeparation);
+    return toUserSet(engine.getCachedNetwork(index));
   }
 
-  /**
-   * Recursively constructs NavigableSet of all connections of a user that are within the degrees of
-   * separation denoted by the {@code level} parameter.
-   *
-   * @param level degrees of separation for network of connections to be returned
-   * @return network of all User connections that are within the degrees of separation denoted by
-   * the {@code level} parameter
-   */
-  private NavigableSet<User> getNetwork(int level) {
-    NavigableSet<User> network = new TreeSet<>();
-    network.addAll(friends);
-    if (level > 1) {
-      for (User friend : friends) {
-        network.addAll(friend.getNetwork(level - 1));
-      }
+  private NavigableSet<User> toUserSet(int[] userIndexes) {
+    NavigableSet<User> userSet = new TreeSet<>();
+    for (int userIndex : userIndexes) {
+      userSet.add(engine.getUser(userIndex));
     }
-    network.remove(this);
-    return network;
+    return userSet;
   }
 
   /**
@@ -154,13 +146,34 @@ public class User implements Comparable<User> {
    * @param otherUser user to be befriended
    */
   protected void befriend(String timestamp, User otherUser) {
-    if (!befriendTimestamps.containsKey(otherUser.getId()) ||
-            befriendTimestamps.get(otherUser.getId()).compareTo(timestamp) < 0) {
-      befriendTimestamps.put(otherUser.getId(), timestamp);
+    befriend(engine.timestampToEventTime(timestamp), otherUser);
+  }
+
+  /**
+   * Adds the submitted User to this User's "friends" collection.
+   * SPECIAL NOTE on #befriend processing: invocation of the #befriend method will have no effect
+   * if the submitted event time precedes the event time of the most recent (already-submitted)
+   * #unfriend transaction.
+   *
+   * @param eventTime {@link EventTime event time} of befriend transaction
+   * @param otherUser user to be befriended
+   */
+  protected void befriend(long eventTime, User otherUser) {
+    boolean added = false;
+    StampedLock lockStripe = engine.getLockStripe(index);
+    long stamp = lockStripe.writeLock();
+    try {
+      if (befriendEventTimes.get(otherUser.index, NO_EVENT_TIME) < eventTime) {
+        befriendEventTimes.put(otherUser.index, eventTime);
+      }
+      if (unfriendEventTimes.get(otherUser.index, NO_EVENT_TIME) <= eventTime) {
+        added = engine.getFriendGraph().addEdge(index, otherUser.index);
+      }
+    } finally {
+      lockStripe.unlockWrite(stamp);
     }
-    if (!unfriendTimestamps.containsKey(otherUser.getId()) ||
-            unfriendTimestamps.get(otherUser.getId()).compareTo(timestamp) <= 0) {
-      friends.add(otherUser);
+    if (added) {
+      engine.invalidateAffectedNetworks(index, otherUser.index);
     }
   }
 
@@ -174,38 +187,77 @@ public class User implements Comparable<User> {
    * @param otherUser user to be unfriended
    */
   protected void unfriend(String timestamp, User otherUser) {
-    if (!unfriendTimestamps.containsKey(otherUser.getId()) ||
-            unfriendTimestamps.get(otherUser.getId()).compareTo(timestamp) < 0) {
-      unfriendTimestamps.put(otherUser.getId(), timestamp);
+    unfriend(engine.timestampToEventTime(timestamp), otherUser);
+  }
+
+  /**
+   * Removes the submitted User from this User's "friends" collection.
+   * SPECIAL NOTE on #unfriend processing: invocation of the #unfriend method will have no effect
+   * if the submitted event time precedes the event time of the most recent (already-submitted)
+   * #befriend transaction.
+   *
+   * @param eventTime {@link EventTime event time} of unfriend transaction
+   * @param otherUser user to be unfriended
+   */
+  protected void unfriend(long eventTime, User otherUser) {
+    boolean removed = false;
+    StampedLock lockStripe = engine.getLockStripe(index);
+    long stamp = lockStripe.writeLock();
+    try {
+      if (unfriendEventTimes.get(otherUser.index, NO_EVENT_TIME) < eventTime) {
+        unfriendEventTimes.put(otherUser.index, eventTime);
+      }
+      if (befriendEventTimes.get(otherUser.index, NO_EVENT_TIME) <= eventTime) {
+        removed = engine.getFriendGraph().removeEdge(index, otherUser.index);
+      }
+    } finally {
+      lockStripe.unlockWrite(stamp);
     }
-    if (!befriendTimestamps.containsKey(otherUser.getId()) ||
-            befriendTimestamps.get(otherUser.getId()).compareTo(timestamp) <= 0) {
-      friends.remove(otherUser);
+    if (removed) {
+      engine.invalidateAffectedNetworks(index, otherUser.index);
     }
   }
 
   /**
    * Add purchase transaction to internally-maintained collection, with placement in the collection
-   * dependent on transaction timestamp and {@link PurchaseManager#getThreshold() purchase threshold}
+   * dependent on transaction timestamp and {@link AnomalyEngine#getThreshold() purchase threshold}
    * setting.
    *
    * @param timestamp timestamp of purchase transaction
    * @param amountString amount of purchase transaction in String format
    */
   protected void addPurchase(String timestamp, String amountString) {
-    addPurchase(timestamp, PurchaseManager.amountStringToInteger(amountString));
+    addPurchase(engine.timestampToEventTime(timestamp), AmountCodec.parse(amountString));
   }
 
   /**
    * Add purchase transaction to internally-maintained collection, with placement in the collection
-   * dependent on transaction timestamp and {@link PurchaseManager#getThreshold() purchase threshold}
+   * dependent on transaction timestamp and {@link AnomalyEngine#getThreshold() purchase threshold}
    * setting.
    *
    * @param timestamp timestamp of purchase transaction
    * @param amount amount of purchase transaction in pennies
    */
   protected void addPurchase(String timestamp, Integer amount) {
-    purchaseManager.addPurchase(timestamp, amount);
+    addPurchase(engine.timestampToEventTime(timestamp), amount);
+  }
+
+  /**
+   * Add purchase transaction to internally-maintained collection, with placement in the collection
+   * dependent on transaction event time and {@link AnomalyEngine#getThreshold() purchase
+   * threshold} setting.
+   *
+   * @param eventTime {@link EventTime event time} of purchase transaction
+   * @param amount amount of purchase transaction in pennies
+   */
+  protected void addPurchase(long eventTime, long amount) {
+    StampedLock lockStripe = engine.getLockStripe(index);
+    long stamp = lockStripe.writeLock();
+    try {
+      purchaseManager.addPurchase(eventTime, amount);
+    } finally {
+      lockStripe.unlockWrite(stamp);
+    }
   }
 
   /**
@@ -214,13 +266,18 @@ public class User implements Comparable<User> {
    * basis for the anomaly computation; if submitted purchase amount is NOT an anomaly, returns null.
    *
    * @param amount purchase amount in pennies
-   * @return null if amount is not an anomaly; otherwise, returns a two-element int array
+   * @return null if amount is not an anomaly; otherwise, returns a two-element long array
    * consisting of (a) mean and (b) standard deviation that formed basis of anomaly computation
    */
-  protected int[] getAnomalyData(Integer amount) {
-    PurchaseManager networkPurchaseManager = new PurchaseManager();
-    getNetwork().forEach((user) -> networkPurchaseManager.addPurchases(user.purchaseManager));
-    return networkPurchaseManager.getAnomalyData(amount);
+  protected long[] getAnomalyData(long amount) {
+    FlightRecorderEvents.AnomalyAssessment event = FlightRecorderEvents.beginAnomalyAssessment();
+    int[] network = engine.getCachedNetwork(index);
+    long[] anomalyData = engine.getAnomalyData(network, amount);
+    if (event != null) {
+      event.complete(id, network.length, engine.getRecentPurchaseMerger().size(), amount,
+              anomalyData != null, false);
+    }
+    return anomalyData;
   }
 
   @Override
@@ -231,6 +288,11 @@ public class User implements Comparable<User> {
     return compareTo((User)obj) == 0;
   }
 
+  @Override
+  public int hashCode() {
+    return id.hashCode(); // consistent with equals, which compares ids (across engines)
+  }
+
   @Override
   public int compareTo(User other) {
     return this.id.compareTo(other.id);
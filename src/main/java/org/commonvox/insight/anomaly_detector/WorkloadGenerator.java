@@ -0,0 +1,618 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An instance of the WorkloadGenerator class writes synthetic batch and stream files, in the
+ * JSON layout of Market-ter's systems, for scale testing of the detector. Every random choice
+ * is drawn from a single seeded generator, so that the same seed and settings always yield
+ * byte-for-byte identical files.
+ * <br><br>
+ * The batch file opens with the D/T parameters line, followed by befriend events forming the
+ * initial friend graph, interleaved with a history of purchases. Friend degrees follow a
+ * power-law distribution (the expected degree of the k-th most connected user being
+ * proportional to k<sup>-1/(exponent - 1)</sup>), and users are partitioned into communities
+ * of consecutive user-ids, within which a configurable share of friendships is formed. The
+ * stream file holds purchases interleaved with befriend and unfriend churn.
+ * <br><br>
+ * Each user spends around a median of their own (drawn from a log-normal distribution around
+ * the configured median), with each purchase log-normally distributed around the user's median;
+ * a configurable share of purchases are injected anomalies, 10 to 20 times the user's median.
+ * Timestamps advance at a configurable rate of events per second, except for a configurable
+ * share of events that are stamped up to a configurable count of seconds in the past (as
+ * with events arriving out of order).
+ * <br><br>
+ * Generation streams directly to the output files, so that files of many gigabytes may be
+ * written; memory required is proportional to the count of users and friendships.
+ *
+ * @author Daniel Vimont
+ */
+public final class WorkloadGenerator {
+
+  static final String SEED_OPTION = "--seed";
+  static final String USERS_OPTION = "--users";
+  static final String MEAN_DEGREE_OPTION = "--mean-degree";
+  static final String DEGREE_EXPONENT_OPTION = "--degree-exponent";
+  static final String COMMUNITY_SIZE_OPTION = "--community-size";
+  static final String COMMUNITY_AFFINITY_OPTION = "--community-affinity";
+  static final String PURCHASES_PER_USER_OPTION = "--purchases-per-user";
+  static final String STREAM_EVENTS_OPTION = "--stream-events";
+  static final String BEFRIEND_RATIO_OPTION = "--befriend-ratio";
+  static final String UNFRIEND_RATIO_OPTION = "--unfriend-ratio";
+  static final String MEDIAN_AMOUNT_OPTION = "--median-amount";
+  static final String AMOUNT_SPREAD_OPTION = "--amount-spread";
+  static final String ANOMALY_RATIO_OPTION = "--anomaly-ratio";
+  static final String LATE_RATIO_OPTION = "--late-ratio";
+  static final String MAX_LATENESS_OPTION = "--max-lateness";
+  static final String EVENTS_PER_SECOND_OPTION = "--events-per-second";
+  static final String DEGREES_OPTION = "-D";
+  static final String THRESHOLD_OPTION = "-T";
+
+  static final long FIRST_EPOCH_SECOND = 1497353581L; // 2017-06-13 11:33:01
+  private static final DateTimeFormatter TIMESTAMP_FORMAT
+          = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final byte[] PURCHASE_PREFIX = ascii("{\"event_type\":\"purchase\", \"timestamp\":\"");
+  private static final byte[] BEFRIEND_PREFIX = ascii("{\"event_type\":\"befriend\", \"timestamp\":\"");
+  private static final byte[] UNFRIEND_PREFIX = ascii("{\"event_type\":\"unfriend\", \"timestamp\":\"");
+  private static final byte[] ID_INFIX = ascii("\", \"id\": \"");
+  private static final byte[] AMOUNT_INFIX = ascii("\", \"amount\": \"");
+  private static final byte[] ID1_INFIX = ascii("\", \"id1\": \"");
+  private static final byte[] ID2_INFIX = ascii("\", \"id2\": \"");
+  private static final byte[] SUFFIX = ascii("\"}\n");
+  private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+  private static final int MAX_SELF_LOOP_RETRIES = 16;
+  private static final int MAX_FRIENDSHIP_ROUNDS = 8;
+
+  private long seed = 1;
+  private int userCount = 10_000;
+  private int meanDegree = 10;
+  private double degreeExponent = 2.5;
+  private int communitySize = 100;
+  private double communityAffinity = 0.8;
+  private int purchasesPerUser = 10;
+  private long streamEventCount = 100_000;
+  private double befriendRatio = 0.07;
+  private double unfriendRatio = 0.03;
+  private long medianAmount = 30_00;
+  private double amountSpread = 0.8;
+  private double anomalyRatio = 0.001;
+  private double lateRatio = 0.01;
+  private int maxLateness = 300;
+  private int eventsPerSecond = 100;
+  private int degreesOfSeparation = 2;
+  private int threshold = 50;
+
+  // state of a single generation run
+  private Random random;
+  private double[] cumulativeWeights;
+  private double[] userMeans; // natural log of each user's median purchase, in pennies
+  private long[] friendships; // each packed as (id1 << 32 | id2)
+  private int friendshipCount;
+  private long eventCount;
+  private long cachedSecond = -1;
+  private final byte[] cachedTimestamp = new byte[EventTime.TIMESTAMP_LENGTH];
+  private final ByteBuffer line = ByteBuffer.allocate(256);
+  private long injectedAnomalyCount;
+
+  /**
+   * To be invoked with two mandatory arguments: batch-file-path and stream-file-path, which may
+   * be preceded by any of the options "--seed", "--users", "--mean-degree", "--degree-exponent",
+   * "--community-size", "--community-affinity", "--purchases-per-user", "--stream-events",
+   * "--befriend-ratio", "--unfriend-ratio", "--median-amount" (in dollars-and-cents format),
+   * "--amount-spread", "--anomaly-ratio", "--late-ratio", "--max-lateness" (in seconds),
+   * "--events-per-second", "-D", and "-T", each followed by its value.
+   *
+   * @param args options, followed by two mandatory arguments: batch-file-path and
+   * stream-file-path
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    WorkloadGenerator generator = new WorkloadGenerator();
+    int argIndex = 0;
+    while (argIndex + 1 < args.length && args[argIndex].startsWith("-")) {
+      String value = args[argIndex + 1];
+      switch (args[argIndex]) {
+        case SEED_OPTION:
+          generator.setSeed(Long.parseLong(value));
+          break;
+        case USERS_OPTION:
+          generator.setUserCount(Integer.parseInt(value));
+          break;
+        case MEAN_DEGREE_OPTION:
+          generator.setMeanDegree(Integer.parseInt(value));
+          break;
+        case DEGREE_EXPONENT_OPTION:
+          generator.setDegreeExponent(Double.parseDouble(value));
+          break;
+        case COMMUNITY_SIZE_OPTION:
+          generator.setCommunitySize(Integer.parseInt(value));
+          break;
+        case COMMUNITY_AFFINITY_OPTION:
+          generator.setCommunityAffinity(Double.parseDouble(value));
+          break;
+        case PURCHASES_PER_USER_OPTION:
+          generator.setPurchasesPerUser(Integer.parseInt(value));
+          break;
+        case STREAM_EVENTS_OPTION:
+          generator.setStreamEventCount(Long.parseLong(value));
+          break;
+        case BEFRIEND_RATIO_OPTION:
+          generator.setChurnRatios(Double.parseDouble(value), generator.unfriendRatio);
+          break;
+        case UNFRIEND_RATIO_OPTION:
+          generator.setChurnRatios(generator.befriendRatio, Double.parseDouble(value));
+          break;
+        case MEDIAN_AMOUNT_OPTION:
+          generator.setMedianAmount(AmountCodec.parse(value));
+          break;
+        case AMOUNT_SPREAD_OPTION:
+          generator.setAmountSpread(Double.parseDouble(value));
+          break;
+        case ANOMALY_RATIO_OPTION:
+          generator.setAnomalyRatio(Double.parseDouble(value));
+          break;
+        case LATE_RATIO_OPTION:
+          generator.setLateRatio(Double.parseDouble(value));
+          break;
+        case MAX_LATENESS_OPTION:
+          generator.setMaxLateness(Integer.parseInt(value));
+          break;
+        case EVENTS_PER_SECOND_OPTION:
+          generator.setEventsPerSecond(Integer.parseInt(value));
+          break;
+        case DEGREES_OPTION:
+          generator.setDegreesOfSeparation(Integer.parseInt(value));
+          break;
+        case THRESHOLD_OPTION:
+          generator.setThreshold(Integer.parseInt(value));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[argIndex]);
+      }
+      argIndex += 2;
+    }
+    if (args.length - argIndex < 2) {
+      throw new IllegalArgumentException(
+              "Two arguments required: batch-file-path and stream-file-path.");
+    }
+    Path batchPath = Paths.get(args[argIndex]);
+    Path streamPath = Paths.get(args[argIndex + 1]);
+    generator.generate(batchPath, streamPath);
+    System.out.println("Wrote " + Files.size(batchPath) + " bytes to " + batchPath + " and "
+            + Files.size(streamPath) + " bytes to " + streamPath + ", with "
+            + generator.getInjectedAnomalyCount() + " injected anomalies.");
+  }
+
+  /**
+   * Writes a batch file and a stream file, overwriting any existing files of the same paths.
+   *
+   * @param batchPath path of the batch file
+   * @param streamPath path of the stream file
+   * @throws IOException if an I/O error occurs
+   */
+  public void generate(Path batchPath, Path streamPath) throws IOException {
+    random = new Random(seed);
+    eventCount = 0;
+    cachedSecond = -1;
+    injectedAnomalyCount = 0;
+    initializeUsers();
+    initializeFriendships();
+    try (OutputStream output = open(batchPath)) {
+      writeBatch(output);
+    }
+    try (OutputStream output = open(streamPath)) {
+      writeStream(output);
+    }
+    cumulativeWeights = null;
+    userMeans = null;
+    friendships = null;
+  }
+
+  /**
+   * Returns the count of anomalous purchases injected by the most recent generation run.
+   *
+   * @return count of injected anomalies
+   */
+  public long getInjectedAnomalyCount() {
+    return injectedAnomalyCount;
+  }
+
+  private static OutputStream open(Path path) throws IOException {
+    return new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), OUTPUT_BUFFER_SIZE);
+  }
+
+  /**
+   * Assigns each user a power-law weight (at a random rank, so that the best-connected users
+   * are scattered among communities) and a median purchase amount.
+   */
+  private void initializeUsers() {
+    int[] ranks = new int[userCount];
+    for (int user = 0; user < userCount; user++) {
+      ranks[user] = user;
+    }
+    for (int user = userCount - 1; user > 0; user--) {
+      int other = random.nextInt(user + 1);
+      int rank = ranks[user];
+      ranks[user] = ranks[other];
+      ranks[other] = rank;
+    }
+    double weightExponent = -1 / (degreeExponent - 1);
+    cumulativeWeights = new double[userCount];
+    userMeans = new double[userCount];
+    double medianLog = Math.log(medianAmount);
+    double cumulativeWeight = 0;
+    for (int user = 0; user < userCount; user++) {
+      cumulativeWeight += Math.pow(ranks[user] + 1, weightExponent);
+      cumulativeWeights[user] = cumulativeWeight;
+      userMeans[user] = medianLog + random.nextGaussian() * amountSpread / 2;
+    }
+  }
+
+  /**
+   * Draws the friendships of the initial friend graph, each between two users chosen in
+   * proportion to their weights, redrawing in place of duplicates (for a bounded count of
+   * rounds, as the densest communities may saturate), and shuffles them into the order in
+   * which they are to be written.
+   */
+  private void initializeFriendships() {
+    int targetCount = (int)Math.min((long)userCount * meanDegree / 2, Integer.MAX_VALUE - 8);
+    friendships = new long[Math.max(16, targetCount)];
+    friendshipCount = 0;
+    for (int round = 0; round < MAX_FRIENDSHIP_ROUNDS && friendshipCount < targetCount; round++) {
+      for (int i = friendshipCount; i < targetCount; i++) {
+        long friendship = nextFriendship();
+        if (friendship >= 0) {
+          friendships[friendshipCount++] = friendship;
+        }
+      }
+      Arrays.sort(friendships, 0, friendshipCount);
+      int distinctCount = 0;
+      for (int i = 0; i < friendshipCount; i++) {
+        if (distinctCount == 0 || friendships[i] != friendships[distinctCount - 1]) {
+          friendships[distinctCount++] = friendships[i];
+        }
+      }
+      friendshipCount = distinctCount;
+    }
+    for (int i = friendshipCount - 1; i > 0; i--) {
+      int other = random.nextInt(i + 1);
+      long friendship = friendships[i];
+      friendships[i] = friendships[other];
+      friendships[other] = friendship;
+    }
+  }
+
+  /**
+   * Returns a friendship between two distinct users (the lesser user ordinal in the high-order
+   * half), or -1 if no second user distinct from the first could be drawn.
+   */
+  private long nextFriendship() {
+    int user = nextWeightedUser(0, userCount);
+    int communityStart = user - user % communitySize;
+    int communityEnd = (int)Math.min((long)communityStart + communitySize, userCount);
+    boolean withinCommunity = random.nextDouble() < communityAffinity;
+    for (int retry = 0; retry < MAX_SELF_LOOP_RETRIES; retry++) {
+      int friend = withinCommunity
+              ? nextWeightedUser(communityStart, communityEnd) : nextWeightedUser(0, userCount);
+      if (friend != user) {
+        return ((long)Math.min(user, friend) << 32) | Math.max(user, friend);
+      }
+    }
+    return -1;
+  }
+
+  /** Returns a user from the submitted range of ordinals, chosen in proportion to weight. */
+  private int nextWeightedUser(int start, int end) {
+    double floor = start == 0 ? 0 : cumulativeWeights[start - 1];
+    double target = floor + random.nextDouble() * (cumulativeWeights[end - 1] - floor);
+    int index = Arrays.binarySearch(cumulativeWeights, start, end, target);
+    return Math.min(index >= 0 ? index : -index - 1, end - 1);
+  }
+
+  private void writeBatch(OutputStream output) throws IOException {
+    output.write(ascii("{\"D\":\"" + degreesOfSeparation + "\", \"T\":\"" + threshold + "\"}\n"));
+    long remainingFriendships = friendshipCount;
+    long remainingPurchases = (long)userCount * purchasesPerUser;
+    int nextFriendship = 0;
+    while (remainingFriendships + remainingPurchases > 0) {
+      if (random.nextDouble() * (remainingFriendships + remainingPurchases) < remainingFriendships) {
+        writeFriendship(output, BEFRIEND_PREFIX, friendships[nextFriendship++]);
+        remainingFriendships--;
+      } else {
+        writePurchase(output);
+        remainingPurchases--;
+      }
+    }
+  }
+
+  private void writeStream(OutputStream output) throws IOException {
+    for (long i = 0; i < streamEventCount; i++) {
+      double choice = random.nextDouble();
+      if (choice < unfriendRatio && friendshipCount > 0) {
+        int index = random.nextInt(friendshipCount);
+        long friendship = friendships[index];
+        friendships[index] = friendships[--friendshipCount];
+        writeFriendship(output, UNFRIEND_PREFIX, friendship);
+      } else if (choice < unfriendRatio + befriendRatio) {
+        long friendship = nextFriendship();
+        if (friendship < 0) {
+          writePurchase(output);
+          continue;
+        }
+        if (friendshipCount == friendships.length) {
+          friendships = Arrays.copyOf(friendships, friendships.length * 2);
+        }
+        friendships[friendshipCount++] = friendship;
+        writeFriendship(output, BEFRIEND_PREFIX, friendship);
+      } else {
+        writePurchase(output);
+      }
+    }
+  }
+
+  private void writePurchase(OutputStream output) throws IOException {
+    int user = random.nextInt(userCount);
+    double mean = userMeans[user];
+    long amount;
+    if (random.nextDouble() < anomalyRatio) {
+      amount = (long)(Math.exp(mean) * (10 + random.nextDouble() * 10));
+      injectedAnomalyCount++;
+    } else {
+      amount = (long)Math.exp(mean + random.nextGaussian() * amountSpread);
+    }
+    amount = Math.max(1, Math.min(amount, AmountCodec.MAX_AMOUNT));
+    startLine(PURCHASE_PREFIX);
+    line.put(ID_INFIX);
+    putUserId(user);
+    line.put(AMOUNT_INFIX);
+    AmountCodec.format(amount, line);
+    endLine(output);
+  }
+
+  private void writeFriendship(OutputStream output, byte[] prefix, long friendship)
+          throws IOException {
+    int user1 = (int)(friendship >>> 32);
+    int user2 = (int)friendship;
+    if (random.nextBoolean()) {
+      int user = user1;
+      user1 = user2;
+      user2 = user;
+    }
+    startLine(prefix);
+    line.put(ID1_INFIX);
+    putUserId(user1);
+    line.put(ID2_INFIX);
+    putUserId(user2);
+    endLine(output);
+  }
+
+  private void startLine(byte[] prefix) {
+    line.clear();
+    line.put(prefix);
+    long epochSecond = FIRST_EPOCH_SECOND + eventCount++ / eventsPerSecond;
+    if (random.nextDouble() < lateRatio) {
+      epochSecond = Math.max(FIRST_EPOCH_SECOND, epochSecond - 1 - random.nextInt(maxLateness));
+    }
+    if (epochSecond != cachedSecond) {
+      String timestamp = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC)
+              .format(TIMESTAMP_FORMAT);
+      for (int i = 0; i < cachedTimestamp.length; i++) {
+        cachedTimestamp[i] = (byte)timestamp.charAt(i);
+      }
+      cachedSecond = epochSecond;
+    }
+    line.put(cachedTimestamp);
+  }
+
+  private void endLine(OutputStream output) throws IOException {
+    line.put(SUFFIX);
+    output.write(line.array(), 0, line.position());
+  }
+
+  /** Puts the (one-based, decimal) user-id of the submitted user ordinal. */
+  private void putUserId(int user) {
+    int id = user + 1;
+    int digitCount = 1;
+    for (int power = 10; digitCount < 10 && id >= power; power *= 10) {
+      digitCount++;
+    }
+    int position = line.position() + digitCount;
+    line.position(position);
+    do {
+      line.put(--position, (byte)('0' + id % 10));
+      id /= 10;
+    } while (id > 0);
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  public void setUserCount(int userCount) {
+    if (userCount < 2) {
+      throw new IllegalArgumentException("User count must be at least 2: " + userCount);
+    }
+    this.userCount = userCount;
+  }
+
+  public void setMeanDegree(int meanDegree) {
+    if (meanDegree < 0) {
+      throw new IllegalArgumentException("Mean degree must not be negative: " + meanDegree);
+    }
+    this.meanDegree = meanDegree;
+  }
+
+  /**
+   * Sets the exponent of the power-law distribution of friend degrees.
+   *
+   * @param degreeExponent exponent, greater than 1 (2 to 3 being typical of social networks)
+   */
+  public void setDegreeExponent(double degreeExponent) {
+    if (!(degreeExponent > 1)) {
+      throw new IllegalArgumentException("Degree exponent must exceed 1: " + degreeExponent);
+    }
+    this.degreeExponent = degreeExponent;
+  }
+
+  public void setCommunitySize(int communitySize) {
+    if (communitySize < 1) {
+      throw new IllegalArgumentException("Community size must be at least 1: " + communitySize);
+    }
+    this.communitySize = communitySize;
+  }
+
+  /**
+   * Sets the share of friendships formed between members of the same community.
+   *
+   * @param communityAffinity share, from 0 to 1
+   */
+  public void setCommunityAffinity(double communityAffinity) {
+    this.communityAffinity = ratio("Community affinity", communityAffinity);
+  }
+
+  public void setPurchasesPerUser(int purchasesPerUser) {
+    if (purchasesPerUser < 0) {
+      throw new IllegalArgumentException(
+              "Purchases per user must not be negative: " + purchasesPerUser);
+    }
+    this.purchasesPerUser = purchasesPerUser;
+  }
+
+  public void setStreamEventCount(long streamEventCount) {
+    if (streamEventCount < 0) {
+      throw new IllegalArgumentException(
+              "Stream event count must not be negative: " + streamEventCount);
+    }
+    this.streamEventCount = streamEventCount;
+  }
+
+  /**
+   * Sets the shares of stream events that are befriend and unfriend events (the remainder
+   * being purchases).
+   *
+   * @param befriendRatio share of befriend events
+   * @param unfriendRatio share of unfriend events
+   */
+  public void setChurnRatios(double befriendRatio, double unfriendRatio) {
+    ratio("Befriend ratio", befriendRatio);
+    ratio("Unfriend ratio", unfriendRatio);
+    if (befriendRatio + unfriendRatio > 1) {
+      throw new IllegalArgumentException("Befriend and unfriend ratios must not exceed 1 in sum.");
+    }
+    this.befriendRatio = befriendRatio;
+    this.unfriendRatio = unfriendRatio;
+  }
+
+  /**
+   * Sets the median of users' median purchase amounts.
+   *
+   * @param medianAmount median amount, in pennies
+   */
+  public void setMedianAmount(long medianAmount) {
+    if (medianAmount < 1 || medianAmount > AmountCodec.MAX_AMOUNT) {
+      throw new IllegalArgumentException("Median amount out of range: " + medianAmount);
+    }
+    this.medianAmount = medianAmount;
+  }
+
+  /**
+   * Sets the standard deviation of the natural log of purchase amounts around a user's median
+   * (half of which is also the standard deviation of the log of users' medians).
+   *
+   * @param amountSpread standard deviation of log amounts
+   */
+  public void setAmountSpread(double amountSpread) {
+    if (!(amountSpread >= 0)) {
+      throw new IllegalArgumentException("Amount spread must not be negative: " + amountSpread);
+    }
+    this.amountSpread = amountSpread;
+  }
+
+  public void setAnomalyRatio(double anomalyRatio) {
+    this.anomalyRatio = ratio("Anomaly ratio", anomalyRatio);
+  }
+
+  /**
+   * Sets the share of events stamped earlier than the events preceding them.
+   *
+   * @param lateRatio share, from 0 to 1
+   */
+  public void setLateRatio(double lateRatio) {
+    this.lateRatio = ratio("Late ratio", lateRatio);
+  }
+
+  /**
+   * Sets the maximum count of seconds by which a late event's timestamp precedes its place.
+   *
+   * @param maxLateness maximum lateness in seconds
+   */
+  public void setMaxLateness(int maxLateness) {
+    if (maxLateness < 1) {
+      throw new IllegalArgumentException("Maximum lateness must be at least 1: " + maxLateness);
+    }
+    this.maxLateness = maxLateness;
+  }
+
+  public void setEventsPerSecond(int eventsPerSecond) {
+    if (eventsPerSecond < 1) {
+      throw new IllegalArgumentException(
+              "Events per second must be at least 1: " + eventsPerSecond);
+    }
+    this.eventsPerSecond = eventsPerSecond;
+  }
+
+  public void setDegreesOfSeparation(int degreesOfSeparation) {
+    if (degreesOfSeparation < 1) {
+      throw new IllegalArgumentException(
+              "Degrees of separation must be at least 1: " + degreesOfSeparation);
+    }
+    this.degreesOfSeparation = degreesOfSeparation;
+  }
+
+  public void setThreshold(int threshold) {
+    if (threshold < 2) {
+      throw new IllegalArgumentException("Threshold must be at least 2: " + threshold);
+    }
+    this.threshold = threshold;
+  }
+
+  private static double ratio(String name, double ratio) {
+    if (!(ratio >= 0 && ratio <= 1)) {
+      throw new IllegalArgumentException(name + " must be from 0 to 1: " + ratio);
+    }
+    return ratio;
+  }
+}
@@ -34,15 +34,31 @@
  * <br><br>
  * An instance of the TransactionProcessor class instantiates itself by reading in and processing
  * the contents of the batch initialization file, including the "degrees of separation" constraint
- * (D) and the "threshold of purchases" constraint (T) from the first line of batch input. Following
+ * (D) and the "threshold of purchases" constraint (T) from the first line of batch input. (The
+ * batch file is loaded by the BatchLoader class, which parses separate chunks of the file in
+ * parallel, applies befriend/unfriend events to the friend graph in file order, and then applies
+ * purchases in parallel, with each worker handling a fixed partition of the users.) Following
  * instantiation, one of the TransactionProcessor's #process methods is invoked to read in and
  * process the stream log transactions, and when an anomaly purchase is identified, it is written
- * to the output ("flagged purchases") file.
+ * to the output ("flagged purchases") file. (On machines with three or more processors, stream
+ * transactions are processed through the StreamPipeline class, in which parsing, scoring, and
+ * output proceed concurrently on separate threads, connected by bounded single-producer/
+ * single-consumer ring buffers; output remains in input order. On machines with four or more
+ * processors, purchases are furthermore scored speculatively, in parallel, by the
+ * SpeculativeScorer class: scores are committed in input order, and any score whose inputs were
+ * modified by an earlier event is recomputed, so that output is identical to that of serial
+ * processing.)
  * <br><br>
  * For all transactions processed in the batch initialization phase and the stream log processing
- * phase, each User involved in the transaction is retrieved via the static User#getOrCreateUser
+ * phase, each User involved in the transaction is retrieved via the AnomalyEngine#getOrCreateUser
  * method, which (as the method name suggests) either retrieves an existing User object or creates
- * a new one.
+ * a new one. All Users, friendships, and settings (degrees of separation and threshold) are held
+ * by an AnomalyEngine instance, so that multiple independent engines may coexist in a single JVM,
+ * optionally sharing one ForkJoinPool for their parallel work. (All User methods may be invoked
+ * concurrently by multiple threads: existing Users are retrieved without locking, the friendships
+ * and purchases of each User are guarded by one of a fixed set of striped locks, and networks are
+ * assembled, and recent purchases selected, under optimistic reads that are retried under a read
+ * lock only if a concurrent change intervened.)
  * <br><br>
  * Once User retrieval/creation is completed, each event is processed as follows:
  * <ul>
@@ -51,17 +67,17 @@
  * <li>"unfriend" -- The user#unfriend method is invoked for each user to establish the reciprocal
  * removal of relationship. (See note below regarding "extra" functionality added to the #unfriend method.)</li>
  * <li>"purchase" -- The user#addPurchase method is invoked to add the purchase to the user's
- * PurchaseManager object, which adds the purchase to its internally-managed purchaseMap, subject
+ * PurchaseManager object, which adds the purchase to its internally-managed purchases, subject
  * to the "threshold of purchases" constraint: the submitted purchase will not be added if its timestamp
- * precedes that of the earliest purchase in an already filled-to-threshold-capacity purchaseMap.</li>
+ * precedes that of the earliest purchase in an already filled-to-threshold-capacity PurchaseManager.</li>
  * </ul>
  * In the stream-log processing phase, one additional step is performed in "purchase" processing:
  * before the user#addPurchase method is invoked, the user#getAnomalyData method is invoked.
  * The purchase amount is passed to this method, and the following sequence transpires: the user's
- * current network of friends is recursively assembled (dependent upon the user's friend connections
- * and the "degrees of separation" system constraint), and a network-specific PurchaseManager object
- * is used to assemble a purchaseMap for the network (dependent upon the "threshold of purchases"
- * system constraint). Calculations are then performed to determine whether the amount of the current
+ * current network of friends is assembled breadth-first (dependent upon the user's friend connections
+ * and the "degrees of separation" system constraint), and the most recent purchases of the network's
+ * members are merged newest-first through a size-bounded heap (dependent upon the "threshold of
+ * purchases" system constraint). Calculations are then performed to determine whether the amount of the current
  * purchase is an anomaly or not. If the amount is an anomaly, then a record is written by the
  * TransactionProcessor to the output ("flagged purchases") file.
  *
@@ -102,6 +118,69 @@
  * <a href="https://github.com/InsightDataScience/anomaly_detection#input-data" target="_blank">
  * the original specifications</a>.
  *
+ * The detector's state following initialization may be saved to a binary snapshot file by
+ * preceding the arguments with the option {@code --save-snapshot ./log_output/state.snapshot},
+ * upon which subsequent runs may be initialized from the snapshot (in a small fraction of the time
+ * taken to replay the batch file) by replacing the batch-file argument with the option
+ * {@code --from-snapshot ./log_output/state.snapshot}:
+ *
+ * <pre>   mvn exec:java -Dexec.mainClass=org.commonvox.insight.anomaly_detector.App \
+ *      -Dexec.args="--from-snapshot ./log_output/state.snapshot ./log_input/stream_log.json ./log_output/flagged_purchases.json"</pre>
+ *
+ * For recovery from a crash in the midst of stream processing, an engine may also maintain a
+ * write-ahead event log (via the AnomalyEngine#openEventLog method), to which each stream event
+ * is appended in a compact checksummed form before it is applied, with the log forced to disk
+ * once per group of events. (Flagged purchases written to a file may thus precede the forcing
+ * of their events' group to disk; a listening detector, below, releases them to subscribers
+ * only once their events are forced.) A restarted engine recovers by restoring the log's latest snapshot and replaying the
+ * events logged since, while a background compactor periodically folds older log segments into
+ * a new snapshot, so that recovery time depends upon the length of the log's tail rather than
+ * upon the length of its history. From the command line, the log is maintained by preceding the
+ * arguments with the option {@code --event-log ./log_output/event_log}: if the directory holds no
+ * log, one is begun upon the state established by the batch file (or snapshot); otherwise, the
+ * state is recovered from the log before any stream input is applied, and the batch-file
+ * argument may be omitted. As stream input is applied in full, a resumed run is to be given
+ * only the events not yet applied (as by the producers of a listening detector, below).
+ * <br><br>
+ * While a run is in progress, its throughput and latencies may be monitored by preceding the
+ * arguments with the option {@code --metrics-port 9404}, upon which a DetectorMetrics
+ * instance records per-event-type counts and latencies, network retrieval latencies and network
+ * sizes, anomaly-assessment latencies and counts of purchases merged, and the anomaly rate. Each
+ * thread records into log-bucketed histograms of its own, which are merged only when read: via
+ * JMX (as the MBean {@code org.commonvox.insight.anomaly_detector:type=DetectorMetrics,name="App"})
+ * or in Prometheus text format at {@code http://localhost:9404/metrics}. Recording costs a
+ * few clock reads and array increments per event, well under 2% of processing time.
+ * <br><br>
+ * When a run slows down, its time may be attributed to network assembly, anomaly assessment,
+ * purchase merging, parsing, or output via the custom Java Flight Recorder events of the
+ * FlightRecorderEvents class, which carry such fields as the user-id, network size, count of
+ * purchases merged, and whether the purchase was flagged. The events have a default threshold of
+ * 10 milliseconds, so that a recording started against a running detector (e.g., via
+ * <code>jcmd <i>pid</i> JFR.start</code>) captures only slow occurrences at near-zero cost. A
+ * recording of an entire run may also be requested by preceding the arguments with the option
+ * {@code --flight-recording ./log_output/run.jfr}, optionally with a different threshold
+ * (e.g., {@code --flight-threshold 1}, in milliseconds).
+ * <br><br>
+ * Rather than processing a finished stream file, a run may follow a stream file which is still
+ * being appended to (as with {@code tail -f}) by preceding the arguments with the option
+ * {@code --follow 100}, upon which the lines already in the file are processed, and each line
+ * subsequently appended is parsed and scored as soon as it is complete, with any flagged purchase
+ * written out immediately, typically within a few milliseconds of its line being appended. The
+ * detector waits for the file to be modified via a file-system watch service, with a timeout that
+ * backs off adaptively from 1 millisecond up to the given maximum (here 100 milliseconds), and
+ * runs until it is shut down. When metrics are enabled, the lag of each event's processing behind
+ * its timestamp is exposed as well (e.g., as {@code anomaly_detector_last_event_lag_seconds}).
+ * <br><br>
+ * The detector may also run as a long-lived service, accepting newline-delimited events over TCP
+ * (e.g., from checkout frontends), by preceding the batch-file-path argument (the only argument
+ * then required) with the option {@code --listen 9500}. An IngestionServer reads each
+ * connection's bytes into pooled direct buffers on a selector thread and hands their complete lines
+ * to a single applier thread, which applies events in order of arrival and writes each flagged
+ * purchase back to every connection that has sent the line {@code subscribe}. When the queue
+ * between the two threads is full, reads are paused until the applier catches up, so that TCP flow
+ * control pushes back upon producers instead of the server buffering without bound. Events are
+ * applied at nearly the rate of serial processing of a file, which bounds the server's throughput.
+ *
  * <hr>
  * <h3>Customization of shell scripts was required</h3>
  * The original specifications provided two shell scripts, (1) {@code run.sh} and (2)
@@ -147,8 +226,10 @@
  * <br><br>
  * With that said, the maintaining of order in the elements of an outputted JSON object does not
  * come without a potential hit to the efficiency of such processing. In the solution presented
- * here, a Java StringBuilder is used to (as efficiently as possible, yet rather crudely) "inject"
- * the <b>{@code mean}</b> and <b>{@code sd}</b> elements into the end of the outputted
+ * here, the bytes of each flagged purchase's input line (all but its closing brace) are copied
+ * directly from the input buffer into a reusable output buffer, and the
+ * <b>{@code mean}</b> and <b>{@code sd}</b> elements are formatted directly into the same
+ * buffer, so that no Strings are built in "injecting" the elements into the end of the outputted
  * "flagged_purchases" JSON objects.
  * If this were a real-world engagement with a corporate client, one would inquire whether the
  * applications which consume the "flagged_purchases" are indeed hard-wired to require
@@ -165,24 +246,45 @@
  * user-id). On the other hand, the distributed architectures of an enterprise such as Market-ter
  * might well provide for such validations "upstream" from this package's processes, obviating
  * the need for the addition of validation logic (and its attendant overhead) in this package.
- * The current implementation includes <i>no</i> validation for inputted JSON values, but validation logic
- * could easily be added, if required. Additionally, a system-level variable or config parameter
+ * The current implementation validates only what its parser must interpret anyway (the JSON
+ * structure of each line, the format of timestamps and amounts, and the presence of the fields
+ * required by each event type), but further validation logic could easily be added, if required. Additionally, a system-level variable or config parameter
  * might be utilized to optionally activate or deactivate this new "layer" of validation processing.
  *
  * <hr>
  * <h3>Choice of JSON parser</h3>
- * There are a number of reliable Java-based JSON parser packages available. In searching for
- * an appropriate choice for this project, a brief research  endeavor led to the selection of
- * <a href="https://code.google.com/archive/p/json-simple/" target="_blank"><i>JSON.simple</i></a>,
- * which seems to offer both reliability and road-tested efficiency. Note that it would be
- * extremely easy to swap out this JSON parser and replace it with any other (the beauty of open
- * standards!).
+ * Since the shapes of the inputted events are known in advance (the "D"/"T" startup parameters,
+ * and the "purchase", "befriend", and "unfriend" events), a general-purpose JSON parser (which
+ * builds a map of String keys and values for every event) is not employed. Instead, a
+ * hand-written tokenizer, the EventParser, reads each line directly from its bytes into a
+ * single reusable EventRecord: the event type as an enum, user-ids as dense int indexes,
+ * the timestamp as a numeric event time, and the amount in pennies. The values of
+ * unrecognized keys are skipped over without being materialized.
  *
  * <hr>
  * <h3>Unit testing</h3>
  * The standard <a href="http://junit.org" target="_blank">JUnit package</a> is being employed
  * for unit testing. A complete array of unit tests, covering all non-private methods in the
  * User and PurchaseManager classes, can be found in the subdirectories of {@code ./src/test/java/}.
+ * <br><br>
+ * Throughput of the detection hot paths (network assembly at one to six degrees of separation,
+ * anomaly assessment, purchase maintenance, amount conversion, JSON parsing, end-to-end
+ * stream processing, socket ingestion, and User operations applied by concurrent threads) is measured by the <a href="http://openjdk.java.net/projects/code-tools/jmh/" target="_blank">JMH</a>
+ * benchmarks of the separate Maven module in {@code ./benchmarks/}, over generated friend
+ * graphs of parameterized size and degree distribution (uniform or power-law). The GC profiler
+ * is enabled by default, so that allocation rates are reported alongside scores:
+ * <pre>   mvn install
+ *    mvn -f benchmarks/pom.xml package
+ *    java -jar benchmarks/target/benchmarks.jar NetworkBenchmark -p userCount=100000</pre>
+ * <br><br>
+ * Input files for scale testing (of any size, up to many gigabytes) may be produced by the
+ * WorkloadGenerator class, which writes batch and stream files in Market-ter's JSON layout, with
+ * a power-law distribution of friend degrees, community structure, befriend/unfriend churn,
+ * log-normal purchase amounts with injected anomalies, and a share of out-of-order timestamps,
+ * all configurable by option (see the WorkloadGenerator#main method). A given seed always
+ * yields identical files:
+ * <pre>   mvn exec:java -Dexec.mainClass=org.commonvox.insight.anomaly_detector.WorkloadGenerator \
+ *      -Dexec.args="--seed 42 --users 1000000 --stream-events 10000000 ./batch_log.json ./stream_log.json"</pre>
  *
  * <hr>
  * <h3>Note that this implementation is not synchronized</h3>
@@ -192,14 +294,21 @@
  *
  * <hr>
  * <h3>Scalability issue 1: efficiency in maintenance of collections</h3>
- * In choosing which of the standard Java Collection classes to utilize in this package, the focus
- * was on scalability: as the size of users, networks, and purchase-maps potentially expands
- * in the future, it was vital to guarantee the advantages of binary searches [O(log(n) efficiency]
- * over sequential searches [O(n) efficiency]. A quick glance at the "import" statements at the
- * top of the User class and the PurchaseManager class of this package shows that only TreeSet
- * and TreeMap implementations are currently in use, taking advantage of their
- * <a href="https://docs.oracle.com/javase/8/docs/api/java/util/TreeSet.html" target="_blank">
- * "guaranteed log(n) time cost for basic operations"</a>.
+ * In choosing how to hold users, networks, and purchases in this package, the focus was on
+ * scalability: as the size of users, networks, and purchase collections potentially expands in the
+ * future, both the cost of basic operations and the memory consumed per element become
+ * decisive. Thus, instead of the standard TreeSet and TreeMap implementations originally used,
+ * <ul>
+ * <li>user-ids are interned into dense int indexes (via the IdDictionary class), and Users are held
+ * in an array indexed by those ints;</li>
+ * <li>the friend connections of all users are held in a compact FriendGraph ("compressed sparse
+ * row" int arrays, plus a small overlay of recent befriend/unfriend changes);</li>
+ * <li>recent purchases are held in ring buffers of primitive arrays, ordered by event time, with
+ * late-arriving purchases positioned via binary search [O(log(n) efficiency], and with the
+ * running sum and sum of squares of their amounts maintained as purchases enter and leave the
+ * window, so that mean and standard deviation are derived without a pass over the purchases
+ * (and without risk of overflow).</li>
+ * </ul>
  *
  * <hr>
  * <h3>Scalability issue 2: minimizing data conversions</h3>
@@ -211,10 +320,12 @@
  * <ul>
  * <li>all <i>amounts</i> read in from JSON streams will immediately be converted to numeric format
  * and held and manipulated in memory in numeric format;</li>
- * <li>all <i>timestamps</i> and <i>user IDs</i> will never be converted, but instead kept in their
- * original String format;</li>
- * <li>the <i>System#nanoTime</i> values used to establish unique purchase-transaction-keys are
- * always held in memory in their original, long (numeric) format.</li>
+ * <li>all <i>user IDs</i> are converted (once, upon first appearance) into dense int indexes;</li>
+ * <li>all <i>timestamps</i> (of purchases and of befriend/unfriend transactions) are parsed
+ * once, upon ingestion, into a packed long "event time": the epoch second combined with a
+ * per-second ingest sequence number, which orders transactions with identical timestamps by
+ * order of arrival, so that every timestamp comparison is a single long comparison. (As each
+ * second numbers its own transactions, sequence numbers never run out, however long the detector runs.)</li>
  * </ul>
  *
  * <hr>
@@ -225,9 +336,11 @@
  * implore us to use BigDecimal objects when dealing with currency! But just a little thought
  * led to the realization that if amounts were held in memory as <i>pennies</i> instead of
  * <i>dollars</i>, that the complexity (and potential overhead, particularly in calculations) of
- * the BigDecimal class could be completely avoided! Thus, the Integer class (and primitive "int"
- * instances, where appropriate) are used for holding all amounts in memory (in "penny"
- * denominations) and for performing all computations, rounded to the nearest penny.
+ * the BigDecimal class could be completely avoided! Thus, primitive "long" values are used for
+ * holding all amounts in memory (in "penny" denominations) and for performing all computations,
+ * rounded to the nearest penny. Amounts are converted between their "dollars and cents" JSON
+ * representation and pennies by the AmountCodec, directly from and into bytes (accepting zero to
+ * two digits of cents, and amounts of up to $999,999,999,999.99).
  *
  * <hr>
  * <h3>Scalability issue 4: readiness for distributed processing</h3>
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code AmountCodec} class
+ *
+ * @author Daniel Vimont
+ */
+public class AmountCodecTest extends TestCase {
+
+  /**
+   * Test of parse method of class AmountCodec, with zero to two digits of cents.
+   */
+  public void testParse() {
+    assertEquals(160183L, AmountCodec.parse("1601.83"));
+    assertEquals(7L, AmountCodec.parse("0.07"));
+    assertEquals(750L, AmountCodec.parse("7.5"));
+    assertEquals(700L, AmountCodec.parse("7"));
+    assertEquals(0L, AmountCodec.parse("0"));
+    assertEquals(-250L, AmountCodec.parse("-2.50"));
+    assertEquals(5000000000L, AmountCodec.parse("50000000.00")); // beyond the range of an int
+    assertEquals(AmountCodec.MAX_AMOUNT, AmountCodec.parse("999999999999.99"));
+    assertEquals(-AmountCodec.MAX_AMOUNT, AmountCodec.parse("-999999999999.99"));
+
+    byte[] bytes = "{\"amount\": \"12.34\"}".getBytes(StandardCharsets.US_ASCII);
+    assertEquals(1234L, AmountCodec.parse(ByteBuffer.wrap(bytes), 12, 17));
+  }
+
+  /**
+   * Test of rejection of invalidly formatted and out-of-range amounts by class AmountCodec.
+   */
+  public void testParseInvalid() {
+    for (String amount : new String[]{"", "-", ".50", "1.", "1.001", "$1", "1,000.00", "1.5x",
+      " 1.00", "--1", "1e3", "1000000000000.00", "99999999999999999999"}) {
+      try {
+        AmountCodec.parse(amount);
+        fail("IllegalArgumentException expected for \"" + amount + "\"");
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage().contains(amount));
+      }
+    }
+  }
+
+  /**
+   * Test of format and toString methods of class AmountCodec, including round trips through
+   * parse.
+   */
+  public void testFormat() {
+    assertEquals("0.00", AmountCodec.toString(0));
+    assertEquals("0.03", AmountCodec.toString(3));
+    assertEquals("0.19", AmountCodec.toString(19));
+    assertEquals("3.49", AmountCodec.toString(349));
+    assertEquals("589221.11", AmountCodec.toString(58922111));
+    assertEquals("-0.05", AmountCodec.toString(-5));
+    assertEquals("-92233720368547758.08", AmountCodec.toString(Long.MIN_VALUE));
+
+    Random random = new Random(19);
+    ByteBuffer buffer = ByteBuffer.allocate(AmountCodec.MAX_FORMATTED_LENGTH * 1000);
+    long[] amounts = new long[1000];
+    for (int i = 0; i < amounts.length; i++) {
+      amounts[i] = Math.floorMod(random.nextLong(), AmountCodec.MAX_AMOUNT >> random.nextInt(40))
+              * (random.nextBoolean() ? 1 : -1);
+      int start = buffer.position();
+      AmountCodec.format(amounts[i], buffer);
+      String formatted = new String(
+              buffer.array(), start, buffer.position() - start, StandardCharsets.US_ASCII);
+      assertEquals(BigDecimal.valueOf(amounts[i], 2).toPlainString(), formatted);
+      assertEquals(amounts[i], AmountCodec.parse(buffer, start, buffer.position()));
+    }
+
+    ByteBuffer smallBuffer = ByteBuffer.allocate(4);
+    AmountCodec.format(999, smallBuffer);
+    assertEquals(4, smallBuffer.position());
+    try {
+      AmountCodec.format(1, smallBuffer);
+      fail("BufferOverflowException expected");
+    } catch (BufferOverflowException e) {
+      assertEquals(4, smallBuffer.position());
+    }
+  }
+}
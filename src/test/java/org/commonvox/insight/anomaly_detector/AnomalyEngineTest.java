@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code AnomalyEngine} class
+ *
+ * @author Daniel Vimont
+ */
+public class AnomalyEngineTest extends TestCase {
+
+  private AnomalyEngine engine;
+
+  @Override
+  protected void setUp() {
+    engine = new AnomalyEngine();
+  }
+
+  /**
+   * Test of setDegreesOfSeparation method of class AnomalyEngine.
+   *
+   * @throws java.lang.NoSuchFieldException
+   * @throws java.lang.IllegalAccessException
+   */
+  public void testSetDegreesOfSeparation() throws NoSuchFieldException, IllegalAccessException {
+    int degreesOfSeparation = 5;
+    engine.setDegreesOfSeparation(degreesOfSeparation);
+    Field degreesOfSeparationField = AnomalyEngine.class.getDeclaredField("degreesOfSeparation");
+    degreesOfSeparationField.setAccessible(true);
+    degreesOfSeparationField.get(engine);
+    assertEquals(degreesOfSeparation, degreesOfSeparationField.get(engine));
+  }
+
+  /**
+   * Test of getDegreesOfSeparation method of class AnomalyEngine.
+   *
+   * @throws java.lang.NoSuchFieldException
+   * @throws java.lang.IllegalAccessException
+   */
+  public void testGetDegreesOfSeparation() throws NoSuchFieldException, IllegalAccessException {
+    int expResult = 12;
+    Field degreesField = AnomalyEngine.class.getDeclaredField("degreesOfSeparation");
+    degreesField.setAccessible(true);
+    degreesField.set(engine, expResult);
+    int result = engine.getDegreesOfSeparation();
+    assertEquals(expResult, result);
+  }
+
+  /**
+   * Test of getOrCreateUser method of class AnomalyEngine.
+   */
+  public void testGetOrCreateUser() {
+    String id = "266";
+    String expResultId = id;
+    User result = engine.getOrCreateUser(id);
+    assertEquals(expResultId, result.getId());
+    int originalUserCount = engine.getAllUsers().size();
+
+    User sameUser = engine.getOrCreateUser(id); // should get original user (not create new one)
+    assertEquals(result, sameUser);
+    assertEquals(originalUserCount, engine.getAllUsers().size());
+  }
+
+  /**
+   * Test of getIndex and getUser methods of class AnomalyEngine.
+   */
+  public void testGetIndexAndGetUser() {
+    User user1 = engine.getOrCreateUser("3131");
+    User user2 = engine.getOrCreateUser("3132");
+    assertTrue(user1.getIndex() != user2.getIndex());
+    assertSame(user1, engine.getUser(user1.getIndex()));
+    assertSame(user2, engine.getUser(user2.getIndex()));
+    assertEquals(user1.getIndex(), engine.getOrCreateUser("3131").getIndex());
+  }
+
+  /**
+   * Test of getAllUsers method of class AnomalyEngine.
+   */
+  public void testGetAllUsers() {
+    List<String> idList = Arrays.asList(new String[]{"567", "890", "667"});
+    for (String id : idList) {
+      engine.getOrCreateUser(id);
+    }
+    Collection<User> allUsers = engine.getAllUsers();
+    Set<String> allUserIds = new TreeSet<>();
+    for (User user : allUsers) {
+      allUserIds.add(user.getId());
+    }
+    for (String id : idList) {
+      assertTrue(allUserIds.contains(id));
+    }
+  }
+
+  /**
+   * Test of setThreshold method of class AnomalyEngine.
+   * @throws java.lang.NoSuchFieldException
+   * @throws java.lang.IllegalAccessException
+   */
+  public void testSetThreshold() throws NoSuchFieldException, IllegalAccessException {
+    int threshold = 5;
+    engine.setThreshold(threshold);
+    Field thresholdField = AnomalyEngine.class.getDeclaredField("threshold");
+    thresholdField.setAccessible(true);
+    thresholdField.get(engine);
+    assertEquals(threshold, thresholdField.get(engine));
+  }
+
+  /**
+   * Test of getThreshold method of class AnomalyEngine.
+   * @throws java.lang.NoSuchFieldException
+   * @throws java.lang.IllegalAccessException
+   */
+  public void testGetThreshold() throws NoSuchFieldException, IllegalAccessException {
+    int expResult = 82;
+    Field thresholdField = AnomalyEngine.class.getDeclaredField("threshold");
+    thresholdField.setAccessible(true);
+    thresholdField.set(engine, expResult);
+    int result = engine.getThreshold();
+    assertEquals(expResult, result);
+  }
+
+  /**
+   * Test of the independence of multiple instances of class AnomalyEngine.
+   */
+  public void testIndependentEngines() {
+    ForkJoinPool sharedPool = new ForkJoinPool(2);
+    try {
+      AnomalyEngine engine1 = new AnomalyEngine(sharedPool);
+      AnomalyEngine engine2 = new AnomalyEngine(sharedPool);
+      assertSame(sharedPool, engine1.getThreadPool());
+      assertSame(sharedPool, engine2.getThreadPool());
+      engine1.setDegreesOfSeparation(1);
+      engine1.setThreshold(50);
+      engine2.setDegreesOfSeparation(2);
+      engine2.setThreshold(2);
+      assertEquals(1, engine1.getDegreesOfSeparation());
+      assertEquals(2, engine2.getDegreesOfSeparation());
+
+      String timestamp = "2017-06-13 11:33:01";
+      // each engine assigns its own ingest sequence numbers
+      assertEquals(EventTime.sequence(engine1.timestampToEventTime(timestamp)),
+              EventTime.sequence(engine2.timestampToEventTime(timestamp)));
+
+      for (AnomalyEngine eachEngine : new AnomalyEngine[]{engine1, engine2}) {
+        User user1 = eachEngine.getOrCreateUser("1");
+        User user2 = eachEngine.getOrCreateUser("2");
+        User user3 = eachEngine.getOrCreateUser("3");
+        user1.befriend(timestamp, user2);
+        user2.befriend(timestamp, user1);
+        user2.befriend(timestamp, user3);
+        user3.befriend(timestamp, user2);
+        user3.addPurchase(timestamp, 1000);
+        user3.addPurchase(timestamp, 1200);
+        user3.addPurchase(timestamp, 1100);
+      }
+      assertNotSame(engine1.getOrCreateUser("1"), engine2.getOrCreateUser("1"));
+      assertEquals(1, engine1.getOrCreateUser("1").getNetwork().size());
+      assertEquals(2, engine2.getOrCreateUser("1").getNetwork().size());
+      assertNull(engine1.getOrCreateUser("1").getAnomalyData(1000000)); // no purchases in network
+      long[] anomalyData = engine2.getOrCreateUser("1").getAnomalyData(1000000);
+      assertEquals(1150, anomalyData[0]); // only the most recent 2 purchases are held
+      assertEquals(50, anomalyData[1]);
+
+      engine1.getOrCreateUser("4");
+      assertEquals(4, engine1.getAllUsers().size());
+      assertEquals(3, engine2.getAllUsers().size());
+    } finally {
+      sharedPool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code BatchLoader} class
+ *
+ * @author Daniel Vimont
+ */
+public class BatchLoaderTest extends TestCase {
+
+  private static final int USER_COUNT = 30;
+
+  private AnomalyEngine engine;
+
+  @Override
+  protected void setUp() {
+    engine = new AnomalyEngine();
+  }
+
+  /**
+   * Test of load method of class BatchLoader: loading a batch file in parallel (in many small
+   * chunks) must yield the same friends and purchases as serial processing of the same file.
+   * Users of the two runs (each loaded into the same engine) are distinguished by the prefixes
+   * of their ids.
+   * @throws java.lang.Exception
+   */
+  public void testLoad() throws Exception {
+    engine.setThreshold(5);
+    String events = generateEvents(new Random(11), 3000);
+    Path serialPath = Files.createTempFile("batch-serial", ".json");
+    Path parallelPath = Files.createTempFile("batch-parallel", ".json");
+    Path emptyPath = Files.createTempFile("batch-empty", ".json");
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Files.write(serialPath, events.replace("{P}", "bs-").getBytes(StandardCharsets.UTF_8));
+      Files.write(parallelPath, events.replace("{P}", "bp-").getBytes(StandardCharsets.UTF_8));
+
+      TransactionProcessor transactionProcessor = new TransactionProcessor(engine, emptyPath.toString());
+      try (Stream<String> lines = Files.lines(serialPath)) {
+        transactionProcessor.processStreamInput(lines, null);
+      }
+      new BatchLoader(engine, pool, 500).load(parallelPath);
+
+      Field purchaseManagerField = User.class.getDeclaredField("purchaseManager");
+      purchaseManagerField.setAccessible(true);
+      for (int i = 0; i < USER_COUNT; i++) {
+        User serialUser = engine.getOrCreateUser("bs-" + i);
+        User parallelUser = engine.getOrCreateUser("bp-" + i);
+        assertEquals(friendIds(serialUser), friendIds(parallelUser));
+        PurchaseManager serialPurchases = (PurchaseManager)purchaseManagerField.get(serialUser);
+        PurchaseManager parallelPurchases = (PurchaseManager)purchaseManagerField.get(parallelUser);
+        assertEquals(serialPurchases.size(), parallelPurchases.size());
+        for (int position = 0; position < serialPurchases.size(); position++) {
+          assertEquals(serialPurchases.getTimestamp(position),
+                  parallelPurchases.getTimestamp(position));
+          assertEquals(serialPurchases.getAmount(position), parallelPurchases.getAmount(position));
+        }
+      }
+    } finally {
+      pool.shutdown();
+      Files.delete(serialPath);
+      Files.delete(parallelPath);
+      Files.delete(emptyPath);
+    }
+  }
+
+  private static Set<String> friendIds(User user) {
+    Set<String> friendIds = new TreeSet<>();
+    for (User friend : user.getFriends()) {
+      friendIds.add(friend.getId().substring(3));
+    }
+    return friendIds;
+  }
+
+  /**
+   * Generates events among users whose ids bear the placeholder prefix "{P}", with assorted
+   * line terminators.
+   */
+  private static String generateEvents(Random random, int eventCount) {
+    String[] terminators = {"\n", "\n", "\r\n", "\n\n"};
+    StringBuilder events = new StringBuilder();
+    for (String event : TestEvents.generateIrregular(random, eventCount, "{P}", USER_COUNT)) {
+      events.append(event).append(terminators[random.nextInt(terminators.length)]);
+    }
+    return events.toString();
+  }
+}
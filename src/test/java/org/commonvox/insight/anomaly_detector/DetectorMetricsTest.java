@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code DetectorMetrics} class
+ *
+ * @author Daniel Vimont
+ */
+public class DetectorMetricsTest extends TestCase {
+
+  private Path batchPath;
+  private Path streamPath;
+  private Path anomalyPath;
+
+  @Override
+  protected void setUp() throws Exception {
+    batchPath = Files.createTempFile("metrics-batch", ".json");
+    streamPath = Files.createTempFile("metrics-stream", ".json");
+    anomalyPath = Files.createTempFile("metrics-flagged", ".json");
+    Files.delete(anomalyPath);
+    WorkloadGenerator generator = new WorkloadGenerator();
+    generator.setSeed(9);
+    generator.setUserCount(300);
+    generator.setMeanDegree(4);
+    generator.setPurchasesPerUser(5);
+    generator.setStreamEventCount(3000);
+    generator.setAnomalyRatio(0.02);
+    generator.setThreshold(10);
+    generator.generate(batchPath, streamPath);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Files.deleteIfExists(batchPath);
+    Files.deleteIfExists(streamPath);
+    Files.deleteIfExists(anomalyPath);
+  }
+
+  /**
+   * Test of the counts of class DetectorMetrics, with serial processing and with processing
+   * through a pipeline with speculative scoring: counts must agree with the input and output.
+   * @throws java.lang.Exception
+   */
+  public void testCounts() throws Exception {
+    checkCounts(0, 0);
+    Files.delete(anomalyPath);
+    checkCounts(2, 2);
+  }
+
+  private void checkCounts(int parserCount, int scoringThreadCount) throws Exception {
+    TransactionProcessor transactionProcessor = new TransactionProcessor(batchPath.toString());
+    transactionProcessor.setPipelineParserCount(parserCount);
+    transactionProcessor.setScoringThreadCount(scoringThreadCount);
+    DetectorMetrics metrics = new DetectorMetrics();
+    transactionProcessor.getEngine().setMetrics(metrics);
+    transactionProcessor.processPathInput(streamPath, anomalyPath.toString());
+
+    List<String> lines = Files.readAllLines(streamPath, StandardCharsets.US_ASCII);
+    long purchaseCount = lines.stream().filter(line -> line.contains("\"purchase\"")).count();
+    long befriendCount = lines.stream().filter(line -> line.contains("\"befriend\"")).count();
+    long flaggedCount = Files.readAllLines(anomalyPath, StandardCharsets.UTF_8).size();
+    assertTrue(flaggedCount > 0);
+    assertEquals(lines.size(), metrics.getEventCount());
+    assertEquals(purchaseCount, metrics.getPurchaseCount());
+    assertEquals(befriendCount, metrics.getBefriendCount());
+    assertEquals(lines.size() - purchaseCount - befriendCount, metrics.getUnfriendCount());
+    assertEquals(purchaseCount, metrics.getScoredPurchaseCount());
+    assertEquals(flaggedCount, metrics.getFlaggedPurchaseCount());
+    assertEquals((double)flaggedCount / purchaseCount, metrics.getAnomalyRate(), 1e-9);
+    assertTrue(metrics.getEventsPerSecond() > 0);
+    assertTrue(metrics.getPurchaseLatencyMedian() > 0);
+    assertTrue(metrics.getPurchaseLatency99thPercentile() >= metrics.getPurchaseLatencyMedian());
+    assertTrue(metrics.getPurchaseLatencyMax() >= metrics.getPurchaseLatency99thPercentile());
+    assertTrue(metrics.getNetworkLatency99thPercentile() > 0);
+    assertTrue(metrics.getScoringLatency99thPercentile() > 0);
+    assertTrue(metrics.getNetworkSizeMean() > 1);
+    assertTrue(metrics.getNetworkSizeMax() >= metrics.getNetworkSize99thPercentile());
+    assertTrue(metrics.getPurchasesMergedMean() > 0);
+    assertTrue(metrics.getPurchasesMergedMean() <= 10);
+  }
+
+  /**
+   * Test of registerMBean and startHttpServer methods of class DetectorMetrics: the metrics must
+   * be readable via the platform MBean server and scrapable in Prometheus text format.
+   * @throws java.lang.Exception
+   */
+  public void testExposure() throws Exception {
+    TransactionProcessor transactionProcessor = new TransactionProcessor(batchPath.toString());
+    DetectorMetrics metrics = new DetectorMetrics();
+    transactionProcessor.getEngine().setMetrics(metrics);
+    transactionProcessor.processPathInput(streamPath, null);
+
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName objectName = metrics.registerMBean("test");
+    try {
+      assertEquals(3000L, mBeanServer.getAttribute(objectName, "EventCount"));
+      assertEquals(0L, mBeanServer.getAttribute(objectName, "ScoredPurchaseCount"));
+    } finally {
+      mBeanServer.unregisterMBean(objectName);
+    }
+
+    HttpServer server = metrics.startHttpServer(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    String text;
+    try {
+      URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(),
+              server.getAddress().getPort(), DetectorMetrics.HTTP_CONTEXT);
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      try (InputStream input = url.openStream()) {
+        byte[] bytes = new byte[4096];
+        for (int count; (count = input.read(bytes)) >= 0; ) {
+          body.write(bytes, 0, count);
+        }
+      }
+      text = new String(body.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      server.stop(0);
+    }
+    assertEquals(metrics.getPrometheusText().split("\n").length, text.split("\n").length);
+    assertTrue(text.contains("# TYPE anomaly_detector_events_total counter\n"));
+    assertTrue(text.contains("anomaly_detector_events_total{type=\"purchase\"} "
+            + metrics.getPurchaseCount() + "\n"));
+    assertTrue(text.contains(
+            "anomaly_detector_event_latency_seconds_count{type=\"purchase\"} "
+            + metrics.getPurchaseCount() + "\n"));
+    assertTrue(text.contains("anomaly_detector_network_size{quantile=\"0.99\"} "));
+    for (String line : text.split("\n")) {
+      assertTrue(line, line.startsWith("# ")
+              || line.matches("anomaly_detector_[a-z_]+(\\{[^}]*\\})? [0-9.E-]+"));
+    }
+  }
+
+  /**
+   * Test of the retirement of recorders of class DetectorMetrics: the counts recorded by a
+   * succession of short-lived threads must survive the threads, without their recorders
+   * accumulating.
+   * @throws java.lang.Exception
+   */
+  public void testRecorderRetirement() throws Exception {
+    DetectorMetrics metrics = new DetectorMetrics();
+    final int threadCount = 100;
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread = new Thread(() -> {
+        metrics.recordEvent(EventType.PURCHASE, 1000);
+        metrics.recordOutcome(true);
+      });
+      thread.start();
+      thread.join();
+      assertTrue(metrics.getRecorderCount() <= 1);
+    }
+    assertEquals(threadCount, metrics.getPurchaseCount());
+    assertEquals(threadCount, metrics.getFlaggedPurchaseCount());
+    assertEquals(0, metrics.getRecorderCount());
+
+    metrics.recordEvent(EventType.BEFRIEND, 1000);
+    assertEquals(threadCount + 1, metrics.getEventCount());
+    assertEquals(1, metrics.getRecorderCount());
+  }
+}
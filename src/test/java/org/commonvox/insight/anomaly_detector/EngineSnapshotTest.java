@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code EngineSnapshot} class
+ *
+ * @author Daniel Vimont
+ */
+public class EngineSnapshotTest extends TestCase {
+
+  private static final int USER_COUNT = 40;
+
+  private Path batchPath;
+  private Path snapshotPath;
+
+  @Override
+  protected void setUp() throws IOException {
+    batchPath = Files.createTempFile("snapshot-batch", ".json");
+    snapshotPath = Files.createTempFile("snapshot", ".bin");
+    Random random = new Random(17);
+    Files.write(batchPath, ("{\"D\":\"2\", \"T\":\"4\"}\n"
+            + String.join("\n", TestEvents.generate(random, 3000, "s", USER_COUNT, 0)))
+            .getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.deleteIfExists(batchPath);
+    Files.deleteIfExists(snapshotPath);
+  }
+
+  /**
+   * Test of write and restore methods of class EngineSnapshot: an engine restored from a
+   * snapshot must hold the same state as the engine from which the snapshot was taken, and
+   * must flag the same anomalies in subsequent stream input.
+   * @throws java.lang.Exception
+   */
+  public void testWriteAndRestore() throws Exception {
+    TransactionProcessor originalProcessor = new TransactionProcessor(batchPath.toString());
+    AnomalyEngine originalEngine = originalProcessor.getEngine();
+    originalEngine.writeSnapshot(snapshotPath);
+    AnomalyEngine restoredEngine = new AnomalyEngine();
+    restoredEngine.restoreSnapshot(snapshotPath);
+
+    assertEquals(originalEngine.getDegreesOfSeparation(), restoredEngine.getDegreesOfSeparation());
+    assertEquals(originalEngine.getThreshold(), restoredEngine.getThreshold());
+    assertTrue(Arrays.equals(originalEngine.getEventTime().getSequenceState(),
+            restoredEngine.getEventTime().getSequenceState()));
+    assertEquals(USER_COUNT, restoredEngine.getAllUsers().size());
+    for (User originalUser : originalEngine.getAllUsers()) {
+      User restoredUser = restoredEngine.getUser(originalUser.getIndex());
+      assertEquals(originalUser.getId(), restoredUser.getId());
+      assertEquals(originalUser.getFriends().toString(), restoredUser.getFriends().toString());
+      assertEquals(originalUser.getNetwork().toString(), restoredUser.getNetwork().toString());
+      PurchaseManager originalPurchases = originalUser.getPurchaseManager();
+      PurchaseManager restoredPurchases = restoredUser.getPurchaseManager();
+      assertEquals(originalPurchases.size(), restoredPurchases.size());
+      for (int position = 0; position < originalPurchases.size(); position++) {
+        assertEquals(originalPurchases.getEventTime(position),
+                restoredPurchases.getEventTime(position));
+        assertEquals(originalPurchases.getAmount(position), restoredPurchases.getAmount(position));
+      }
+    }
+
+    // befriend/unfriend event times must also be restored, as they govern stream processing
+    List<String> stream = TestEvents.generate(new Random(23), 2000, "s", USER_COUNT, -30);
+    TransactionProcessor restoredProcessor = new TransactionProcessor(restoredEngine);
+    String originalOutput = TestEvents.process(originalProcessor, 0, 0, stream);
+    assertFalse(originalOutput.isEmpty());
+    assertEquals(originalOutput, TestEvents.process(restoredProcessor, 0, 0, stream));
+  }
+
+  /**
+   * Test of restore method of class EngineSnapshot: a corrupted snapshot must be rejected
+   * before the engine being restored is modified.
+   * @throws java.lang.Exception
+   */
+  public void testRestoreCorrupted() throws Exception {
+    new TransactionProcessor(batchPath.toString()).getEngine().writeSnapshot(snapshotPath);
+    byte[] snapshotBytes = Files.readAllBytes(snapshotPath);
+    snapshotBytes[snapshotBytes.length / 2] ^= 0x10;
+    Files.write(snapshotPath, snapshotBytes);
+
+    AnomalyEngine engine = new AnomalyEngine();
+    try {
+      engine.restoreSnapshot(snapshotPath);
+      fail("Expected IOException for corrupted snapshot");
+    } catch (IOException e) {
+      // expected
+    }
+    assertTrue(engine.getAllUsers().isEmpty());
+    assertEquals(0, engine.getThreshold());
+
+    Files.write(snapshotPath, Arrays.copyOf(snapshotBytes, 20));
+    try {
+      engine.restoreSnapshot(snapshotPath);
+      fail("Expected IOException for truncated snapshot");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test of restore method of class EngineSnapshot: an engine already holding Users may not
+   * be restored.
+   * @throws java.lang.Exception
+   */
+  public void testRestoreNonEmpty() throws Exception {
+    new TransactionProcessor(batchPath.toString()).getEngine().writeSnapshot(snapshotPath);
+    AnomalyEngine engine = new AnomalyEngine();
+    engine.getOrCreateUser("existing");
+    try {
+      engine.restoreSnapshot(snapshotPath);
+      fail("Expected IllegalStateException for restoration of non-empty engine");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}
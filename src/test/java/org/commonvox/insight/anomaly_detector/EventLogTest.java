@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code EventLog} class
+ *
+ * @author Daniel Vimont
+ */
+public class EventLogTest extends TestCase {
+
+  private static final int BATCH_USER_COUNT = 40;
+  private static final int STREAM_USER_COUNT = 60; // stream introduces users unknown to batch
+
+  private Path batchPath;
+  private Path logDirectory;
+
+  @Override
+  protected void setUp() throws IOException {
+    batchPath = Files.createTempFile("event-log-batch", ".json");
+    logDirectory = Files.createTempDirectory("event-log");
+    List<String> batch = TestEvents.generate(new Random(5), 2000, "e", BATCH_USER_COUNT, 0);
+    Files.write(batchPath, ("{\"D\":\"2\", \"T\":\"4\"}\n" + String.join("\n", batch))
+            .getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.deleteIfExists(batchPath);
+    for (Path path : listDirectory()) {
+      Files.delete(path);
+    }
+    Files.delete(logDirectory);
+  }
+
+  /**
+   * Test of open method of class EventLog: an engine recovered from the log must hold the same
+   * state as the engine whose events were logged (through serial, pipelined, and speculative
+   * stream processing), even if the log ends in a torn record.
+   * @throws java.lang.Exception
+   */
+  public void testRecovery() throws Exception {
+    TransactionProcessor originalProcessor = new TransactionProcessor(batchPath.toString());
+    AnomalyEngine originalEngine = originalProcessor.getEngine();
+    assertFalse(EventLog.exists(logDirectory));
+    originalEngine.openEventLog(logDirectory, 16, 1 << 20);
+    assertTrue(EventLog.exists(logDirectory));
+    TestEvents.process(originalProcessor, 0, 0, generateStream(new Random(6), 1000, 30));
+    TestEvents.process(originalProcessor, 2, 0, generateStream(new Random(7), 1000, 40));
+    TestEvents.process(originalProcessor, 2, 3, generateStream(new Random(8), 1000, 50));
+    long loggedPosition = originalEngine.getEventLog().getPosition();
+    originalEngine.closeEventLog();
+    try (DirectoryStream<Path> segments
+            = Files.newDirectoryStream(logDirectory, "segment-*.log")) {
+      for (Path segment : segments) { // simulate a crash in the midst of a write
+        Files.write(segment, new byte[]{12, 0, 0, 0, 1, 2}, StandardOpenOption.APPEND);
+      }
+    }
+
+    AnomalyEngine recoveredEngine = new AnomalyEngine();
+    recoveredEngine.openEventLog(logDirectory, 16, 1 << 20);
+    assertEquals(loggedPosition, recoveredEngine.getEventLog().getPosition());
+    assertSameState(originalEngine, recoveredEngine);
+
+    List<String> stream = generateStream(new Random(9), 1000, 60);
+    String originalOutput = TestEvents.process(originalProcessor, 0, 0, stream);
+    assertFalse(originalOutput.isEmpty());
+    assertEquals(originalOutput,
+            TestEvents.process(new TransactionProcessor(recoveredEngine), 0, 0, stream));
+    recoveredEngine.closeEventLog();
+  }
+
+  /**
+   * Test of compact method of class EventLog: sealed segments must be folded (in the
+   * background, and on demand) into a snapshot, from which (plus the remaining segments) the
+   * state of the engine is recovered.
+   * @throws java.lang.Exception
+   */
+  public void testCompaction() throws Exception {
+    TransactionProcessor originalProcessor = new TransactionProcessor(batchPath.toString());
+    AnomalyEngine originalEngine = originalProcessor.getEngine();
+    originalEngine.openEventLog(logDirectory, 64, 4096);
+    for (int run = 0; run < 4; run++) {
+      TestEvents.process(originalProcessor, 0, 0,
+              generateStream(new Random(20 + run), 1000, 30 + run * 10));
+    }
+    EventLog eventLog = originalEngine.getEventLog();
+    long compactedPosition = eventLog.compact();
+    assertTrue(compactedPosition > 0);
+    assertTrue(Files.exists(logDirectory.resolve(
+            String.format("snapshot-%020d.snapshot", compactedPosition))));
+    TestEvents.process(originalProcessor, 0, 0, generateStream(new Random(30), 500, 80));
+    originalEngine.closeEventLog();
+
+    int snapshotCount = 0;
+    for (Path path : listDirectory()) {
+      if (path.getFileName().toString().startsWith("snapshot-")) {
+        snapshotCount++;
+      }
+    }
+    assertEquals(1, snapshotCount);
+
+    AnomalyEngine recoveredEngine = new AnomalyEngine();
+    recoveredEngine.openEventLog(logDirectory);
+    assertSameState(originalEngine, recoveredEngine);
+    recoveredEngine.closeEventLog();
+  }
+
+  /**
+   * Test of open method of class EventLog: an existing log may only be recovered into an
+   * engine holding no Users.
+   * @throws java.lang.Exception
+   */
+  public void testRecoveryIntoNonEmptyEngine() throws Exception {
+    AnomalyEngine engine = new TransactionProcessor(batchPath.toString()).getEngine();
+    engine.openEventLog(logDirectory);
+    engine.closeEventLog();
+    try {
+      engine.openEventLog(logDirectory);
+      fail("Expected IllegalStateException for recovery into non-empty engine");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  private static void assertSameState(AnomalyEngine expected, AnomalyEngine actual) {
+    assertEquals(expected.getDegreesOfSeparation(), actual.getDegreesOfSeparation());
+    assertEquals(expected.getThreshold(), actual.getThreshold());
+    assertTrue(Arrays.equals(expected.getEventTime().getSequenceState(),
+            actual.getEventTime().getSequenceState()));
+    assertEquals(expected.getAllUsers().size(), actual.getAllUsers().size());
+    for (User expectedUser : expected.getAllUsers()) {
+      User actualUser = actual.getUser(expectedUser.getIndex());
+      assertEquals(expectedUser.getId(), actualUser.getId());
+      assertEquals(expectedUser.getFriends().toString(), actualUser.getFriends().toString());
+      PurchaseManager expectedPurchases = expectedUser.getPurchaseManager();
+      PurchaseManager actualPurchases = actualUser.getPurchaseManager();
+      assertEquals(expectedPurchases.size(), actualPurchases.size());
+      for (int position = 0; position < expectedPurchases.size(); position++) {
+        assertEquals(expectedPurchases.getEventTime(position),
+                actualPurchases.getEventTime(position));
+        assertEquals(expectedPurchases.getAmount(position), actualPurchases.getAmount(position));
+      }
+    }
+  }
+
+  private List<Path> listDirectory() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> directoryPaths = Files.newDirectoryStream(logDirectory)) {
+      for (Path path : directoryPaths) {
+        paths.add(path);
+      }
+    }
+    return paths;
+  }
+
+  private static List<String> generateStream(Random random, int eventCount, int offsetMinutes) {
+    return TestEvents.generate(random, eventCount, "e", STREAM_USER_COUNT, offsetMinutes);
+  }
+}
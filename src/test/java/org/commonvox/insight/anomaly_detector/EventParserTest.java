@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code EventParser} class
+ *
+ * @author Daniel Vimont
+ */
+public class EventParserTest extends TestCase {
+
+  private final IdDictionary idDictionary = new IdDictionary();
+  private final EventParser parser = new EventParser(idDictionary, new EventTime());
+  private final EventRecord record = new EventRecord();
+
+  private boolean parse(String line) throws ParseException {
+    ByteBuffer buffer = ByteBuffer.wrap(("  " + line + "\n").getBytes(StandardCharsets.UTF_8));
+    return parser.parse(buffer, 2, buffer.limit() - 1, record);
+  }
+
+  /**
+   * Test of parsing of each of the known event shapes.
+   * @throws java.text.ParseException
+   */
+  public void testParse() throws ParseException {
+    assertTrue(parse("{\"D\":\"3\", \"T\":\"50\"}"));
+    assertEquals(EventType.PARAMETERS, record.getType());
+    assertEquals(3, record.getDegreesOfSeparation());
+    assertEquals(50, record.getThreshold());
+
+    String purchase = "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:01\", "
+            + "\"id\": \"1\", \"amount\": \"16.83\"}";
+    assertTrue(parse(purchase));
+    assertEquals(EventType.PURCHASE, record.getType());
+    assertEquals(1497353581L, EventTime.epochSecond(record.getEventTime()));
+    assertEquals(0L, EventTime.sequence(record.getEventTime()));
+    assertEquals(1683L, record.getAmount());
+    assertEquals("1", idDictionary.getId(record.getUserIndex()));
+    assertEquals(purchase, record.getLine());
+
+    assertTrue(parse("{\"timestamp\":\"2017-06-13 11:33:01\",\"id2\":\"2\",\"id1\":\"1\","
+            + "\"event_type\":\"befriend\"}")); // any order of keys
+    assertEquals(EventType.BEFRIEND, record.getType());
+    assertEquals(1L, EventTime.sequence(record.getEventTime()));
+    assertEquals(idDictionary.get("1"), record.getUserIndex());
+    assertEquals("2", idDictionary.getId(record.getOtherUserIndex()));
+
+    assertTrue(parse("{\"event_type\":\"unfriend\", \"timestamp\":\"2017-06-13 11:33:02\", "
+            + "\"id1\": \"2\", \"id2\": \"1\"}"));
+    assertEquals(EventType.UNFRIEND, record.getType());
+    assertEquals(idDictionary.get("2"), record.getUserIndex());
+    assertEquals(idDictionary.get("1"), record.getOtherUserIndex());
+    assertEquals(2, idDictionary.size());
+
+    assertTrue(parse("{\"event_type\":\"refund\", \"timestamp\":\"2017-06-13 11:33:02\"}"));
+    assertEquals(EventType.UNKNOWN, record.getType());
+
+    assertFalse(parse(""));
+    assertFalse(parse(" \t"));
+  }
+
+  /**
+   * Test of skipping of unknown fields, of escaped and non-ASCII values, and of amount formats.
+   * @throws java.text.ParseException
+   */
+  public void testParse_FieldVariants() throws ParseException {
+    assertTrue(parse("{\"event_type\":\"purchase\", \"note\": {\"a\": [1, \"}\", {}]}, "
+            + "\"flag\": true, \"timestamp\":\"2017-06-13 11:33:01\", \"id\": \"a\\\"b\\u0063\", "
+            + "\"amount\": 7, \"x\": -1.5e3}"));
+    assertEquals("a\"bc", idDictionary.getId(record.getUserIndex()));
+    assertEquals(700L, record.getAmount());
+
+    assertTrue(parse("{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:01\", "
+            + "\"id\": \"été\", \"amount\": \"0.5\"}"));
+    assertEquals("été", idDictionary.getId(record.getUserIndex()));
+    assertEquals(50L, record.getAmount());
+
+    assertTrue(parse("{\"D\":3,\"T\":50}")); // unquoted numbers
+    assertEquals(3, record.getDegreesOfSeparation());
+  }
+
+  /**
+   * Test of rejection of invalidly formatted events (including those with user-ids too long to
+   * be logged), before any user-id is interned.
+   */
+  public void testParse_Invalid() {
+    char[] longIdChars = new char[EventLog.MAX_USER_ID_LENGTH + 1];
+    Arrays.fill(longIdChars, 'u');
+    String longId = new String(longIdChars);
+    String[] invalidLines = {
+      "\"D\":\"3\", \"T\":\"50\"",
+      "{\"D\":\"3\", \"T\":\"50\"",
+      "{\"D\":\"3\" \"T\":\"50\"}",
+      "{\"D\":\"3\"}",
+      "{\"D\":\"3\", \"T\":\"50\"} x",
+      "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:01\", \"id\": \"1\"}",
+      "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13\", \"id\": \"1\", \"amount\": \"1.00\"}",
+      "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:01\", \"id\": \"1\", \"amount\": \"1.\"}",
+      "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:01\", \"id\": \"1\", \"amount\": \"1.001\"}",
+      "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:01\", \"id\": \"1\", \"amount\": \"$1\"}",
+      "{\"event_type\":\"befriend\", \"timestamp\":\"2017-06-13 11:33:01\", \"id1\": \"1\"}",
+      "{\"event_type\":\"befriend\", \"timestamp\":\"2017-06-13 11:33:01\", \"id1\": \"1, \"id2\": \"2\"}",
+      "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:01\", \"id\": \"" + longId
+              + "\", \"amount\": \"1.00\"}",
+      "{\"event_type\":\"befriend\", \"timestamp\":\"2017-06-13 11:33:01\", \"id1\": \"1\", \"id2\": \""
+              + longId + "\"}"
+    };
+    for (String invalidLine : invalidLines) {
+      try {
+        parse(invalidLine);
+        fail("Invalid event accepted: " + invalidLine);
+      } catch (ParseException e) {
+      }
+    }
+    assertEquals(0, idDictionary.size());
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code EventTime} class
+ *
+ * @author Daniel Vimont
+ */
+public class EventTimeTest extends TestCase {
+
+  private static final long FIRST_EPOCH_SECOND = 1497353581L; // 2017-06-13 11:33:01
+
+  /**
+   * Test of encode method of class EventTime.
+   */
+  public void testEncode() {
+    EventTime eventTime = new EventTime();
+    long first = eventTime.encode("2017-06-13 11:33:01");
+    long second = eventTime.encode("2017-06-13 11:33:01");
+    long third = eventTime.encode("2017-06-13 11:33:02");
+    assertEquals(EventTime.pack(FIRST_EPOCH_SECOND, 0), first);
+    assertEquals(EventTime.pack(FIRST_EPOCH_SECOND, 1), second);
+    assertEquals(EventTime.pack(FIRST_EPOCH_SECOND + 1, 0), third);
+    assertTrue(first < second && second < third);
+    assertEquals(EventTime.pack(FIRST_EPOCH_SECOND, 2),
+            eventTime.encode("2017-06-13 11:33:01")); // late, but its second is still held
+  }
+
+  /**
+   * Test of sequence numbering of class EventTime, starting near {@link EventTime#MAX_SEQUENCE}
+   * (as after recovery of an engine which ingested a great many transactions): only the
+   * exhausted second is refused, with every other second continuing to be numbered.
+   */
+  public void testNextEventTime_NearMaxSequence() {
+    EventTime eventTime = new EventTime();
+    eventTime.observe(EventTime.pack(FIRST_EPOCH_SECOND, EventTime.MAX_SEQUENCE - 2));
+    assertEquals(EventTime.pack(FIRST_EPOCH_SECOND, EventTime.MAX_SEQUENCE - 1),
+            eventTime.nextEventTime(FIRST_EPOCH_SECOND));
+    assertEquals(EventTime.pack(FIRST_EPOCH_SECOND, EventTime.MAX_SEQUENCE),
+            eventTime.nextEventTime(FIRST_EPOCH_SECOND));
+    try {
+      eventTime.nextEventTime(FIRST_EPOCH_SECOND);
+      fail("IllegalStateException expected");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains(String.valueOf(FIRST_EPOCH_SECOND)));
+    }
+    for (long epochSecond = FIRST_EPOCH_SECOND + 1;
+            epochSecond < FIRST_EPOCH_SECOND + 3 * EventTime.SECOND_SLOTS; epochSecond++) {
+      assertEquals(EventTime.pack(epochSecond, 0), eventTime.nextEventTime(epochSecond));
+      assertEquals(EventTime.pack(epochSecond, 1), eventTime.nextEventTime(epochSecond));
+    }
+    assertEquals(FIRST_EPOCH_SECOND + 3 * EventTime.SECOND_SLOTS - 1,
+            eventTime.getNewestEpochSecond());
+  }
+
+  /**
+   * Test of sequence numbering of class EventTime for transactions arriving so late that their
+   * seconds are no longer held: ingestion order is preserved among such transactions.
+   */
+  public void testNextEventTime_Evicted() {
+    EventTime eventTime = new EventTime();
+    for (int i = 0; i < 5; i++) {
+      eventTime.nextEventTime(FIRST_EPOCH_SECOND);
+    }
+    long lastSecond = FIRST_EPOCH_SECOND + 2 * EventTime.SECOND_SLOTS;
+    for (long epochSecond = FIRST_EPOCH_SECOND + 1; epochSecond <= lastSecond; epochSecond++) {
+      eventTime.nextEventTime(epochSecond);
+    }
+    assertEquals(5, eventTime.peekNextSequence(FIRST_EPOCH_SECOND));
+    long late = eventTime.nextEventTime(FIRST_EPOCH_SECOND);
+    assertEquals(FIRST_EPOCH_SECOND, EventTime.epochSecond(late));
+    assertTrue(EventTime.sequence(late) >= 5);
+    assertTrue(eventTime.nextEventTime(FIRST_EPOCH_SECOND) > late);
+    assertEquals(0, eventTime.peekNextSequence(lastSecond + 1));
+  }
+
+  /**
+   * Test of getSequenceState and setSequenceState methods of class EventTime.
+   */
+  public void testSequenceState() {
+    EventTime original = new EventTime();
+    for (long epochSecond = FIRST_EPOCH_SECOND; epochSecond < FIRST_EPOCH_SECOND + 100;
+            epochSecond++) {
+      for (int i = 0; i <= epochSecond % 7; i++) {
+        original.nextEventTime(epochSecond);
+      }
+    }
+    original.observe(EventTime.pack(FIRST_EPOCH_SECOND + 50, EventTime.MAX_SEQUENCE - 1));
+    EventTime restored = new EventTime();
+    restored.setSequenceState(original.getSequenceState());
+    assertTrue(Arrays.equals(original.getSequenceState(), restored.getSequenceState()));
+    assertEquals(original.getNewestEpochSecond(), restored.getNewestEpochSecond());
+    for (long epochSecond = FIRST_EPOCH_SECOND - 1; epochSecond < FIRST_EPOCH_SECOND + 101;
+            epochSecond++) {
+      assertEquals(original.nextEventTime(epochSecond), restored.nextEventTime(epochSecond));
+    }
+    try {
+      restored.setSequenceState(new long[]{FIRST_EPOCH_SECOND, -1});
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code FlaggedPurchaseWriter} class
+ *
+ * @author Daniel Vimont
+ */
+public class FlaggedPurchaseWriterTest extends TestCase {
+
+  private static final String[] LINES = {
+    "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:02\", \"id\": \"2\", "
+            + "\"amount\": \"1601.83\"}",
+    "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:02\", \"id\": \"é中\", "
+            + "\"amount\": \"0.05\"}",
+    "{\"event_type\":\"purchase\", \"id\": \"😀\", \"amount\": \"1.00\"}é"
+  };
+
+  /**
+   * Output written for lines held in heap and direct buffers (at arbitrary offsets) must be
+   * identical to that of String-based formatting.
+   */
+  public void testWriteToWriter() throws IOException {
+    Random random = new Random(18);
+    StringBuilder expected = new StringBuilder();
+    StringWriter output = new StringWriter();
+    FlaggedPurchaseWriter writer = new FlaggedPurchaseWriter(output);
+    ByteBuffer direct = ByteBuffer.allocateDirect(1024);
+    for (int i = 0; i < 3000; i++) {
+      String line = LINES[random.nextInt(LINES.length)];
+      int mean = random.nextInt(4) == 0 ? random.nextInt(1000) : random.nextInt(Integer.MAX_VALUE);
+      int sd = random.nextInt(3) == 0 ? random.nextInt(10) : random.nextInt(5000000);
+      if (i > 0) {
+        expected.append(System.lineSeparator());
+      }
+      expected.append(format(line, mean, sd));
+      byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+      int offset = random.nextInt(100);
+      ByteBuffer buffer;
+      if (random.nextBoolean()) {
+        buffer = ByteBuffer.wrap(new byte[offset + bytes.length + 10]);
+      } else {
+        buffer = direct;
+      }
+      for (int j = 0; j < bytes.length; j++) {
+        buffer.put(offset + j, bytes[j]);
+      }
+      writer.write(buffer, offset, offset + bytes.length, mean, sd);
+    }
+    writer.flush();
+    assertEquals(expected.toString(), output.toString());
+  }
+
+  /**
+   * Output written to a channel must be the UTF-8 encoding of String-based formatting, with
+   * amounts zero-padded to at least one digit of dollars.
+   */
+  public void testWriteToChannel() throws IOException {
+    Path path = Files.createTempFile("flagged", ".json");
+    try {
+      try (FlaggedPurchaseWriter writer = new FlaggedPurchaseWriter(
+              FileChannel.open(path, StandardOpenOption.WRITE))) {
+        for (int amount : new int[]{0, 7, 42, 100, 123456}) {
+          byte[] bytes = LINES[0].getBytes(StandardCharsets.UTF_8);
+          writer.write(ByteBuffer.wrap(bytes), 0, bytes.length, amount, amount);
+        }
+      }
+      String expectedPrefix = LINES[0].substring(0, LINES[0].length() - 1);
+      String separator = System.lineSeparator();
+      assertEquals(expectedPrefix + ", \"mean\": \"0.00\", \"sd\": \"0.00\"}" + separator
+              + expectedPrefix + ", \"mean\": \"0.07\", \"sd\": \"0.07\"}" + separator
+              + expectedPrefix + ", \"mean\": \"0.42\", \"sd\": \"0.42\"}" + separator
+              + expectedPrefix + ", \"mean\": \"1.00\", \"sd\": \"1.00\"}" + separator
+              + expectedPrefix + ", \"mean\": \"1234.56\", \"sd\": \"1234.56\"}",
+              new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  /** A record larger than the writer's buffer must be written intact. */
+  public void testOversizedRecord() throws IOException {
+    StringBuilder lineBuilder = new StringBuilder("{\"id\": \"");
+    while (lineBuilder.length() < FlaggedPurchaseWriter.DEFAULT_BUFFER_SIZE * 2) {
+      lineBuilder.append("0123456789");
+    }
+    String line = lineBuilder.append("\"}").toString();
+    byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+    StringWriter output = new StringWriter();
+    FlaggedPurchaseWriter writer = new FlaggedPurchaseWriter(output);
+    writer.write(ByteBuffer.wrap(bytes), 0, bytes.length, 150, 25);
+    writer.write(ByteBuffer.wrap(bytes), 0, bytes.length, 150, 25);
+    writer.flush();
+    assertEquals(format(line, 150, 25) + System.lineSeparator() + format(line, 150, 25),
+            output.toString());
+  }
+
+  /** Formats a flagged purchase as it was formatted prior to the FlaggedPurchaseWriter. */
+  private static String format(String line, int mean, int sd) {
+    return line.substring(0, line.length() - 1)
+            + String.format(", \"mean\": \"%s\", \"sd\": \"%s\"}",
+                    PurchaseManager.amountIntegerToString(mean),
+                    PurchaseManager.amountIntegerToString(sd));
+  }
+}
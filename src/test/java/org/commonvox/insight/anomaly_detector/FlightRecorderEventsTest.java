@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code FlightRecorderEvents} class
+ *
+ * @author Daniel Vimont
+ */
+public class FlightRecorderEventsTest extends TestCase {
+
+  private Path batchPath;
+  private Path streamPath;
+  private Path anomalyPath;
+  private Path recordingPath;
+
+  @Override
+  protected void setUp() throws Exception {
+    batchPath = Files.createTempFile("jfr-batch", ".json");
+    streamPath = Files.createTempFile("jfr-stream", ".json");
+    anomalyPath = Files.createTempFile("jfr-flagged", ".json");
+    recordingPath = Files.createTempFile("detector", ".jfr");
+    Files.delete(anomalyPath);
+    WorkloadGenerator generator = new WorkloadGenerator();
+    generator.setSeed(4);
+    generator.setUserCount(200);
+    generator.setMeanDegree(4);
+    generator.setPurchasesPerUser(5);
+    generator.setStreamEventCount(2000);
+    generator.setAnomalyRatio(0.02);
+    generator.setThreshold(10);
+    generator.generate(batchPath, streamPath);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Files.deleteIfExists(batchPath);
+    Files.deleteIfExists(streamPath);
+    Files.deleteIfExists(anomalyPath);
+    Files.deleteIfExists(recordingPath);
+  }
+
+  /**
+   * Test of startRecording method of class FlightRecorderEvents: with a zero threshold, every
+   * kind of event must be recorded, with fields describing the work done.
+   * @throws java.lang.Exception
+   */
+  public void testStartRecording() throws Exception {
+    assertTrue(FlightRecorderEvents.AVAILABLE);
+    try (Closeable recording = FlightRecorderEvents.startRecording(recordingPath, Duration.ZERO)) {
+      process(2, 2);
+      PurchaseManager purchaseManager = new PurchaseManager(new AnomalyEngine());
+      purchaseManager.addPurchases(purchaseManager);
+    }
+    Map<String, Integer> counts = new HashMap<>();
+    int flaggedCount = 0;
+    int speculativeCount = 0;
+    for (RecordedEvent event : RecordingFile.readAllEvents(recordingPath)) {
+      String name = event.getEventType().getName();
+      if (!name.startsWith(FlightRecorderEvents.EVENT_NAME_PREFIX)) {
+        continue;
+      }
+      counts.merge(name.substring(FlightRecorderEvents.EVENT_NAME_PREFIX.length()), 1, Integer::sum);
+      switch (name.substring(FlightRecorderEvents.EVENT_NAME_PREFIX.length())) {
+        case "NetworkAssembly":
+          assertNotNull(event.getString("userId"));
+          assertTrue(event.getInt("networkSize") >= 0);
+          break;
+        case "AnomalyAssessment":
+          assertNotNull(event.getString("userId"));
+          assertTrue(event.getInt("purchasesMerged") <= 10);
+          AmountCodec.parse(event.getString("amount"));
+          flaggedCount += event.getBoolean("flagged") ? 1 : 0;
+          speculativeCount += event.getBoolean("speculative") ? 1 : 0;
+          break;
+        case "Parse":
+          assertTrue(event.getInt("lineCount") > 0);
+          assertTrue(event.getLong("byteCount") > 0);
+          break;
+        case "Output":
+          assertTrue(event.getLong("byteCount") >= 0);
+          break;
+        default:
+          break;
+      }
+    }
+    List<String> flaggedLines = Files.readAllLines(anomalyPath, StandardCharsets.UTF_8);
+    assertTrue(flaggedLines.size() > 0);
+    assertTrue(flaggedCount >= flaggedLines.size());
+    assertTrue(speculativeCount > 0);
+    assertTrue(counts.get("NetworkAssembly") > 0);
+    assertTrue(counts.get("AnomalyAssessment") > 0);
+    assertEquals(Integer.valueOf(1), counts.get("PurchaseMerge"));
+    assertTrue(counts.get("Parse") > 0);
+    assertTrue(counts.get("Output") > 0);
+  }
+
+  /**
+   * Test of startRecording method of class FlightRecorderEvents: with a threshold longer than
+   * any event, no detector events may be recorded.
+   * @throws java.lang.Exception
+   */
+  public void testStartRecording_Threshold() throws Exception {
+    try (Closeable recording
+            = FlightRecorderEvents.startRecording(recordingPath, Duration.ofHours(1))) {
+      process(0, 0);
+    }
+    for (RecordedEvent event : RecordingFile.readAllEvents(recordingPath)) {
+      assertFalse(event.getEventType().getName()
+              .startsWith(FlightRecorderEvents.EVENT_NAME_PREFIX));
+    }
+  }
+
+  private void process(int parserCount, int scoringThreadCount) throws Exception {
+    TransactionProcessor transactionProcessor = new TransactionProcessor(batchPath.toString());
+    transactionProcessor.setPipelineParserCount(parserCount);
+    transactionProcessor.setScoringThreadCount(scoringThreadCount);
+    transactionProcessor.processPathInput(streamPath, anomalyPath.toString());
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code FollowingLineReader} class, and for the
+ * following of a growing file by the {@code TransactionProcessor} class
+ *
+ * @author Daniel Vimont
+ */
+public class FollowingLineReaderTest extends TestCase {
+
+  private static final long TIMEOUT_MILLIS = 30000;
+
+  private static List<String> expectedLines(String contents) throws IOException {
+    List<String> lines = new ArrayList<>();
+    BufferedReader reader = new BufferedReader(new StringReader(contents));
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      lines.add(line);
+    }
+    return lines;
+  }
+
+  private static void append(Path path, String contents) throws IOException {
+    Files.write(path, contents.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Test of read and nextLine methods of class FollowingLineReader, with lines of random lengths
+   * and terminators appended in chunks which split lines (and terminators) at random points,
+   * read through buffers too small to hold a line.
+   * @throws java.io.IOException
+   */
+  public void testNextLine() throws IOException {
+    Path path = Files.createTempFile("following-line-reader", ".json");
+    try {
+      Random random = new Random(24);
+      String[] terminators = {"\n", "\r", "\r\n", "\n\n"};
+      for (int trial = 0; trial < 30; trial++) {
+        StringBuilder contents = new StringBuilder();
+        int lineCount = random.nextInt(20);
+        for (int i = 0; i < lineCount; i++) {
+          int length = random.nextInt(i % 5 == 0 ? 40 : 8);
+          for (int j = 0; j < length; j++) {
+            contents.append((char)('a' + random.nextInt(26)));
+          }
+          contents.append(terminators[random.nextInt(terminators.length)]);
+        }
+        contents.append('\n'); // completes any final carriage return
+        List<String> expected = expectedLines(contents.toString());
+        for (int bufferSize : new int[]{1, 3, 64, FollowingLineReader.DEFAULT_BUFFER_SIZE}) {
+          Files.write(path, new byte[0]);
+          List<String> lines = new ArrayList<>();
+          try (FollowingLineReader reader = new FollowingLineReader(path, 10, bufferSize)) {
+            assertFalse(reader.read());
+            int appended = 0;
+            while (appended < contents.length()) {
+              int end = Math.min(contents.length(), appended + 1 + random.nextInt(12));
+              append(path, contents.substring(appended, end));
+              appended = end;
+              while (reader.read()) {
+                while (reader.nextLine()) {
+                  lines.add(new ByteRange().set(reader.getBuffer(), reader.getLineStart(),
+                          reader.getLineEnd()).toString());
+                }
+              }
+            }
+            assertEquals(contents.length(), reader.getOffset());
+          }
+          assertEquals("buffer size " + bufferSize, expected, lines);
+        }
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  /**
+   * Test of await and read methods of class FollowingLineReader: waits must be bounded by the
+   * maximum wait, and truncation of the file must be reported.
+   * @throws java.lang.Exception
+   */
+  public void testAwait() throws Exception {
+    Path path = Files.createTempFile("following-line-reader", ".json");
+    try (FollowingLineReader reader = new FollowingLineReader(path, 20)) {
+      long start = System.nanoTime();
+      for (int i = 0; i < 10; i++) {
+        assertFalse(reader.read());
+        reader.await();
+      }
+      assertTrue((System.nanoTime() - start) / 1000000 < TIMEOUT_MILLIS);
+      append(path, "first line\nsecond ");
+      assertTrue(reader.read());
+      assertTrue(reader.nextLine());
+      assertFalse(reader.nextLine());
+      assertEquals("first line\n".length(), reader.getOffset());
+      Files.write(path, new byte[0]);
+      try {
+        reader.read();
+        fail("Expected IOException for truncated file.");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("truncated"));
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  private static long flaggedLineCount(Path anomalyPath) throws IOException {
+    return Files.exists(anomalyPath)
+            ? Files.readAllLines(anomalyPath, StandardCharsets.UTF_8).size() : 0;
+  }
+
+  /**
+   * Test of followPathInput method of class TransactionProcessor: as a stream file grows, the
+   * flagged purchases of each appended chunk must be written out before the next chunk is
+   * appended, with output ultimately identical to that of processing the complete file.
+   * @throws java.lang.Exception
+   */
+  public void testFollowPathInput() throws Exception {
+    Path batchPath = Files.createTempFile("follow-batch", ".json");
+    Path streamPath = Files.createTempFile("follow-stream", ".json");
+    Path followedPath = Files.createTempFile("follow-followed", ".json");
+    Path expectedPath = Files.createTempFile("follow-expected", ".json");
+    Path anomalyPath = Files.createTempFile("follow-flagged", ".json");
+    Files.delete(expectedPath);
+    Files.delete(anomalyPath);
+    try {
+      WorkloadGenerator generator = new WorkloadGenerator();
+      generator.setSeed(25);
+      generator.setUserCount(200);
+      generator.setMeanDegree(4);
+      generator.setPurchasesPerUser(5);
+      generator.setStreamEventCount(2000);
+      generator.setAnomalyRatio(0.02);
+      generator.setThreshold(10);
+      generator.generate(batchPath, streamPath);
+      TransactionProcessor batchProcessor = new TransactionProcessor(batchPath.toString());
+      batchProcessor.setPipelineParserCount(0);
+      batchProcessor.processPathInput(streamPath, expectedPath.toString());
+      List<String> expected = Files.readAllLines(expectedPath, StandardCharsets.UTF_8);
+      List<String> lines = Files.readAllLines(streamPath, StandardCharsets.US_ASCII);
+
+      TransactionProcessor followingProcessor = new TransactionProcessor(batchPath.toString());
+      DetectorMetrics metrics = new DetectorMetrics();
+      followingProcessor.getEngine().setMetrics(metrics);
+      AtomicReference<Exception> failure = new AtomicReference<>();
+      Thread followingThread = new Thread(() -> {
+        try {
+          followingProcessor.followPathInput(followedPath, anomalyPath.toString(), 50);
+        } catch (Exception e) {
+          failure.set(e);
+        }
+      });
+      followingThread.start();
+      int chunkCount = 5;
+      for (int chunk = 1; chunk <= chunkCount; chunk++) {
+        StringBuilder contents = new StringBuilder();
+        for (String line : lines.subList(lines.size() * (chunk - 1) / chunkCount,
+                lines.size() * chunk / chunkCount)) {
+          contents.append(line).append('\n');
+        }
+        append(followedPath, contents.toString());
+        long eventCount = lines.size() * chunk / chunkCount;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ((metrics.getEventCount() < eventCount
+                || flaggedLineCount(anomalyPath) < metrics.getFlaggedPurchaseCount())
+                && failure.get() == null && System.currentTimeMillis() < deadline) {
+          Thread.sleep(5);
+        }
+        assertNull(failure.get());
+        assertEquals(eventCount, metrics.getEventCount());
+        assertEquals(metrics.getFlaggedPurchaseCount(), flaggedLineCount(anomalyPath));
+      }
+      followingProcessor.stopFollowing();
+      followingThread.join(TIMEOUT_MILLIS);
+      assertFalse(followingThread.isAlive());
+      assertNull(failure.get());
+      assertTrue(expected.size() > 0);
+      assertEquals(expected, Files.readAllLines(anomalyPath, StandardCharsets.UTF_8));
+      assertTrue(metrics.getEventLagMillis() > 0);
+      assertTrue(metrics.getEventLagMaxMillis() >= metrics.getEventLag99thPercentileMillis());
+      assertTrue(metrics.getPrometheusText().contains("anomaly_detector_event_lag_seconds_count "
+              + lines.size() + "\n"));
+    } finally {
+      Files.deleteIfExists(batchPath);
+      Files.deleteIfExists(streamPath);
+      Files.deleteIfExists(followedPath);
+      Files.deleteIfExists(expectedPath);
+      Files.deleteIfExists(anomalyPath);
+    }
+  }
+}
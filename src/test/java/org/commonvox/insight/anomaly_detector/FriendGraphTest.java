@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code FriendGraph} and {@code NetworkTraversal}
+ * classes
+ *
+ * @author Daniel Vimont
+ */
+public class FriendGraphTest extends TestCase {
+
+  /**
+   * Test of addEdge, removeEdge, and containsEdge methods of class FriendGraph, both before
+   * and after the overlay is merged into the frozen CSR structure.
+   */
+  public void testAddAndRemoveEdge() {
+    FriendGraph graph = new FriendGraph();
+    assertTrue(graph.addEdge(1, 2));
+    assertFalse(graph.addEdge(1, 2)); // already present in overlay
+    assertTrue(graph.addEdge(1, 3));
+    assertTrue(graph.containsEdge(1, 2));
+    assertFalse(graph.containsEdge(2, 1)); // connections are directed
+
+    graph.compact();
+    assertEquals(0, graph.getOverlaySize());
+    assertTrue(graph.containsEdge(1, 2));
+    assertFalse(graph.addEdge(1, 2)); // already present in frozen CSR structure
+    assertTrue(graph.removeEdge(1, 2));
+    assertFalse(graph.removeEdge(1, 2));
+    assertFalse(graph.containsEdge(1, 2));
+    assertTrue(graph.addEdge(1, 2)); // restores frozen connection
+    assertEquals(0, graph.getOverlaySize());
+    assertTrue(graph.addEdge(1, 4));
+    assertEquals(1, graph.getOverlaySize());
+    assertTrue(Arrays.equals(new int[]{2, 3, 4}, graph.getNeighbors(1)));
+    assertEquals(3, graph.degree(1));
+    assertEquals(3, graph.getEdgeCount());
+    assertFalse(graph.removeEdge(99, 1)); // unknown user
+  }
+
+  /**
+   * Test of FriendGraph against a reference model, with many automatic overlay merges.
+   */
+  public void testRandomizedAgainstReference() {
+    int nodeCount = 300;
+    FriendGraph graph = new FriendGraph();
+    @SuppressWarnings("unchecked")
+    TreeSet<Integer>[] reference = new TreeSet[nodeCount];
+    for (int i = 0; i < nodeCount; i++) {
+      reference[i] = new TreeSet<>();
+    }
+    Random random = new Random(17);
+    for (int i = 0; i < 100000; i++) {
+      int from = random.nextInt(nodeCount);
+      int to = random.nextInt(nodeCount);
+      if (random.nextInt(3) > 0) {
+        assertEquals(reference[from].add(to), graph.addEdge(from, to));
+      } else {
+        assertEquals(reference[from].remove(to), graph.removeEdge(from, to));
+      }
+    }
+    for (int node = 0; node < nodeCount; node++) {
+      int[] expected = reference[node].stream().mapToInt(Integer::intValue).toArray();
+      assertTrue(Arrays.equals(expected, graph.getNeighbors(node)));
+    }
+  }
+
+  /**
+   * Test of FriendGraph under concurrent modification by multiple threads (each modifying the
+   * connections of its own users, as under the lock stripes of the engine), with overlay merges
+   * (automatic and on demand) and network traversals proceeding in the meantime.
+   * @throws java.lang.Exception
+   */
+  public void testConcurrentModification() throws Exception {
+    final int nodeCount = 2000;
+    final int threadCount = 4;
+    final FriendGraph graph = new FriendGraph();
+    @SuppressWarnings("unchecked")
+    final TreeSet<Integer>[] reference = new TreeSet[nodeCount];
+    for (int i = 0; i < nodeCount; i++) {
+      reference[i] = new TreeSet<>();
+    }
+    final Throwable[] failure = new Throwable[1];
+    Thread[] writers = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      final int threadIndex = t;
+      writers[t] = new Thread(() -> {
+        Random random = new Random(30 + threadIndex);
+        for (int i = 0; i < 40000; i++) {
+          int from = random.nextInt(nodeCount / threadCount) * threadCount + threadIndex;
+          int to = random.nextInt(nodeCount);
+          boolean adding = random.nextInt(3) > 0;
+          boolean expected = adding ? reference[from].add(to) : reference[from].remove(to);
+          boolean actual = adding ? graph.addEdge(from, to) : graph.removeEdge(from, to);
+          if (expected != actual) {
+            failure[0] = new AssertionError("Modification of " + from + "->" + to + " misreported");
+          }
+          if (i % 10000 == 0) {
+            graph.compact();
+          }
+        }
+      });
+    }
+    final AtomicBoolean writing = new AtomicBoolean(true);
+    Thread reader = new Thread(() -> {
+      NetworkTraversal traversal = new NetworkTraversal();
+      Random random = new Random(29);
+      try {
+        while (writing.get()) {
+          int source = random.nextInt(nodeCount);
+          assembled(traversal, graph, source, 2); // asserts that each is assembled only once
+          int[] neighbors = graph.getNeighbors(source);
+          for (int i = 1; i < neighbors.length; i++) {
+            assertTrue(neighbors[i - 1] < neighbors[i]);
+          }
+        }
+      } catch (Throwable e) {
+        failure[0] = e;
+      }
+    });
+    reader.start();
+    for (Thread writer : writers) {
+      writer.start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    writing.set(false);
+    reader.join();
+    if (failure[0] != null) {
+      throw new AssertionError(failure[0]);
+    }
+    long edgeCount = 0;
+    for (int node = 0; node < nodeCount; node++) {
+      int[] expected = reference[node].stream().mapToInt(Integer::intValue).toArray();
+      assertTrue(Arrays.equals(expected, graph.getNeighbors(node)));
+      assertEquals(expected.length, graph.degree(node));
+      edgeCount += expected.length;
+    }
+    assertEquals(edgeCount, graph.getEdgeCount());
+    graph.compact();
+    assertEquals(0, graph.getOverlaySize());
+    assertEquals(edgeCount, graph.getEdgeCount());
+  }
+
+  /**
+   * Test of assemble method of class NetworkTraversal.
+   */
+  public void testNetworkTraversal() {
+    FriendGraph graph = new FriendGraph();
+    int[][] connections = {{1, 2}, {1, 4}, {2, 3}, {4, 5}, {5, 6}};
+    for (int[] connection : connections) {
+      graph.addEdge(connection[0], connection[1]);
+      graph.addEdge(connection[1], connection[0]);
+    }
+    graph.compact();
+    graph.addEdge(3, 7); // overlay connection
+    graph.addEdge(7, 3);
+    graph.removeEdge(5, 6); // overlay removal of frozen connection
+    graph.removeEdge(6, 5);
+
+    NetworkTraversal traversal = new NetworkTraversal();
+    assertEquals(new TreeSet<>(Arrays.asList(2, 4)), assembled(traversal, graph, 1, 1));
+    assertEquals(new TreeSet<>(Arrays.asList(2, 3, 4, 5)), assembled(traversal, graph, 1, 2));
+    assertEquals(new TreeSet<>(Arrays.asList(2, 3, 4, 5, 7)), assembled(traversal, graph, 1, 3));
+    assertEquals(new TreeSet<>(Arrays.asList(2, 3, 4, 5, 7)), assembled(traversal, graph, 1, 9));
+    assertTrue(assembled(traversal, graph, 42, 3).isEmpty()); // user with no connections
+  }
+
+  private static TreeSet<Integer> assembled(
+          NetworkTraversal traversal, FriendGraph graph, int source, int level) {
+    int size = traversal.assemble(graph, source, level);
+    TreeSet<Integer> network = new TreeSet<>();
+    for (int i = 0; i < size; i++) {
+      assertTrue(network.add(traversal.getNetwork()[i])); // each connection assembled only once
+    }
+    return network;
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code IngestionServer} class
+ *
+ * @author Daniel Vimont
+ */
+public class IngestionServerTest extends TestCase {
+
+  private static final int TIMEOUT_MILLIS = 30000;
+
+  private Path batchPath;
+  private Path streamPath;
+  private Path anomalyPath;
+  private Path logDirectory;
+
+  @Override
+  protected void setUp() throws Exception {
+    batchPath = Files.createTempFile("ingestion-batch", ".json");
+    streamPath = Files.createTempFile("ingestion-stream", ".json");
+    anomalyPath = Files.createTempFile("ingestion-flagged", ".json");
+    logDirectory = Files.createTempDirectory("ingestion-log");
+    Files.delete(anomalyPath);
+    WorkloadGenerator generator = new WorkloadGenerator();
+    generator.setSeed(26);
+    generator.setUserCount(200);
+    generator.setMeanDegree(4);
+    generator.setPurchasesPerUser(5);
+    generator.setStreamEventCount(2000);
+    generator.setAnomalyRatio(0.02);
+    generator.setThreshold(10);
+    generator.generate(batchPath, streamPath);
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.deleteIfExists(batchPath);
+    Files.deleteIfExists(streamPath);
+    Files.deleteIfExists(anomalyPath);
+    try (Stream<Path> paths = Files.list(logDirectory)) {
+      for (Object path : paths.toArray()) {
+        Files.delete((Path)path);
+      }
+    }
+    Files.delete(logDirectory);
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertTrue(condition.getAsBoolean());
+  }
+
+  private static Socket connect(IngestionServer server) throws IOException {
+    Socket socket = new Socket();
+    socket.connect(new InetSocketAddress("localhost", server.getLocalAddress().getPort()));
+    socket.setSoTimeout(TIMEOUT_MILLIS);
+    return socket;
+  }
+
+  /**
+   * Test of class IngestionServer, with events sent by one connection and flagged purchases
+   * received by another, through buffers smaller than the input and a queue of two buffers:
+   * while the applier is held up, reads must be paused; once released, the received flagged
+   * purchases must be identical to the output of processing the stream file.
+   * @throws java.lang.Exception
+   */
+  public void testServe() throws Exception {
+    TransactionProcessor batchProcessor = new TransactionProcessor(batchPath.toString());
+    batchProcessor.setPipelineParserCount(0);
+    batchProcessor.processPathInput(streamPath, anomalyPath.toString());
+    List<String> expected = Files.readAllLines(anomalyPath, StandardCharsets.UTF_8);
+    assertTrue(expected.size() > 0);
+    byte[] stream = Files.readAllBytes(streamPath);
+
+    TransactionProcessor transactionProcessor = new TransactionProcessor(batchPath.toString());
+    AnomalyEngine engine = transactionProcessor.getEngine();
+    DetectorMetrics metrics = new DetectorMetrics();
+    engine.setMetrics(metrics);
+    engine.openEventLog(logDirectory);
+    try (IngestionServer server = new IngestionServer(transactionProcessor,
+            new InetSocketAddress("localhost", 0), 256, 2).start();
+            Socket subscriber = connect(server);
+            Socket producer = connect(server)) {
+      subscriber.getOutputStream().write(
+              (IngestionServer.SUBSCRIBE_COMMAND + "\n").getBytes(StandardCharsets.US_ASCII));
+      await(() -> server.getSubscriberCount() == 1);
+
+      AtomicReference<Exception> failure = new AtomicReference<>();
+      Thread producingThread;
+      synchronized (engine.getEventLog()) { // holds up the applier upon its first event
+        producingThread = new Thread(() -> {
+          try {
+            OutputStream output = producer.getOutputStream();
+            output.write(stream);
+            producer.shutdownOutput();
+          } catch (IOException e) {
+            failure.set(e);
+          }
+        });
+        producingThread.start();
+        await(() -> server.getPauseCount() > 0);
+      }
+      producingThread.join(TIMEOUT_MILLIS);
+      assertNull(failure.get());
+
+      BufferedReader reader = new BufferedReader(
+              new InputStreamReader(subscriber.getInputStream(), StandardCharsets.UTF_8));
+      List<String> received = new ArrayList<>();
+      while (received.size() < expected.size()) {
+        received.add(reader.readLine());
+      }
+      assertEquals(expected, received);
+      assertEquals(-1, producer.getInputStream().read()); // closed upon end of its input
+      await(() -> server.getConnectionCount() == 1);
+      assertEquals(Files.readAllLines(streamPath).size(), metrics.getEventCount());
+      assertEquals(0, server.getRejectedLineCount());
+    } finally {
+      engine.closeEventLog();
+    }
+  }
+
+  /**
+   * Test of class IngestionServer with invalid input: unparseable lines must be skipped, and a
+   * line exceeding the buffer size must cause its producer to be disconnected.
+   * @throws java.lang.Exception
+   */
+  public void testServe_Invalid() throws Exception {
+    TransactionProcessor transactionProcessor = new TransactionProcessor(batchPath.toString());
+    DetectorMetrics metrics = new DetectorMetrics();
+    transactionProcessor.getEngine().setMetrics(metrics);
+    List<String> lines = Files.readAllLines(streamPath, StandardCharsets.US_ASCII);
+    try (IngestionServer server = new IngestionServer(transactionProcessor,
+            new InetSocketAddress("localhost", 0), 256, 4).start();
+            Socket producer = connect(server)) {
+      StringBuilder input = new StringBuilder();
+      input.append(lines.get(0)).append("\r\n").append("not an event\n")
+              .append(lines.get(1)).append('\n');
+      for (int i = 0; i < 300; i++) {
+        input.append('x');
+      }
+      producer.getOutputStream().write(input.toString().getBytes(StandardCharsets.US_ASCII));
+      assertEquals(-1, producer.getInputStream().read());
+      await(() -> metrics.getEventCount() == 2 && server.getRejectedLineCount() == 1
+              && server.getConnectionCount() == 0);
+    }
+  }
+
+  /**
+   * Test of class IngestionServer with an event failing validation (a user-id too long to be
+   * logged): the event must be rejected before any change to the engine, and the server must
+   * keep serving.
+   * @throws java.lang.Exception
+   */
+  public void testServe_Rejected() throws Exception {
+    TransactionProcessor transactionProcessor = new TransactionProcessor(batchPath.toString());
+    AnomalyEngine engine = transactionProcessor.getEngine();
+    DetectorMetrics metrics = new DetectorMetrics();
+    engine.setMetrics(metrics);
+    char[] longIdChars = new char[EventLog.MAX_USER_ID_LENGTH + 1];
+    Arrays.fill(longIdChars, 'u');
+    String longId = new String(longIdChars);
+    List<String> lines = Files.readAllLines(streamPath, StandardCharsets.US_ASCII);
+    try (IngestionServer server = new IngestionServer(transactionProcessor,
+            new InetSocketAddress("localhost", 0), 1 << 17, 4).start()) {
+      try (Socket producer = connect(server)) {
+        producer.getOutputStream().write((lines.get(0) + '\n'
+                + "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:01\", \"id\": \""
+                + longId + "\", \"amount\": \"16.83\"}\n" + lines.get(1) + '\n')
+                .getBytes(StandardCharsets.US_ASCII));
+      }
+      await(() -> metrics.getEventCount() == 2 && server.getRejectedLineCount() == 1);
+      assertEquals(-1, engine.getIdDictionary().get(longId));
+      try (Socket producer = connect(server)) {
+        producer.getOutputStream().write((lines.get(2) + '\n')
+                .getBytes(StandardCharsets.US_ASCII));
+      }
+      await(() -> metrics.getEventCount() == 3);
+    }
+  }
+
+  /**
+   * Test of class IngestionServer with an event whose application fails (after the event has
+   * changed the engine): rather than count the event as rejected, the server must stop, and
+   * report the failure upon being closed.
+   * @throws java.lang.Exception
+   */
+  public void testServe_ApplyFailure() throws Exception {
+    TransactionProcessor transactionProcessor = new TransactionProcessor(batchPath.toString());
+    transactionProcessor.getEngine().setMetrics(new DetectorMetrics() {
+      @Override
+      void recordEvent(EventType type, long nanos) {
+        throw new IllegalStateException("Injected failure");
+      }
+    });
+    List<String> lines = Files.readAllLines(streamPath, StandardCharsets.US_ASCII);
+    IngestionServer server = new IngestionServer(transactionProcessor,
+            new InetSocketAddress("localhost", 0)).start();
+    try (Socket producer = connect(server)) {
+      producer.getOutputStream().write((lines.get(0) + '\n').getBytes(StandardCharsets.US_ASCII));
+    }
+    Thread waiter = new Thread(() -> { // the server must stop upon the failure, unclosed
+      try {
+        server.awaitTermination();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    waiter.start();
+    waiter.join(TIMEOUT_MILLIS);
+    assertFalse(waiter.isAlive());
+    assertEquals(0, server.getRejectedLineCount());
+    try {
+      server.close();
+      fail("IOException expected");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code LatencyHistogram} class
+ *
+ * @author Daniel Vimont
+ */
+public class LatencyHistogramTest extends TestCase {
+
+  /**
+   * Test of bucketOf, lowestValue, and highestValue methods of class LatencyHistogram: buckets
+   * must be contiguous, and every value must fall within its bucket, whose width is within the
+   * stated precision.
+   */
+  public void testBuckets() {
+    assertEquals(0, LatencyHistogram.lowestValue(0));
+    for (int bucket = 1; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+      assertEquals(LatencyHistogram.highestValue(bucket - 1) + 1,
+              LatencyHistogram.lowestValue(bucket));
+    }
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.BUCKET_COUNT - 1));
+    Random random = new Random(5);
+    for (int i = 0; i < 100000; i++) {
+      long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+      int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue(value >= LatencyHistogram.lowestValue(bucket));
+      assertTrue(value <= LatencyHistogram.highestValue(bucket));
+      assertTrue(LatencyHistogram.highestValue(bucket) - LatencyHistogram.lowestValue(bucket)
+              <= value / LatencyHistogram.SUB_BUCKET_COUNT);
+    }
+    assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+  }
+
+  /**
+   * Test of record, add, and getValueAtQuantile methods of class LatencyHistogram: quantiles
+   * must be accurate to within the stated precision, and adding histograms must be equivalent
+   * to recording all their values into one.
+   */
+  public void testGetValueAtQuantile() {
+    Random random = new Random(6);
+    long[] values = new long[20001];
+    LatencyHistogram first = new LatencyHistogram();
+    LatencyHistogram second = new LatencyHistogram();
+    long sum = 0;
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (long)Math.exp(5 + random.nextGaussian() * 2);
+      (i % 2 == 0 ? first : second).record(values[i]);
+      sum += values[i];
+    }
+    LatencyHistogram merged = new LatencyHistogram();
+    merged.add(first);
+    merged.add(second);
+    Arrays.sort(values);
+    assertEquals(values.length, merged.getCount());
+    assertEquals(sum, merged.getSum());
+    assertEquals(values[values.length - 1], merged.getMax());
+    assertEquals(values[values.length - 1], merged.getValueAtQuantile(1));
+    for (double quantile : new double[]{0.01, 0.5, 0.9, 0.99, 0.999}) {
+      long expected = values[(int)Math.ceil(quantile * values.length) - 1];
+      long actual = merged.getValueAtQuantile(quantile);
+      assertTrue(actual >= expected);
+      assertTrue(actual - expected <= expected / LatencyHistogram.SUB_BUCKET_COUNT);
+    }
+    assertEquals(0, new LatencyHistogram().getValueAtQuantile(0.5));
+    LatencyHistogram negative = new LatencyHistogram();
+    negative.record(-3);
+    assertEquals(0, negative.getMax());
+    assertEquals(1, negative.getCount());
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code MappedLineReader} class
+ *
+ * @author Daniel Vimont
+ */
+public class MappedLineReaderTest extends TestCase {
+
+  private static List<String> readLines(Path path, int windowSize) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (MappedLineReader reader = new MappedLineReader(path, windowSize)) {
+      while (reader.nextLine()) {
+        lines.add(new ByteRange().set(
+                reader.getBuffer(), reader.getLineStart(), reader.getLineEnd()).toString());
+      }
+    }
+    return lines;
+  }
+
+  private static List<String> expectedLines(String contents) throws IOException {
+    List<String> lines = new ArrayList<>();
+    BufferedReader reader = new BufferedReader(new StringReader(contents));
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      lines.add(line);
+    }
+    return lines;
+  }
+
+  /**
+   * Test of nextLine method of class MappedLineReader, with lines of random lengths and
+   * terminators spanning the boundaries of small windows.
+   * @throws java.io.IOException
+   */
+  public void testNextLine() throws IOException {
+    Path path = Files.createTempFile("mapped-line-reader", ".json");
+    try {
+      Random random = new Random(10);
+      String[] terminators = {"\n", "\r", "\r\n", "\n\n"};
+      for (int trial = 0; trial < 50; trial++) {
+        StringBuilder contents = new StringBuilder();
+        int lineCount = random.nextInt(20);
+        for (int i = 0; i < lineCount; i++) {
+          int length = random.nextInt(i % 5 == 0 ? 40 : 8);
+          for (int j = 0; j < length; j++) {
+            contents.append((char)('a' + random.nextInt(26)));
+          }
+          if (i < lineCount - 1 || random.nextBoolean()) {
+            contents.append(terminators[random.nextInt(terminators.length)]);
+          }
+        }
+        Files.write(path, contents.toString().getBytes(StandardCharsets.US_ASCII));
+        List<String> expected = expectedLines(contents.toString());
+        for (int windowSize : new int[]{1, 2, 3, 7, 64, MappedLineReader.DEFAULT_WINDOW_SIZE}) {
+          assertEquals("window size " + windowSize, expected, readLines(path, windowSize));
+        }
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+}
@@ -15,8 +15,16 @@
  */
 package org.commonvox.insight.anomaly_detector;
 
-import java.lang.reflect.Field;
-import java.util.Map.Entry;
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import junit.framework.TestCase;
 
 /**
@@ -26,32 +34,11 @@ import junit.framework.TestCase;
  */
 public class PurchaseManagerTest extends TestCase {
 
-  /**
-   * Test of setThreshold method of class PurchaseManager.
-   * @throws java.lang.NoSuchFieldException
-   * @throws java.lang.IllegalAccessException
-   */
-  public void testSetThreshold() throws NoSuchFieldException, IllegalAccessException {
-    int classThreshold = 5;
-    PurchaseManager.setThreshold(classThreshold);
-    Field thresholdField = PurchaseManager.class.getDeclaredField("threshold");
-    thresholdField.setAccessible(true);
-    thresholdField.get(null);
-    assertEquals(classThreshold, thresholdField.get(null));
-  }
+  private AnomalyEngine engine;
 
-  /**
-   * Test of getThreshold method of class PurchaseManager.
-   * @throws java.lang.NoSuchFieldException
-   * @throws java.lang.IllegalAccessException
-   */
-  public void testGetThreshold() throws NoSuchFieldException, IllegalAccessException {
-    int expResult = 82;
-    Field thresholdField = PurchaseManager.class.getDeclaredField("threshold");
-    thresholdField.setAccessible(true);
-    thresholdField.set(null, expResult);
-    int result = PurchaseManager.getThreshold();
-    assertEquals(expResult, result);
+  @Override
+  protected void setUp() {
+    engine = new AnomalyEngine();
   }
 
   /**
@@ -108,7 +95,7 @@ public class PurchaseManagerTest extends TestCase {
    * Test of addPurchase method of class PurchaseManager.
    */
   public void testAddPurchase_String_String() {
-    PurchaseManager.setThreshold(3); // limit purchaseMap to 3 most recent purchases
+    engine.setThreshold(3); // limit purchases held to 3 most recent purchases
 
     String timestamp1 = "2017-06-13 11:33:02"; // 2nd in final map
     String timestamp2 = "2017-06-13 11:33:02"; // 3rd in final map
@@ -119,29 +106,29 @@ public class PurchaseManagerTest extends TestCase {
     String amountDecimalString2 = "3.11";    // 3rd in final map
     String amountDecimalString3 = "5909.73"; // not expected in final map
     String amountDecimalString4 = "55.54";   // 1st in final map
-    PurchaseManager instance = new PurchaseManager();
+    PurchaseManager instance = new PurchaseManager(engine);
     instance.addPurchase(timestamp1, amountDecimalString1);
 
-    // assure single purchase properly inserted into purchaseMap
-    Entry<PurchaseManager.PurchaseKey, Integer> result = instance.getPurchaseMap().firstEntry();
-    assertEquals(timestamp1, result.getKey().timestamp);
-    assertEquals(PurchaseManager.amountStringToInteger(amountDecimalString1), result.getValue());
+    // assure single purchase properly inserted
+    assertEquals(1, instance.size());
+    assertEquals(PurchaseManager.timestampToEpochSecond(timestamp1), instance.getTimestamp(0));
+    assertEquals((int)PurchaseManager.amountStringToInteger(amountDecimalString1), instance.getAmount(0));
 
     // assure multiple purchases respect threshold and ordered properly
     instance.addPurchase(timestamp2, amountDecimalString2);
     instance.addPurchase(timestamp3, amountDecimalString3);
     instance.addPurchase(timestamp4, amountDecimalString4);
-    assertEquals(5554,  instance.getPurchaseMap().values().toArray()[0]);
-    assertEquals(38922, instance.getPurchaseMap().values().toArray()[1]);
-    assertEquals(311,   instance.getPurchaseMap().values().toArray()[2]);
-    assertFalse(instance.getPurchaseMap().values().contains(590973)); // earliest purchase not in Map
+    assertEquals(5554,  instance.getAmount(0));
+    assertEquals(38922, instance.getAmount(1));
+    assertEquals(311,   instance.getAmount(2));
+    assertFalse(heldAmounts(instance).contains(590973L)); // earliest purchase not held
   }
 
   /**
    * Test of addPurchase method of class PurchaseManager.
    */
   public void testAddPurchase_String_Integer() {
-    PurchaseManager.setThreshold(3); // limit purchaseMap to 3 most recent purchases
+    engine.setThreshold(3); // limit purchases held to 3 most recent purchases
 
     String timestamp1 = "2017-06-13 11:33:02"; // 2nd in final map
     String timestamp2 = "2017-06-13 11:33:02"; // 3rd in final map
@@ -152,29 +139,29 @@ public class PurchaseManagerTest extends TestCase {
     Integer amount2 = 311;    // 3rd in final map
     Integer amount3 = 590973; // not expected in final map
     Integer amount4 = 5554;   // 1st in final map
-    PurchaseManager instance = new PurchaseManager();
+    PurchaseManager instance = new PurchaseManager(engine);
     instance.addPurchase(timestamp1, amount1);
 
-    // assure single purchase properly inserted into purchaseMap
-    Entry<PurchaseManager.PurchaseKey, Integer> result = instance.getPurchaseMap().firstEntry();
-    assertEquals(timestamp1, result.getKey().timestamp);
-    assertEquals(amount1, result.getValue());
+    // assure single purchase properly inserted
+    assertEquals(1, instance.size());
+    assertEquals(PurchaseManager.timestampToEpochSecond(timestamp1), instance.getTimestamp(0));
+    assertEquals((int)amount1, instance.getAmount(0));
 
     // assure multiple purchases respect threshold and ordered properly
     instance.addPurchase(timestamp2, amount2);
     instance.addPurchase(timestamp3, amount3);
     instance.addPurchase(timestamp4, amount4);
-    assertEquals(5554, instance.getPurchaseMap().values().toArray()[0]);
-    assertEquals(38922, instance.getPurchaseMap().values().toArray()[1]);
-    assertEquals(311, instance.getPurchaseMap().values().toArray()[2]);
-    assertFalse(instance.getPurchaseMap().values().contains(590973)); // earliest purchase not in Map
+    assertEquals(5554, instance.getAmount(0));
+    assertEquals(38922, instance.getAmount(1));
+    assertEquals(311, instance.getAmount(2));
+    assertFalse(heldAmounts(instance).contains(590973L)); // earliest purchase not held
   }
 
   /**
    * Test of addPurchases method of class PurchaseManager.
    */
   public void testAddPurchases() {
-    PurchaseManager.setThreshold(3); // limit purchaseMap to 3 most recent purchases
+    engine.setThreshold(3); // limit purchases held to 3 most recent purchases
 
     String timestamp1 = "2017-06-13 11:33:02"; // 2nd in final map
     String timestamp2 = "2017-06-13 11:33:02"; // 3rd in final map
@@ -184,7 +171,7 @@ public class PurchaseManagerTest extends TestCase {
     Integer amount2 = 311;    // 3rd in final map
     Integer amount3 = 590973; // not expected in final map
     Integer amount4 = 5554;   // 1st in final map
-    PurchaseManager instance1 = new PurchaseManager();
+    PurchaseManager instance1 = new PurchaseManager(engine);
     instance1.addPurchase(timestamp1, amount1);
     instance1.addPurchase(timestamp2, amount2);
     instance1.addPurchase(timestamp3, amount3);
@@ -198,26 +185,211 @@ public class PurchaseManagerTest extends TestCase {
     Integer amount6 = 4445;
     Integer amount7 = 3091;
     Integer amount8 = 542;
-    PurchaseManager instance2 = new PurchaseManager();
+    PurchaseManager instance2 = new PurchaseManager(engine);
     instance2.addPurchase(timestamp5, amount5);
     instance2.addPurchase(timestamp6, amount6);
     instance2.addPurchase(timestamp7, amount7);
     instance2.addPurchase(timestamp8, amount8);
 
-    PurchaseManager combinedInstance = new PurchaseManager();
+    PurchaseManager combinedInstance = new PurchaseManager(engine);
     combinedInstance.addPurchases(instance1);
     combinedInstance.addPurchases(instance2);
-    assertEquals(3, combinedInstance.getPurchaseMap().values().size());
-    assertEquals(311, combinedInstance.getPurchaseMap().values().toArray()[0]);
-    assertEquals(542, combinedInstance.getPurchaseMap().values().toArray()[1]);
-    assertEquals(4445, combinedInstance.getPurchaseMap().values().toArray()[2]);
+    assertEquals(3, combinedInstance.size());
+    assertEquals(311, combinedInstance.getAmount(0));
+    assertEquals(542, combinedInstance.getAmount(1));
+    assertEquals(4445, combinedInstance.getAmount(2));
+  }
+
+  /**
+   * Test of merging of network purchases via class RecentPurchaseMerger, which must select the
+   * same purchases as the #addPurchases method of class PurchaseManager.
+   */
+  public void testRecentPurchaseMerger() {
+    engine.setThreshold(3); // limit selection to 3 most recent purchases
+
+    PurchaseManager instance1 = new PurchaseManager(engine);
+    instance1.addPurchase("2017-06-13 11:33:02", 38922);
+    instance1.addPurchase("2017-06-13 11:33:02", 311);
+    instance1.addPurchase("2017-05-09 10:00:12", 590973);
+    instance1.addPurchase("2017-06-11 16:20:43", 5554);
+    PurchaseManager instance2 = new PurchaseManager(engine);
+    instance2.addPurchase("2016-04-13 11:33:02", 3);
+    instance2.addPurchase("2017-07-13 11:33:02", 4445);
+    instance2.addPurchase("2017-05-22 10:00:12", 3091);
+    instance2.addPurchase("2017-07-11 09:20:43", 542);
+    PurchaseManager instance3 = new PurchaseManager(engine); // no purchases
+    PurchaseManager instance4 = new PurchaseManager(engine); // pruned: all purchases precede cutoff
+    instance4.addPurchase("2015-01-01 00:00:00", 99999);
+
+    RecentPurchaseMerger merger = new RecentPurchaseMerger();
+    merger.reset(engine.getThreshold());
+    for (PurchaseManager member : new PurchaseManager[]{instance1, instance2, instance3, instance4}) {
+      merger.merge(member);
+    }
+    assertEquals(3, merger.size());
+    Set<Long> selectedAmounts = new HashSet<>();
+    for (int i = 0; i < merger.size(); i++) {
+      selectedAmounts.add(merger.getAmount(i));
+    }
+    assertEquals(new HashSet<>(Arrays.asList(311L, 542L, 4445L)), selectedAmounts);
+
+    PurchaseManager combinedInstance = new PurchaseManager(engine);
+    combinedInstance.addPurchases(instance1);
+    combinedInstance.addPurchases(instance2);
+    assertTrue(Arrays.equals(combinedInstance.getAnomalyData(999999), merger.getAnomalyData(999999)));
+  }
+
+  /**
+   * Test of timestampToEpochSecond method of class PurchaseManager.
+   */
+  public void testTimestampToEpochSecond() {
+    assertEquals(1497353582L, PurchaseManager.timestampToEpochSecond("2017-06-13 11:33:02"));
+    assertEquals(0L, PurchaseManager.timestampToEpochSecond("1970-01-01 00:00:00"));
+    assertTrue(PurchaseManager.timestampToEpochSecond("2017-06-13 11:33:02")
+            < PurchaseManager.timestampToEpochSecond("2017-06-13 11:33:03"));
+  }
+
+  /**
+   * Test of class RunningStatistics, comparing its incrementally maintained mean and standard
+   * deviation with a two-pass computation over the window (per the original truncation rules).
+   */
+  public void testRunningStatistics() {
+    Random random = new Random(8);
+    for (long maxAmount : new long[]{100, 1000000, Integer.MAX_VALUE, AmountCodec.MAX_AMOUNT}) {
+      RunningStatistics statistics = new RunningStatistics();
+      List<Long> window = new ArrayList<>();
+      for (int i = 0; i < 5000; i++) {
+        if (window.size() < 50 && (window.size() < 2 || random.nextInt(3) > 0)) {
+          long amount = Math.floorMod(random.nextLong(), maxAmount);
+          if (maxAmount == AmountCodec.MAX_AMOUNT && random.nextBoolean()) {
+            amount = -amount;
+          }
+          window.add(amount);
+          statistics.add(amount);
+        } else {
+          statistics.remove(window.remove(random.nextInt(window.size())));
+        }
+        if (window.isEmpty()) {
+          continue;
+        }
+        BigInteger sum = BigInteger.ZERO;
+        for (long amount : window) {
+          sum = sum.add(BigInteger.valueOf(amount));
+        }
+        long mean = sum.divide(BigInteger.valueOf(window.size())).longValueExact();
+        BigInteger sumOfDeviationsSquared = BigInteger.ZERO;
+        double doubleSumOfDeviationsSquared = 0;
+        for (long amount : window) {
+          BigInteger deviation = BigInteger.valueOf(amount - mean);
+          sumOfDeviationsSquared = sumOfDeviationsSquared.add(deviation.multiply(deviation));
+          doubleSumOfDeviationsSquared += Math.pow(amount - mean, 2);
+        }
+        assertEquals(sum, statistics.getSum());
+        assertEquals(mean, statistics.getMean());
+        assertEquals((long)Math.sqrt(sumOfDeviationsSquared.doubleValue() / window.size()),
+                statistics.getStandardDeviation());
+        if (maxAmount <= 1000000) { // sums of squares exact in double: matches original computation
+          assertEquals((long)Math.sqrt(doubleSumOfDeviationsSquared / window.size()),
+                  statistics.getStandardDeviation());
+        }
+      }
+    }
+
+    // 50 purchases of $1M each: the sum in pennies overflows an int
+    engine.setThreshold(50);
+    PurchaseManager instance = new PurchaseManager(engine);
+    for (int i = 0; i < 50; i++) {
+      instance.addPurchase("2017-06-13 11:33:02", 100000000 + i);
+    }
+    assertTrue(Arrays.equals(new long[]{100000024, 14}, instance.getAnomalyData(100000070)));
+    assertNull(instance.getAnomalyData(100000066));
+
+    // 100,000 maximal amounts: the sum in pennies overflows a long
+    RunningStatistics statistics = new RunningStatistics();
+    for (int i = 0; i < 100000; i++) {
+      statistics.add(AmountCodec.MAX_AMOUNT - i % 2);
+    }
+    assertEquals(BigInteger.valueOf(AmountCodec.MAX_AMOUNT).multiply(BigInteger.valueOf(100000))
+            .subtract(BigInteger.valueOf(50000)), statistics.getSum());
+    assertEquals(AmountCodec.MAX_AMOUNT - 1, statistics.getMean());
+    assertEquals(0, statistics.getStandardDeviation()); // deviations of 0 and 1 penny
+    for (int i = 0; i < 99998; i++) {
+      statistics.remove(AmountCodec.MAX_AMOUNT - i % 2);
+    }
+    assertEquals(AmountCodec.MAX_AMOUNT - 1, statistics.getMean());
+    assertEquals(0, statistics.getStandardDeviation());
+  }
+
+  /**
+   * Test of encoding of timestamps into packed event times by class EventTime.
+   */
+  public void testEventTime() {
+    EventTime eventTime = new EventTime();
+    Random random = new Random(7);
+    for (int i = 0; i < 10000; i++) {
+      LocalDateTime dateTime = LocalDateTime.ofEpochSecond(
+              (long)(random.nextDouble() * EventTime.MAX_EPOCH_SECOND), 0, ZoneOffset.UTC);
+      String timestamp = dateTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+      assertEquals(timestamp, dateTime.toEpochSecond(ZoneOffset.UTC),
+              eventTime.parseEpochSecond(timestamp));
+    }
+
+    long first = eventTime.encode("2017-06-13 11:33:02");
+    long second = eventTime.encode("2017-06-13 11:33:02"); // same second: previous result reused
+    long third = eventTime.encode("2017-06-13 11:33:01");
+    assertEquals(1497353582L, EventTime.epochSecond(first));
+    assertEquals(EventTime.epochSecond(first), EventTime.epochSecond(second));
+    assertEquals(EventTime.sequence(first) + 1, EventTime.sequence(second));
+    assertTrue(first < second); // identical timestamps ordered by arrival
+    assertTrue(third < first);  // otherwise ordered by timestamp
+
+    for (String invalid : new String[]{"2017-06-13 11:33", "2017-06-13T11:33:02",
+            "2017-13-13 11:33:02", "2017-02-29 11:33:02", "2017-06-13 24:00:00", "1969-12-31 23:59:59",
+            "2017-06-1a 11:33:02"}) {
+      try {
+        eventTime.parseEpochSecond(invalid);
+        fail("Invalid timestamp accepted: " + invalid);
+      } catch (IllegalArgumentException e) {
+      }
+    }
+    assertEquals(951782400L, eventTime.parseEpochSecond("2000-02-29 00:00:00"));
+  }
+
+  /**
+   * Test of late (out-of-order) insertion of purchases into class PurchaseManager.
+   */
+  public void testAddPurchase_OutOfOrder() {
+    engine.setThreshold(4);
+    PurchaseManager instance = new PurchaseManager(engine);
+    instance.addPurchase("2017-06-13 11:33:05", 5);
+    instance.addPurchase("2017-06-13 11:33:01", 1);
+    instance.addPurchase("2017-06-13 11:33:03", 3);
+    instance.addPurchase("2017-06-13 11:33:07", 7);
+    assertEquals(Arrays.asList(1L, 3L, 5L, 7L), heldAmounts(instance));
+    instance.addPurchase("2017-06-13 11:33:02", 2); // displaces oldest purchase
+    assertEquals(Arrays.asList(2L, 3L, 5L, 7L), heldAmounts(instance));
+    instance.addPurchase("2017-06-13 11:33:00", 0); // precedes oldest purchase; not added
+    assertEquals(Arrays.asList(2L, 3L, 5L, 7L), heldAmounts(instance));
+    instance.addPurchase("2017-06-13 11:33:05", 6); // follows earlier purchase with same timestamp
+    assertEquals(Arrays.asList(3L, 5L, 6L, 7L), heldAmounts(instance));
+    instance.addPurchase("2017-06-13 11:33:09", 9);
+    instance.addPurchase("2017-06-13 11:33:08", 8);
+    assertEquals(Arrays.asList(6L, 7L, 8L, 9L), heldAmounts(instance));
+  }
+
+  private static List<Long> heldAmounts(PurchaseManager instance) {
+    List<Long> amounts = new ArrayList<>();
+    for (int position = 0; position < instance.size(); position++) {
+      amounts.add(instance.getAmount(position));
+    }
+    return amounts;
   }
 
   /**
    * Test of getAnomalyData method of class PurchaseManager.
    */
   public void testGetAnomalyData() {
-    PurchaseManager.setThreshold(3); // limit purchaseMap to 3 most recent purchases
+    engine.setThreshold(3); // limit purchases held to 3 most recent purchases
 
     String timestamp1 = "2017-06-13 11:33:02";
     String timestamp2 = "2017-06-13 11:33:02";
@@ -229,13 +401,13 @@ public class PurchaseManagerTest extends TestCase {
     Integer amount3 = 590973;
     Integer amount4 = 5554;
 
-    PurchaseManager instance = new PurchaseManager();
+    PurchaseManager instance = new PurchaseManager(engine);
     instance.addPurchase(timestamp1, amount1);
     instance.addPurchase(timestamp2, amount2);
     instance.addPurchase(timestamp3, amount3);
     instance.addPurchase(timestamp4, amount4);
 
-    int[] anomalyData = instance.getAnomalyData(75000);
+    long[] anomalyData = instance.getAnomalyData(75000);
     assertFalse(anomalyData == null);
     assertEquals(14929, anomalyData[0]); // mean
     assertEquals(17100, anomalyData[1]); // standard deviation
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.BufferedWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code StreamPipeline} class
+ *
+ * @author Daniel Vimont
+ */
+public class StreamPipelineTest extends TestCase {
+
+  private static int runCount = 0; // each run's users are distinguished by the prefix of their ids
+
+  private AnomalyEngine engine;
+
+  @Override
+  protected void setUp() {
+    engine = new AnomalyEngine();
+    engine.setDegreesOfSeparation(2);
+    engine.setThreshold(5);
+  }
+
+  /**
+   * Test of process method (with Iterator input) of class StreamPipeline: output must be
+   * identical to that of serial processing.
+   * @throws java.lang.Exception
+   */
+  public void testProcess_Iterator() throws Exception {
+    List<String> events = generateEvents(new Random(12), 6000);
+    String expected = processSerially(events);
+    assertTrue(expected.length() > 0);
+
+    String prefix = nextPrefix();
+    StringWriter output = new StringWriter();
+    StreamPipeline pipeline = new StreamPipeline(engine, 3, 2, null);
+    try (BufferedWriter anomalyWriter = new BufferedWriter(output)) {
+      pipeline.process(withPrefix(events, prefix).iterator(),
+              new FlaggedPurchaseWriter(anomalyWriter));
+    }
+    assertEquals(expected, output.toString().replace(prefix, ""));
+    long parsedCount = 0;
+    long sequencedCount = 0;
+    long outputCount = 0;
+    for (SpscRing<?> ring : pipeline.getRings()) {
+      assertTrue(ring.getMaxDepth() <= ring.getCapacity());
+      if (ring.getName().startsWith("parse-")) {
+        parsedCount += ring.getPutCount() - 1; // less the end-of-input marker
+      } else if (ring.getName().startsWith("sequence-")) {
+        sequencedCount += ring.getPutCount() - 1;
+      } else {
+        outputCount = ring.getPutCount() - 1;
+      }
+    }
+    assertTrue(parsedCount >= events.size() / StreamPipeline.MAX_BATCH_LINES);
+    assertEquals(parsedCount, sequencedCount);
+    assertEquals(parsedCount, outputCount);
+  }
+
+  /**
+   * Test of process method (with mapped input) of class StreamPipeline: output must be
+   * identical to that of serial processing, with batches spanning remapped windows.
+   * @throws java.lang.Exception
+   */
+  public void testProcess_Mapped() throws Exception {
+    List<String> events = generateEvents(new Random(13), 6000);
+    String expected = processSerially(events);
+
+    String prefix = nextPrefix();
+    Path path = Files.createTempFile("stream", ".json");
+    StringWriter output = new StringWriter();
+    try {
+      Files.write(path, withPrefix(events, prefix), StandardCharsets.UTF_8);
+      try (MappedLineReader reader = new MappedLineReader(path, 4096);
+              BufferedWriter anomalyWriter = new BufferedWriter(output)) {
+        new StreamPipeline(engine, 2).process(reader, new FlaggedPurchaseWriter(anomalyWriter));
+      }
+    } finally {
+      Files.delete(path);
+    }
+    assertEquals(expected, output.toString().replace(prefix, ""));
+  }
+
+  /**
+   * Test of process method of class StreamPipeline with invalid input: as with serial
+   * processing, the events preceding the invalid line must be processed (and their flagged
+   * purchases written) before the ParseException is thrown.
+   * @throws java.lang.Exception
+   */
+  public void testProcess_Invalid() throws Exception {
+    List<String> events = generateEvents(new Random(14), 6000);
+    events.set(4321, "{\"event_type\":\"purchase\", \"timestamp\":\"2017-06-13 11:33:01\"");
+
+    String serialPrefix = nextPrefix();
+    StringWriter serialOutput = new StringWriter();
+    TransactionProcessor transactionProcessor = newSerialProcessor();
+    try (BufferedWriter anomalyWriter = new BufferedWriter(serialOutput)) {
+      transactionProcessor.processStreamInput(
+              withPrefix(events, serialPrefix).stream(), anomalyWriter);
+      fail("ParseException expected");
+    } catch (ParseException e) {
+      // expected
+    }
+
+    String prefix = nextPrefix();
+    StringWriter output = new StringWriter();
+    try (BufferedWriter anomalyWriter = new BufferedWriter(output)) {
+      new StreamPipeline(engine, 3, 2, null).process(withPrefix(events, prefix).iterator(),
+              new FlaggedPurchaseWriter(anomalyWriter));
+      fail("ParseException expected");
+    } catch (ParseException e) {
+      // expected
+    }
+    assertTrue(serialOutput.toString().length() > 0);
+    assertEquals(serialOutput.toString().replace(serialPrefix, ""),
+            output.toString().replace(prefix, ""));
+  }
+
+  /**
+   * Test of process method of class StreamPipeline with events of unrecognized type: as with
+   * serial processing, each is counted as rejected and skipped, without disturbing the output.
+   * @throws java.lang.Exception
+   */
+  public void testProcess_Rejected() throws Exception {
+    List<String> events = generateEvents(new Random(16), 6000);
+    for (int i : new int[]{0, 2500, events.size() - 1}) {
+      events.set(i, "{\"event_type\":\"refund\", \"timestamp\":\"2017-06-13 11:33:01\", "
+              + "\"id\": \"{P}1\", \"amount\": \"16.83\"}");
+    }
+    String expected = processSerially(events);
+    assertTrue(expected.length() > 0);
+    assertEquals(3, engine.getRejectedEventCount());
+
+    for (SpeculativeScorer speculativeScorer
+            : new SpeculativeScorer[]{null, new SpeculativeScorer(engine, 2)}) {
+      String prefix = nextPrefix();
+      StringWriter output = new StringWriter();
+      long rejectedEventCount = engine.getRejectedEventCount();
+      try (BufferedWriter anomalyWriter = new BufferedWriter(output)) {
+        new StreamPipeline(engine, 3, 2, speculativeScorer).process(
+                withPrefix(events, prefix).iterator(), new FlaggedPurchaseWriter(anomalyWriter));
+      }
+      assertEquals(expected, output.toString().replace(prefix, ""));
+      assertEquals(rejectedEventCount + 3, engine.getRejectedEventCount());
+    }
+  }
+
+  /**
+   * Test of process method of class StreamPipeline with a SpeculativeScorer: output must be
+   * identical to that of serial processing, whether users' networks are small (so that most
+   * speculative scores are accepted) or large (so that most are recomputed).
+   * @throws java.lang.Exception
+   */
+  public void testProcess_Speculative() throws Exception {
+    for (int userCount : new int[]{40, 4000}) {
+      List<String> events = generateEvents(new Random(15), 20000, userCount);
+      String expected = processSerially(events);
+      assertTrue(expected.length() > 0);
+
+      String prefix = nextPrefix();
+      StringWriter output = new StringWriter();
+      SpeculativeScorer speculativeScorer = new SpeculativeScorer(engine, 3);
+      try (BufferedWriter anomalyWriter = new BufferedWriter(output)) {
+        new StreamPipeline(engine, 2, 4, speculativeScorer)
+                .process(withPrefix(events, prefix).iterator(),
+                        new FlaggedPurchaseWriter(anomalyWriter));
+        assertTrue(speculativeScorer.getSpeculatedCount() > 0);
+        assertEquals(speculativeScorer.getSpeculatedCount(),
+                speculativeScorer.getAcceptedCount() + speculativeScorer.getRecomputedCount());
+        if (userCount > 1000) {
+          assertTrue(speculativeScorer.getAcceptedCount()
+                  > speculativeScorer.getRecomputedCount());
+        } else {
+          assertTrue(speculativeScorer.getRecomputedCount() > 0);
+        }
+      }
+      assertEquals(expected, output.toString().replace(prefix, ""));
+    }
+  }
+
+  private String processSerially(List<String> events) throws Exception {
+    String prefix = nextPrefix();
+    StringWriter output = new StringWriter();
+    try (BufferedWriter anomalyWriter = new BufferedWriter(output)) {
+      newSerialProcessor().processStreamInput(withPrefix(events, prefix).stream(), anomalyWriter);
+    }
+    return output.toString().replace(prefix, "");
+  }
+
+  private TransactionProcessor newSerialProcessor() throws Exception {
+    Path emptyPath = Files.createTempFile("batch-empty", ".json");
+    try {
+      TransactionProcessor transactionProcessor = new TransactionProcessor(engine, emptyPath.toString());
+      transactionProcessor.setPipelineParserCount(0);
+      return transactionProcessor;
+    } finally {
+      Files.delete(emptyPath);
+    }
+  }
+
+  private static String nextPrefix() {
+    return "sp" + (runCount++) + "-";
+  }
+
+  private static List<String> withPrefix(List<String> events, String prefix) {
+    List<String> prefixedEvents = new ArrayList<>();
+    for (String event : events) {
+      prefixedEvents.add(event.replace("{P}", prefix));
+    }
+    return prefixedEvents;
+  }
+
+  /**
+   * Generates events among users whose ids bear the placeholder prefix "{P}", including blank
+   * lines, non-ASCII ids, and out-of-order timestamps.
+   */
+  private static List<String> generateEvents(Random random, int eventCount) {
+    return generateEvents(random, eventCount, 40);
+  }
+
+  private static List<String> generateEvents(Random random, int eventCount, int userCount) {
+    return TestEvents.generateIrregular(random, eventCount, "{P}", userCount);
+  }
+}
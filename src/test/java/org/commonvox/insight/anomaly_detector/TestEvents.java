@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.io.BufferedWriter;
+import java.io.StringWriter;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Provides the randomly generated events shared by unit tests: purchases (60%), befriend (30%)
+ * and unfriend (10%) events among users whose ids bear a submitted prefix, with frequently
+ * repeated timestamps and occasional outsized purchases, and the processing of such events.
+ *
+ * @author Daniel Vimont
+ */
+final class TestEvents {
+
+  private static final LocalDateTime START_TIME = LocalDateTime.of(2017, 6, 13, 11, 0, 0);
+  private static final DateTimeFormatter TIMESTAMP_FORMAT
+          = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  private TestEvents() {
+  }
+
+  /**
+   * Generates events among users "<i>idPrefix</i>0" to "<i>idPrefix</i>(userCount - 1)",
+   * beginning at the submitted offset (in minutes) from a fixed time.
+   */
+  static List<String> generate(Random random, int eventCount, String idPrefix, int userCount,
+          int offsetMinutes) {
+    return generate(random, eventCount, idPrefix, userCount, offsetMinutes, false);
+  }
+
+  /**
+   * Generates events as {@link #generate generate} does (from the fixed time itself), but
+   * including blank lines, non-ASCII ids, and occasional out-of-order timestamps.
+   */
+  static List<String> generateIrregular(Random random, int eventCount, String idPrefix,
+          int userCount) {
+    return generate(random, eventCount, idPrefix, userCount, 0, true);
+  }
+
+  private static List<String> generate(Random random, int eventCount, String idPrefix,
+          int userCount, int offsetMinutes, boolean irregular) {
+    LocalDateTime time = START_TIME.plusMinutes(offsetMinutes);
+    List<String> events = new ArrayList<>();
+    for (int i = 0; i < eventCount; i++) {
+      if (random.nextInt(3) == 0) {
+        time = time.plusSeconds(1);
+      }
+      if (irregular && random.nextInt(20) == 0) {
+        events.add("");
+        continue;
+      }
+      String timestamp = (irregular && random.nextInt(10) == 0
+              ? time.minusSeconds(1 + random.nextInt(4)) : time).format(TIMESTAMP_FORMAT);
+      String id1 = idPrefix + (irregular && random.nextInt(10) == 0 ? "é" : "")
+              + random.nextInt(userCount);
+      String id2 = idPrefix + random.nextInt(userCount);
+      int kind = random.nextInt(10);
+      if (kind < 6) {
+        int dollars = random.nextInt(20) == 0 ? 1000 + random.nextInt(1000) : random.nextInt(100);
+        events.add("{\"event_type\":\"purchase\", \"timestamp\":\"" + timestamp
+                + "\", \"id\": \"" + id1 + "\", \"amount\": \"" + dollars + "."
+                + (10 + random.nextInt(90)) + "\"}");
+      } else if (!id1.equals(id2)) {
+        events.add("{\"event_type\":\"" + (kind < 9 ? "befriend" : "unfriend")
+                + "\", \"timestamp\":\"" + timestamp + "\", \"id1\": \"" + id1
+                + "\", \"id2\": \"" + id2 + "\"}");
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Processes the submitted stream of events via the submitted processor (serially, or with the
+   * submitted counts of pipeline parser and scoring threads), returning the flagged purchases.
+   */
+  static String process(TransactionProcessor transactionProcessor, int parserCount,
+          int scoringThreadCount, List<String> stream) throws Exception {
+    transactionProcessor.setPipelineParserCount(parserCount);
+    transactionProcessor.setScoringThreadCount(scoringThreadCount);
+    StringWriter output = new StringWriter();
+    try (BufferedWriter anomalyWriter = new BufferedWriter(output)) {
+      transactionProcessor.processStreamInput(stream.stream(), anomalyWriter);
+    }
+    return output.toString();
+  }
+}
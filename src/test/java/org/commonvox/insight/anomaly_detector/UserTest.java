@@ -17,11 +17,12 @@ package org.commonvox.insight.anomaly_detector;
 
 import java.lang.reflect.Field;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.NavigableSet;
-import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 import static junit.framework.Assert.assertEquals;
 import junit.framework.TestCase;
 
@@ -32,79 +33,23 @@ import junit.framework.TestCase;
  */
 public class UserTest extends TestCase {
 
+  private AnomalyEngine engine;
+
   public UserTest(String testName) {
     super(testName);
   }
 
-  /**
-   * Test of setDegreesOfSeparation method of class User.
-   *
-   * @throws java.lang.NoSuchFieldException
-   * @throws java.lang.IllegalAccessException
-   */
-  public void testSetDegreesOfSeparation() throws NoSuchFieldException, IllegalAccessException {
-    int degreesOfSeparation = 5;
-    User.setDegreesOfSeparation(degreesOfSeparation);
-    Field degreesOfSeparationField = User.class.getDeclaredField("degreesOfSeparation");
-    degreesOfSeparationField.setAccessible(true);
-    degreesOfSeparationField.get(null);
-    assertEquals(degreesOfSeparation, degreesOfSeparationField.get(null));
-  }
-
-  /**
-   * Test of getDegreesOfSeparation method of class User.
-   *
-   * @throws java.lang.NoSuchFieldException
-   * @throws java.lang.IllegalAccessException
-   */
-  public void testGetDegreesOfSeparation() throws NoSuchFieldException, IllegalAccessException {
-    int expResult = 12;
-    Field degreesField = User.class.getDeclaredField("degreesOfSeparation");
-    degreesField.setAccessible(true);
-    degreesField.set(null, expResult);
-    int result = User.getDegreesOfSeparation();
-    assertEquals(expResult, result);
-  }
-
-  /**
-   * Test of getOrCreateUser method of class User.
-   */
-  public void testGetOrCreateUser() {
-    String id = "266";
-    String expResultId = id;
-    User result = User.getOrCreateUser(id);
-    assertEquals(expResultId, result.getId());
-    int originalUserCount = User.getAllUsers().size();
-
-    User sameUser = User.getOrCreateUser(id); // should get original user (not create new one)
-    assertEquals(result, sameUser);
-    assertEquals(originalUserCount, User.getAllUsers().size());
-  }
-
-  /**
-   * Test of getAllUsers method of class User.
-   */
-  public void testGetAllUsers() {
-    List<String> idList = Arrays.asList(new String[]{"567", "890", "667"});
-    for (String id : idList) {
-      User.getOrCreateUser(id);
-    }
-    Collection<User> allUsers = User.getAllUsers();
-    Set<String> allUserIds = new TreeSet<>();
-    for (User user : allUsers) {
-      allUserIds.add(user.getId());
-    }
-    for (String id : idList) {
-      assertTrue(allUserIds.contains(id));
-    }
+  @Override
+  protected void setUp() {
+    engine = new AnomalyEngine();
   }
 
   /**
    * Test of getFriends method of class User.
    */
   public void testGetFriends() {
-    User.setDegreesOfSeparation(3);
-    PurchaseManager.setThreshold(50);
+    engine.setDegreesOfSeparation(3);
+    engine.setThreshold(50);
 
     String id1 = "100";
     String id2 = "200";
@@ -112,12 +57,12 @@ public class UserTest extends TestCase {
     String id4 = "400";
     String id5 = "500";
     String id6 = "600";
-    User user1 = User.getOrCreateUser(id1);
-    User user2 = User.getOrCreateUser(id2);
-    User user3 = User.getOrCreateUser(id3);
-    User user4 = User.getOrCreateUser(id4);
-    User user5 = User.getOrCreateUser(id5);
-    User user6 = User.getOrCreateUser(id6);
+    User user1 = engine.getOrCreateUser(id1);
+    User user2 = engine.getOrCreateUser(id2);
+    User user3 = engine.getOrCreateUser(id3);
+    User user4 = engine.getOrCreateUser(id4);
+    User user5 = engine.getOrCreateUser(id5);
+    User user6 = engine.getOrCreateUser(id6);
     String timestamp = "2017-06-13 11:33:01";
 
     user1.befriend(timestamp, user2);
@@ -146,8 +91,8 @@ public class UserTest extends TestCase {
    * Test of getNetwork method of class User.
    */
   public void testGetNetwork() {
-    User.setDegreesOfSeparation(2);
-    PurchaseManager.setThreshold(50);
+    engine.setDegreesOfSeparation(2);
+    engine.setThreshold(50);
 
     String id1 = "101";
     String id2 = "201";
@@ -155,12 +100,12 @@ public class UserTest extends TestCase {
     String id4 = "401";
     String id5 = "501";
     String id6 = "601";
-    User user1 = User.getOrCreateUser(id1);
-    User user2 = User.getOrCreateUser(id2);
-    User user3 = User.getOrCreateUser(id3);
-    User user4 = User.getOrCreateUser(id4);
-    User user5 = User.getOrCreateUser(id5);
-    User user6 = User.getOrCreateUser(id6);
+    User user1 = engine.getOrCreateUser(id1);
+    User user2 = engine.getOrCreateUser(id2);
+    User user3 = engine.getOrCreateUser(id3);
+    User user4 = engine.getOrCreateUser(id4);
+    User user5 = engine.getOrCreateUser(id5);
+    User user6 = engine.getOrCreateUser(id6);
     String timestamp = "2017-06-13 11:33:01";
 
     user1.befriend(timestamp, user2);
@@ -192,8 +137,8 @@ public class UserTest extends TestCase {
    */
   public void testBefriend() {
     String timestamp = "2017-06-13 11:33:01";
-    User otherUser = User.getOrCreateUser("9999");
-    User instance = User.getOrCreateUser("8888");
+    User otherUser = engine.getOrCreateUser("9999");
+    User instance = engine.getOrCreateUser("8888");
     instance.befriend(timestamp, otherUser);
     assertTrue(instance.getFriends().contains(otherUser));
 
@@ -211,8 +156,8 @@ public class UserTest extends TestCase {
    * Test of befriend method of class User.
    */
   public void testUnfriend() {
-    User otherUser = User.getOrCreateUser("44444");
-    User instance = User.getOrCreateUser("55555");
+    User otherUser = engine.getOrCreateUser("44444");
+    User instance = engine.getOrCreateUser("55555");
 
     // A submission of #unfriend should NOT succeed if the timestamp of the unfriend transaction
     //   precedes the timestamp of an already-submitted #befriend transaction.
@@ -237,19 +182,19 @@ public class UserTest extends TestCase {
    * @throws java.lang.IllegalAccessException
    */
   public void testAddPurchase_String_String() throws NoSuchFieldException, IllegalAccessException {
-    PurchaseManager.setThreshold(3);
+    engine.setThreshold(3);
 
     String timestamp = "2017-06-13 11:33:02";
     String amountString = "389.22";
-    User user = User.getOrCreateUser("9090");
+    User user = engine.getOrCreateUser("9090");
     user.addPurchase(timestamp, amountString);
     Field purchaseManagerField = User.class.getDeclaredField("purchaseManager");
     purchaseManagerField.setAccessible(true);
     PurchaseManager purchaseManager = (PurchaseManager)purchaseManagerField.get(user);
-    assertEquals(1, purchaseManager.getPurchaseMap().size());
-    assertEquals(timestamp, purchaseManager.getPurchaseMap().firstEntry().getKey().timestamp);
-    assertEquals(PurchaseManager.amountStringToInteger(amountString),
-            purchaseManager.getPurchaseMap().firstEntry().getValue());
+    assertEquals(1, purchaseManager.size());
+    assertEquals(PurchaseManager.timestampToEpochSecond(timestamp), purchaseManager.getTimestamp(0));
+    assertEquals((int)PurchaseManager.amountStringToInteger(amountString),
+            purchaseManager.getAmount(0));
   }
 
   /**
@@ -261,33 +206,33 @@ public class UserTest extends TestCase {
    * @throws java.lang.IllegalAccessException
    */
   public void testAddPurchase_String_Integer() throws NoSuchFieldException, IllegalAccessException {
-    PurchaseManager.setThreshold(3);
+    engine.setThreshold(3);
 
     String timestamp = "2017-06-13 11:33:02";
     Integer amount = 38922;
-    User user = User.getOrCreateUser("7070");
+    User user = engine.getOrCreateUser("7070");
     user.addPurchase(timestamp, amount);
     Field purchaseManagerField = User.class.getDeclaredField("purchaseManager");
     purchaseManagerField.setAccessible(true);
     PurchaseManager purchaseManager = (PurchaseManager)purchaseManagerField.get(user);
-    assertEquals(1, purchaseManager.getPurchaseMap().size());
-    assertEquals(timestamp, purchaseManager.getPurchaseMap().firstEntry().getKey().timestamp);
-    assertEquals(amount,
-            purchaseManager.getPurchaseMap().firstEntry().getValue());
+    assertEquals(1, purchaseManager.size());
+    assertEquals(PurchaseManager.timestampToEpochSecond(timestamp), purchaseManager.getTimestamp(0));
+    assertEquals((int)amount,
+            purchaseManager.getAmount(0));
   }
 
   /**
    * Test of getAnomalyData method of class User.
    */
   public void testGetAnomalyData() {
-    PurchaseManager.setThreshold(50);
+    engine.setThreshold(50);
 
     String id1 = "1";
     String id2 = "2";
     String id3 = "3";
-    User user1 = User.getOrCreateUser(id1);
-    User user2 = User.getOrCreateUser(id2);
-    User user3 = User.getOrCreateUser(id3);
+    User user1 = engine.getOrCreateUser(id1);
+    User user2 = engine.getOrCreateUser(id2);
+    User user3 = engine.getOrCreateUser(id3);
     String timestamp = "2017-06-13 11:33:01";
 
     user1.addPurchase(timestamp, 1683);
@@ -302,22 +247,171 @@ public class UserTest extends TestCase {
 
     Integer amount = 160183;
     User instance = user2;
-    int[] expResult = {2910, 2146};
-    int[] result = instance.getAnomalyData(amount);
+    long[] expResult = {2910, 2146};
+    long[] result = instance.getAnomalyData(amount);
     assertTrue(result != null);
     assertEquals("Failure to return expected mean value", expResult[0], result[0]);
     assertEquals("Failure to return expected standard-deviation value", expResult[1], result[1]);
   }
 
+  /**
+   * Test of network caching and of targeted network-cache invalidation in the #befriend and
+   * #unfriend methods of class User.
+   */
+  public void testNetworkCache() {
+    engine.setDegreesOfSeparation(2);
+    engine.setThreshold(50);
+
+    User user1 = engine.getOrCreateUser("1001");
+    User user2 = engine.getOrCreateUser("1002");
+    User user3 = engine.getOrCreateUser("1003");
+    User user4 = engine.getOrCreateUser("1004");
+    String timestamp = "2017-06-13 11:33:01";
+    user1.befriend(timestamp, user2);
+    user2.befriend(timestamp, user1);
+    user2.befriend(timestamp, user3);
+    user3.befriend(timestamp, user2);
+
+    long hitCount = engine.getNetworkCacheHitCount();
+    long missCount = engine.getNetworkCacheMissCount();
+    assertEquals(2, user1.getNetwork().size());
+    assertEquals(missCount + 1, engine.getNetworkCacheMissCount());
+    assertEquals(2, user1.getNetwork().size());
+    assertEquals(hitCount + 1, engine.getNetworkCacheHitCount());
+
+    // user4 is beyond (degrees of separation - 1) of user1, so user1's network remains cached
+    User user5 = engine.getOrCreateUser("1005");
+    user4.befriend(timestamp, user5);
+    user5.befriend(timestamp, user4);
+    assertEquals(2, user1.getNetwork().size());
+    assertEquals(hitCount + 2, engine.getNetworkCacheHitCount());
+
+    // befriending within (degrees of separation - 1) of user1 invalidates user1's network
+    user3.befriend(timestamp, user4);
+    user4.befriend(timestamp, user3);
+    NavigableSet<User> expResult = new TreeSet<>(Arrays.asList(user2, user3));
+    assertEquals(expResult, user1.getNetwork());
+    user2.befriend(timestamp, user4);
+    user4.befriend(timestamp, user2);
+    expResult.add(user4);
+    assertEquals(expResult, user1.getNetwork());
+    user2.unfriend(timestamp, user4);
+    user4.unfriend(timestamp, user2);
+    expResult.remove(user4);
+    assertEquals(expResult, user1.getNetwork());
+
+    // a capacity of zero disables caching
+    long originalCapacity = engine.getNetworkCacheCapacity();
+    engine.setNetworkCacheCapacity(0);
+    hitCount = engine.getNetworkCacheHitCount();
+    user1.getNetwork();
+    user1.getNetwork();
+    assertEquals(hitCount, engine.getNetworkCacheHitCount());
+    engine.setNetworkCacheCapacity(originalCapacity);
+  }
+
+  /**
+   * Test of concurrent invocation of the #getOrCreateUser, #befriend, #addPurchase, and
+   * #getAnomalyData methods of class User.
+   *
+   * @throws java.lang.InterruptedException
+   */
+  public void testConcurrentUpdates() throws InterruptedException {
+    engine.setDegreesOfSeparation(2);
+    engine.setThreshold(50);
+    final int threadCount = 8;
+    final int userCount = 200;
+    final int purchasesPerThread = 500;
+    final User hub = engine.getOrCreateUser("cu-hub");
+    final User[][] createdUsers = new User[threadCount][userCount];
+    final long[][] eventTimes = new long[threadCount][purchasesPerThread];
+    final int[][] amounts = new int[threadCount][purchasesPerThread];
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      final int threadIndex = t;
+      threads[t] = new Thread(() -> {
+        try {
+          startSignal.await();
+          for (int i = 0; i < userCount; i++) { // all threads create the same users
+            User user = engine.getOrCreateUser("cu-" + ((i + threadIndex * 25) % userCount));
+            createdUsers[threadIndex][(i + threadIndex * 25) % userCount] = user;
+            user.befriend(EventTime.pack(1497353581L, i), hub);
+            hub.befriend(EventTime.pack(1497353581L, i), user);
+          }
+          for (int i = 0; i < purchasesPerThread; i++) {
+            User user = createdUsers[threadIndex][(i * 7 + threadIndex) % userCount];
+            eventTimes[threadIndex][i]
+                    = EventTime.pack(1497353600L + i, threadIndex * purchasesPerThread + i);
+            amounts[threadIndex][i] = 100 + (i * 31 + threadIndex * 17) % 900;
+            user.addPurchase(eventTimes[threadIndex][i], amounts[threadIndex][i]);
+            if (i % 50 == 0) {
+              hub.getAnomalyData(Integer.MAX_VALUE); // concurrent assessment
+            }
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      threads[t].start();
+    }
+    startSignal.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+
+    for (int t = 1; t < threadCount; t++) {
+      for (int i = 0; i < userCount; i++) {
+        assertSame(createdUsers[0][i], createdUsers[t][i]);
+      }
+    }
+    assertEquals(userCount, hub.getNetwork().size());
+
+    // the hub's network must reflect the most recent purchases across all threads
+    long[] allEventTimes = new long[threadCount * purchasesPerThread];
+    Map<Long, Integer> amountsByEventTime = new HashMap<>();
+    for (int t = 0; t < threadCount; t++) {
+      for (int i = 0; i < purchasesPerThread; i++) {
+        allEventTimes[t * purchasesPerThread + i] = eventTimes[t][i];
+        amountsByEventTime.put(eventTimes[t][i], amounts[t][i]);
+      }
+    }
+    Arrays.sort(allEventTimes);
+    RunningStatistics expectedStatistics = new RunningStatistics();
+    for (int i = allEventTimes.length - 50; i < allEventTimes.length; i++) {
+      expectedStatistics.add(amountsByEventTime.get(allEventTimes[i]));
+    }
+    long[] result = hub.getAnomalyData(Integer.MAX_VALUE);
+    assertEquals(expectedStatistics.getMean(), result[0]);
+    assertEquals(expectedStatistics.getStandardDeviation(), result[1]);
+  }
+
   /**
    * Test of compareTo method of class User.
    */
   public void testCompareTo() {
-    User other = User.getOrCreateUser("109");
-    User instance = User.getOrCreateUser("110");
+    User other = engine.getOrCreateUser("109");
+    User instance = engine.getOrCreateUser("110");
     int result = instance.compareTo(other);
     assertTrue(result > 0);
     result = other.compareTo(instance);
     assertTrue(result < 0);
   }
+
+  /**
+   * Test of equals and hashCode methods of class User: users of equal id in different engines
+   * (in which they have different indexes) must be equal and have equal hash codes.
+   */
+  public void testEqualsAndHashCode() {
+    AnomalyEngine otherEngine = new AnomalyEngine();
+    otherEngine.getOrCreateUser("111");
+    User other = otherEngine.getOrCreateUser("110");
+    User instance = engine.getOrCreateUser("110");
+    assertTrue(instance.getIndex() != other.getIndex());
+    assertEquals(instance, other);
+    assertEquals(instance.hashCode(), other.hashCode());
+    assertFalse(instance.equals(engine.getOrCreateUser("111")));
+  }
 }
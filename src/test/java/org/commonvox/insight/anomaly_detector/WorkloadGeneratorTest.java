@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Daniel Vimont.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonvox.insight.anomaly_detector;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * Provides unit testing for methods of the {@code WorkloadGenerator} class
+ *
+ * @author Daniel Vimont
+ */
+public class WorkloadGeneratorTest extends TestCase {
+
+  private static final String TIMESTAMP = "(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2})";
+  private static final Pattern PURCHASE_PATTERN = Pattern.compile(
+          "\\{\"event_type\":\"purchase\", \"timestamp\":\"" + TIMESTAMP
+          + "\", \"id\": \"(\\d+)\", \"amount\": \"(\\d+\\.\\d{2})\"\\}");
+  private static final Pattern FRIENDSHIP_PATTERN = Pattern.compile(
+          "\\{\"event_type\":\"(befriend|unfriend)\", \"timestamp\":\"" + TIMESTAMP
+          + "\", \"id1\": \"(\\d+)\", \"id2\": \"(\\d+)\"\\}");
+
+  private Path batchPath;
+  private Path streamPath;
+
+  @Override
+  protected void setUp() throws Exception {
+    batchPath = Files.createTempFile("generated-batch", ".json");
+    streamPath = Files.createTempFile("generated-stream", ".json");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Files.deleteIfExists(batchPath);
+    Files.deleteIfExists(streamPath);
+  }
+
+  private static WorkloadGenerator newGenerator(long seed) {
+    WorkloadGenerator generator = new WorkloadGenerator();
+    generator.setSeed(seed);
+    generator.setUserCount(500);
+    generator.setMeanDegree(6);
+    generator.setCommunitySize(50);
+    generator.setPurchasesPerUser(4);
+    generator.setStreamEventCount(5000);
+    generator.setChurnRatios(0.1, 0.05);
+    generator.setAnomalyRatio(0.01);
+    generator.setLateRatio(0.05);
+    generator.setMaxLateness(30);
+    generator.setEventsPerSecond(10);
+    generator.setDegreesOfSeparation(2);
+    generator.setThreshold(20);
+    return generator;
+  }
+
+  /**
+   * Test of generate method of class WorkloadGenerator: the same seed must yield identical
+   * files, and a different seed different files.
+   * @throws java.lang.Exception
+   */
+  public void testGenerate_Deterministic() throws Exception {
+    newGenerator(7).generate(batchPath, streamPath);
+    byte[] batch = Files.readAllBytes(batchPath);
+    byte[] stream = Files.readAllBytes(streamPath);
+
+    WorkloadGenerator generator = newGenerator(7);
+    generator.generate(batchPath, streamPath);
+    assertTrue(Arrays.equals(batch, Files.readAllBytes(batchPath)));
+    assertTrue(Arrays.equals(stream, Files.readAllBytes(streamPath)));
+    generator.generate(batchPath, streamPath); // a generator may be rerun
+    assertTrue(Arrays.equals(stream, Files.readAllBytes(streamPath)));
+
+    newGenerator(8).generate(batchPath, streamPath);
+    assertFalse(Arrays.equals(batch, Files.readAllBytes(batchPath)));
+    assertFalse(Arrays.equals(stream, Files.readAllBytes(streamPath)));
+  }
+
+  /**
+   * Test of generate method of class WorkloadGenerator: every line must be in the layout of
+   * the original specifications, friendships must be between distinct users, unfriend events
+   * must end existing friendships, and late timestamps must appear at about the configured
+   * share of events.
+   * @throws java.lang.Exception
+   */
+  public void testGenerate_Layout() throws Exception {
+    WorkloadGenerator generator = newGenerator(3);
+    generator.generate(batchPath, streamPath);
+    List<String> batchLines = Files.readAllLines(batchPath, StandardCharsets.US_ASCII);
+    List<String> streamLines = Files.readAllLines(streamPath, StandardCharsets.US_ASCII);
+    assertEquals("{\"D\":\"2\", \"T\":\"20\"}", batchLines.get(0));
+    assertEquals(5000, streamLines.size());
+
+    Set<String> friendships = new HashSet<>();
+    int purchaseCount = 0;
+    int lateCount = 0;
+    int unfriendCount = 0;
+    String previousTimestamp = "";
+    for (String line : batchLines.subList(1, batchLines.size())) {
+      previousTimestamp = checkLine(line, previousTimestamp, friendships, true);
+      if (line.contains("\"purchase\"")) {
+        purchaseCount++;
+      }
+    }
+    assertEquals(500 * 4, purchaseCount);
+    assertTrue(friendships.size() > 500 * 6 / 2 * 0.9);
+    assertEquals(friendships.size(), batchLines.size() - 1 - purchaseCount);
+    for (String line : streamLines) {
+      String timestamp = checkLine(line, previousTimestamp, friendships, false);
+      if (timestamp.compareTo(previousTimestamp) < 0) {
+        lateCount++;
+      }
+      if (line.contains("\"unfriend\"")) {
+        unfriendCount++;
+      }
+      previousTimestamp = timestamp;
+    }
+    assertTrue(unfriendCount > 5000 * 0.05 * 0.7 && unfriendCount < 5000 * 0.05 * 1.3);
+    assertTrue(lateCount > 5000 * 0.05 * 0.5 && lateCount < 5000 * 0.05 * 1.5);
+    assertTrue(generator.getInjectedAnomalyCount() > 0);
+
+    // generated files must be processable by the detector, with injected anomalies flagged
+    Path anomalyPath = Files.createTempFile("generated-flagged", ".json");
+    Files.delete(anomalyPath);
+    try {
+      new TransactionProcessor(batchPath.toString())
+              .processPathStringInput(streamPath.toString(), anomalyPath.toString());
+      assertTrue(Files.readAllLines(anomalyPath, StandardCharsets.UTF_8).size() > 0);
+    } finally {
+      Files.deleteIfExists(anomalyPath);
+    }
+  }
+
+  /**
+   * Checks the layout of a line, and applies a befriend or unfriend event to the submitted set
+   * of friendships, returning the timestamp of the line.
+   */
+  private static String checkLine(String line, String previousTimestamp, Set<String> friendships,
+          boolean batch) {
+    Matcher purchase = PURCHASE_PATTERN.matcher(line);
+    if (purchase.matches()) {
+      assertTrue(AmountCodec.parse(purchase.group(3)) > 0);
+      return purchase.group(1);
+    }
+    Matcher friendship = FRIENDSHIP_PATTERN.matcher(line);
+    assertTrue(line, friendship.matches());
+    int id1 = Integer.parseInt(friendship.group(3));
+    int id2 = Integer.parseInt(friendship.group(4));
+    assertTrue(id1 != id2 && id1 >= 1 && id2 >= 1 && id1 <= 500 && id2 <= 500);
+    String key = Math.min(id1, id2) + "-" + Math.max(id1, id2);
+    if (friendship.group(1).equals("befriend")) {
+      boolean added = friendships.add(key);
+      if (batch) {
+        assertTrue(added);
+      }
+    } else {
+      assertTrue(friendships.remove(key));
+    }
+    return friendship.group(2);
+  }
+}